@@ -0,0 +1,32 @@
+package ma.emsi.elboudadi.tp1jakartaee;
+
+import java.io.*;
+
+import jakarta.enterprise.inject.Any;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+import jakarta.servlet.http.*;
+import jakarta.servlet.annotation.*;
+import ma.emsi.elboudadi.tp1jakartaee.llm.SourceMetriques;
+
+/**
+ * Expose les métriques de l'application au format texte de Prometheus.
+ * Les métriques sont fournies par tous les beans CDI qui implémentent SourceMetriques.
+ */
+@WebServlet(name = "metriquesServlet", value = "/metrics")
+public class MetriquesServlet extends HttpServlet {
+
+    @Inject
+    @Any
+    private Instance<SourceMetriques> sources;
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        PrintWriter out = response.getWriter();
+        for (SourceMetriques source : sources) {
+            source.ecrireMetriques(out);
+        }
+    }
+}
@@ -8,13 +8,30 @@ import jakarta.inject.Inject;
 import jakarta.inject.Named;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
+import ma.emsi.elboudadi.tp1jakartaee.llm.CaptureDebug;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Conversation;
+import ma.emsi.elboudadi.tp1jakartaee.llm.EchangeDebug;
+import ma.emsi.elboudadi.tp1jakartaee.llm.FichierJoint;
 import ma.emsi.elboudadi.tp1jakartaee.llm.JsonUtilPourGemini;
 import ma.emsi.elboudadi.tp1jakartaee.llm.LlmInteraction;
 import ma.emsi.elboudadi.tp1jakartaee.llm.RequeteException;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RequeteRefuseeException;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RolePredefini;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Tour;
+import ma.emsi.elboudadi.tp1jakartaee.persistance.AvancementEcriture;
+import ma.emsi.elboudadi.tp1jakartaee.persistance.StockageConversations;
+import org.primefaces.PrimeFaces;
 
 /**
  * Backing bean pour la page JSF index.xhtml.
@@ -39,29 +56,78 @@ public class Bb implements Serializable {
     private boolean roleSystemeChangeable = true;
 
     /**
-     * Liste de tous les rôles de l'API prédéfinis.
+     * Dernière question posée par l'utilisateur.
      */
-    private List<SelectItem> listeRolesSysteme;
+    private String question;
 
     /**
-     * Dernière question posée par l'utilisateur.
+     * Identifiant du fichier à joindre à la question, donné par FichierServlet ; null s'il n'y en a pas.
      */
-    private String question;
+    private String pieceJointe;
     /**
      * Dernière réponse de l'API OpenAI.
      */
     private String reponse;
     /**
-     * La conversation depuis le début.
+     * Nombre de messages affichés dans la conversation ; les précédents sont lus dans la base de données
+     * à la demande de l'utilisateur.
+     * La conversation affichée n'est pas gardée dans le bean : elle est écrite à partir des messages
+     * de JsonUtilPourGemini, pour que l'état de la vue ne contienne qu'une fois chaque message.
+     */
+    private static final int TOURS_AFFICHES = ConfigurationLlm.lireInt("gemini.stockage.fenetre", 20);
+
+    /**
+     * Messages précédents, lus dans la base de données à la demande de l'utilisateur.
+     * Pas gardés dans l'état de la vue.
+     */
+    private transient String echangesAnciens;
+    /**
+     * Indice du premier message qui n'est pas dans echangesAnciens.
      */
-    private StringBuilder conversation = new StringBuilder();
+    private transient int finEchangesAnciens;
+    /**
+     * Avancement de l'enregistrement de la conversation par StockageConversations.
+     */
+    private final AvancementEcriture avancementEcriture = new AvancementEcriture();
+    /**
+     * Nombre de messages de la conversation déjà affichés dans la page.
+     * Les suivants sont envoyés à la page à la fin de chaque échange (paramètre de callback "echange").
+     */
+    private int toursAffiches;
+
+    /**
+     * Enregistrement des conversations dans la base de données.
+     */
+    @Inject
+    private StockageConversations stockage;
 
-    private String texteRequeteJson;
-    private String texteReponseJson;
 
     @Inject
     private JsonUtilPourGemini jsonUtil;
 
+    /**
+     * Rôles prédéfinis, partagés par toutes les vues.
+     */
+    @Inject
+    private RegistreRoles registreRoles;
+
+    /**
+     * Registre des réponses envoyées en streaming à la page.
+     */
+    @Inject
+    private GestionnaireFlux gestionnaireFlux;
+
+    /**
+     * Identifiant du flux de réponse en cours, null s'il n'y en a pas.
+     */
+    private String idFlux;
+
+    /**
+     * Réponse attendue après un envoi asynchrone, null s'il n'y en a pas.
+     * Pas sérialisée : si le bean est passivé, la réponse en attente est perdue.
+     */
+    private transient CompletableFuture<LlmInteraction> reponseEnAttente;
+
 
 
     private boolean debug = false;
@@ -92,6 +158,13 @@ public class Bb implements Serializable {
     public Bb() {
     }
 
+    /**
+     * Pour les outils de mesure des performances, sans CDI.
+     */
+    Bb(JsonUtilPourGemini jsonUtil) {
+        this.jsonUtil = jsonUtil;
+    }
+
     public String getRoleSysteme() {
         return roleSysteme;
     }
@@ -112,6 +185,22 @@ public class Bb implements Serializable {
         this.question = question;
     }
 
+    public String getPieceJointe() {
+        return pieceJointe;
+    }
+
+    public void setPieceJointe(String pieceJointe) {
+        this.pieceJointe = pieceJointe;
+    }
+
+    /**
+     * @return le nom du fichier à joindre à la question, ou une chaîne vide.
+     */
+    public String getNomPieceJointe() {
+        FichierJoint fichier = FichierServlet.trouver(facesContext.getExternalContext().getSessionMap(), pieceJointe);
+        return fichier == null ? "" : fichier.nom();
+    }
+
     public String getReponse() {
         return reponse;
     }
@@ -125,12 +214,83 @@ public class Bb implements Serializable {
         this.reponse = reponse;
     }
 
+    /**
+     * Ne modifie pas l'état du bean : n'écrit que les messages déjà envoyés à la page (toursAffiches).
+     * Ceux d'une réponse qui n'a pas encore été traitée par verifierReponse ou terminerFlux lui seront
+     * envoyés à ce moment-là, comme pour un échange sans rendu complet de la page.
+     *
+     * @return le texte de la conversation : les derniers messages, précédés des messages plus anciens
+     * s'ils ont été chargés (afficherMessagesPrecedents), sinon d'une indication du nombre de messages non affichés.
+     */
     public String getConversation() {
-        return conversation.toString();
+        Conversation conversationLlm = jsonUtil.getConversation();
+        if (conversationLlm == null) {
+            return "";
+        }
+        int premier = premierTourAffiche(conversationLlm);
+        StringBuilder texte = new StringBuilder();
+        if (premier > 0) {
+            if (echangesAnciens != null && finEchangesAnciens == premier) {
+                texte.append(echangesAnciens);
+            } else {
+                texte.append("(").append(premier).append(" messages précédents non affichés)\n");
+            }
+        }
+        int fin = Math.min(toursAffiches, conversationLlm.taille());
+        for (int i = premier; i < fin; i++) {
+            afficher(texte, conversationLlm.getTour(i));
+        }
+        return texte.toString();
     }
 
+    /**
+     * La conversation n'est pas modifiable depuis la page (textarea en lecture seule).
+     */
     public void setConversation(String conversation) {
-        this.conversation = new StringBuilder(conversation);
+    }
+
+    /**
+     * @return true s'il y a des messages précédents qui ne sont pas affichés.
+     */
+    public boolean isMessagesPrecedents() {
+        Conversation conversationLlm = jsonUtil.getConversation();
+        if (conversationLlm == null) {
+            return false;
+        }
+        int premier = premierTourAffiche(conversationLlm);
+        return premier > 0 && (echangesAnciens == null || finEchangesAnciens != premier);
+    }
+
+    /**
+     * Lit dans la base de données les messages qui ne sont plus gardés dans la vue, pour les afficher.
+     */
+    public void afficherMessagesPrecedents() {
+        Conversation conversationLlm = jsonUtil.getConversation();
+        if (conversationLlm == null) {
+            return;
+        }
+        int premier = premierTourAffiche(conversationLlm);
+        StringBuilder texte = new StringBuilder();
+        for (Tour tour : stockage.charger(conversationLlm.getId(), 0, premier)) {
+            afficher(texte, tour);
+        }
+        this.echangesAnciens = texte.toString();
+        this.finEchangesAnciens = premier;
+    }
+
+    /**
+     * @return l'indice du premier message affiché : seuls les derniers messages encore en mémoire le sont.
+     */
+    private static int premierTourAffiche(Conversation conversationLlm) {
+        return Math.max(conversationLlm.getDecalage(), conversationLlm.taille() - TOURS_AFFICHES);
+    }
+
+    private static void afficher(StringBuilder texte, Tour tour) {
+        texte.append(Tour.USER.equals(tour.role()) ? "== User:\n" : "== Serveur:\n");
+        for (FichierJoint fichier : tour.fichiers()) {
+            texte.append("[Fichier : ").append(fichier.nom()).append("]\n");
+        }
+        texte.append(tour.texte()).append("\n");
     }
 
     /*
@@ -142,39 +302,142 @@ public class Bb implements Serializable {
      * @return null pour rester sur la même page.
      */
     public String envoyer() {
-        if (question == null || question.isBlank()) {
-            FacesMessage message = new FacesMessage(FacesMessage.SEVERITY_ERROR,
-                    "Texte question vide", "Il manque le texte de la question");
-            facesContext.addMessage(null, message);
+        if (questionRefusee()) {
             return null;
         }
 
-        jsonUtil.setSystemRole(roleSysteme);
+        configurerRole();
+        joindrePieceJointe();
+        jsonUtil.setCaptureDebug(captureDebug());
 
         try {
             LlmInteraction interaction = jsonUtil.envoyerRequete(question);
             this.reponse = interaction.reponseExtraite();
-            this.texteRequeteJson = interaction.questionJson();
-            this.texteReponseJson = interaction.reponseJson();
         } catch (RequeteException e) {
-            FacesMessage message =
-                    new FacesMessage(FacesMessage.SEVERITY_ERROR,
-                            "Problème de connexion avec l'API du LLM",
-                            "Problème de connexion avec l'API du LLM" + e.getMessage());
-            facesContext.addMessage(null, message);
+            afficherErreur(e);
         }
 
         // Mise à jour de la conversation
-        afficherConversation();
+        terminerEchange();
 
-        // Une fois qu’on a envoyé la question, on bloque le rôle système si c’est le premier message
-        if (this.conversation.toString().split("== User:").length <= 2) { // Correction de la condition
-            this.roleSystemeChangeable = false;
-        }
+        // Une fois qu’on a envoyé la question, on bloque le rôle système
+        this.roleSystemeChangeable = false;
 
         return null; // reste sur la même page
     }
 
+    /**
+     * Envoie la question sans bloquer le thread de la requête HTTP pendant l'appel à l'API.
+     * La page interroge ensuite régulièrement verifierReponse() (p:poll) jusqu'à ce que la réponse soit arrivée.
+     *
+     * @return null pour rester sur la même page.
+     */
+    public String envoyerAsync() {
+        if (questionRefusee()) {
+            return null;
+        }
+        configurerRole();
+        joindrePieceJointe();
+        jsonUtil.setCaptureDebug(captureDebug());
+        this.reponse = "";
+        this.reponseEnAttente = jsonUtil.envoyerRequeteAsync(question).toCompletableFuture();
+        return null;
+    }
+
+    /**
+     * Une seule question à la fois : la conversation de JsonUtilPourGemini n'est pas thread-safe et
+     * une réponse asynchrone ou en streaming en cours la modifie dans un autre thread.
+     *
+     * @return true si la question ne peut pas être envoyée (question vide, ou réponse à la question précédente
+     * pas encore reçue) ; le message qui explique pourquoi est ajouté à la page.
+     */
+    private boolean questionRefusee() {
+        FacesMessage message = null;
+        if (question == null || question.isBlank()) {
+            message = new FacesMessage(FacesMessage.SEVERITY_ERROR,
+                    "Texte question vide", "Il manque le texte de la question");
+        } else if (reponseEnAttente != null || gestionnaireFlux.enCours(idFlux)) {
+            message = new FacesMessage(FacesMessage.SEVERITY_ERROR,
+                    "Question en cours", "Attendez la réponse à la question précédente");
+        }
+        if (message == null) {
+            return false;
+        }
+        facesContext.addMessage(null, message);
+        return true;
+    }
+
+    public boolean isReponseEnAttente() {
+        return reponseEnAttente != null;
+    }
+
+    /**
+     * Appelée régulièrement par la page après envoyerAsync().
+     * Ne fait rien tant que la réponse n'est pas arrivée ; ensuite met à jour la réponse et la conversation.
+     */
+    public void verifierReponse() {
+        if (reponseEnAttente == null || !reponseEnAttente.isDone()) {
+            return;
+        }
+        try {
+            LlmInteraction interaction = reponseEnAttente.join();
+            this.reponse = interaction.reponseExtraite();
+        } catch (CompletionException | CancellationException e) {
+            afficherErreur(e.getCause() == null ? e : e.getCause());
+        }
+        this.reponseEnAttente = null;
+        terminerEchange();
+        this.roleSystemeChangeable = false;
+    }
+
+    /**
+     * Prépare l'envoi de la question en streaming.
+     * La question n'est pas envoyée ici : la page reçoit l'identifiant du flux (paramètre de callback "idFlux")
+     * et ouvre un EventSource sur FluxReponseServlet qui affiche la réponse au fur et à mesure de sa génération.
+     * Quand le flux est terminé, la page appelle terminerFlux() pour mettre à jour la conversation.
+     *
+     * @return null pour rester sur la même page.
+     */
+    public String envoyerEnStreaming() {
+        if (questionRefusee()) {
+            return null;
+        }
+        configurerRole();
+        joindrePieceJointe();
+        jsonUtil.setCaptureDebug(captureDebug());
+        String idSession = facesContext.getExternalContext().getSessionId(true);
+        // Flux précédent terminé mais pas encore signalé par la page (terminerFlux).
+        gestionnaireFlux.retirer(idFlux);
+        this.idFlux = gestionnaireFlux.enregistrer(new FluxEnAttente(jsonUtil, question, idSession));
+        this.reponse = "";
+        PrimeFaces.current().ajax().addCallbackParam("idFlux", idFlux);
+        return null;
+    }
+
+    /**
+     * Appelée par la page quand le flux de la réponse est terminé.
+     * Met à jour la réponse, les textes JSON et la conversation comme envoyer().
+     */
+    public void terminerFlux() {
+        FluxEnAttente flux = gestionnaireFlux.retirer(idFlux);
+        this.idFlux = null;
+        if (flux == null) {
+            return;
+        }
+        try {
+            LlmInteraction interaction = flux.resultat().get(10, TimeUnit.SECONDS);
+            this.reponse = interaction.reponseExtraite();
+        } catch (ExecutionException | TimeoutException e) {
+            afficherErreur(e.getCause() == null ? e : e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        this.question = flux.question();
+        terminerEchange();
+        this.roleSystemeChangeable = false;
+    }
+
     /**
      * Pour un nouveau chat.
      * Termine la portée view en retournant "index" (la page index.xhtml sera affichée après le traitement
@@ -189,81 +452,98 @@ public class Bb implements Serializable {
     }
 
     /**
-     * Pour afficher la conversation dans le textArea de la page JSF.
+     * Après un échange : envoie à la page les nouveaux messages, qu'elle ajoute à la conversation affichée
+     * (la conversation n'est pas renvoyée en entier), puis les transmet au stockage, sans attendre la base de données.
      */
-    private void afficherConversation() {
-        this.conversation.append("== User:\n").append(question).append("\n== Serveur:\n").append(reponse).append("\n");
+    private void terminerEchange() {
+        Conversation conversationLlm = jsonUtil.getConversation();
+        if (conversationLlm == null) {
+            return;
+        }
+        if (toursAffiches < conversationLlm.taille()) {
+            StringBuilder texte = new StringBuilder();
+            for (int i = Math.max(toursAffiches, conversationLlm.getDecalage()); i < conversationLlm.taille(); i++) {
+                afficher(texte, conversationLlm.getTour(i));
+            }
+            this.toursAffiches = conversationLlm.taille();
+            PrimeFaces primeFaces = PrimeFaces.current();
+            if (primeFaces.isAjaxRequest()) {
+                primeFaces.ajax().addCallbackParam("echange", texte.toString());
+            }
+        }
+        stockage.enregistrer(conversationLlm, avancementEcriture);
     }
 
-    public List<SelectItem> getRolesSysteme() {
-        if (this.listeRolesSysteme == null) {
-            // Génère les rôles de l'API prédéfinis
-            this.listeRolesSysteme = new ArrayList<>();
-            // Vous pouvez évidemment écrire ces rôles dans la langue que vous voulez.
-            String role = """
-                    You are a helpful assistant. You help the user to find the information they need.
-                    If the user type a question, you answer it.
-                    """;
-            // 1er argument : la valeur du rôle, 2ème argument : le libellé du rôle
-            this.listeRolesSysteme.add(new SelectItem(role, "Assistant"));
-
-            role = """
-                    You are an interpreter. You translate from English to French and from French to English.
-                    If the user type a French text, you translate it into English.
-                    If the user type an English text, you translate it into French.
-                    If the text contains only one to three words, give some examples of usage of these words in English.
-                    """;
-            this.listeRolesSysteme.add(new SelectItem(role, "Traducteur Anglais-Français"));
-
-            role = """
-                    Your are a travel guide. If the user type the name of a country or of a town,
-                    you tell them what are the main places to visit in the country or the town
-                    are you tell them the average price of a meal.
-                    """;
-            this.listeRolesSysteme.add(new SelectItem(role, "Guide touristique"));
-
-            role = """
-                    Spécialisé dans les recherches locales : restaurants, cafés, hôtels, lieux touristiques, etc.
-                    🪄 Exemples :
-
-                    •“Trouve-moi un restaurant italien à Casablanca.”
-                    •“Y a-t-il un hôtel proche des cascades d’Akchour ?”""";
-            this.listeRolesSysteme.add(new SelectItem(role, "Recherche locale"));
-
-            // --- NOUVEAUX RÔLES ---
-
-            role = """
-                    Vous êtes un développeur logiciel professionnel, spécialisé en Java et Jakarta EE.
-                    Si l'utilisateur demande du code, fournissez un extrait de code complet, fonctionnel et bien commenté.
-                    Si l'utilisateur demande une explication d'un concept, fournissez une réponse claire, concise et techniquement précise avec des exemples pertinents.
-                    """;
-            this.listeRolesSysteme.add(new SelectItem(role, "Développeur Java/Jakarta EE"));
-
-            role = """
-                    Vous êtes un conseiller financier. Vous fournissez des conseils généraux sur les finances personnelles,
-                    l'investissement et la budgétisation. Vous devez toujours commencer votre réponse en indiquant :
-                    "Ceci n'est pas un conseil financier personnalisé. Consultez un professionnel certifié."
-                    """;
-            this.listeRolesSysteme.add(new SelectItem(role, "Conseiller Financier"));
-
-            role = """
-                    Vous êtes un écrivain créatif et un conteur. Lorsque l'utilisateur fournit un sujet ou un thème,
-                    vous devez écrire une courte histoire ou un poème engageant qui intègre son entrée.
-                    Utilisez toujours un langage évocateur et concentrez-vous sur les éléments narratifs.
-                    """;
-            this.listeRolesSysteme.add(new SelectItem(role, "Écrivain Créatif"));
+    /**
+     * Affiche l'erreur d'un envoi de question. Une question refusée par l'ordonnanceur (file pleine,
+     * quota atteint) n'est pas un problème de connexion : son message explique quoi faire.
+     */
+    private void afficherErreur(Throwable erreur) {
+        FacesMessage message;
+        if (erreur instanceof RequeteRefuseeException) {
+            message = new FacesMessage(FacesMessage.SEVERITY_WARN, "Question non envoyée", erreur.getMessage());
+        } else {
+            message = new FacesMessage(FacesMessage.SEVERITY_ERROR,
+                    "Problème de connexion avec l'API du LLM",
+                    "Problème de connexion avec l'API du LLM" + erreur.getMessage());
+        }
+        facesContext.addMessage(null, message);
+    }
 
+    /**
+     * Donne le rôle à JsonUtilPourGemini : un rôle prédéfini (avec son fragment JSON déjà écrit)
+     * ou un rôle écrit par l'utilisateur ; et la session, pour le partage équitable des appels à l'API.
+     */
+    private void configurerRole() {
+        jsonUtil.setIdSession(facesContext.getExternalContext().getSessionId(true));
+        RolePredefini rolePredefini = registreRoles.parTexte(roleSysteme);
+        if (rolePredefini != null) {
+            jsonUtil.setRolePredefini(rolePredefini);
+        } else {
+            jsonUtil.setSystemRole(roleSysteme);
         }
+    }
 
-        return this.listeRolesSysteme;
+    /**
+     * Joint le fichier envoyé par la page à la question ; le fichier n'est joint qu'une fois,
+     * la conversation en garde la référence pour les questions suivantes.
+     */
+    private void joindrePieceJointe() {
+        jsonUtil.joindre(FichierServlet.trouver(facesContext.getExternalContext().getSessionMap(), pieceJointe));
+        this.pieceJointe = null;
     }
 
+    public List<SelectItem> getRolesSysteme() {
+        return registreRoles.getSelectItems();
+    }
+
+    /**
+     * @return la dernière requête JSON, mise en forme seulement quand le panneau de debug est affiché.
+     */
     public String getTexteRequeteJson() {
-        return texteRequeteJson;
+        EchangeDebug echange = jsonUtil.getDernierEchange();
+        return echange == null ? null : echange.getRequeteFormatee();
     }
 
+    /**
+     * @return la dernière réponse JSON, mise en forme seulement quand le panneau de debug est affiché.
+     */
     public String getTexteReponseJson() {
-        return texteReponseJson;
+        EchangeDebug echange = jsonUtil.getDernierEchange();
+        return echange == null ? null : echange.getReponseFormatee();
+    }
+
+    /**
+     * Les échanges avec l'API sont enregistrés dans la session seulement si le mode debug est activé.
+     *
+     * @return l'enregistrement des échanges de la session, ou null si le mode debug n'est pas activé.
+     */
+    private CaptureDebug captureDebug() {
+        if (!debug) {
+            return null;
+        }
+        Map<String, Object> session = facesContext.getExternalContext().getSessionMap();
+        return (CaptureDebug) session.computeIfAbsent(CaptureDebug.class.getName(), k -> new CaptureDebug());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,269 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.enterprise.inject.Instance;
+import jakarta.faces.application.FacesMessage;
+import jakarta.faces.context.FacesContext;
+import jakarta.faces.model.SelectItem;
+import jakarta.faces.view.ViewScoped;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+import ma.emsi.elboudadi.tp1jakartaee.llm.JsonUtilPourGemini;
+import ma.emsi.elboudadi.tp1jakartaee.llm.LlmInteraction;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RolePredefini;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Backing bean pour la page comparaison.xhtml : pose la même question à plusieurs rôles prédéfinis en même temps,
+ * au lieu de recommencer un "Nouveau chat" pour chaque rôle.
+ * Chaque rôle a sa propre conversation (son JsonUtilPourGemini) : les questions suivantes sont posées
+ * à tous les rôles choisis, chacun avec son historique. Les réponses s'affichent côte à côte au fur et à mesure
+ * de leur arrivée (p:poll) ; la durée totale est celle de l'appel le plus lent, pas la somme des appels.
+ *
+ * Au plus gemini.comparaison.parallelisme (4 par défaut) questions d'une même comparaison sont en cours
+ * en même temps ; toutes comptent pour la session de l'utilisateur dans OrdonnanceurEquitable.
+ */
+@Named
+@ViewScoped
+public class BbComparaison implements Serializable {
+
+    private static final int PARALLELISME =
+            Math.max(1, ConfigurationLlm.lireInt("gemini.comparaison.parallelisme", 4));
+
+    /**
+     * Un rôle de la comparaison, avec sa conversation et sa dernière réponse.
+     */
+    public static class Colonne implements Serializable {
+
+        private final String libelle;
+        private final JsonUtilPourGemini jsonUtil;
+        private String reponse;
+        private String erreur;
+        /**
+         * Écrits par le thread du client REST qui termine la réponse, lus par le thread de la requête JSF.
+         */
+        private volatile long dureeMs;
+        private volatile long finNanos;
+        /**
+         * Réponse attendue, null s'il n'y en a pas. Pas sérialisée, comme dans Bb.
+         */
+        private transient CompletableFuture<LlmInteraction> enAttente;
+
+        Colonne(String libelle, JsonUtilPourGemini jsonUtil) {
+            this.libelle = libelle;
+            this.jsonUtil = jsonUtil;
+        }
+
+        public String getLibelle() {
+            return libelle;
+        }
+
+        public String getReponse() {
+            return reponse;
+        }
+
+        public String getErreur() {
+            return erreur;
+        }
+
+        public long getDureeMs() {
+            return dureeMs;
+        }
+
+        public boolean isEnAttente() {
+            return enAttente != null;
+        }
+
+        /**
+         * @return le nombre de questions déjà posées à ce rôle.
+         */
+        public int getNombreQuestions() {
+            return jsonUtil.getConversation() == null ? 0 : (jsonUtil.getConversation().taille() + 1) / 2;
+        }
+
+        /**
+         * Envoie la question ; la durée est enregistrée avant que le résultat soit disponible.
+         */
+        private CompletableFuture<LlmInteraction> lancer(String question) {
+            long debut = System.nanoTime();
+            return jsonUtil.envoyerRequeteAsync(question).toCompletableFuture()
+                    .whenComplete((interaction, erreur) -> {
+                        this.finNanos = System.nanoTime();
+                        this.dureeMs = (finNanos - debut) / 1_000_000;
+                    });
+        }
+    }
+
+    /**
+     * Libellés des rôles choisis dans la page.
+     */
+    private List<String> libellesChoisis = new ArrayList<>();
+
+    private String question;
+
+    /**
+     * Les rôles de la comparaison ; vide tant que la première question n'a pas été posée.
+     */
+    private final List<Colonne> colonnes = new ArrayList<>();
+
+    private long debutEnvoi;
+    private long dureeTotaleMs;
+
+    @Inject
+    private Instance<JsonUtilPourGemini> jsonUtils;
+
+    @Inject
+    private RegistreRoles registreRoles;
+
+    @Inject
+    private FacesContext facesContext;
+
+    public List<String> getLibellesChoisis() {
+        return libellesChoisis;
+    }
+
+    public void setLibellesChoisis(List<String> libellesChoisis) {
+        this.libellesChoisis = libellesChoisis;
+    }
+
+    public String getQuestion() {
+        return question;
+    }
+
+    public void setQuestion(String question) {
+        this.question = question;
+    }
+
+    public List<Colonne> getColonnes() {
+        return colonnes;
+    }
+
+    /**
+     * @return les rôles prédéfinis ; valeur et libellé : le nom du rôle.
+     */
+    public List<SelectItem> getChoixRoles() {
+        List<SelectItem> choix = new ArrayList<>();
+        for (RolePredefini role : registreRoles.getRoles()) {
+            choix.add(new SelectItem(role.libelle(), role.libelle()));
+        }
+        return choix;
+    }
+
+    /**
+     * Les rôles ne peuvent plus être changés après la première question, sauf pour une nouvelle comparaison.
+     */
+    public boolean isRolesChangeables() {
+        return colonnes.isEmpty();
+    }
+
+    public boolean isEnAttente() {
+        return colonnes.stream().anyMatch(Colonne::isEnAttente);
+    }
+
+    /**
+     * @return la durée de la dernière question pour tous les rôles, 0 si des réponses sont encore attendues.
+     */
+    public long getDureeTotaleMs() {
+        return dureeTotaleMs;
+    }
+
+    /**
+     * Envoie la question à tous les rôles choisis, sans attendre les réponses.
+     * Les questions sont réparties sur PARALLELISME files : chaque file envoie la question suivante
+     * quand la précédente a sa réponse.
+     *
+     * @return null pour rester sur la même page.
+     */
+    public String envoyer() {
+        if (question == null || question.isBlank()) {
+            erreur("Texte question vide", "Il manque le texte de la question");
+            return null;
+        }
+        if (isEnAttente()) {
+            erreur("Questions en cours", "Attendez les réponses à la question précédente");
+            return null;
+        }
+        if (colonnes.isEmpty()) {
+            creerColonnes();
+            if (colonnes.isEmpty()) {
+                erreur("Aucun rôle", "Choisissez au moins un rôle");
+                return null;
+            }
+        }
+        String idSession = facesContext.getExternalContext().getSessionId(true);
+        String texteQuestion = question;
+        this.debutEnvoi = System.nanoTime();
+        this.dureeTotaleMs = 0;
+        List<CompletableFuture<?>> files = new ArrayList<>();
+        for (int i = 0; i < colonnes.size(); i++) {
+            Colonne colonne = colonnes.get(i);
+            RolePredefini role = registreRoles.parLibelle(colonne.libelle);
+            if (role != null) {
+                colonne.jsonUtil.setRolePredefini(role);
+            }
+            colonne.jsonUtil.setIdSession(idSession);
+            colonne.reponse = "";
+            colonne.erreur = null;
+            if (files.size() < PARALLELISME) {
+                colonne.enAttente = colonne.lancer(texteQuestion);
+                files.add(colonne.enAttente);
+            } else {
+                // Après la question précédente de la même file, qu'elle ait réussi ou non.
+                CompletableFuture<?> precedente = files.get(i % PARALLELISME);
+                colonne.enAttente = precedente.handle((resultat, erreur) -> colonne)
+                        .thenCompose(suivante -> suivante.lancer(texteQuestion));
+                files.set(i % PARALLELISME, colonne.enAttente);
+            }
+        }
+        return null;
+    }
+
+    private void creerColonnes() {
+        for (String libelle : libellesChoisis) {
+            if (registreRoles.parLibelle(libelle) != null) {
+                colonnes.add(new Colonne(libelle, jsonUtils.get()));
+            }
+        }
+    }
+
+    /**
+     * Appelée régulièrement par la page après envoyer() : affiche les réponses arrivées.
+     */
+    public void verifierReponses() {
+        for (Colonne colonne : colonnes) {
+            if (colonne.enAttente == null || !colonne.enAttente.isDone()) {
+                continue;
+            }
+            try {
+                colonne.reponse = colonne.enAttente.join().reponseExtraite();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                colonne.erreur = cause.getMessage();
+            }
+            colonne.enAttente = null;
+        }
+        if (dureeTotaleMs == 0 && !isEnAttente() && !colonnes.isEmpty()) {
+            long fin = colonnes.stream().mapToLong(colonne -> colonne.finNanos).max().orElse(debutEnvoi);
+            this.dureeTotaleMs = Math.max(1, (fin - debutEnvoi) / 1_000_000);
+        }
+    }
+
+    /**
+     * Pour une nouvelle comparaison, avec d'autres rôles : termine la portée view (voir Bb.nouveauChat).
+     *
+     * @return "comparaison"
+     */
+    public String nouvelleComparaison() {
+        return "comparaison";
+    }
+
+    private void erreur(String resume, String detail) {
+        facesContext.addMessage(null, new FacesMessage(FacesMessage.SEVERITY_ERROR, resume, detail));
+    }
+}
@@ -0,0 +1,343 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * En-têtes de cache HTTP pour les ressources statiques (CSS, JavaScript, images) :
+ * - ETag fort, calculé à partir du contenu (empreinte SHA-256) ;
+ * - Cache-Control : une ressource versionnée (paramètre "v" de l'URL, ajouté par JSF et PrimeFaces) ne change
+ *   jamais pour une même URL, elle peut être gardée longtemps par le navigateur ("immutable") ; une ressource
+ *   non versionnée (js/script.js...) doit être revalidée à chaque utilisation ("no-cache") ;
+ * - requêtes conditionnelles : si l'ETag envoyé par le navigateur (If-None-Match) est celui de la ressource,
+ *   la réponse est 304 sans corps.
+ * L'ETag de chaque URL est gardé en mémoire, et une requête conditionnelle pour une ressource connue est traitée
+ * sans la relire : pour une ressource versionnée, tant que l'application tourne (l'URL change avec la version) ;
+ * pour une autre ressource, tant que la date de modification de son fichier (dans l'application ou dans
+ * META-INF/resources d'un jar) ne change pas. Une ressource non versionnée dont le fichier n'est pas trouvé
+ * est relue à chaque requête.
+ *
+ * Paramètres (voir ConfigurationLlm) : http.cache.duree, durée en secondes pendant laquelle une ressource
+ * versionnée est gardée par le navigateur (un an par défaut) ; http.cache.taille.max, taille maximum en octets
+ * d'une ressource pour laquelle un ETag est calculé (1 Mo par défaut).
+ */
+public class CacheRessourcesFilter implements Filter {
+
+    private static final String PREFIXE_FACES = "/jakarta.faces.resource/";
+    /**
+     * Suffixe du Faces Servlet (voir web.xml), ajouté au nom des ressources dans les URL.
+     */
+    private static final String SUFFIXE_FACES = ".xhtml";
+
+    /**
+     * ETag d'une ressource et version du fichier dont il a été calculé.
+     *
+     * @param version date de modification du fichier ; 0 pour une ressource versionnée.
+     */
+    private record EtagMemorise(String etag, long version) {
+    }
+
+    private ServletContext contexte;
+    private long dureeCache;
+    private int tailleMax;
+    /**
+     * ETag de chaque ressource déjà envoyée, par URL (avec les paramètres).
+     */
+    private final Map<String, EtagMemorise> etags = new ConcurrentHashMap<>();
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        this.contexte = filterConfig.getServletContext();
+        this.dureeCache = ConfigurationLlm.lireLong("http.cache.duree", 365L * 24 * 3600);
+        this.tailleMax = ConfigurationLlm.lireInt("http.cache.taille.max", 1024 * 1024);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String methode = httpRequest.getMethod();
+        if (!("GET".equals(methode) || "HEAD".equals(methode)) || !ressourceStatique(httpRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String query = httpRequest.getQueryString();
+        String url = query == null ? httpRequest.getRequestURI() : httpRequest.getRequestURI() + "?" + query;
+        boolean versionnee = httpRequest.getParameter("v") != null;
+        String cacheControl = versionnee
+                ? "public, max-age=" + dureeCache + ", immutable"
+                : "no-cache";
+        // Lue avant le contenu : si le fichier change pendant la lecture, l'ETag sera recalculé la fois suivante.
+        long version = versionnee ? 0 : derniereModification(httpRequest);
+        boolean memorisable = versionnee || version != 0;
+
+        EtagMemorise memorise = memorisable ? etags.get(url) : null;
+        String etagConnu = memorise != null && memorise.version() == version ? memorise.etag() : null;
+        String etagDemande = correspondance(httpRequest.getHeader("If-None-Match"), etagConnu);
+        if (etagDemande != null) {
+            nonModifie(httpResponse, etagDemande, cacheControl);
+            return;
+        }
+
+        ReponseMemorisee reponse = new ReponseMemorisee(httpResponse, tailleMax);
+        chain.doFilter(request, reponse);
+        reponse.flushWriter();
+        if (reponse.isDepasse() || httpResponse.getStatus() != HttpServletResponse.SC_OK) {
+            // Trop grande (déjà envoyée telle quelle) ou pas une réponse normale.
+            reponse.terminer();
+            return;
+        }
+        byte[] contenu = reponse.getContenu();
+        String etag = etag(contenu);
+        if (memorisable) {
+            etags.put(url, new EtagMemorise(etag, version));
+        }
+        // Remplace les en-têtes de cache éventuellement ajoutés par JSF.
+        httpResponse.setHeader("Cache-Control", cacheControl);
+        etagDemande = correspondance(httpRequest.getHeader("If-None-Match"), etag);
+        if (etagDemande != null) {
+            nonModifie(httpResponse, etagDemande, cacheControl);
+            return;
+        }
+        httpResponse.setHeader("ETag", etag);
+        httpResponse.setContentLength(contenu.length);
+        if (!"HEAD".equals(methode)) {
+            httpResponse.getOutputStream().write(contenu);
+        }
+    }
+
+    private static boolean ressourceStatique(HttpServletRequest request) {
+        String chemin = request.getRequestURI().substring(request.getContextPath().length());
+        return chemin.startsWith(PREFIXE_FACES) || chemin.startsWith("/resources/");
+    }
+
+    /**
+     * @return la date de modification du fichier de la ressource, 0 s'il n'est pas trouvé.
+     */
+    private long derniereModification(HttpServletRequest request) {
+        String chemin = request.getRequestURI().substring(request.getContextPath().length());
+        if (chemin.startsWith(PREFIXE_FACES)) {
+            String nom = chemin.substring(PREFIXE_FACES.length());
+            if (nom.endsWith(SUFFIXE_FACES)) {
+                nom = nom.substring(0, nom.length() - SUFFIXE_FACES.length());
+            }
+            String bibliotheque = request.getParameter("ln");
+            chemin = "/resources/" + (bibliotheque == null ? "" : bibliotheque + "/") + nom;
+        }
+        try {
+            URL fichier = contexte.getResource(chemin);
+            if (fichier == null) {
+                fichier = Thread.currentThread().getContextClassLoader().getResource("META-INF" + chemin);
+            }
+            if (fichier == null) {
+                return 0;
+            }
+            if ("file".equals(fichier.getProtocol())) {
+                // URLConnection ouvrirait le fichier pour lire sa date.
+                return Files.getLastModifiedTime(Path.of(fichier.toURI())).toMillis();
+            }
+            return fichier.openConnection().getLastModified();
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Réponse 304. L'ETag renvoyé est celui envoyé par le navigateur (avec le suffixe de compression éventuel,
+     * voir CompressionFilter), pour qu'il corresponde à la version qu'il a gardée.
+     */
+    private static void nonModifie(HttpServletResponse response, String etag, String cacheControl) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", cacheControl);
+    }
+
+    /**
+     * @param ifNoneMatch en-tête If-None-Match, par exemple "\"abc\", \"def-gzip\"" ou "*".
+     * @param etag ETag de la ressource, null s'il n'est pas connu.
+     * @return l'ETag de l'en-tête qui correspond à la ressource (éventuellement avec le suffixe ajouté
+     * par la compression), null si aucun ne correspond.
+     */
+    static String correspondance(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return null;
+        }
+        for (String element : ifNoneMatch.split(",")) {
+            String candidat = element.trim();
+            if ("*".equals(candidat)) {
+                return etag;
+            }
+            // Comparaison faible (RFC 9110, 13.1.2) : le préfixe W/ est ignoré.
+            String sansPrefixe = candidat.startsWith("W/") ? candidat.substring(2) : candidat;
+            String sansSuffixe = sansPrefixe.replace("-gzip\"", "\"").replace("-deflate\"", "\"");
+            if (sansSuffixe.equals(etag)) {
+                return candidat;
+            }
+        }
+        return null;
+    }
+
+    private static String etag(byte[] contenu) {
+        try {
+            byte[] empreinte = MessageDigest.getInstance("SHA-256").digest(contenu);
+            // 128 bits suffisent pour distinguer les versions d'une ressource.
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(empreinte).substring(0, 22) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Garde le corps de la réponse en mémoire pour calculer son ETag.
+     * Au-delà de tailleMax, le corps est envoyé tel quel, sans ETag.
+     */
+    private static final class ReponseMemorisee extends HttpServletResponseWrapper {
+
+        private final int tailleMax;
+        private final ByteArrayOutputStream contenu = new ByteArrayOutputStream();
+        private ServletOutputStream flux;
+        private PrintWriter writer;
+        /**
+         * Non null quand la taille maximum a été dépassée : flux de la réponse originale.
+         */
+        private ServletOutputStream sortieDirecte;
+
+        ReponseMemorisee(HttpServletResponse response, int tailleMax) {
+            super(response);
+            this.tailleMax = tailleMax;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() a déjà été appelée");
+            }
+            if (flux == null) {
+                flux = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (sortieDirecte == null && contenu.size() + len > tailleMax) {
+                            sortieDirecte = getResponse().getOutputStream();
+                            contenu.writeTo(sortieDirecte);
+                        }
+                        if (sortieDirecte != null) {
+                            sortieDirecte.write(b, off, len);
+                        } else {
+                            contenu.write(b, off, len);
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        // En mémoire, l'écriture ne bloque jamais.
+                        return sortieDirecte == null || sortieDirecte.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        // Écriture non bloquante : le conteneur appelle le listener selon l'état du flux original.
+                        try {
+                            getResponse().getOutputStream().setWriteListener(writeListener);
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+            }
+            return flux;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            flushWriter();
+            if (sortieDirecte != null) {
+                sortieDirecte.flush();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            contenu.reset();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            contenu.reset();
+        }
+
+        /**
+         * La longueur est calculée à partir du contenu.
+         */
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        void flushWriter() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        boolean isDepasse() {
+            return sortieDirecte != null;
+        }
+
+        byte[] getContenu() {
+            return contenu.toByteArray();
+        }
+
+        /**
+         * Envoie ce qui est encore en mémoire (réponse d'erreur...).
+         */
+        void terminer() throws IOException {
+            if (sortieDirecte == null && contenu.size() > 0) {
+                getResponse().getOutputStream().write(contenu.toByteArray());
+            }
+        }
+    }
+}
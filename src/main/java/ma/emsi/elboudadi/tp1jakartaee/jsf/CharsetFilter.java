@@ -1,11 +1,13 @@
 package ma.emsi.elboudadi.tp1jakartaee.jsf;
 
 import jakarta.servlet.*;
-import jakarta.servlet.annotation.WebFilter;
 
 import java.io.IOException;
 
-@WebFilter("/*")
+/**
+ * Premier filtre de la chaîne (voir web.xml) : les paramètres des requêtes sont lus en UTF-8.
+ * Déclaré seulement dans web.xml, pour que l'ordre des filtres soit fixé.
+ */
 public class CharsetFilter implements Filter {
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
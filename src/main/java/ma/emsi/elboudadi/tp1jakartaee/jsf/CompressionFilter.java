@@ -0,0 +1,392 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresse les réponses (gzip ou deflate, selon l'en-tête Accept-Encoding de la requête).
+ * Le début de la réponse est gardé en mémoire jusqu'au seuil : une réponse plus petite n'est pas compressée
+ * (le gain ne compenserait pas le coût), une réponse plus grande l'est au fur et à mesure de son écriture.
+ * Seuls les types texte sont compressés (HTML, XML, CSS, JavaScript, JSON, SVG), jamais les flux
+ * (text/event-stream, application/x-ndjson) qui doivent être envoyés au client dès qu'ils sont écrits.
+ * Quand une réponse est compressée, "-gzip" ou "-deflate" est ajouté à son ETag, car le contenu envoyé est
+ * différent (voir CacheRessourcesFilter).
+ *
+ * Paramètre (voir ConfigurationLlm) : http.compression.seuil, taille minimum en octets d'une réponse compressée
+ * (1024 par défaut).
+ */
+public class CompressionFilter implements Filter {
+
+    private int seuil;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        this.seuil = ConfigurationLlm.lireInt("http.compression.seuil", 1024);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String encodage = choisirEncodage(httpRequest.getHeader("Accept-Encoding"));
+        if (encodage == null || "HEAD".equals(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        ReponseCompressee reponse = new ReponseCompressee(httpResponse, encodage, seuil);
+        chain.doFilter(request, reponse);
+        if (request.isAsyncStarted()) {
+            // La réponse est écrite par un autre thread : elle est terminée à la fin du traitement asynchrone.
+            request.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) throws IOException {
+                    reponse.finir();
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        } else {
+            reponse.finir();
+        }
+    }
+
+    /**
+     * @param acceptEncoding en-tête Accept-Encoding, par exemple "gzip, deflate;q=0.5, br".
+     * @return "gzip", "deflate" ou null si le client n'accepte aucun des deux.
+     * À qualité égale, gzip est préféré.
+     */
+    static String choisirEncodage(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double autres = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parties = element.split(";");
+            String nom = parties[0].trim().toLowerCase(Locale.ROOT);
+            double qualite = 1;
+            for (int i = 1; i < parties.length; i++) {
+                String parametre = parties[i].trim();
+                if (parametre.startsWith("q=")) {
+                    try {
+                        qualite = Double.parseDouble(parametre.substring(2));
+                    } catch (NumberFormatException e) {
+                        qualite = 0;
+                    }
+                }
+            }
+            switch (nom) {
+                case "gzip", "x-gzip" -> gzip = qualite;
+                case "deflate" -> deflate = qualite;
+                case "*" -> autres = qualite;
+                default -> {
+                }
+            }
+        }
+        // "*" s'applique aux encodages qui ne sont pas cités.
+        gzip = gzip < 0 ? autres : gzip;
+        deflate = deflate < 0 ? autres : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return "gzip";
+        }
+        return deflate > 0 ? "deflate" : null;
+    }
+
+    private static boolean compressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.startsWith("text/event-stream") || type.startsWith("application/x-ndjson")) {
+            return false;
+        }
+        return type.startsWith("text/") || type.startsWith("application/javascript")
+                || type.startsWith("application/json") || type.startsWith("application/xml")
+                || type.startsWith("application/xhtml+xml") || type.startsWith("image/svg+xml");
+    }
+
+    private static boolean flux(String contentType) {
+        return contentType != null && (contentType.startsWith("text/event-stream")
+                || contentType.startsWith("application/x-ndjson"));
+    }
+
+    /**
+     * Réponse dont le corps passe par FluxCompresse.
+     * La longueur (Content-Length) indiquée par le servlet n'est transmise que si la réponse n'est pas compressée.
+     */
+    private static final class ReponseCompressee extends HttpServletResponseWrapper {
+
+        private final FluxCompresse flux;
+        private PrintWriter writer;
+        private long longueur = -1;
+
+        ReponseCompressee(HttpServletResponse response, String encodage, int seuil) {
+            super(response);
+            this.flux = new FluxCompresse(this, encodage, seuil);
+        }
+
+        HttpServletResponse reponseOriginale() {
+            return (HttpServletResponse) getResponse();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() a déjà été appelée");
+            }
+            return flux;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(flux, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            flux.flush();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            flux.reinitialiser();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            flux.reinitialiser();
+            longueur = -1;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            this.longueur = len;
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            this.longueur = len;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                this.longueur = value == null ? -1 : Long.parseLong(value);
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                this.longueur = Long.parseLong(value);
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                this.longueur = value;
+            } else {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        long getLongueur() {
+            return longueur;
+        }
+
+        void finir() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            flux.finir();
+        }
+    }
+
+    /**
+     * Garde le début de la réponse en mémoire jusqu'à ce que la décision de compresser soit prise,
+     * puis écrit directement dans le flux de la réponse, compressé ou non.
+     */
+    private static final class FluxCompresse extends ServletOutputStream {
+
+        private final ReponseCompressee reponse;
+        private final String encodage;
+        private final int seuil;
+        private ByteArrayOutputStream tampon;
+        /**
+         * null tant que la décision n'est pas prise.
+         */
+        private OutputStream sortie;
+        private boolean compresse;
+
+        FluxCompresse(ReponseCompressee reponse, String encodage, int seuil) {
+            this.reponse = reponse;
+            this.encodage = encodage;
+            this.seuil = seuil;
+            this.tampon = new ByteArrayOutputStream(Math.min(seuil, 8192));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (sortie == null) {
+                if (tampon.size() + len < seuil) {
+                    tampon.write(b, off, len);
+                    return;
+                }
+                decider(true);
+            }
+            sortie.write(b, off, len);
+        }
+
+        /**
+         * Un flux (Server-Sent Events...) est envoyé dès qu'il est vidé ; sinon le début de la réponse reste
+         * en mémoire jusqu'à la décision (certains frameworks vident le flux avant la fin de la réponse).
+         */
+        @Override
+        public void flush() throws IOException {
+            if (sortie == null) {
+                if (!flux(reponse.getContentType())) {
+                    return;
+                }
+                decider(false);
+            }
+            sortie.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finir();
+        }
+
+        void reinitialiser() {
+            if (sortie == null) {
+                tampon.reset();
+            }
+        }
+
+        /**
+         * @param assezGrand true si la réponse dépasse le seuil.
+         */
+        private void decider(boolean assezGrand) throws IOException {
+            HttpServletResponse originale = reponse.reponseOriginale();
+            int statut = originale.getStatus();
+            this.compresse = assezGrand && compressible(reponse.getContentType())
+                    && originale.getHeader("Content-Encoding") == null
+                    && statut != HttpServletResponse.SC_NO_CONTENT
+                    && statut != HttpServletResponse.SC_NOT_MODIFIED
+                    && statut != HttpServletResponse.SC_PARTIAL_CONTENT;
+            OutputStream base = originale.getOutputStream();
+            if (compresse) {
+                originale.setHeader("Content-Encoding", encodage);
+                originale.addHeader("Vary", "Accept-Encoding");
+                String etag = originale.getHeader("ETag");
+                if (etag != null && etag.endsWith("\"") && !etag.startsWith("W/")) {
+                    originale.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-" + encodage + "\"");
+                }
+                // syncFlush : flush() envoie tout ce qui a déjà été compressé.
+                this.sortie = "gzip".equals(encodage)
+                        ? new GZIPOutputStream(base, 8192, true)
+                        : new DeflaterOutputStream(base, new Deflater(Deflater.DEFAULT_COMPRESSION), 8192, true);
+            } else {
+                if (compressible(reponse.getContentType())) {
+                    originale.addHeader("Vary", "Accept-Encoding");
+                }
+                long longueur = reponse.getLongueur();
+                if (longueur < 0 && !assezGrand && !flux(reponse.getContentType())
+                        && statut != HttpServletResponse.SC_NOT_MODIFIED && statut != HttpServletResponse.SC_NO_CONTENT) {
+                    // Réponse complète et courte : sa longueur est connue.
+                    longueur = tampon.size();
+                }
+                if (longueur >= 0) {
+                    originale.setContentLengthLong(longueur);
+                }
+                this.sortie = base;
+            }
+            tampon.writeTo(sortie);
+            this.tampon = null;
+        }
+
+        void finir() throws IOException {
+            if (sortie == null) {
+                if (tampon.size() == 0 && reponse.getLongueur() < 0) {
+                    // Pas de corps (par exemple 304) : rien à écrire, pas d'en-tête à ajouter.
+                    return;
+                }
+                decider(false);
+            }
+            if (compresse) {
+                ((DeflaterOutputStream) sortie).finish();
+            }
+            sortie.flush();
+        }
+
+        @Override
+        public boolean isReady() {
+            try {
+                return reponse.reponseOriginale().getOutputStream().isReady();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                reponse.reponseOriginale().getOutputStream().setWriteListener(writeListener);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ClientFichiersGemini;
+import ma.emsi.elboudadi.tp1jakartaee.llm.FichierJoint;
+import ma.emsi.elboudadi.tp1jakartaee.llm.FichierTropGrosException;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RequeteException;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RequeteRefuseeException;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Envoi d'un fichier à joindre à la prochaine question de la page index.xhtml.
+ *
+ * POST /fichier?nom=rapport.pdf&type=application/pdf ; le corps de la requête est le contenu du fichier
+ * (pas de multipart/form-data : le conteneur de servlets n'a pas à enregistrer le fichier avant que la servlet
+ * puisse le lire). Le corps est transmis au fur et à mesure à l'API de Gemini (voir ClientFichiersGemini) :
+ * ni la servlet ni le serveur ne gardent le fichier.
+ *
+ * La référence du fichier dans l'API est enregistrée dans la session HTTP sous un identifiant aléatoire,
+ * renvoyé à la page : {"id": "...", "nom": "rapport.pdf", "mimeType": "application/pdf"}.
+ * La page donne cet identifiant avec la question (voir Bb.setPieceJointe) ; l'URI du fichier ne vient jamais
+ * du navigateur, un utilisateur ne peut donc pas joindre le fichier d'un autre.
+ */
+@WebServlet(name = "fichierServlet", value = "/fichier")
+public class FichierServlet extends HttpServlet {
+
+    /**
+     * Attribut de la session HTTP : les fichiers envoyés, par identifiant.
+     */
+    private static final String ATTRIBUT = FichierJoint.class.getName();
+
+    @Inject
+    private ClientFichiersGemini clientFichiers;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String nom = request.getParameter("nom");
+        if (nom == null || nom.isBlank()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Paramètre nom manquant");
+            return;
+        }
+        String mimeType = request.getParameter("type");
+        if (mimeType == null || mimeType.isBlank()) {
+            mimeType = getServletContext().getMimeType(nom);
+        }
+        if (mimeType == null) {
+            mimeType = "application/octet-stream";
+        }
+        long longueur = request.getContentLengthLong();
+        if (longueur > clientFichiers.getTailleMax()) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Fichier trop gros : au plus " + clientFichiers.getTailleMax() + " octets");
+            return;
+        }
+        HttpSession session = request.getSession();
+        FichierJoint fichier;
+        try {
+            fichier = clientFichiers.envoyer(Channels.newChannel(request.getInputStream()), nom, mimeType, longueur);
+        } catch (FichierTropGrosException e) {
+            // Taille inconnue à l'avance (pas de Content-Length) et dépassée pendant l'envoi.
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+            return;
+        } catch (RequeteRefuseeException e) {
+            // Plus de tampon libre : trop d'envois en cours.
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        } catch (RequeteException e) {
+            response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e.getMessage());
+            return;
+        }
+        String id = UUID.randomUUID().toString();
+        enregistrer(session, id, fichier);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(Json.createObjectBuilder()
+                .add("id", id)
+                .add("nom", fichier.nom())
+                .add("mimeType", fichier.mimeType())
+                .build().toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void enregistrer(HttpSession session, String id, FichierJoint fichier) {
+        Map<String, FichierJoint> fichiers = (Map<String, FichierJoint>) session.getAttribute(ATTRIBUT);
+        if (fichiers == null) {
+            fichiers = new ConcurrentHashMap<>();
+        }
+        fichiers.put(id, fichier);
+        // Remis dans la session pour qu'il soit répliqué.
+        session.setAttribute(ATTRIBUT, fichiers);
+    }
+
+    /**
+     * @param sessionMap les attributs de la session HTTP.
+     * @param id identifiant renvoyé à la page par doPost.
+     * @return le fichier envoyé pendant la session avec cet identifiant, ou null.
+     */
+    @SuppressWarnings("unchecked")
+    static FichierJoint trouver(Map<String, Object> sessionMap, String id) {
+        if (id == null || id.isBlank()) {
+            return null;
+        }
+        Map<String, FichierJoint> fichiers = (Map<String, FichierJoint>) sessionMap.get(ATTRIBUT);
+        return fichiers == null ? null : fichiers.get(id);
+    }
+}
@@ -0,0 +1,25 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import ma.emsi.elboudadi.tp1jakartaee.llm.JsonUtilPourGemini;
+import ma.emsi.elboudadi.tp1jakartaee.llm.LlmInteraction;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Question en attente d'être envoyée en streaming à l'API du LLM.
+ * Créée par le backing bean, puis exécutée par FluxReponseServlet quand la page ouvre le flux SSE.
+ * Le résultat est récupéré par le backing bean quand le flux est terminé.
+ *
+ * @param jsonUtil l'état JSON de la conversation du backing bean (l'historique est mis à jour à la fin du flux).
+ * @param question la question à envoyer.
+ * @param idSession identifiant de la session HTTP qui a créé le flux ; seule cette session peut l'ouvrir.
+ * @param creation date de création (System.currentTimeMillis()) pour supprimer les flux jamais ouverts.
+ * @param resultat l'interaction complète, ou l'exception si la requête a échoué.
+ */
+public record FluxEnAttente(JsonUtilPourGemini jsonUtil, String question, String idSession, long creation,
+                            CompletableFuture<LlmInteraction> resultat) {
+
+    public FluxEnAttente(JsonUtilPourGemini jsonUtil, String question, String idSession) {
+        this(jsonUtil, question, idSession, System.currentTimeMillis(), new CompletableFuture<>());
+    }
+}
@@ -0,0 +1,75 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import ma.emsi.elboudadi.tp1jakartaee.llm.LlmInteraction;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RequeteException;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Envoie à la page la réponse du LLM au fur et à mesure de sa génération, sous la forme de Server-Sent Events.
+ * La page ouvre un EventSource sur /flux-reponse?id=... avec l'identifiant renvoyé par Bb.envoyerEnStreaming().
+ * Évènements envoyés :
+ * - "message" (par défaut) : un morceau de la réponse, en JSON {"t": "..."} ;
+ * - "fin" : la réponse est complète et l'historique de la conversation a été mis à jour ;
+ * - "erreur" : la requête a échoué, data contient le message d'erreur.
+ */
+@WebServlet(name = "fluxReponseServlet", value = "/flux-reponse", asyncSupported = true)
+public class FluxReponseServlet extends HttpServlet {
+
+    @Inject
+    private GestionnaireFlux gestionnaireFlux;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        FluxEnAttente flux = gestionnaireFlux.trouver(request.getParameter("id"));
+        HttpSession session = request.getSession(false);
+        if (flux == null || session == null || !session.getId().equals(flux.idSession())) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (flux.resultat().isDone()) {
+            // Flux déjà exécuté (reconnexion automatique de l'EventSource) : on ne renvoie pas la question.
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        asyncContext.start(() -> executer(flux, asyncContext));
+    }
+
+    private void executer(FluxEnAttente flux, AsyncContext asyncContext) {
+        try {
+            PrintWriter out = asyncContext.getResponse().getWriter();
+            try {
+                LlmInteraction interaction = flux.jsonUtil().envoyerRequeteStream(flux.question(), fragment -> {
+                    String json = Json.createObjectBuilder().add("t", fragment).build().toString();
+                    out.write("data: " + json + "\n\n");
+                    out.flush();
+                });
+                flux.resultat().complete(interaction);
+                out.write("event: fin\ndata: {}\n\n");
+            } catch (RequeteException | RuntimeException e) {
+                flux.resultat().completeExceptionally(e);
+                out.write("event: erreur\ndata: " + String.valueOf(e.getMessage()).replace('\n', ' ') + "\n\n");
+            }
+            out.flush();
+        } catch (IOException e) {
+            flux.resultat().completeExceptionally(e);
+        } finally {
+            asyncContext.complete();
+        }
+    }
+}
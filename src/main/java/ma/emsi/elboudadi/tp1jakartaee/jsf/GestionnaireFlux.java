@@ -0,0 +1,64 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registre des flux de réponse en attente, partagé entre le backing bean (qui crée le flux)
+ * et FluxReponseServlet (qui l'exécute).
+ * Les flux qui n'ont jamais été récupérés sont supprimés au bout de quelques minutes.
+ */
+@ApplicationScoped
+public class GestionnaireFlux {
+
+    private static final long DUREE_VIE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Map<String, FluxEnAttente> flux = new ConcurrentHashMap<>();
+
+    /**
+     * Enregistre un nouveau flux.
+     *
+     * @return l'identifiant (aléatoire) du flux, à passer à la page.
+     */
+    public String enregistrer(FluxEnAttente fluxEnAttente) {
+        purger();
+        String id = UUID.randomUUID().toString();
+        flux.put(id, fluxEnAttente);
+        return id;
+    }
+
+    /**
+     * @return le flux, ou null s'il n'existe pas (ou plus).
+     */
+    public FluxEnAttente trouver(String id) {
+        return id == null ? null : flux.get(id);
+    }
+
+    /**
+     * @return true si le flux existe et que sa réponse n'est pas terminée ; un flux que la page n'a pas ouvert
+     * au bout de quelques minutes n'est plus en cours.
+     */
+    public boolean enCours(String id) {
+        FluxEnAttente fluxEnAttente = trouver(id);
+        return fluxEnAttente != null && !fluxEnAttente.resultat().isDone()
+                && fluxEnAttente.creation() >= System.currentTimeMillis() - DUREE_VIE_MS;
+    }
+
+    /**
+     * Supprime le flux du registre.
+     *
+     * @return le flux supprimé, ou null s'il n'existait pas.
+     */
+    public FluxEnAttente retirer(String id) {
+        return id == null ? null : flux.remove(id);
+    }
+
+    private void purger() {
+        long limite = System.currentTimeMillis() - DUREE_VIE_MS;
+        flux.values().removeIf(f -> f.creation() < limite);
+    }
+}
@@ -0,0 +1,278 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+import ma.emsi.elboudadi.tp1jakartaee.llm.JsonUtilPourGemini;
+import ma.emsi.elboudadi.tp1jakartaee.llm.OrdonnanceurEquitable;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RequeteException;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RolePredefini;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Traitement par lot : envoie au LLM un grand nombre de questions avec le même rôle,
+ * par exemple pour traduire des milliers de phrases avec le rôle "Traducteur Anglais-Français".
+ *
+ * POST /lot?role=... avec un corps au format JSONL (un document JSON par ligne) :
+ * {"id": "1", "question": "Good morning"}
+ * Le rôle est le libellé d'un rôle prédéfini (voir RegistreRoles) ou le texte d'un rôle ;
+ * une ligne peut avoir son propre "role" (par défaut : le premier rôle prédéfini, "Assistant").
+ * Chaque question est indépendante (conversation d'un seul tour).
+ *
+ * La réponse est aussi au format JSONL ; une ligne est envoyée dès qu'une question est traitée,
+ * donc pas forcément dans l'ordre des questions :
+ * {"id": "1", "ligne": 1, "reponse": "Bonjour", "tentatives": 1}
+ * {"id": "2", "ligne": 2, "erreur": "...", "tentatives": 2}
+ *
+ * Au plus "parallelisme" questions sont en cours en même temps ; la lecture des questions suivantes
+ * attend qu'une place se libère. La mémoire utilisée ne dépend donc pas de la taille du lot.
+ * Les paramètres "role" et "parallelisme" sont lus dans l'URL seulement : request.getParameter lirait
+ * le corps d'une requête application/x-www-form-urlencoded, qui ne pourrait plus être lu ligne par ligne.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.lot.parallelisme (nombre maximum de questions en cours,
+ * la requête peut demander moins avec le paramètre "parallelisme" ; jamais plus que le nombre de requêtes
+ * qu'une session peut avoir en attente dans OrdonnanceurEquitable, puisque toutes les questions du lot
+ * comptent pour une seule session), gemini.lot.tentatives (nombre d'essais
+ * par question) et gemini.lot.backoff (délai en millisecondes avant un nouvel essai, doublé à chaque essai).
+ */
+@WebServlet(name = "lotServlet", value = "/lot")
+public class LotServlet extends HttpServlet {
+
+    /**
+     * Un JsonUtilPourGemini par question : chaque question a sa propre conversation.
+     */
+    @Inject
+    private Instance<JsonUtilPourGemini> jsonUtils;
+
+    /**
+     * Rôles prédéfinis, par libellé.
+     */
+    @Inject
+    private RegistreRoles registreRoles;
+
+    @Inject
+    private OrdonnanceurEquitable ordonnanceur;
+
+    private int parallelismeMax;
+    private int tentativesMax;
+    private long backoffMs;
+
+    @Override
+    public void init() {
+        this.parallelismeMax = Math.max(1, Math.min(ordonnanceur.getFileSessionMax(),
+                ConfigurationLlm.lireInt("gemini.lot.parallelisme", 8)));
+        this.tentativesMax = Math.max(1, ConfigurationLlm.lireInt("gemini.lot.tentatives", 2));
+        this.backoffMs = ConfigurationLlm.lireLong("gemini.lot.backoff", 1_000);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        request.setCharacterEncoding("UTF-8");
+        Map<String, String> parametres = parametresUrl(request.getQueryString());
+        int parallelisme = parallelismeMax;
+        String parametre = parametres.get("parallelisme");
+        if (parametre != null) {
+            try {
+                parallelisme = Math.max(1, Math.min(parallelismeMax, Integer.parseInt(parametre)));
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "parallelisme invalide");
+                return;
+            }
+        }
+        String roleParDefaut = parametres.get("role");
+        // Toutes les questions du lot comptent pour une seule session dans le partage des appels à l'API.
+        HttpSession session = request.getSession(false);
+        String idSession = session != null ? session.getId() : "lot-" + request.getRemoteAddr();
+
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        Semaphore places = new Semaphore(parallelisme);
+
+        BufferedReader reader = request.getReader();
+        String ligne;
+        int numero = 0;
+        try {
+            while ((ligne = reader.readLine()) != null && !out.checkError()) {
+                numero++;
+                if (ligne.isBlank()) {
+                    continue;
+                }
+                places.acquire();
+                int numeroLigne = numero;
+                traiter(ligne, numeroLigne, roleParDefaut, idSession)
+                        .whenComplete((resultat, erreur) -> {
+                            try {
+                                ecrire(out, resultat != null ? resultat
+                                        : new Resultat(null, numeroLigne, null, message(erreur), 0));
+                            } finally {
+                                places.release();
+                            }
+                        });
+            }
+            // Attend la fin des questions en cours avant de terminer la réponse.
+            places.acquire(parallelisme);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.flush();
+    }
+
+    /**
+     * @param query partie de l'URL après "?", null si absente.
+     * @return les paramètres de l'URL, décodés ; la première valeur si un paramètre est répété.
+     */
+    private static Map<String, String> parametresUrl(String query) {
+        Map<String, String> parametres = new HashMap<>();
+        if (query == null) {
+            return parametres;
+        }
+        for (String element : query.split("&")) {
+            int egal = element.indexOf('=');
+            String nom = egal < 0 ? element : element.substring(0, egal);
+            String valeur = egal < 0 ? "" : element.substring(egal + 1);
+            try {
+                parametres.putIfAbsent(URLDecoder.decode(nom, StandardCharsets.UTF_8),
+                        URLDecoder.decode(valeur, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                // Encodage invalide : paramètre ignoré.
+            }
+        }
+        return parametres;
+    }
+
+    /**
+     * Traite une ligne du lot.
+     *
+     * @return le résultat ; jamais en échec : une erreur est décrite dans le résultat.
+     */
+    private CompletionStage<Resultat> traiter(String ligne, int numero, String roleParDefaut, String idSession) {
+        JsonObject item;
+        try (JsonReader jsonReader = Json.createReader(new StringReader(ligne))) {
+            item = jsonReader.readObject();
+        } catch (JsonException | ClassCastException e) {
+            return CompletableFuture.completedFuture(
+                    new Resultat(null, numero, null, "Ligne JSON invalide : " + e.getMessage(), 0));
+        }
+        JsonValue valeurId = item.get("id");
+        String id = valeurId == null ? null
+                : valeurId instanceof JsonString texteId ? texteId.getString() : valeurId.toString();
+        String question = item.getString("question", null);
+        String role = item.getString("role", roleParDefaut);
+        if (question == null || question.isBlank()) {
+            return CompletableFuture.completedFuture(new Resultat(id, numero, null, "Question manquante", 0));
+        }
+        RolePredefini rolePredefini = role == null ? registreRoles.parDefaut() : registreRoles.parLibelle(role);
+        if (rolePredefini == null) {
+            rolePredefini = registreRoles.parTexte(role);
+        }
+        try {
+            return envoyer(id, numero, question, rolePredefini, role, idSession, 1);
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(new Resultat(id, numero, null, message(e), 1));
+        }
+    }
+
+    /**
+     * @param rolePredefini le rôle prédéfini de la question ; null pour utiliser le texte du rôle.
+     * @param role le texte du rôle, utilisé s'il n'est pas prédéfini.
+     * @param idSession session qui envoie le lot (voir OrdonnanceurEquitable).
+     */
+    private CompletionStage<Resultat> envoyer(String id, int numero, String question, RolePredefini rolePredefini,
+                                              String role, String idSession, int tentative) {
+        // Nouvelle conversation à chaque essai : la question d'un essai raté est déjà dans l'ancienne.
+        JsonUtilPourGemini jsonUtil = jsonUtils.get();
+        if (rolePredefini != null) {
+            jsonUtil.setRolePredefini(rolePredefini);
+        } else {
+            jsonUtil.setSystemRole(role);
+        }
+        jsonUtil.setIdSession(idSession);
+        return jsonUtil.envoyerRequeteAsync(question)
+                .handle((interaction, erreur) -> {
+                    jsonUtils.destroy(jsonUtil);
+                    if (erreur == null) {
+                        return CompletableFuture.completedFuture(
+                                new Resultat(id, numero, interaction.reponseExtraite(), null, tentative));
+                    }
+                    if (tentative >= tentativesMax) {
+                        return CompletableFuture.completedFuture(
+                                new Resultat(id, numero, null, message(erreur), tentative));
+                    }
+                    // Les erreurs passagères (429, 5xx) ont déjà été réessayées par PasserelleGemini ;
+                    // ici on attend plus longtemps, par exemple quand la passerelle a refusé la requête.
+                    long delai = backoffMs << Math.min(20, tentative - 1);
+                    Executor plusTard = CompletableFuture.delayedExecutor(delai, TimeUnit.MILLISECONDS);
+                    return CompletableFuture.runAsync(() -> { }, plusTard)
+                            .thenCompose(rien -> envoyer(id, numero, question, rolePredefini, role, idSession,
+                                    tentative + 1));
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private static String message(Throwable erreur) {
+        Throwable cause = erreur instanceof CompletionException && erreur.getCause() != null
+                ? erreur.getCause() : erreur;
+        if (cause instanceof RequeteException) {
+            return cause.getMessage();
+        }
+        return cause.getClass().getSimpleName() + " : " + cause.getMessage();
+    }
+
+    /**
+     * Écrit une ligne de résultat. Appelé par plusieurs threads : une ligne à la fois.
+     */
+    private static void ecrire(PrintWriter out, Resultat resultat) {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(json)) {
+            generator.writeStartObject();
+            if (resultat.id() != null) {
+                generator.write("id", resultat.id());
+            }
+            generator.write("ligne", resultat.numero());
+            if (resultat.reponse() != null) {
+                generator.write("reponse", resultat.reponse());
+            } else {
+                generator.write("erreur", String.valueOf(resultat.erreur()));
+            }
+            generator.write("tentatives", resultat.tentatives());
+            generator.writeEnd();
+        }
+        synchronized (out) {
+            out.write(json.toString());
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    private record Resultat(String id, int numero, String reponse, String erreur, int tentatives) {
+    }
+}
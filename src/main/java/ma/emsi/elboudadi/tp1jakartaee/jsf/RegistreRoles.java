@@ -0,0 +1,241 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.faces.model.SelectItem;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+import ma.emsi.elboudadi.tp1jakartaee.llm.CacheSemantique;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+import ma.emsi.elboudadi.tp1jakartaee.llm.RolePredefini;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rôles système prédéfinis, partagés par toutes les vues et par le traitement par lot (LotServlet).
+ * Les rôles, la liste de SelectItem de la liste déroulante et le fragment JSON de chaque rôle
+ * (voir RolePredefini) sont créés une seule fois, au démarrage, et non plus pour chaque vue.
+ *
+ * Les rôles peuvent être lus dans un fichier JSON (paramètre gemini.roles.fichier, voir ConfigurationLlm)
+ * au lieu d'utiliser les rôles par défaut :
+ * [
+ *   { "libelle": "Assistant", "texte": "You are a helpful assistant..." },
+ *   { "libelle": "Écrivain Créatif", "texte": "...", "cache": false }
+ * ]
+ * "cache" (true par défaut) indique si le cache des réponses peut être utilisé pour le rôle.
+ * Le fichier est relu quand il est modifié : sa date de modification est vérifiée au plus une fois toutes
+ * les gemini.roles.verification millisecondes (5000 par défaut), lors d'un accès aux rôles. Si le fichier
+ * ne peut pas être lu, les rôles précédents sont gardés. Les conversations déjà commencées gardent leur rôle.
+ * Le cache sémantique (CacheSemantique) est informé des rôles actuels, pour oublier les réponses des anciens.
+ */
+@ApplicationScoped
+public class RegistreRoles {
+
+    private static final Logger LOGGER = Logger.getLogger(RegistreRoles.class.getName());
+
+    /**
+     * Les rôles à un instant donné ; remplacé en entier quand le fichier est relu.
+     *
+     * @param dateFichier date de modification du fichier lu, null pour les rôles par défaut.
+     */
+    private record Catalogue(List<RolePredefini> roles, List<SelectItem> items,
+                             Map<String, RolePredefini> parTexte, Map<String, RolePredefini> parLibelle,
+                             FileTime dateFichier) {
+    }
+
+    @Inject
+    private CacheSemantique cacheSemantique;
+
+    private Path fichier;
+    private long intervalleVerificationMs;
+    private volatile Catalogue catalogue;
+    private volatile long prochaineVerification;
+
+    @PostConstruct
+    void init() {
+        String nomFichier = ConfigurationLlm.lire("gemini.roles.fichier", null);
+        this.fichier = nomFichier == null ? null : Path.of(nomFichier);
+        this.intervalleVerificationMs = ConfigurationLlm.lireLong("gemini.roles.verification", 5_000);
+        this.catalogue = catalogue(rolesParDefaut(), null);
+        if (fichier != null) {
+            recharger();
+        }
+        cacheSemantique.retenirRoles(catalogue.roles());
+    }
+
+    /**
+     * @return les rôles pour la liste déroulante ; valeur : le texte du rôle, libellé : le nom du rôle.
+     * La liste ne doit pas être modifiée.
+     */
+    public List<SelectItem> getSelectItems() {
+        return catalogueActuel().items();
+    }
+
+    public List<RolePredefini> getRoles() {
+        return catalogueActuel().roles();
+    }
+
+    /**
+     * @param texte texte d'un rôle, par exemple la valeur choisie dans la liste déroulante.
+     * @return le rôle prédéfini qui a ce texte, null si c'est un rôle écrit par l'utilisateur.
+     */
+    public RolePredefini parTexte(String texte) {
+        return texte == null ? null : catalogueActuel().parTexte().get(texte);
+    }
+
+    /**
+     * @return le rôle prédéfini qui a ce libellé, null s'il n'y en a pas.
+     */
+    public RolePredefini parLibelle(String libelle) {
+        return libelle == null ? null : catalogueActuel().parLibelle().get(libelle);
+    }
+
+    /**
+     * @return le premier rôle prédéfini.
+     */
+    public RolePredefini parDefaut() {
+        return catalogueActuel().roles().get(0);
+    }
+
+    private Catalogue catalogueActuel() {
+        if (fichier != null && System.currentTimeMillis() >= prochaineVerification) {
+            recharger();
+        }
+        return catalogue;
+    }
+
+    /**
+     * Relit le fichier s'il a été modifié depuis la dernière lecture.
+     */
+    private synchronized void recharger() {
+        if (System.currentTimeMillis() < prochaineVerification) {
+            // Vérifié par un autre thread pendant l'attente du verrou
+            return;
+        }
+        prochaineVerification = System.currentTimeMillis() + intervalleVerificationMs;
+        try {
+            FileTime date = Files.getLastModifiedTime(fichier);
+            if (date.equals(catalogue.dateFichier())) {
+                return;
+            }
+            List<RolePredefini> roles = lire(fichier);
+            if (roles.isEmpty()) {
+                LOGGER.warning(() -> "Aucun rôle dans " + fichier + ", rôles précédents gardés");
+                return;
+            }
+            this.catalogue = catalogue(roles, date);
+            cacheSemantique.retenirRoles(roles);
+            LOGGER.info(() -> roles.size() + " rôles lus dans " + fichier);
+        } catch (IOException | JsonException | ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Lecture des rôles impossible dans " + fichier + ", rôles précédents gardés", e);
+        }
+    }
+
+    private static List<RolePredefini> lire(Path fichier) throws IOException {
+        List<RolePredefini> roles = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(fichier, StandardCharsets.UTF_8);
+             JsonReader jsonReader = Json.createReader(reader)) {
+            for (JsonValue valeur : jsonReader.readArray()) {
+                JsonObject role = valeur.asJsonObject();
+                String libelle = role.getString("libelle", null);
+                String texte = role.getString("texte", null);
+                if (libelle == null || texte == null) {
+                    throw new JsonException("Rôle sans libelle ou sans texte : " + role);
+                }
+                roles.add(RolePredefini.creer(libelle, texte, role.getBoolean("cache", true)));
+            }
+        }
+        return roles;
+    }
+
+    private static Catalogue catalogue(List<RolePredefini> roles, FileTime dateFichier) {
+        List<SelectItem> items = new ArrayList<>();
+        Map<String, RolePredefini> parTexte = new HashMap<>();
+        Map<String, RolePredefini> parLibelle = new HashMap<>();
+        for (RolePredefini role : roles) {
+            // 1er argument : la valeur du rôle, 2ème argument : le libellé du rôle
+            items.add(new SelectItem(role.texte(), role.libelle()));
+            parTexte.put(role.texte(), role);
+            parLibelle.put(role.libelle(), role);
+        }
+        return new Catalogue(List.copyOf(roles), Collections.unmodifiableList(items),
+                Map.copyOf(parTexte), Map.copyOf(parLibelle), dateFichier);
+    }
+
+    /**
+     * Les rôles utilisés quand aucun fichier n'est indiqué.
+     */
+    static List<RolePredefini> rolesParDefaut() {
+        List<RolePredefini> roles = new ArrayList<>();
+        // Vous pouvez évidemment écrire ces rôles dans la langue que vous voulez.
+        String role = """
+                You are a helpful assistant. You help the user to find the information they need.
+                If the user type a question, you answer it.
+                """;
+        roles.add(RolePredefini.creer("Assistant", role, true));
+
+        role = """
+                You are an interpreter. You translate from English to French and from French to English.
+                If the user type a French text, you translate it into English.
+                If the user type an English text, you translate it into French.
+                If the text contains only one to three words, give some examples of usage of these words in English.
+                """;
+        roles.add(RolePredefini.creer("Traducteur Anglais-Français", role, true));
+
+        role = """
+                Your are a travel guide. If the user type the name of a country or of a town,
+                you tell them what are the main places to visit in the country or the town
+                are you tell them the average price of a meal.
+                """;
+        roles.add(RolePredefini.creer("Guide touristique", role, true));
+
+        role = """
+                Spécialisé dans les recherches locales : restaurants, cafés, hôtels, lieux touristiques, etc.
+                🪄 Exemples :
+
+                •“Trouve-moi un restaurant italien à Casablanca.”
+                •“Y a-t-il un hôtel proche des cascades d’Akchour ?”""";
+        roles.add(RolePredefini.creer("Recherche locale", role, true));
+
+        // --- NOUVEAUX RÔLES ---
+
+        role = """
+                Vous êtes un développeur logiciel professionnel, spécialisé en Java et Jakarta EE.
+                Si l'utilisateur demande du code, fournissez un extrait de code complet, fonctionnel et bien commenté.
+                Si l'utilisateur demande une explication d'un concept, fournissez une réponse claire, concise et techniquement précise avec des exemples pertinents.
+                """;
+        roles.add(RolePredefini.creer("Développeur Java/Jakarta EE", role, true));
+
+        role = """
+                Vous êtes un conseiller financier. Vous fournissez des conseils généraux sur les finances personnelles,
+                l'investissement et la budgétisation. Vous devez toujours commencer votre réponse en indiquant :
+                "Ceci n'est pas un conseil financier personnalisé. Consultez un professionnel certifié."
+                """;
+        roles.add(RolePredefini.creer("Conseiller Financier", role, true));
+
+        // Pas de cache des réponses : on veut une histoire différente à chaque fois, même pour le même sujet.
+        role = """
+                Vous êtes un écrivain créatif et un conteur. Lorsque l'utilisateur fournit un sujet ou un thème,
+                vous devez écrire une courte histoire ou un poème engageant qui intègre son entrée.
+                Utilisez toujours un langage évocateur et concentrez-vous sur les éléments narratifs.
+                """;
+        roles.add(RolePredefini.creer("Écrivain Créatif", role, false));
+        return roles;
+    }
+}
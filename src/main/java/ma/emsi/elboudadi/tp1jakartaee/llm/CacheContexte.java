@@ -0,0 +1,251 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache de contexte de Gemini (API cachedContents) pour les rôles système prédéfinis.
+ * Le texte d'un rôle est envoyé une seule fois à l'API, qui le garde pendant une durée limitée (TTL)
+ * et renvoie un nom ("cachedContents/..."). Les requêtes donnent ensuite ce nom ("cachedContent")
+ * au lieu du texte du rôle ("system_instruction") : les tokens du rôle sont facturés au tarif réduit
+ * et ne sont plus envoyés à chaque requête.
+ *
+ * La création et la prolongation du contenu en cache se font en arrière-plan : tant que le nom n'est pas
+ * disponible (ou si la création a échoué, par exemple parce que le rôle est trop court pour l'API),
+ * le rôle est envoyé dans la requête, comme sans cache. Le contenu est prolongé quand il reste moins
+ * d'un quart de sa durée de vie ; s'il a quand même expiré, l'API refuse la requête et JsonUtilPourGemini
+ * la renvoie avec le texte du rôle (voir invalider).
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.contexte.cache.actif (true par défaut),
+ * gemini.contexte.cache.ttl (durée de vie demandée à l'API, en secondes),
+ * gemini.contexte.cache.min (taille minimale du rôle, en caractères, pour essayer de le mettre en cache)
+ * et gemini.contexte.cache.echec (durée en secondes avant un nouvel essai après un échec de création).
+ */
+@ApplicationScoped
+public class CacheContexte implements SourceMetriques {
+
+    /**
+     * Un contenu qui expire dans moins de cette durée n'est plus utilisé :
+     * il pourrait expirer avant que l'API ne traite la requête.
+     */
+    private static final long MARGE_EXPIRATION_MS = 30_000;
+
+    /**
+     * @param nom nom du contenu en cache dans l'API ; null si la création a échoué.
+     * @param expiration date d'expiration (ms) ; pour un échec, date du prochain essai.
+     */
+    private record Entree(String nom, long expiration) {
+    }
+
+    @Inject
+    private LlmClientPourGemini geminiClient;
+
+    private boolean actif;
+    private long ttlSecondes;
+    private int tailleMin;
+    private long dureeEchecMs;
+
+    /**
+     * Contenus en cache, par texte du rôle système.
+     */
+    private final Map<String, Entree> entrees = new ConcurrentHashMap<>();
+    /**
+     * Rôles dont la création ou la prolongation est en cours, pour ne lancer qu'un appel à la fois par rôle.
+     */
+    private final Set<String> enCours = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder utilisations = new LongAdder();
+    private final LongAdder creations = new LongAdder();
+    private final LongAdder prolongations = new LongAdder();
+    private final LongAdder echecs = new LongAdder();
+    private final LongAdder replis = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        this.actif = ConfigurationLlm.lireBoolean("gemini.contexte.cache.actif", true);
+        this.ttlSecondes = Math.max(300, ConfigurationLlm.lireLong("gemini.contexte.cache.ttl", 3600));
+        this.tailleMin = ConfigurationLlm.lireInt("gemini.contexte.cache.min", 0);
+        this.dureeEchecMs = ConfigurationLlm.lireLong("gemini.contexte.cache.echec", 3600) * 1000;
+    }
+
+    /**
+     * Ne bloque jamais : si le contenu n'existe pas encore, sa création est lancée en arrière-plan.
+     *
+     * @param instruction le texte du rôle système.
+     * @return le nom du contenu en cache à mettre dans la requête, ou null si le rôle doit être envoyé
+     * dans la requête.
+     */
+    public String trouver(String instruction) {
+        if (!actif || instruction == null || instruction.length() < tailleMin) {
+            return null;
+        }
+        long maintenant = System.currentTimeMillis();
+        Entree entree = entrees.get(instruction);
+        if (entree == null || entree.expiration() - MARGE_EXPIRATION_MS <= maintenant) {
+            if (entree == null || entree.nom() != null || entree.expiration() <= maintenant) {
+                creer(instruction);
+            }
+            return null;
+        }
+        if (entree.nom() == null) {
+            // Échec récent de la création
+            return null;
+        }
+        if (entree.expiration() - maintenant < ttlSecondes * 1000 / 4) {
+            prolonger(instruction, entree.nom());
+        }
+        utilisations.increment();
+        return entree.nom();
+    }
+
+    /**
+     * L'API a refusé une requête qui utilisait ce contenu (expiré ou supprimé) :
+     * il n'est plus utilisé et sera recréé à la prochaine requête.
+     */
+    public void invalider(String instruction, String nom) {
+        replis.increment();
+        entrees.computeIfPresent(instruction, (cle, entree) -> nom.equals(entree.nom()) ? null : entree);
+    }
+
+    /**
+     * @return true si le statut d'une requête qui utilisait un contenu en cache indique que ce contenu
+     * n'existe plus ou n'est pas accessible.
+     */
+    public static boolean contenuRefuse(int statut) {
+        return statut == 400 || statut == 403 || statut == 404;
+    }
+
+    /**
+     * Corps de la création :
+     * {"model": "models/gemini-2.0-flash", "systemInstruction": {"parts": [{"text": "..."}]}, "ttl": "3600s"}
+     */
+    private void creer(String instruction) {
+        if (!enCours.add(instruction)) {
+            return;
+        }
+        JsonObject corps = Json.createObjectBuilder()
+                .add("model", "models/" + geminiClient.getModele())
+                .add("systemInstruction", Json.createObjectBuilder()
+                        .add("parts", Json.createArrayBuilder()
+                                .add(Json.createObjectBuilder().add("text", instruction))))
+                .add("ttl", ttlSecondes + "s")
+                .build();
+        try {
+            geminiClient.creerContenuEnCache(Entity.entity(corps.toString(), MediaType.APPLICATION_JSON_TYPE))
+                    .whenComplete((response, erreur) -> {
+                        try {
+                            Entree entree = erreur == null ? lireEntree(response, null) : null;
+                            if (entree != null) {
+                                creations.increment();
+                                entrees.put(instruction, entree);
+                            } else {
+                                echecs.increment();
+                                entrees.put(instruction, new Entree(null, System.currentTimeMillis() + dureeEchecMs));
+                            }
+                        } finally {
+                            enCours.remove(instruction);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            enCours.remove(instruction);
+            echecs.increment();
+        }
+    }
+
+    /**
+     * Prolonge la durée de vie du contenu : PATCH cachedContents/...?updateMask=ttl avec {"ttl": "3600s"}.
+     * En cas d'échec, le contenu reste utilisé jusqu'à son expiration, puis est recréé.
+     */
+    private void prolonger(String instruction, String nom) {
+        if (!enCours.add(instruction)) {
+            return;
+        }
+        JsonObject corps = Json.createObjectBuilder().add("ttl", ttlSecondes + "s").build();
+        try {
+            geminiClient.prolongerContenuEnCache(nom, Entity.entity(corps.toString(), MediaType.APPLICATION_JSON_TYPE))
+                    .whenComplete((response, erreur) -> {
+                        try {
+                            Entree entree = erreur == null ? lireEntree(response, nom) : null;
+                            if (entree != null) {
+                                prolongations.increment();
+                                entrees.replace(instruction, entree);
+                            } else {
+                                echecs.increment();
+                            }
+                        } finally {
+                            enCours.remove(instruction);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            enCours.remove(instruction);
+            echecs.increment();
+        }
+    }
+
+    /**
+     * Lit le nom et la date d'expiration dans la réponse de l'API, puis ferme la réponse :
+     * {"name": "cachedContents/abc123", "expireTime": "2025-01-01T12:00:00.000000Z", ...}
+     *
+     * @param nomConnu nom du contenu, si la réponse peut ne pas le contenir.
+     * @return null si l'API a refusé la requête ou si la réponse est illisible.
+     */
+    private Entree lireEntree(Response response, String nomConnu) {
+        try (response) {
+            if (response.getStatus() != 200) {
+                return null;
+            }
+            JsonObject json;
+            try (JsonReader reader = Json.createReader(response.readEntity(InputStream.class))) {
+                json = reader.readObject();
+            }
+            String nom = json.getString("name", nomConnu);
+            if (nom == null) {
+                return null;
+            }
+            long expiration = System.currentTimeMillis() + ttlSecondes * 1000;
+            String expireTime = json.getString("expireTime", null);
+            if (expireTime != null) {
+                expiration = Instant.parse(expireTime).toEpochMilli();
+            }
+            return new Entree(nom, expiration);
+        } catch (RuntimeException e) {
+            // JsonException, DateTimeParseException, ProcessingException
+            return null;
+        }
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_contexte_cache_requetes_total Requêtes envoyées avec un contenu en cache.");
+        out.println("# TYPE llm_contexte_cache_requetes_total counter");
+        out.printf("llm_contexte_cache_requetes_total %d%n", utilisations.sum());
+        out.println("# HELP llm_contexte_cache_operations_total Appels à l'API cachedContents, par résultat.");
+        out.println("# TYPE llm_contexte_cache_operations_total counter");
+        out.printf("llm_contexte_cache_operations_total{operation=\"creation\"} %d%n", creations.sum());
+        out.printf("llm_contexte_cache_operations_total{operation=\"prolongation\"} %d%n", prolongations.sum());
+        out.printf("llm_contexte_cache_operations_total{operation=\"echec\"} %d%n", echecs.sum());
+        out.println("# HELP llm_contexte_cache_replis_total Requêtes renvoyées avec le rôle système"
+                + " car le contenu en cache avait expiré.");
+        out.println("# TYPE llm_contexte_cache_replis_total counter");
+        out.printf("llm_contexte_cache_replis_total %d%n", replis.sum());
+        out.println("# HELP llm_contexte_cache_entrees Rôles système dont le contenu est en cache dans l'API.");
+        out.println("# TYPE llm_contexte_cache_entrees gauge");
+        out.printf("llm_contexte_cache_entrees %d%n",
+                entrees.values().stream().filter(entree -> entree.nom() != null).count());
+    }
+}
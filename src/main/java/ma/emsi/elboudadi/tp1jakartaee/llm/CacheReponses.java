@@ -0,0 +1,149 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache des réponses de l'API, partagé par toutes les conversations.
+ * La clé est une empreinte SHA-256 du modèle et du document JSON complet de la requête
+ * (rôle système et tout l'historique "contents") : une réponse n'est réutilisée que pour exactement la même requête.
+ * Le nombre d'entrées est limité (les moins récemment utilisées sont supprimées en premier)
+ * et chaque entrée expire après une durée fixe.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.cache.actif (true par défaut),
+ * gemini.cache.taille (nombre maximum d'entrées), gemini.cache.ttl (durée de vie en secondes).
+ */
+@ApplicationScoped
+public class CacheReponses implements SourceMetriques {
+
+    private record Entree(ReponseGemini reponse, long expiration) {
+    }
+
+    private boolean actif;
+    private long dureeVieMs;
+    private Map<String, Entree> entrees;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        this.actif = ConfigurationLlm.lireBoolean("gemini.cache.actif", true);
+        this.dureeVieMs = ConfigurationLlm.lireLong("gemini.cache.ttl", 3600) * 1000;
+        int tailleMax = ConfigurationLlm.lireInt("gemini.cache.taille", 1000);
+        // Ordre d'accès : la première entrée est la moins récemment utilisée.
+        this.entrees = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entree> eldest) {
+                if (size() > tailleMax) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isActif() {
+        return actif;
+    }
+
+    /**
+     * Calcule la clé de la requête sans construire le texte du document JSON.
+     *
+     * @param modele le modèle de l'API.
+     * @param conversation la conversation.
+     * @param nbTours nombre de messages envoyés dans la requête.
+     * @return l'empreinte, encodée en Base64.
+     */
+    public static String cle(String modele, Conversation conversation, int nbTours) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(modele.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        conversation.ecrire(new DigestOutputStream(OutputStream.nullOutputStream(), digest), nbTours);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * @return la réponse en cache, ou null si elle n'y est pas ou si elle a expiré.
+     */
+    public ReponseGemini trouver(String cle) {
+        Entree entree;
+        synchronized (entrees) {
+            entree = entrees.get(cle);
+            if (entree != null && entree.expiration() < System.currentTimeMillis()) {
+                entrees.remove(cle);
+                evictions.increment();
+                entree = null;
+            }
+        }
+        if (entree == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entree.reponse();
+    }
+
+    /**
+     * Met une réponse en cache. Le texte brut de la réponse (debug) n'est pas gardé.
+     */
+    public void ajouter(String cle, ReponseGemini reponse) {
+        ReponseGemini sansTexteBrut = new ReponseGemini(reponse.tour(), reponse.finishReason(),
+                reponse.promptTokenCount(), reponse.candidatesTokenCount(), reponse.totalTokenCount(),
+                reponse.cachedContentTokenCount(), null);
+        Entree entree = new Entree(sansTexteBrut, System.currentTimeMillis() + dureeVieMs);
+        synchronized (entrees) {
+            entrees.put(cle, entree);
+        }
+    }
+
+    public int getTaille() {
+        synchronized (entrees) {
+            return entrees.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_cache_total Recherches dans le cache des réponses.");
+        out.println("# TYPE llm_cache_total counter");
+        out.printf("llm_cache_total{resultat=\"hit\"} %d%n", getHits());
+        out.printf("llm_cache_total{resultat=\"miss\"} %d%n", getMisses());
+        out.println("# HELP llm_cache_evictions_total Entrées supprimées du cache (taille ou expiration).");
+        out.println("# TYPE llm_cache_evictions_total counter");
+        out.printf("llm_cache_evictions_total %d%n", getEvictions());
+        out.println("# HELP llm_cache_entrees Nombre d'entrées dans le cache.");
+        out.println("# TYPE llm_cache_entrees gauge");
+        out.printf("llm_cache_entrees %d%n", getTaille());
+    }
+}
@@ -0,0 +1,159 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache sémantique des réponses : contrairement à CacheReponses, qui ne réutilise une réponse que pour exactement
+ * la même requête, il retrouve la réponse d'une question formulée autrement, par exemple
+ * "quelle est la capitale de la France" après "capitale de la France ?".
+ *
+ * Seule la première question d'une conversation avec un rôle prédéfini (RegistreRoles) est concernée :
+ * la réponse ne dépend alors que du rôle et de la question. Il y a un index (IndexVecteurs) par rôle ;
+ * la question y est cherchée par son vecteur (voir Plongement) et la réponse la plus proche est réutilisée
+ * si la similarité (cosinus) atteint gemini.semantique.seuil. Les rôles qui n'utilisent pas le cache
+ * des réponses (RolePredefini.cacheReponses) ne l'utilisent pas non plus.
+ * Quand les rôles sont relus (RegistreRoles), les index des rôles qui n'existent plus sont supprimés ;
+ * les conversations commencées avec un ancien rôle n'ajoutent plus rien au cache.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.semantique.actif (false par défaut), gemini.semantique.seuil (0.9),
+ * gemini.semantique.taille (nombre maximum d'entrées par rôle), gemini.semantique.ttl (secondes,
+ * par défaut gemini.cache.ttl) et gemini.semantique.plongement (classe de la fonction de plongement).
+ */
+@ApplicationScoped
+public class CacheSemantique implements SourceMetriques {
+
+    private static final Logger LOGGER = Logger.getLogger(CacheSemantique.class.getName());
+
+    private static final double[] BORNES_SECONDES = {0.00001, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.005, 0.01};
+
+    private boolean actif;
+    private double seuil;
+    private int tailleMax;
+    private long dureeVieMs;
+    private Plongement plongement;
+
+    /**
+     * Index par texte du rôle : un rôle modifié dans le fichier des rôles a un nouvel index.
+     */
+    private final Map<String, IndexVecteurs> index = new ConcurrentHashMap<>();
+    /**
+     * Textes des rôles actuels ; null tant que RegistreRoles ne les a pas indiqués (tous les rôles sont acceptés).
+     */
+    private volatile Set<String> textesRoles;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Histogramme recherche = new Histogramme(BORNES_SECONDES);
+
+    @PostConstruct
+    void init() {
+        this.actif = ConfigurationLlm.lireBoolean("gemini.semantique.actif", false);
+        this.seuil = ConfigurationLlm.lireDouble("gemini.semantique.seuil", 0.9);
+        this.tailleMax = ConfigurationLlm.lireInt("gemini.semantique.taille", 1000);
+        this.dureeVieMs = ConfigurationLlm.lireLong("gemini.semantique.ttl",
+                ConfigurationLlm.lireLong("gemini.cache.ttl", 3600)) * 1000;
+        this.plongement = creerPlongement(ConfigurationLlm.lire("gemini.semantique.plongement", null));
+    }
+
+    private static Plongement creerPlongement(String nomClasse) {
+        if (nomClasse != null) {
+            try {
+                return (Plongement) Class.forName(nomClasse).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Plongement " + nomClasse + " inutilisable, PlongementNgrammes utilisé", e);
+            }
+        }
+        return new PlongementNgrammes();
+    }
+
+    public boolean isActif() {
+        return actif;
+    }
+
+    /**
+     * @param role le rôle prédéfini de la conversation.
+     * @param question la première question de la conversation.
+     * @return la réponse d'une question proche posée avec le même rôle, ou null s'il n'y en a pas.
+     */
+    public ReponseGemini trouver(RolePredefini role, String question) {
+        long debut = System.nanoTime();
+        IndexVecteurs indexRole = index.get(role.texte());
+        ReponseGemini reponse = indexRole == null ? null : indexRole.chercher(plongement.plonger(question), seuil);
+        recherche.enregistrerNanos(System.nanoTime() - debut);
+        if (reponse == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return reponse;
+    }
+
+    /**
+     * Met en cache la réponse à la première question d'une conversation. Le texte brut (debug) n'est pas gardé.
+     */
+    public void ajouter(RolePredefini role, String question, ReponseGemini reponse) {
+        if (!estActuel(role.texte())) {
+            return;
+        }
+        ReponseGemini sansTexteBrut = new ReponseGemini(reponse.tour(), reponse.finishReason(),
+                reponse.promptTokenCount(), reponse.candidatesTokenCount(), reponse.totalTokenCount(),
+                reponse.cachedContentTokenCount(), null);
+        index.computeIfAbsent(role.texte(), texte -> new IndexVecteurs(plongement.dimension(), tailleMax))
+                .ajouter(plongement.plonger(question), sansTexteBrut, dureeVieMs);
+        if (!estActuel(role.texte())) {
+            // Rôles relus pendant l'ajout.
+            index.remove(role.texte());
+        }
+    }
+
+    /**
+     * Indique les rôles actuels et supprime les index des autres rôles.
+     */
+    public void retenirRoles(Collection<RolePredefini> roles) {
+        Set<String> textes = new HashSet<>();
+        for (RolePredefini role : roles) {
+            textes.add(role.texte());
+        }
+        this.textesRoles = Set.copyOf(textes);
+        index.keySet().retainAll(textes);
+    }
+
+    private boolean estActuel(String texteRole) {
+        Set<String> textes = textesRoles;
+        return textes == null || textes.contains(texteRole);
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_cache_semantique_total Recherches dans le cache sémantique des réponses.");
+        out.println("# TYPE llm_cache_semantique_total counter");
+        out.printf("llm_cache_semantique_total{resultat=\"hit\"} %d%n", hits.sum());
+        out.printf("llm_cache_semantique_total{resultat=\"miss\"} %d%n", misses.sum());
+        out.println("# HELP llm_cache_semantique_recherche_secondes Durée d'une recherche (plongement compris).");
+        out.println("# TYPE llm_cache_semantique_recherche_secondes histogram");
+        recherche.ecrire(out, "llm_cache_semantique_recherche_secondes", "");
+        int entrees = 0;
+        long evictions = 0;
+        for (IndexVecteurs indexRole : index.values()) {
+            entrees += indexRole.getTaille();
+            evictions += indexRole.getEvictions();
+        }
+        out.println("# HELP llm_cache_semantique_entrees Nombre d'entrées, tous rôles confondus.");
+        out.println("# TYPE llm_cache_semantique_entrees gauge");
+        out.printf("llm_cache_semantique_entrees %d%n", entrees);
+        out.println("# HELP llm_cache_semantique_evictions_total Entrées remplacées parce que l'index était plein.");
+        out.println("# TYPE llm_cache_semantique_evictions_total counter");
+        out.printf("llm_cache_semantique_evictions_total %d%n", evictions);
+    }
+}
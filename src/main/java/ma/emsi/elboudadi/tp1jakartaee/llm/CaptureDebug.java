@@ -0,0 +1,50 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Derniers échanges avec l'API d'une session, gardés pour le mode debug.
+ * Le nombre d'échanges gardés est limité : quand il est atteint, le plus ancien est supprimé.
+ * Une instance n'existe que si le mode debug a été activé : sans mode debug, rien n'est copié ni formaté.
+ *
+ * Paramètre (voir ConfigurationLlm) : gemini.debug.taille, nombre d'échanges gardés.
+ */
+public class CaptureDebug implements Serializable {
+
+    private final int tailleMax;
+    private final Deque<EchangeDebug> echanges = new ArrayDeque<>();
+
+    public CaptureDebug() {
+        this(ConfigurationLlm.lireInt("gemini.debug.taille", 10));
+    }
+
+    public CaptureDebug(int tailleMax) {
+        this.tailleMax = Math.max(1, tailleMax);
+    }
+
+    /**
+     * Enregistre une requête ; la réponse sera ajoutée à l'échange retourné quand elle arrivera.
+     *
+     * @param requeteBrute le document JSON de la requête, tel qu'il est envoyé.
+     * @return l'échange enregistré.
+     */
+    public synchronized EchangeDebug enregistrer(String requeteBrute) {
+        EchangeDebug echange = new EchangeDebug(requeteBrute);
+        if (echanges.size() == tailleMax) {
+            echanges.removeFirst();
+        }
+        echanges.addLast(echange);
+        return echange;
+    }
+
+    /**
+     * @return les échanges gardés, du plus ancien au plus récent.
+     */
+    public synchronized List<EchangeDebug> getEchanges() {
+        return new ArrayList<>(echanges);
+    }
+}
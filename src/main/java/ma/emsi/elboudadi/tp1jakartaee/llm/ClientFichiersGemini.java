@@ -0,0 +1,492 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Envoie des fichiers à l'API de Gemini (File API) pour les joindre aux questions (voir FichierJoint).
+ * Le fichier est lu dans un canal (par exemple le corps de la requête HTTP de l'utilisateur) et envoyé
+ * au fur et à mesure par morceaux, avec le protocole "resumable" de l'API :
+ * - POST {url}/upload/v1beta/files (X-Goog-Upload-Command: start) donne l'URL de la session d'envoi ;
+ * - chaque morceau est envoyé à cette URL (X-Goog-Upload-Command: upload, X-Goog-Upload-Offset),
+ *   le dernier avec "upload, finalize" ; la réponse au dernier morceau décrit le fichier (nom, URI, état).
+ * Si l'envoi d'un morceau échoue (connexion coupée, erreur 5xx), le client demande à l'API combien d'octets
+ * elle a reçus (X-Goog-Upload-Command: query) et reprend à partir de là : le morceau est encore dans le tampon.
+ *
+ * Le fichier n'est jamais entièrement en mémoire et n'est pas encodé en base64 : un seul morceau à la fois
+ * est dans un tampon direct (hors du tas Java) de taille fixe, réutilisé d'un envoi à l'autre. Le nombre de
+ * tampons limite le nombre d'envois en même temps ; un envoi qui n'obtient pas de tampon à temps est refusé.
+ * Le corps de chaque morceau est donné au client java.net.http directement depuis le tampon, sans copie
+ * dans un tableau d'octets (le client REST JAX-RS n'accepte pas un ByteBuffer comme corps de requête).
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.fichiers.morceau (taille des morceaux en octets, arrondie
+ * au multiple de 256 Kio supérieur, 8 Mio par défaut), gemini.fichiers.tampons (nombre maximum d'envois
+ * en même temps, 4), gemini.fichiers.attente (attente maximum d'un tampon, en millisecondes),
+ * gemini.fichiers.taille.max (2 Gio, la limite de l'API), gemini.fichiers.tentatives (essais par morceau),
+ * gemini.fichiers.backoff (délai en millisecondes avant un nouvel essai, doublé à chaque essai),
+ * gemini.fichiers.traitement (attente maximum en millisecondes de la fin du traitement du fichier par l'API,
+ * pour les vidéos par exemple) ; gemini.base.url et gemini.connect.timeout / gemini.read.timeout
+ * comme LlmClientPourGemini.
+ */
+@ApplicationScoped
+public class ClientFichiersGemini implements SourceMetriques {
+
+    /**
+     * Les morceaux, sauf le dernier, doivent avoir une taille multiple de cette valeur.
+     */
+    private static final int GRANULARITE = 256 * 1024;
+
+    private static final double[] BORNES_SECONDES = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    /**
+     * Une session d'envoi de l'API.
+     *
+     * @param url URL à laquelle les morceaux sont envoyés.
+     * @param tailleMorceau taille des morceaux, sauf le dernier.
+     */
+    private record Session(URI url, int tailleMorceau) {
+    }
+
+    private HttpClient client;
+    // URL de base de l'API, par exemple https://generativelanguage.googleapis.com/v1beta
+    private String urlBase;
+    // Début des sessions d'envoi, par exemple https://generativelanguage.googleapis.com/upload/v1beta/files
+    private URI urlEnvoi;
+    private String key;
+    private Duration delaiRequete;
+    private int tailleMorceau;
+    private int nbTampons;
+    private long attenteTamponMs;
+    private long tailleMax;
+    private int tentatives;
+    private long backoffMs;
+    private long traitementMaxMs;
+
+    /**
+     * Tampons libres ; ils sont alloués à la demande, au plus nbTampons.
+     */
+    private final BlockingQueue<ByteBuffer> tampons = new LinkedBlockingQueue<>();
+    private final AtomicInteger tamponsAlloues = new AtomicInteger();
+    private final AtomicInteger enCours = new AtomicInteger();
+
+    private final LongAdder reussis = new LongAdder();
+    private final LongAdder echecs = new LongAdder();
+    private final LongAdder refuses = new LongAdder();
+    private final LongAdder octets = new LongAdder();
+    private final LongAdder morceaux = new LongAdder();
+    private final LongAdder reprises = new LongAdder();
+    private final Histogramme duree = new Histogramme(BORNES_SECONDES);
+
+    @PostConstruct
+    void init() {
+        this.key = System.getenv("GEMINI_API_KEY");
+        this.urlBase = ConfigurationLlm.lire("gemini.base.url", "https://generativelanguage.googleapis.com/v1beta");
+        URI base = URI.create(urlBase);
+        this.urlEnvoi = base.resolve("/upload" + base.getPath() + "/files" + (key == null ? "" : "?key=" + key));
+        this.delaiRequete = Duration.ofMillis(ConfigurationLlm.lireInt("gemini.read.timeout", 120_000));
+        long morceau = ConfigurationLlm.lireLong("gemini.fichiers.morceau", 8L * 1024 * 1024);
+        this.tailleMorceau = (int) Math.min(Integer.MAX_VALUE - GRANULARITE,
+                Math.max(1, (morceau + GRANULARITE - 1) / GRANULARITE) * GRANULARITE);
+        this.nbTampons = Math.max(1, ConfigurationLlm.lireInt("gemini.fichiers.tampons", 4));
+        this.attenteTamponMs = ConfigurationLlm.lireLong("gemini.fichiers.attente", 10_000);
+        this.tailleMax = ConfigurationLlm.lireLong("gemini.fichiers.taille.max", 2L * 1024 * 1024 * 1024);
+        this.tentatives = Math.max(1, ConfigurationLlm.lireInt("gemini.fichiers.tentatives", 3));
+        this.backoffMs = ConfigurationLlm.lireLong("gemini.fichiers.backoff", 500);
+        this.traitementMaxMs = ConfigurationLlm.lireLong("gemini.fichiers.traitement", 60_000);
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(ConfigurationLlm.lireInt("gemini.connect.timeout", 5_000)))
+                .build();
+    }
+
+    /**
+     * @return la taille maximum d'un fichier, en octets.
+     */
+    public long getTailleMax() {
+        return tailleMax;
+    }
+
+    /**
+     * Envoie un fichier à l'API. Bloque jusqu'à ce que le fichier soit utilisable dans une requête.
+     *
+     * @param source contenu du fichier, lu jusqu'à la fin ; pas fermé par cette méthode.
+     * @param nom nom du fichier.
+     * @param mimeType type du contenu.
+     * @param longueur taille du fichier en octets, ou -1 si elle n'est pas connue à l'avance.
+     * @return la référence du fichier, à joindre à une question.
+     * @throws FichierTropGrosException si le fichier dépasse la taille maximum.
+     * @throws RequeteRefuseeException s'il y a trop d'envois en cours.
+     * @throws RequeteException si l'API refuse le fichier ou si la lecture de la source échoue.
+     */
+    public FichierJoint envoyer(ReadableByteChannel source, String nom, String mimeType, long longueur)
+            throws RequeteException {
+        if (longueur > tailleMax) {
+            refuses.increment();
+            throw new FichierTropGrosException("Fichier trop gros : " + longueur + " octets, au plus " + tailleMax);
+        }
+        ByteBuffer tampon = prendreTampon();
+        long debut = System.nanoTime();
+        enCours.incrementAndGet();
+        boolean reussi = false;
+        boolean refuse = false;
+        Session session = null;
+        try {
+            JsonObject fichier = null;
+            session = demarrer(nom, mimeType, longueur);
+            long position = 0;
+            while (fichier == null) {
+                tampon.clear().limit(session.tailleMorceau());
+                boolean fin = remplir(source, tampon);
+                tampon.flip();
+                fin = fin || longueur >= 0 && position + tampon.remaining() >= longueur;
+                if (position + tampon.remaining() > tailleMax) {
+                    refuse = true;
+                    throw new FichierTropGrosException("Fichier trop gros : plus de " + tailleMax + " octets");
+                }
+                fichier = envoyerMorceau(session, tampon, position, fin);
+                position += tampon.limit();
+            }
+            octets.add(position);
+            FichierJoint resultat = attendreTraitement(fichier, nom, mimeType);
+            reussi = true;
+            return resultat;
+        } catch (IOException e) {
+            throw new RequeteException("Lecture du fichier impossible : " + e.getMessage());
+        } finally {
+            if (!reussi && session != null) {
+                annuler(session);
+            }
+            enCours.decrementAndGet();
+            tampons.offer(tampon);
+            duree.enregistrerNanos(System.nanoTime() - debut);
+            if (reussi) {
+                reussis.increment();
+            } else if (refuse) {
+                refuses.increment();
+            } else {
+                echecs.increment();
+            }
+        }
+    }
+
+    private ByteBuffer prendreTampon() throws RequeteException {
+        ByteBuffer tampon = tampons.poll();
+        if (tampon == null && tamponsAlloues.getAndUpdate(n -> n < nbTampons ? n + 1 : n) < nbTampons) {
+            return ByteBuffer.allocateDirect(tailleMorceau);
+        }
+        try {
+            if (tampon == null) {
+                tampon = tampons.poll(attenteTamponMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (tampon == null) {
+            refuses.increment();
+            throw new RequeteRefuseeException("Trop de fichiers en cours d'envoi, réessayez dans quelques instants");
+        }
+        return tampon;
+    }
+
+    /**
+     * Remplit le tampon jusqu'à sa limite ou jusqu'à la fin de la source.
+     *
+     * @return true si la fin de la source a été atteinte.
+     */
+    private static boolean remplir(ReadableByteChannel source, ByteBuffer tampon) throws IOException {
+        while (tampon.hasRemaining()) {
+            if (source.read(tampon) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Commence une session d'envoi.
+     */
+    private Session demarrer(String nom, String mimeType, long longueur) throws RequeteException {
+        String corps = Json.createObjectBuilder()
+                .add("file", Json.createObjectBuilder().add("display_name", nom))
+                .build().toString();
+        HttpRequest.Builder requete = HttpRequest.newBuilder(urlEnvoi)
+                .timeout(delaiRequete)
+                .header("X-Goog-Upload-Protocol", "resumable")
+                .header("X-Goog-Upload-Command", "start")
+                .header("X-Goog-Upload-Header-Content-Type", mimeType)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(corps));
+        if (longueur >= 0) {
+            requete.header("X-Goog-Upload-Header-Content-Length", Long.toString(longueur));
+        }
+        HttpResponse<String> reponse = executer(requete.build());
+        verifier(reponse, "Envoi du fichier refusé par l'API");
+        String url = reponse.headers().firstValue("X-Goog-Upload-URL")
+                .orElseThrow(() -> new RequeteException("Réponse de l'API sans URL d'envoi (X-Goog-Upload-URL)"));
+        String granularite = reponse.headers().firstValue("X-Goog-Upload-Chunk-Granularity").orElse("");
+        return new Session(URI.create(url), tailleMorceau(granularite));
+    }
+
+    /**
+     * @param granularite granularité des morceaux demandée par l'API, vide si elle n'est pas indiquée.
+     * @return la taille des morceaux de la session : la plus grande taille multiple de la granularité
+     * qui tient dans un tampon.
+     */
+    private int tailleMorceau(String granularite) throws RequeteException {
+        int octets;
+        try {
+            octets = granularite.isEmpty() ? GRANULARITE : Integer.parseInt(granularite);
+        } catch (NumberFormatException e) {
+            octets = GRANULARITE;
+        }
+        if (octets <= 0) {
+            return tailleMorceau;
+        }
+        if (octets > tailleMorceau) {
+            throw new RequeteException("Morceaux d'au moins " + octets + " octets demandés par l'API ;"
+                    + " augmenter gemini.fichiers.morceau");
+        }
+        return tailleMorceau - tailleMorceau % octets;
+    }
+
+    /**
+     * Envoie le contenu du tampon (de sa position à sa limite), en reprenant là où l'API s'est arrêtée
+     * si l'envoi échoue. Une erreur de la demande des octets reçus compte aussi comme un essai : après une coupure,
+     * la connexion suivante peut échouer aussi.
+     *
+     * @param position position dans le fichier du début du tampon.
+     * @param fin true pour le dernier morceau.
+     * @return la description du fichier si c'était le dernier morceau, sinon null.
+     */
+    private JsonObject envoyerMorceau(Session session, ByteBuffer tampon, long position, boolean fin)
+            throws RequeteException {
+        String commande = fin ? "upload, finalize" : "upload";
+        boolean reprise = false;
+        for (int essai = 1; ; essai++) {
+            String erreur;
+            try {
+                if (reprise) {
+                    // L'API a peut-être reçu une partie du morceau : reprise au premier octet qu'elle n'a pas.
+                    long recus = octetsRecus(session);
+                    if (recus < position || recus > position + tampon.limit()) {
+                        throw new RequeteException("Reprise de l'envoi impossible : " + recus
+                                + " octets reçus par l'API");
+                    }
+                    tampon.position((int) (recus - position));
+                }
+                HttpRequest requete = requeteSession(session, commande)
+                        .header("X-Goog-Upload-Offset", Long.toString(position + tampon.position()))
+                        .POST(corps(tampon))
+                        .build();
+                HttpResponse<String> reponse = client.send(requete, HttpResponse.BodyHandlers.ofString());
+                if (reponse.statusCode() / 100 == 2) {
+                    morceaux.increment();
+                    return fin ? lireFichier(reponse.body()) : null;
+                }
+                erreur = "statut " + reponse.statusCode() + " " + reponse.body();
+                if (reponse.statusCode() < 500) {
+                    throw new RequeteException("Morceau du fichier refusé par l'API : " + erreur);
+                }
+            } catch (IOException e) {
+                erreur = e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RequeteException("Envoi du fichier interrompu");
+            }
+            if (essai >= tentatives) {
+                throw new RequeteException("Envoi du fichier impossible après " + essai + " essais : " + erreur);
+            }
+            reprises.increment();
+            reprise = true;
+            try {
+                Thread.sleep(backoffMs << (essai - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RequeteException("Envoi du fichier interrompu");
+            }
+        }
+    }
+
+    /**
+     * @return le corps d'une requête avec le contenu du tampon, sans copie ; le tampon n'est pas modifié.
+     * Le client peut s'abonner plusieurs fois (nouvel essai de la requête) : le contenu est donné à chaque fois.
+     */
+    private static HttpRequest.BodyPublisher corps(ByteBuffer tampon) {
+        if (!tampon.hasRemaining()) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        Flow.Publisher<ByteBuffer> contenu = abonne -> abonne.onSubscribe(new Flow.Subscription() {
+            private boolean termine;
+
+            @Override
+            public void request(long n) {
+                if (!termine && n > 0) {
+                    termine = true;
+                    abonne.onNext(tampon.duplicate());
+                    abonne.onComplete();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                termine = true;
+            }
+        });
+        return HttpRequest.BodyPublishers.fromPublisher(contenu, tampon.remaining());
+    }
+
+    /**
+     * @return le nombre d'octets du fichier reçus par l'API.
+     * @throws IOException si la connexion échoue ou si l'API répond par une erreur 5xx : un nouvel essai est possible.
+     */
+    private long octetsRecus(Session session) throws IOException, InterruptedException, RequeteException {
+        HttpResponse<String> reponse = client.send(requeteSession(session, "query")
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        if (reponse.statusCode() >= 500) {
+            throw new IOException("statut " + reponse.statusCode() + " " + reponse.body());
+        }
+        verifier(reponse, "État de l'envoi du fichier inconnu");
+        String recus = reponse.headers().firstValue("X-Goog-Upload-Size-Received")
+                .orElseThrow(() -> new RequeteException("Réponse de l'API sans X-Goog-Upload-Size-Received"));
+        try {
+            return Long.parseLong(recus);
+        } catch (NumberFormatException e) {
+            throw new RequeteException("X-Goog-Upload-Size-Received invalide : " + recus);
+        }
+    }
+
+    /**
+     * Abandonne la session d'envoi ; une erreur est ignorée (la session expire de toute façon).
+     */
+    private void annuler(Session session) {
+        try {
+            client.send(requeteSession(session, "cancel").POST(HttpRequest.BodyPublishers.noBody()).build(),
+                    HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            // Ignorée
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private HttpRequest.Builder requeteSession(Session session, String commande) {
+        return HttpRequest.newBuilder(session.url())
+                .timeout(delaiRequete)
+                .header("X-Goog-Upload-Protocol", "resumable")
+                .header("X-Goog-Upload-Command", commande);
+    }
+
+    /**
+     * Attend que l'API ait fini de traiter le fichier (état PROCESSING, pour les vidéos par exemple) :
+     * un fichier qui n'est pas ACTIVE est refusé dans les requêtes.
+     *
+     * @param fichier description du fichier dans la réponse au dernier morceau.
+     */
+    private FichierJoint attendreTraitement(JsonObject fichier, String nom, String mimeType)
+            throws RequeteException {
+        long limite = System.currentTimeMillis() + traitementMaxMs;
+        while ("PROCESSING".equals(fichier.getString("state", "ACTIVE"))) {
+            if (System.currentTimeMillis() >= limite) {
+                throw new RequeteException("Le fichier est encore en cours de traitement par l'API");
+            }
+            try {
+                Thread.sleep(1_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RequeteException("Attente du traitement du fichier interrompue");
+            }
+            URI url = URI.create(urlBase + "/" + fichier.getString("name") + (key == null ? "" : "?key=" + key));
+            HttpResponse<String> reponse = executer(HttpRequest.newBuilder(url).timeout(delaiRequete).GET().build());
+            verifier(reponse, "État du fichier inconnu");
+            fichier = lireJson(reponse.body());
+        }
+        if ("FAILED".equals(fichier.getString("state", "ACTIVE"))) {
+            throw new RequeteException("Le fichier n'a pas pu être traité par l'API");
+        }
+        return new FichierJoint(nom, fichier.getString("mimeType", mimeType), fichier.getString("uri"));
+    }
+
+    private HttpResponse<String> executer(HttpRequest requete) throws RequeteException {
+        try {
+            return client.send(requete, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            throw new RequeteException("Problème de connexion avec l'API du LLM : " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequeteException("Envoi du fichier interrompu");
+        }
+    }
+
+    private static void verifier(HttpResponse<String> reponse, String message) throws RequeteException {
+        if (reponse.statusCode() / 100 != 2) {
+            throw new RequeteException(message + " : statut " + reponse.statusCode() + " " + reponse.body());
+        }
+    }
+
+    /**
+     * @param corps réponse au dernier morceau : {"file": {"name": "files/...", "uri": "...", "state": "..."}}.
+     */
+    private static JsonObject lireFichier(String corps) throws RequeteException {
+        JsonObject reponse = lireJson(corps);
+        JsonObject fichier = reponse.getJsonObject("file");
+        if (fichier == null || !fichier.containsKey("uri")) {
+            throw new RequeteException("Réponse de l'API sans description du fichier : " + corps);
+        }
+        return fichier;
+    }
+
+    private static JsonObject lireJson(String corps) throws RequeteException {
+        try (JsonReader reader = Json.createReader(new StringReader(corps))) {
+            return reader.readObject();
+        } catch (JsonException e) {
+            throw new RequeteException("Réponse JSON de l'API invalide : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_fichiers_envois_total Fichiers envoyés à l'API (File API).");
+        out.println("# TYPE llm_fichiers_envois_total counter");
+        out.printf("llm_fichiers_envois_total{resultat=\"ok\"} %d%n", reussis.sum());
+        out.printf("llm_fichiers_envois_total{resultat=\"erreur\"} %d%n", echecs.sum());
+        out.printf("llm_fichiers_envois_total{resultat=\"refuse\"} %d%n", refuses.sum());
+        out.println("# HELP llm_fichiers_octets_total Octets des fichiers envoyés à l'API (envois terminés).");
+        out.println("# TYPE llm_fichiers_octets_total counter");
+        out.printf("llm_fichiers_octets_total %d%n", octets.sum());
+        out.println("# HELP llm_fichiers_morceaux_total Morceaux envoyés à l'API.");
+        out.println("# TYPE llm_fichiers_morceaux_total counter");
+        out.printf("llm_fichiers_morceaux_total %d%n", morceaux.sum());
+        out.println("# HELP llm_fichiers_reprises_total Envois de morceaux repris après une erreur.");
+        out.println("# TYPE llm_fichiers_reprises_total counter");
+        out.printf("llm_fichiers_reprises_total %d%n", reprises.sum());
+        out.println("# HELP llm_fichiers_en_cours Envois de fichiers en cours.");
+        out.println("# TYPE llm_fichiers_en_cours gauge");
+        out.printf("llm_fichiers_en_cours %d%n", enCours.get());
+        out.println("# HELP llm_fichiers_tampons_octets Mémoire hors du tas allouée pour les tampons des envois.");
+        out.println("# TYPE llm_fichiers_tampons_octets gauge");
+        out.printf("llm_fichiers_tampons_octets %d%n", (long) tamponsAlloues.get() * tailleMorceau);
+        out.println("# HELP llm_fichiers_envoi_secondes Durée de l'envoi d'un fichier.");
+        out.println("# TYPE llm_fichiers_envoi_secondes histogram");
+        duree.ecrire(out, "llm_fichiers_envoi_secondes", "");
+    }
+}
@@ -0,0 +1,106 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Regroupe les requêtes identiques envoyées en même temps ("single flight") : par exemple quand toute une classe
+ * choisit le même rôle prédéfini et pose la même première question au même moment.
+ * La première requête est envoyée à l'API ; les requêtes identiques qui arrivent avant sa réponse l'attendent
+ * et reçoivent la même réponse, que chaque conversation ajoute à son propre historique.
+ * La clé est celle du cache des réponses (CacheReponses.cle) : même modèle et même document JSON.
+ * Si la première requête échoue, chaque requête en attente est envoyée normalement à l'API.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.coalescence.actif (true par défaut)
+ * et gemini.coalescence.attente (durée maximale d'attente de la première requête, en ms).
+ */
+@ApplicationScoped
+public class CoalescenceRequetes implements SourceMetriques {
+
+    private boolean actif;
+    private long attenteMaxMs;
+
+    private final Map<String, CompletableFuture<ReponseGemini>> enCours = new ConcurrentHashMap<>();
+
+    private final LongAdder appels = new LongAdder();
+    private final LongAdder regroupees = new LongAdder();
+    private final LongAdder replis = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        this.actif = ConfigurationLlm.lireBoolean("gemini.coalescence.actif", true);
+        this.attenteMaxMs = ConfigurationLlm.lireLong("gemini.coalescence.attente", 120_000);
+    }
+
+    public boolean isActif() {
+        return actif;
+    }
+
+    /**
+     * @return durée maximale d'attente de la réponse de la première requête, en millisecondes.
+     */
+    public long getAttenteMaxMs() {
+        return attenteMaxMs;
+    }
+
+    /**
+     * @param cle clé de la requête (CacheReponses.cle).
+     * @return la réponse à venir de la requête identique déjà en cours ; ou null si aucune n'est en cours :
+     * l'appelant envoie alors la requête et doit appeler terminer quand elle est finie, même en cas d'erreur.
+     */
+    public CompletableFuture<ReponseGemini> rejoindre(String cle) {
+        CompletableFuture<ReponseGemini> premiere = enCours.putIfAbsent(cle, new CompletableFuture<>());
+        if (premiere == null) {
+            appels.increment();
+        } else {
+            regroupees.increment();
+        }
+        return premiere;
+    }
+
+    /**
+     * Donne le résultat de la requête aux requêtes qui l'attendent.
+     *
+     * @param reponse la réponse, null en cas d'échec.
+     */
+    public void terminer(String cle, ReponseGemini reponse) {
+        CompletableFuture<ReponseGemini> resultat = enCours.remove(cle);
+        if (resultat == null) {
+            return;
+        }
+        if (reponse != null) {
+            resultat.complete(reponse);
+        } else {
+            resultat.completeExceptionally(new RequeteException("La requête identique en cours a échoué"));
+        }
+    }
+
+    /**
+     * Une requête en attente a dû être envoyée elle-même à l'API (échec ou attente trop longue de la première).
+     */
+    public void enregistrerRepli() {
+        replis.increment();
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_coalescence_total Requêtes, selon qu'elles ont été envoyées à l'API"
+                + " ou qu'elles ont attendu une requête identique en cours.");
+        out.println("# TYPE llm_coalescence_total counter");
+        out.printf("llm_coalescence_total{resultat=\"appel\"} %d%n", appels.sum());
+        out.printf("llm_coalescence_total{resultat=\"regroupee\"} %d%n", regroupees.sum());
+        out.println("# HELP llm_coalescence_replis_total Requêtes regroupées finalement envoyées à l'API"
+                + " (échec ou attente trop longue de la requête identique).");
+        out.println("# TYPE llm_coalescence_replis_total counter");
+        out.printf("llm_coalescence_replis_total %d%n", replis.sum());
+        out.println("# HELP llm_coalescence_en_cours Requêtes en cours qui peuvent être rejointes.");
+        out.println("# TYPE llm_coalescence_en_cours gauge");
+        out.printf("llm_coalescence_en_cours %d%n", enCours.size());
+    }
+}
@@ -0,0 +1,70 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Flux qui comptent les octets écrits ou lus, pour les métriques.
+ */
+final class CompteurOctets {
+
+    private CompteurOctets() {
+    }
+
+    static final class Sortie extends FilterOutputStream {
+        private long octets;
+
+        Sortie(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            octets++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            octets += len;
+        }
+
+        long getOctets() {
+            return octets;
+        }
+    }
+
+    static final class Entree extends FilterInputStream {
+        private long octets;
+
+        Entree(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                octets++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                octets += n;
+            }
+            return n;
+        }
+
+        long getOctets() {
+            return octets;
+        }
+    }
+}
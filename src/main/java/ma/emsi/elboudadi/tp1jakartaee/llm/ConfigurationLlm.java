@@ -0,0 +1,67 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Lecture des paramètres de configuration du client du LLM.
+ * Un paramètre "gemini.read.timeout" est cherché d'abord dans les propriétés système (-Dgemini.read.timeout=...),
+ * puis dans la variable d'environnement correspondante (GEMINI_READ_TIMEOUT).
+ * Si aucune des deux n'est définie, la valeur par défaut est utilisée.
+ */
+public final class ConfigurationLlm {
+
+    private ConfigurationLlm() {
+    }
+
+    /**
+     * @param nom nom de la propriété, par exemple "gemini.read.timeout".
+     * @param defaut valeur retournée si la propriété n'est pas définie.
+     * @return la valeur de la propriété.
+     */
+    public static String lire(String nom, String defaut) {
+        String valeur = System.getProperty(nom);
+        if (valeur == null || valeur.isBlank()) {
+            valeur = System.getenv(nom.toUpperCase().replace('.', '_'));
+        }
+        return valeur == null || valeur.isBlank() ? defaut : valeur.trim();
+    }
+
+    public static int lireInt(String nom, int defaut) {
+        String valeur = lire(nom, null);
+        if (valeur == null) {
+            return defaut;
+        }
+        try {
+            return Integer.parseInt(valeur);
+        } catch (NumberFormatException e) {
+            return defaut;
+        }
+    }
+
+    public static long lireLong(String nom, long defaut) {
+        String valeur = lire(nom, null);
+        if (valeur == null) {
+            return defaut;
+        }
+        try {
+            return Long.parseLong(valeur);
+        } catch (NumberFormatException e) {
+            return defaut;
+        }
+    }
+
+    public static double lireDouble(String nom, double defaut) {
+        String valeur = lire(nom, null);
+        if (valeur == null) {
+            return defaut;
+        }
+        try {
+            return Double.parseDouble(valeur);
+        } catch (NumberFormatException e) {
+            return defaut;
+        }
+    }
+
+    public static boolean lireBoolean(String nom, boolean defaut) {
+        String valeur = lire(nom, null);
+        return valeur == null ? defaut : Boolean.parseBoolean(valeur);
+    }
+}
@@ -0,0 +1,591 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonGeneratorFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Historique d'une conversation avec l'API de Gemini : le rôle système et la liste des messages.
+ * La liste ne fait que grandir (ajout à la fin) ; le document JSON de la requête est écrit directement
+ * dans le flux de sortie avec un JsonGenerator, sans construire d'arbre JSON intermédiaire.
+ * Les messages les plus anciens, qui ne sont plus envoyés et qui ont été enregistrés dans la base de données,
+ * peuvent être retirés de la mémoire (voir oublier) ; les indices des messages ne changent pas.
+ *
+ * La conversation fait partie de l'état de la vue JSF (sérialisé à la passivation de la session ou pour sa
+ * réplication). Elle est sérialisée sous une forme compacte (voir FormeCompacte) : les messages en binaire,
+ * compressés s'ils sont assez longs. Paramètres (voir ConfigurationLlm) : gemini.vue.compacte (true par défaut ;
+ * false pour la sérialisation standard de Java) et gemini.vue.compression (taille minimum en octets des messages
+ * pour qu'ils soient compressés, 1024 par défaut ; 0 pour ne jamais compresser).
+ * Pour une conversation créée avec un rôle prédéfini (RolePredefini), le fragment "system_instruction"
+ * déjà écrit du rôle est copié tel quel dans le corps des requêtes.
+ * Format du document JSON écrit :
+ * {
+ *    "system_instruction": {
+ *      "parts": [ {"text": "helpful assistant"} ]
+ *    },
+ *    "contents": [
+ *        { "role": "user", "parts": [ { "text": "Capitale de la France ?" } ] },
+ *        { "role": "model", "parts": [ { "text": "Paris est la capitale de la France." } ] },
+ *        ...
+ *    ]
+ * }
+ */
+public class Conversation implements Serializable {
+
+    private static final JsonGeneratorFactory GENERATEUR_COMPACT = Json.createGeneratorFactory(Map.of());
+    private static final JsonGeneratorFactory GENERATEUR_INDENTE =
+            Json.createGeneratorFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true));
+    private static final byte[] CLE_CONTENTS = "\"contents\":".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Identifiant de la conversation dans la base de données.
+     */
+    private final String id;
+    private final String systemInstruction;
+    /**
+     * Fragment JSON du rôle système (voir RolePredefini), partagé par toutes les conversations du rôle ;
+     * null pour un rôle écrit par l'utilisateur. Pas sérialisé : après la désérialisation, le rôle est
+     * écrit par le JsonGenerator, comme un rôle écrit par l'utilisateur.
+     */
+    private transient ByteBuffer fragmentSystemInstruction;
+    /**
+     * Messages en mémoire ; tours.get(0) est le message d'indice decalage.
+     */
+    private final List<Tour> tours = new ArrayList<>();
+    /**
+     * Nombre de messages retirés de la mémoire.
+     */
+    private int decalage;
+    /**
+     * Indice du premier message envoyé dans les requêtes ; les messages plus anciens
+     * restent dans l'historique mais ne sont plus envoyés (voir GestionnaireContexte).
+     */
+    private int debut;
+    /**
+     * Fichiers joints aux messages qui ne sont plus envoyés (d'indice inférieur à debut) : ils sont joints
+     * au premier message envoyé, pour que le modèle les ait toujours.
+     */
+    private final List<FichierJoint> fichiersRetires = new ArrayList<>();
+
+    /**
+     * @param systemInstruction le rôle du système. Par exemple, "helpful assistant".
+     */
+    public Conversation(String systemInstruction) {
+        this(UUID.randomUUID().toString(), systemInstruction);
+    }
+
+    /**
+     * @param role rôle prédéfini, dont le fragment JSON déjà écrit sera copié dans les requêtes.
+     */
+    public Conversation(RolePredefini role) {
+        this(role.texte());
+        this.fragmentSystemInstruction = role.fragment();
+    }
+
+    private Conversation(String id, String systemInstruction) {
+        this.id = id;
+        this.systemInstruction = systemInstruction;
+    }
+
+    /**
+     * Écrit le fragment JSON d'un rôle système : "system_instruction":{"parts":[{"text":"..."}]},
+     * exactement comme l'écrit le JsonGenerator dans le document complet, virgule suivante comprise.
+     */
+    static byte[] fragmentSystemInstruction(String systemInstruction) {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (JsonGenerator generateur = GENERATEUR_COMPACT.createGenerator(octets, StandardCharsets.UTF_8)) {
+            generateur.writeStartObject();
+            ecrireSystemInstruction(generateur, systemInstruction);
+            generateur.writeEnd();
+        }
+        byte[] objet = octets.toByteArray();
+        // Sans les accolades de l'objet, avec la virgule qui sépare de "contents".
+        byte[] fragment = new byte[objet.length - 1];
+        System.arraycopy(objet, 1, fragment, 0, objet.length - 2);
+        fragment[fragment.length - 1] = ',';
+        return fragment;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSystemInstruction() {
+        return systemInstruction;
+    }
+
+    public void ajouter(Tour tour) {
+        tours.add(tour);
+    }
+
+    /**
+     * @return le nombre de messages de la conversation, y compris ceux qui ne sont plus en mémoire.
+     */
+    public int taille() {
+        return decalage + tours.size();
+    }
+
+    /**
+     * @param indice indice du message, entre getDecalage() et taille() - 1.
+     */
+    public Tour getTour(int indice) {
+        return tours.get(indice - decalage);
+    }
+
+    /**
+     * @return les messages en mémoire, à partir de celui d'indice getDecalage().
+     */
+    public List<Tour> getTours() {
+        return Collections.unmodifiableList(tours);
+    }
+
+    /**
+     * @return l'indice du premier message en mémoire.
+     */
+    public int getDecalage() {
+        return decalage;
+    }
+
+    /**
+     * Retire de la mémoire les messages d'indice inférieur à indice.
+     * Seuls des messages qui ne sont plus envoyés peuvent être retirés.
+     */
+    public void oublier(int indice) {
+        if (indice > debut) {
+            throw new IllegalArgumentException("Le message " + indice + " est encore envoyé dans les requêtes");
+        }
+        if (indice > decalage) {
+            tours.subList(0, indice - decalage).clear();
+            decalage = indice;
+        }
+    }
+
+    public int getDebut() {
+        return debut;
+    }
+
+    /**
+     * Les messages d'indice inférieur à debut ne seront plus envoyés dans les requêtes ;
+     * leurs fichiers joints le sont encore, avec le premier message envoyé.
+     */
+    public void setDebut(int debut) {
+        if (debut < this.debut || debut > taille()) {
+            throw new IllegalArgumentException("Début invalide : " + debut);
+        }
+        for (int i = this.debut; i < debut; i++) {
+            fichiersRetires.addAll(getTour(i).fichiers());
+        }
+        this.debut = debut;
+    }
+
+    /**
+     * @return true si la requête qui contient les messages à partir de getDebut() contient aussi des fichiers.
+     */
+    public boolean avecFichiers() {
+        if (!fichiersRetires.isEmpty()) {
+            return true;
+        }
+        for (int i = debut; i < taille(); i++) {
+            if (!getTour(i).fichiers().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Écrit le document JSON de la requête en UTF-8.
+     *
+     * @param out flux de sortie (le corps de la requête HTTP).
+     * @param nbTours les messages d'indice inférieur à nbTours sont écrits, à partir de getDebut().
+     */
+    public void ecrire(OutputStream out, int nbTours) {
+        ecrire(out, nbTours, null);
+    }
+
+    /**
+     * Écrit le document JSON de la requête en UTF-8.
+     *
+     * @param out flux de sortie (le corps de la requête HTTP).
+     * @param nbTours les messages d'indice inférieur à nbTours sont écrits, à partir de getDebut().
+     * @param contenuEnCache nom du contenu en cache de l'API qui contient le rôle système
+     *                       ("cachedContent" remplace alors "system_instruction") ; null pour écrire le rôle.
+     */
+    public void ecrire(OutputStream out, int nbTours, String contenuEnCache) {
+        if (contenuEnCache == null && fragmentSystemInstruction != null) {
+            ecrireAvecFragment(out, nbTours);
+            return;
+        }
+        try (JsonGenerator generateur = GENERATEUR_COMPACT.createGenerator(out, StandardCharsets.UTF_8)) {
+            ecrire(generateur, nbTours, contenuEnCache);
+        }
+    }
+
+    /**
+     * Copie le fragment du rôle système, puis écrit seulement le tableau "contents" avec le JsonGenerator.
+     * Le document écrit est identique (octet pour octet) à celui de ecrire(JsonGenerator, ...).
+     */
+    private void ecrireAvecFragment(OutputStream out, int nbTours) {
+        // Le JsonGenerator ferme son flux : le flux de la requête ne doit pas l'être.
+        OutputStream nonFerme = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        try {
+            out.write('{');
+            // duplicate : la position du fragment partagé ne change pas.
+            Channels.newChannel(out).write(fragmentSystemInstruction.duplicate());
+            out.write(CLE_CONTENTS);
+            try (JsonGenerator generateur = GENERATEUR_COMPACT.createGenerator(nonFerme, StandardCharsets.UTF_8)) {
+                generateur.writeStartArray();
+                ecrireContents(generateur, nbTours);
+                generateur.writeEnd();
+            }
+            out.write('}');
+            out.flush();
+        } catch (IOException e) {
+            throw new JsonException("Écriture de la requête impossible", e);
+        }
+    }
+
+    /**
+     * Écrit le document JSON de la requête.
+     *
+     * @param out destination.
+     * @param nbTours les messages d'indice inférieur à nbTours sont écrits, à partir de getDebut().
+     * @param indente true pour un document mis en forme (passage à la ligne et indentation).
+     */
+    public void ecrire(Writer out, int nbTours, boolean indente) {
+        JsonGeneratorFactory factory = indente ? GENERATEUR_INDENTE : GENERATEUR_COMPACT;
+        try (JsonGenerator generateur = factory.createGenerator(out)) {
+            ecrire(generateur, nbTours, null);
+        }
+    }
+
+    /**
+     * @param indente true pour un document mis en forme.
+     * @return le document JSON de la requête avec tous les messages envoyés.
+     */
+    public String enTexte(boolean indente) {
+        StringWriter writer = new StringWriter();
+        ecrire(writer, taille(), indente);
+        return writer.toString();
+    }
+
+    private void ecrire(JsonGenerator generateur, int nbTours, String contenuEnCache) {
+        generateur.writeStartObject();
+        if (contenuEnCache != null) {
+            generateur.write("cachedContent", contenuEnCache);
+        } else {
+            ecrireSystemInstruction(generateur, systemInstruction);
+        }
+        generateur.writeStartArray("contents");
+        ecrireContents(generateur, nbTours);
+        generateur.writeEnd();
+        generateur.writeEnd();
+    }
+
+    private static void ecrireSystemInstruction(JsonGenerator generateur, String systemInstruction) {
+        generateur.writeStartObject("system_instruction");
+        generateur.writeStartArray("parts");
+        generateur.writeStartObject().write("text", systemInstruction).writeEnd();
+        generateur.writeEnd();
+        generateur.writeEnd();
+    }
+
+    private void ecrireContents(JsonGenerator generateur, int nbTours) {
+        for (int i = debut; i < nbTours; i++) {
+            ecrire(generateur, getTour(i), i == debut ? fichiersRetires : List.of());
+        }
+    }
+
+    /**
+     * Écrit un message comme élément d'un tableau JSON ; les fichiers joints sont écrits avant le texte.
+     */
+    static void ecrire(JsonGenerator generateur, Tour tour) {
+        ecrire(generateur, tour, List.of());
+    }
+
+    /**
+     * @param fichiersRetires fichiers des messages qui ne sont plus envoyés, écrits avant ceux du message.
+     */
+    private static void ecrire(JsonGenerator generateur, Tour tour, List<FichierJoint> fichiersRetires) {
+        generateur.writeStartObject();
+        generateur.write("role", tour.role());
+        generateur.writeStartArray("parts");
+        for (FichierJoint fichier : fichiersRetires) {
+            ecrire(generateur, fichier);
+        }
+        for (FichierJoint fichier : tour.fichiers()) {
+            ecrire(generateur, fichier);
+        }
+        for (String texte : tour.textes()) {
+            generateur.writeStartObject().write("text", texte).writeEnd();
+        }
+        generateur.writeEnd();
+        generateur.writeEnd();
+    }
+
+    private static void ecrire(JsonGenerator generateur, FichierJoint fichier) {
+        generateur.writeStartObject().writeStartObject("file_data")
+                .write("mime_type", fichier.mimeType())
+                .write("file_uri", fichier.uri())
+                .writeEnd().writeEnd();
+    }
+
+    /**
+     * Remplace la conversation par sa forme compacte pendant la sérialisation.
+     */
+    @Serial
+    private Object writeReplace() {
+        return ConfigurationLlm.lireBoolean("gemini.vue.compacte", true) ? new FormeCompacte(this) : this;
+    }
+
+    /**
+     * Forme sérialisée compacte d'une conversation :
+     * - identifiant, rôle système (par référence : il est aussi dans le backing bean, il n'est écrit qu'une fois
+     *   dans le flux), indices debut et decalage, fichiers des messages qui ne sont plus envoyés ;
+     * - messages en mémoire en binaire : rôle sur un octet, texte en UTF-8 précédé de sa longueur ;
+     *   les fichiers joints (nom, type, URI) à la suite, seulement s'il y en a (bit AVEC_FICHIERS de l'octet du rôle) ;
+     *   compressés avec Deflater si leur taille dépasse le seuil.
+     * Rien de ce qui peut être recalculé (documents JSON, texte affiché) n'est sérialisé.
+     */
+    static final class FormeCompacte implements Externalizable {
+
+        @Serial
+        private static final long serialVersionUID = 2L;
+
+        private static final byte ROLE_USER = 0;
+        private static final byte ROLE_MODEL = 1;
+        private static final byte ROLE_AUTRE = 2;
+        private static final byte AVEC_FICHIERS = 0x10;
+        /**
+         * Taille maximum des messages encodés, vérifiée avant d'allouer le tableau à la lecture :
+         * un flux corrompu ne doit pas faire allouer des gigaoctets.
+         */
+        static final int TAILLE_MAX = 64 * 1024 * 1024;
+
+        private Conversation conversation;
+
+        /**
+         * Obligatoire pour Externalizable.
+         */
+        public FormeCompacte() {
+        }
+
+        FormeCompacte(Conversation conversation) {
+            this.conversation = conversation;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(conversation.id);
+            out.writeObject(conversation.systemInstruction);
+            out.writeInt(conversation.decalage);
+            out.writeInt(conversation.debut);
+            out.writeInt(conversation.fichiersRetires.size());
+            for (FichierJoint fichier : conversation.fichiersRetires) {
+                out.writeUTF(fichier.nom());
+                out.writeUTF(fichier.mimeType());
+                out.writeUTF(fichier.uri());
+            }
+            byte[] tours = encoder(conversation.tours);
+            int seuil = ConfigurationLlm.lireInt("gemini.vue.compression", 1024);
+            boolean compresse = seuil > 0 && tours.length >= seuil;
+            out.writeBoolean(compresse);
+            out.writeInt(tours.length);
+            if (compresse) {
+                tours = compresser(tours);
+                out.writeInt(tours.length);
+            }
+            out.write(tours);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            String id = in.readUTF();
+            String systemInstruction = (String) in.readObject();
+            int decalage = in.readInt();
+            int debut = in.readInt();
+            int nbFichiersRetires = lireTaille(in.readInt(), TAILLE_MAX);
+            List<FichierJoint> fichiersRetires = new ArrayList<>();
+            for (int i = 0; i < nbFichiersRetires; i++) {
+                fichiersRetires.add(new FichierJoint(in.readUTF(), in.readUTF(), in.readUTF()));
+            }
+            boolean compresse = in.readBoolean();
+            byte[] tours = new byte[lireTaille(in.readInt(), TAILLE_MAX)];
+            if (compresse) {
+                byte[] compresses = new byte[lireTaille(in.readInt(), TAILLE_MAX)];
+                in.readFully(compresses);
+                decompresser(compresses, tours);
+            } else {
+                in.readFully(tours);
+            }
+            this.conversation = new Conversation(id, systemInstruction);
+            conversation.decalage = decalage;
+            conversation.debut = debut;
+            conversation.fichiersRetires.addAll(fichiersRetires);
+            decoder(tours, conversation.tours);
+        }
+
+        /**
+         * @return la taille lue, si elle est entre 0 et max.
+         * @throws StreamCorruptedException sinon.
+         */
+        private static int lireTaille(int taille, int max) throws StreamCorruptedException {
+            if (taille < 0 || taille > max) {
+                throw new StreamCorruptedException("Taille invalide dans la conversation sérialisée : " + taille);
+            }
+            return taille;
+        }
+
+        @Serial
+        private Object readResolve() {
+            return conversation;
+        }
+
+        private static byte[] encoder(List<Tour> tours) throws IOException {
+            ByteArrayOutputStream octets = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(octets);
+            out.writeInt(tours.size());
+            for (Tour tour : tours) {
+                int fichiers = tour.fichiers().isEmpty() ? 0 : AVEC_FICHIERS;
+                if (Tour.USER.equals(tour.role())) {
+                    out.writeByte(ROLE_USER | fichiers);
+                } else if (Tour.MODEL.equals(tour.role())) {
+                    out.writeByte(ROLE_MODEL | fichiers);
+                } else {
+                    out.writeByte(ROLE_AUTRE | fichiers);
+                    ecrireTexte(out, tour.role());
+                }
+                out.writeInt(tour.textes().size());
+                for (String texte : tour.textes()) {
+                    ecrireTexte(out, texte);
+                }
+                if (fichiers != 0) {
+                    out.writeInt(tour.fichiers().size());
+                    for (FichierJoint fichier : tour.fichiers()) {
+                        ecrireTexte(out, fichier.nom());
+                        ecrireTexte(out, fichier.mimeType());
+                        ecrireTexte(out, fichier.uri());
+                    }
+                }
+            }
+            return octets.toByteArray();
+        }
+
+        private static void decoder(byte[] octets, List<Tour> tours) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(octets));
+            // Chaque élément occupe au moins un octet : un nombre plus grand que ce qui reste est invalide.
+            int nbTours = lireTaille(in.readInt(), in.available());
+            for (int i = 0; i < nbTours; i++) {
+                byte octet = in.readByte();
+                byte role = (byte) (octet & ~AVEC_FICHIERS);
+                String nomRole = role == ROLE_USER ? Tour.USER : role == ROLE_MODEL ? Tour.MODEL : lireTexte(in);
+                int nbTextes = lireTaille(in.readInt(), in.available());
+                List<String> textes = new ArrayList<>(nbTextes);
+                for (int j = 0; j < nbTextes; j++) {
+                    textes.add(lireTexte(in));
+                }
+                List<FichierJoint> fichiers = new ArrayList<>();
+                if ((octet & AVEC_FICHIERS) != 0) {
+                    int nbFichiers = lireTaille(in.readInt(), in.available());
+                    for (int j = 0; j < nbFichiers; j++) {
+                        fichiers.add(new FichierJoint(lireTexte(in), lireTexte(in), lireTexte(in)));
+                    }
+                }
+                tours.add(new Tour(nomRole, textes, fichiers));
+            }
+        }
+
+        /**
+         * Pas DataOutput.writeUTF, limité à 65535 octets.
+         */
+        private static void ecrireTexte(DataOutputStream out, String texte) throws IOException {
+            byte[] utf8 = texte.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+
+        private static String lireTexte(DataInputStream in) throws IOException {
+            byte[] utf8 = new byte[lireTaille(in.readInt(), in.available())];
+            in.readFully(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        private static byte[] compresser(byte[] octets) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(octets);
+                deflater.finish();
+                ByteArrayOutputStream resultat = new ByteArrayOutputStream(octets.length / 2);
+                byte[] tampon = new byte[8192];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(tampon);
+                    resultat.write(tampon, 0, n);
+                }
+                return resultat.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static void decompresser(byte[] compresses, byte[] resultat) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compresses);
+                int n = 0;
+                while (n < resultat.length && !inflater.finished()) {
+                    int lus = inflater.inflate(resultat, n, resultat.length - n);
+                    if (lus == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        // Données tronquées : inflate ne progressera plus.
+                        break;
+                    }
+                    n += lus;
+                }
+                if (n != resultat.length) {
+                    throw new StreamCorruptedException("Conversation compressée incomplète");
+                }
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("Conversation compressée invalide : " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
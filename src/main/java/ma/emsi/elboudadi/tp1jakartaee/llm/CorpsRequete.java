@@ -0,0 +1,82 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.OutputStream;
+
+/**
+ * Corps d'une requête à l'API : le document JSON est écrit directement dans le flux de la requête HTTP
+ * au moment de l'envoi.
+ * Le corps contient les messages présents au moment de sa création, même s'il est écrit plus tard
+ * (par exemple après l'ajout de la réponse, dans le cas d'un envoi asynchrone).
+ * La durée et la taille de l'écriture sont enregistrées dans les métriques.
+ */
+public class CorpsRequete implements StreamingOutput {
+
+    private final Conversation conversation;
+    private final int nbTours;
+    private final MetriquesLlm metriques;
+    private final String contenuEnCache;
+    private volatile long nanosSerialisation;
+
+    /**
+     * @param conversation la conversation.
+     * @param nbTours les messages d'indice inférieur à nbTours sont envoyés.
+     * @param metriques où enregistrer la durée et la taille de l'écriture ; peut être null.
+     */
+    public CorpsRequete(Conversation conversation, int nbTours, MetriquesLlm metriques) {
+        this(conversation, nbTours, metriques, null);
+    }
+
+    /**
+     * @param contenuEnCache nom du contenu en cache qui remplace le rôle système (voir CacheContexte) ;
+     *                       null pour envoyer le rôle dans la requête.
+     */
+    public CorpsRequete(Conversation conversation, int nbTours, MetriquesLlm metriques, String contenuEnCache) {
+        this.conversation = conversation;
+        this.nbTours = nbTours;
+        this.metriques = metriques;
+        this.contenuEnCache = contenuEnCache;
+    }
+
+    /**
+     * @return le même corps, avec le rôle système dans la requête au lieu du contenu en cache.
+     */
+    public CorpsRequete sansContenuEnCache() {
+        return new CorpsRequete(conversation, nbTours, metriques, null);
+    }
+
+    @Override
+    public void write(OutputStream output) {
+        long debut = System.nanoTime();
+        CompteurOctets.Sortie compteur = new CompteurOctets.Sortie(output);
+        conversation.ecrire(compteur, nbTours, contenuEnCache);
+        long nanos = System.nanoTime() - debut;
+        this.nanosSerialisation = nanos;
+        if (metriques != null) {
+            metriques.enregistrerSerialisation(nanos, compteur.getOctets());
+        }
+    }
+
+    /**
+     * @return la durée de la dernière écriture du corps, 0 s'il n'a pas encore été écrit.
+     */
+    public long getNanosSerialisation() {
+        return nanosSerialisation;
+    }
+
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    public int getNbTours() {
+        return nbTours;
+    }
+
+    /**
+     * @return le nom du contenu en cache utilisé à la place du rôle système, null s'il n'y en a pas.
+     */
+    public String getContenuEnCache() {
+        return contenuEnCache;
+    }
+}
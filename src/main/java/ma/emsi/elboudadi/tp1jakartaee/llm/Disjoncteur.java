@@ -0,0 +1,70 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Disjoncteur : après un certain nombre d'échecs consécutifs de l'API (5xx, erreurs réseau), les appels
+ * échouent immédiatement pendant une durée fixe au lieu d'attendre une API qui ne répond pas.
+ * Ensuite un seul appel d'essai est autorisé : s'il réussit, le disjoncteur se referme, sinon il se rouvre.
+ */
+public class Disjoncteur {
+
+    public enum Etat { FERME, OUVERT, DEMI_OUVERT }
+
+    private final int seuil;
+    private final long dureeOuvertureMs;
+
+    private Etat etat = Etat.FERME;
+    private int echecsConsecutifs;
+    private long ouvertJusqua;
+    private boolean essaiEnCours;
+
+    public Disjoncteur(int seuil, long dureeOuvertureMs) {
+        this.seuil = Math.max(1, seuil);
+        this.dureeOuvertureMs = dureeOuvertureMs;
+    }
+
+    /**
+     * @return true si l'appel peut être fait ; false si le disjoncteur est ouvert.
+     */
+    public synchronized boolean autoriser() {
+        if (etat == Etat.OUVERT) {
+            if (System.currentTimeMillis() < ouvertJusqua) {
+                return false;
+            }
+            etat = Etat.DEMI_OUVERT;
+            essaiEnCours = false;
+        }
+        if (etat == Etat.DEMI_OUVERT) {
+            if (essaiEnCours) {
+                return false;
+            }
+            essaiEnCours = true;
+        }
+        return true;
+    }
+
+    public synchronized void succes() {
+        echecsConsecutifs = 0;
+        etat = Etat.FERME;
+        essaiEnCours = false;
+    }
+
+    public synchronized void echec() {
+        echecsConsecutifs++;
+        if (etat == Etat.DEMI_OUVERT || echecsConsecutifs >= seuil) {
+            etat = Etat.OUVERT;
+            ouvertJusqua = System.currentTimeMillis() + dureeOuvertureMs;
+            essaiEnCours = false;
+        }
+    }
+
+    public synchronized Etat getEtat() {
+        return etat;
+    }
+
+    /**
+     * @return le nombre de millisecondes avant le prochain essai, 0 si le disjoncteur n'est pas ouvert.
+     */
+    public synchronized long getAttenteMs() {
+        return etat == Etat.OUVERT ? Math.max(0, ouvertJusqua - System.currentTimeMillis()) : 0;
+    }
+}
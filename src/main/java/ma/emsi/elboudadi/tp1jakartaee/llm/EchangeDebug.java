@@ -0,0 +1,87 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonWriter;
+import jakarta.json.JsonWriterFactory;
+import jakarta.json.stream.JsonGenerator;
+
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+/**
+ * Une requête envoyée à l'API et sa réponse, gardées telles quelles (JSON compact) pour le mode debug.
+ * La mise en forme (indentation) n'est faite que lorsque le texte est affiché, et une seule fois.
+ */
+public class EchangeDebug implements Serializable {
+
+    private static final JsonWriterFactory WRITER_INDENTE =
+            Json.createWriterFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true));
+
+    private final long date = System.currentTimeMillis();
+    private final String requeteBrute;
+    private volatile String reponseBrute;
+
+    private transient String requeteFormatee;
+    private transient String reponseFormatee;
+
+    public EchangeDebug(String requeteBrute) {
+        this.requeteBrute = requeteBrute;
+    }
+
+    public long getDate() {
+        return date;
+    }
+
+    public String getRequeteBrute() {
+        return requeteBrute;
+    }
+
+    public String getReponseBrute() {
+        return reponseBrute;
+    }
+
+    public void setReponseBrute(String reponseBrute) {
+        this.reponseBrute = reponseBrute;
+        this.reponseFormatee = null;
+    }
+
+    public String getRequeteFormatee() {
+        if (requeteFormatee == null) {
+            requeteFormatee = formater(requeteBrute);
+        }
+        return requeteFormatee;
+    }
+
+    public String getReponseFormatee() {
+        String brute = reponseBrute;
+        if (reponseFormatee == null && brute != null) {
+            reponseFormatee = formater(brute);
+        }
+        return reponseFormatee;
+    }
+
+    /**
+     * Retourne le texte formaté du document JSON pour un affichage plus agréable.
+     *
+     * @param json le document JSON compact.
+     * @return la forme formatée, ou le texte inchangé si ce n'est pas un document JSON valide.
+     */
+    static String formater(String json) {
+        if (json == null) {
+            return null;
+        }
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            StringWriter stringWriter = new StringWriter();
+            try (JsonWriter jsonWriter = WRITER_INDENTE.createWriter(stringWriter)) {
+                jsonWriter.write(reader.readValue());
+            }
+            return stringWriter.toString();
+        } catch (JsonException e) {
+            return json;
+        }
+    }
+}
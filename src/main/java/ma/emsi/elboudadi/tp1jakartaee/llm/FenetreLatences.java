@@ -0,0 +1,56 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.util.Arrays;
+
+/**
+ * Les dernières durées mesurées (fenêtre glissante), pour calculer un centile qui suit l'évolution
+ * de la latence de l'API, contrairement à un Histogramme qui cumule depuis le démarrage.
+ * Le centile est recalculé (tri d'une copie de la fenêtre) au plus une fois tous les RECALCUL enregistrements.
+ */
+public class FenetreLatences {
+
+    private static final int RECALCUL = 16;
+
+    private final long[] durees;
+    private final double centile;
+    private int suivant;
+    private int nombre;
+    private int depuisCalcul;
+    private long valeurCentile;
+
+    /**
+     * @param taille nombre de durées gardées.
+     * @param centile centile calculé, entre 0 et 1 (par exemple 0.95).
+     */
+    public FenetreLatences(int taille, double centile) {
+        this.durees = new long[Math.max(1, taille)];
+        this.centile = Math.max(0, Math.min(1, centile));
+    }
+
+    public synchronized void enregistrer(long dureeMs) {
+        durees[suivant] = dureeMs;
+        suivant = (suivant + 1) % durees.length;
+        nombre = Math.min(durees.length, nombre + 1);
+        if (++depuisCalcul >= RECALCUL || nombre < RECALCUL) {
+            depuisCalcul = 0;
+            long[] triees = Arrays.copyOf(durees, nombre);
+            Arrays.sort(triees);
+            int rang = Math.max(1, (int) Math.ceil(centile * nombre));
+            valeurCentile = triees[rang - 1];
+        }
+    }
+
+    /**
+     * @return le centile des dernières durées, en millisecondes ; 0 si aucune durée n'a été enregistrée.
+     */
+    public synchronized long getCentile() {
+        return valeurCentile;
+    }
+
+    /**
+     * @return le nombre de durées dans la fenêtre.
+     */
+    public synchronized int getNombre() {
+        return nombre;
+    }
+}
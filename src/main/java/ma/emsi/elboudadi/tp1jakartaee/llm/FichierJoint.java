@@ -0,0 +1,16 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.Serializable;
+
+/**
+ * Un fichier envoyé à l'API de Gemini (File API, voir ClientFichiersGemini) et joint à une question.
+ * Le contenu du fichier n'est jamais dans la conversation : seule sa référence est écrite dans "parts",
+ * à chaque requête de la conversation. Format JSON correspondant :
+ * { "file_data": { "mime_type": "application/pdf", "file_uri": "https://.../v1beta/files/abc123" } }
+ *
+ * @param nom nom du fichier, pour l'affichage.
+ * @param mimeType type du contenu, par exemple "application/pdf".
+ * @param uri URI du fichier dans l'API.
+ */
+public record FichierJoint(String nom, String mimeType, String uri) implements Serializable {
+}
@@ -0,0 +1,13 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Exception levée quand un fichier à joindre dépasse la taille maximum (gemini.fichiers.taille.max),
+ * que sa taille soit annoncée avant l'envoi ou découverte pendant l'envoi.
+ * Contrairement à RequeteRefuseeException, il ne sert à rien de réessayer.
+ */
+public class FichierTropGrosException extends RequeteException {
+
+    public FichierTropGrosException(String message) {
+        super(message);
+    }
+}
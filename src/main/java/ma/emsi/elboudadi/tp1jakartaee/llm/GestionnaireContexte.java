@@ -0,0 +1,113 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.Serializable;
+
+/**
+ * Limite la taille des requêtes envoyées à l'API : quand la conversation dépasse le budget de tokens,
+ * les messages les plus anciens ne sont plus envoyés (ils restent dans l'historique affiché).
+ * Le rôle système et le dernier échange (question et réponse précédentes, plus la nouvelle question)
+ * sont toujours envoyés, si bien que la taille des requêtes reste à peu près constante.
+ *
+ * Le nombre de tokens est estimé à partir du nombre de caractères. Le rapport tokens/caractère est
+ * recalculé après chaque réponse à partir de usageMetadata.promptTokenCount, qui donne le nombre exact
+ * de tokens de la requête envoyée.
+ *
+ * Les fichiers joints ne sont pas comptés : leur nombre de tokens n'est pas connu avant la réponse (il dépend
+ * du type et du contenu du fichier) et ils sont toujours envoyés, même quand les messages auxquels ils étaient
+ * joints ne le sont plus (voir Conversation.setDebut). Le calibrage n'utilise donc que les requêtes sans
+ * fichier, dont promptTokenCount ne compte que le texte.
+ *
+ * Paramètre (voir ConfigurationLlm) : gemini.contexte.budget, nombre maximum de tokens estimés par requête.
+ */
+public class GestionnaireContexte implements Serializable {
+
+    /**
+     * Estimation initiale : environ 4 caractères par token.
+     */
+    private static final double TOKENS_PAR_CARACTERE_INITIAL = 0.25;
+
+    private final int budget;
+    private double tokensParCaractere = TOKENS_PAR_CARACTERE_INITIAL;
+    /**
+     * Nombre de caractères de la dernière requête préparée, pour le calibrage.
+     */
+    private long caracteresEnvoyes;
+    /**
+     * true si la dernière requête préparée contient des fichiers : elle ne sert pas au calibrage.
+     */
+    private boolean avecFichiers;
+
+    public GestionnaireContexte() {
+        this(ConfigurationLlm.lireInt("gemini.contexte.budget", 16_000));
+    }
+
+    public GestionnaireContexte(int budget) {
+        this.budget = budget;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Appelée après l'ajout d'une question : avance le début de la conversation envoyée, par paires
+     * question/réponse pour que le premier message envoyé soit toujours une question de l'utilisateur,
+     * jusqu'à ce que l'estimation soit sous le budget.
+     *
+     * @param conversation la conversation, dont le dernier message est la nouvelle question.
+     */
+    public void ajuster(Conversation conversation) {
+        int taille = conversation.taille();
+        long caracteres = caracteres(conversation.getSystemInstruction());
+        for (int i = conversation.getDebut(); i < taille; i++) {
+            caracteres += caracteres(conversation.getTour(i));
+        }
+        int debut = conversation.getDebut();
+        // Garde toujours les 3 derniers messages : question, réponse, nouvelle question.
+        while (estimer(caracteres) > budget && debut + 2 <= taille - 3) {
+            caracteres -= caracteres(conversation.getTour(debut)) + caracteres(conversation.getTour(debut + 1));
+            debut += 2;
+        }
+        conversation.setDebut(debut);
+        this.caracteresEnvoyes = caracteres;
+        this.avecFichiers = conversation.avecFichiers();
+    }
+
+    /**
+     * Recalcule le rapport tokens/caractère à partir du nombre exact de tokens de la dernière requête.
+     *
+     * @param promptTokenCount usageMetadata.promptTokenCount de la réponse ; ignoré si 0 ou si la requête
+     *                         contenait des fichiers.
+     */
+    public void calibrer(int promptTokenCount) {
+        if (promptTokenCount <= 0 || caracteresEnvoyes <= 0 || avecFichiers) {
+            return;
+        }
+        double mesure = (double) promptTokenCount / caracteresEnvoyes;
+        // Moyenne glissante pour ne pas dépendre d'une seule requête.
+        this.tokensParCaractere = 0.7 * tokensParCaractere + 0.3 * mesure;
+    }
+
+    /**
+     * @return le nombre de tokens estimé de la dernière requête préparée.
+     */
+    public long getTokensEstimes() {
+        return estimer(caracteresEnvoyes);
+    }
+
+    private long estimer(long caracteres) {
+        return Math.round(caracteres * tokensParCaractere);
+    }
+
+    private static long caracteres(Tour tour) {
+        long n = 0;
+        for (String texte : tour.textes()) {
+            n += caracteres(texte);
+        }
+        return n;
+    }
+
+    private static long caracteres(String texte) {
+        return texte == null ? 0 : texte.length();
+    }
+}
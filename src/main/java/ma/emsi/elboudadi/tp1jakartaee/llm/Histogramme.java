@@ -0,0 +1,94 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramme à intervalles fixes, au sens de Prometheus.
+ * Chaque intervalle est un LongAdder : l'enregistrement d'une valeur ne prend pas de verrou et les threads
+ * qui enregistrent en même temps ne se gênent pas (compteurs répartis sur plusieurs cellules).
+ */
+public class Histogramme {
+
+    private final double[] bornes;
+    private final LongAdder[] compteurs;
+    private final DoubleAdder somme = new DoubleAdder();
+
+    /**
+     * @param bornes bornes supérieures des intervalles, en ordre croissant ; l'intervalle +Inf est ajouté.
+     */
+    public Histogramme(double... bornes) {
+        this.bornes = bornes.clone();
+        this.compteurs = new LongAdder[bornes.length + 1];
+        for (int i = 0; i < compteurs.length; i++) {
+            compteurs[i] = new LongAdder();
+        }
+    }
+
+    public void enregistrer(double valeur) {
+        int i = 0;
+        while (i < bornes.length && valeur > bornes[i]) {
+            i++;
+        }
+        compteurs[i].increment();
+        somme.add(valeur);
+    }
+
+    /**
+     * Enregistre une durée en secondes.
+     */
+    public void enregistrerNanos(long nanos) {
+        enregistrer(nanos / 1e9);
+    }
+
+    public long getNombre() {
+        long n = 0;
+        for (LongAdder compteur : compteurs) {
+            n += compteur.sum();
+        }
+        return n;
+    }
+
+    /**
+     * @param q quantile entre 0 et 1.
+     * @return la borne supérieure de l'intervalle qui contient le quantile (0 si l'histogramme est vide,
+     * la plus grande borne si le quantile est au-delà).
+     */
+    public double quantile(double q) {
+        long total = getNombre();
+        if (total == 0) {
+            return 0;
+        }
+        long rang = (long) Math.ceil(q * total);
+        long cumul = 0;
+        for (int i = 0; i < bornes.length; i++) {
+            cumul += compteurs[i].sum();
+            if (cumul >= rang) {
+                return bornes[i];
+            }
+        }
+        return bornes[bornes.length - 1];
+    }
+
+    /**
+     * Écrit les lignes _bucket, _sum et _count (sans les lignes # HELP et # TYPE).
+     *
+     * @param out destination.
+     * @param nom nom de la métrique.
+     * @param labels labels à ajouter, par exemple phase="reseau", ou une chaîne vide.
+     */
+    public void ecrire(PrintWriter out, String nom, String labels) {
+        String prefixe = labels.isEmpty() ? "" : labels + ",";
+        long cumul = 0;
+        for (int i = 0; i < bornes.length; i++) {
+            cumul += compteurs[i].sum();
+            out.printf("%s_bucket{%sle=\"%s\"} %d%n", nom, prefixe, bornes[i], cumul);
+        }
+        cumul += compteurs[bornes.length].sum();
+        out.printf("%s_bucket{%sle=\"+Inf\"} %d%n", nom, prefixe, cumul);
+        String accolades = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.printf("%s_sum%s %s%n", nom, accolades, somme.sum());
+        out.printf("%s_count%s %d%n", nom, accolades, cumul);
+    }
+}
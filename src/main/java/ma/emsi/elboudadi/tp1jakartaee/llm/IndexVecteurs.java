@@ -0,0 +1,183 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index en mémoire de vecteurs de norme 1, chacun associé à une réponse, pour CacheSemantique.
+ * Les vecteurs sont rangés les uns à la suite des autres dans un seul tableau de float (pas d'objet par vecteur) :
+ * une recherche parcourt de la mémoire contiguë et calcule un produit scalaire par entrée.
+ * Si le vecteur cherché a peu de composantes non nulles (cas de PlongementNgrammes), le produit scalaire
+ * n'est calculé que sur ces composantes ; sinon il utilise quatre sommes indépendantes, que le processeur
+ * peut calculer en parallèle.
+ * La recherche est exacte ; avec un nombre d'entrées borné (quelques milliers), elle reste bien en dessous
+ * de la milliseconde, sans le coût de maintenance d'un graphe HNSW lors des remplacements d'entrées.
+ *
+ * Le nombre d'entrées est limité : quand l'index est plein, une entrée expirée, ou sinon la moins récemment
+ * utilisée, est remplacée. Les recherches se font en parallèle (verrou en lecture), les ajouts un par un.
+ */
+public class IndexVecteurs {
+
+    private final int dimension;
+    private final int capacite;
+    private final float[] vecteurs;
+    private final ReponseGemini[] reponses;
+    private final long[] expirations;
+    /**
+     * Date du dernier accès de chaque entrée ; mise à jour sans verrou en écriture (valeur indicative).
+     */
+    private final long[] derniersAcces;
+    private int taille;
+    private long evictions;
+
+    private final ReadWriteLock verrou = new ReentrantReadWriteLock();
+
+    /**
+     * @param dimension taille des vecteurs.
+     * @param capacite nombre maximum d'entrées.
+     */
+    public IndexVecteurs(int dimension, int capacite) {
+        this.dimension = dimension;
+        this.capacite = Math.max(1, capacite);
+        this.vecteurs = new float[this.capacite * dimension];
+        this.reponses = new ReponseGemini[this.capacite];
+        this.expirations = new long[this.capacite];
+        this.derniersAcces = new long[this.capacite];
+    }
+
+    /**
+     * @param vecteur vecteur de norme 1, de la dimension de l'index.
+     * @param seuil similarité (cosinus) minimale.
+     * @return la réponse de l'entrée la plus proche si sa similarité atteint le seuil, sinon null.
+     */
+    public ReponseGemini chercher(float[] vecteur, double seuil) {
+        long maintenant = System.currentTimeMillis();
+        int[] nonNulles = composantesNonNulles(vecteur);
+        verrou.readLock().lock();
+        try {
+            int meilleure = -1;
+            float meilleureSimilarite = (float) seuil;
+            for (int entree = 0, debut = 0; entree < taille; entree++, debut += dimension) {
+                if (expirations[entree] < maintenant) {
+                    continue;
+                }
+                float similarite = nonNulles != null
+                        ? produitCreux(debut, vecteur, nonNulles) : produit(debut, vecteur);
+                if (similarite >= meilleureSimilarite) {
+                    meilleureSimilarite = similarite;
+                    meilleure = entree;
+                }
+            }
+            if (meilleure < 0) {
+                return null;
+            }
+            derniersAcces[meilleure] = maintenant;
+            return reponses[meilleure];
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return les indices des composantes non nulles du vecteur, ou null s'il y en a plus d'un quart.
+     */
+    private int[] composantesNonNulles(float[] vecteur) {
+        int nombre = 0;
+        for (float composante : vecteur) {
+            if (composante != 0) {
+                nombre++;
+            }
+        }
+        if (nombre > dimension / 4) {
+            return null;
+        }
+        int[] indices = new int[nombre];
+        for (int i = 0, j = 0; i < dimension; i++) {
+            if (vecteur[i] != 0) {
+                indices[j++] = i;
+            }
+        }
+        return indices;
+    }
+
+    private float produitCreux(int debut, float[] vecteur, int[] nonNulles) {
+        float somme = 0;
+        for (int i : nonNulles) {
+            somme += vecteurs[debut + i] * vecteur[i];
+        }
+        return somme;
+    }
+
+    private float produit(int debut, float[] vecteur) {
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            s0 += vecteurs[debut + i] * vecteur[i];
+            s1 += vecteurs[debut + i + 1] * vecteur[i + 1];
+            s2 += vecteurs[debut + i + 2] * vecteur[i + 2];
+            s3 += vecteurs[debut + i + 3] * vecteur[i + 3];
+        }
+        for (; i < dimension; i++) {
+            s0 += vecteurs[debut + i] * vecteur[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Ajoute une entrée, en remplaçant une entrée expirée ou la moins récemment utilisée si l'index est plein.
+     *
+     * @param dureeVieMs durée de vie de l'entrée.
+     */
+    public void ajouter(float[] vecteur, ReponseGemini reponse, long dureeVieMs) {
+        long maintenant = System.currentTimeMillis();
+        verrou.writeLock().lock();
+        try {
+            int entree;
+            if (taille < capacite) {
+                entree = taille++;
+            } else {
+                entree = 0;
+                for (int i = 0; i < capacite; i++) {
+                    if (expirations[i] < maintenant) {
+                        entree = i;
+                        break;
+                    }
+                    if (derniersAcces[i] < derniersAcces[entree]) {
+                        entree = i;
+                    }
+                }
+                evictions++;
+            }
+            System.arraycopy(vecteur, 0, vecteurs, entree * dimension, dimension);
+            reponses[entree] = reponse;
+            expirations[entree] = maintenant + dureeVieMs;
+            derniersAcces[entree] = maintenant;
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    public int getTaille() {
+        verrou.readLock().lock();
+        try {
+            return taille;
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return le nombre d'entrées remplacées parce que l'index était plein.
+     */
+    public long getEvictions() {
+        verrou.readLock().lock();
+        try {
+            return evictions;
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+}
@@ -4,15 +4,23 @@ import jakarta.enterprise.context.Dependent;
 import jakarta.inject.Inject;
 import jakarta.json.*;
 import jakarta.json.stream.JsonGenerator;
-import jakarta.ws.rs.client.Entity;
-import jakarta.ws.rs.core.MediaType;
+import jakarta.json.stream.JsonGeneratorFactory;
+import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.core.Response;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * Classe pour gérer le JSON des requêtes à l'API de Gemini.
@@ -21,29 +29,175 @@ import java.util.Map;
 @Dependent
 public class JsonUtilPourGemini implements Serializable {
 
+    private static final JsonGeneratorFactory GENERATEUR_COMPACT = Json.createGeneratorFactory(Map.of());
+
     private String systemRole; // = "helpful assistant";
+
+    /**
+     * Historique de la conversation, à partir duquel est écrit le document JSON de chaque requête.
+     * null tant que la première question n'a pas été posée.
+     */
+    private Conversation conversation;
+
+    /**
+     * Limite la taille des requêtes quand la conversation devient longue.
+     */
+    private final GestionnaireContexte gestionnaireContexte = new GestionnaireContexte();
+
+    /**
+     * Où sont enregistrés les échanges pour le mode debug de la page ; null si le mode debug n'est pas activé.
+     * Appartient à la session HTTP, n'est donc pas sérialisé avec la conversation.
+     */
+    private transient CaptureDebug captureDebug;
+
+    /**
+     * Dernier échange enregistré pour le mode debug, null s'il n'y en a pas.
+     */
+    private transient EchangeDebug dernierEchange;
+
     /**
-     * Pour ajouter une nouvelle valeur à la fin du tableau JSON "messages" dans le document JSON de la requête.
-     * Le "-" final indique que la valeur sera ajoutée à la fin du tableau.
+     * Si false, le cache des réponses n'est pas utilisé pour cette conversation
+     * (rôles pour lesquels on veut une réponse différente à chaque fois).
      */
-    private final JsonPointer pointer = Json.createPointer(("/contents/-"));
+    private boolean cacheActif = true;
 
     /**
-     * Requête JSON, à partir du prompt de l'utilisateur.
+     * Si true, le rôle système est envoyé par l'intermédiaire d'un contenu en cache de l'API (CacheContexte)
+     * quand il est disponible. Utilisé pour les rôles prédéfinis, partagés par beaucoup de conversations.
      */
-    private JsonObject requeteJson;
-    private String texteRequeteJson;
+    private boolean contexteEnCache;
 
+    /**
+     * Rôle prédéfini de la conversation, null pour un rôle écrit par l'utilisateur.
+     * Pas sérialisé : il ne sert qu'à la création de la conversation.
+     */
+    private transient RolePredefini rolePredefini;
+
+    /**
+     * Libellé du rôle prédéfini, null pour un rôle écrit par l'utilisateur ; donne le poids des requêtes
+     * dans OrdonnanceurEquitable.
+     */
+    private String libelleRole;
+
+    /**
+     * Session HTTP de la conversation, pour le partage équitable des appels (OrdonnanceurEquitable) ;
+     * null si la conversation n'est pas liée à une session : elle compte alors comme une session à elle seule.
+     */
+    private String idSession;
+
+    /**
+     * Fichiers à joindre à la prochaine question (voir joindre).
+     */
+    private List<FichierJoint> fichiersAJoindre = List.of();
+
+    /**
+     * Rôle écrit par l'utilisateur : le cache des réponses est utilisé, pas le cache de contexte.
+     */
     public void setSystemRole(String systemRole) {
         this.systemRole = systemRole;
+        this.rolePredefini = null;
+        this.libelleRole = null;
+        this.cacheActif = true;
+        this.contexteEnCache = false;
     }
 
     /**
-     * Pour envoyer une requête à l'API de Gemini.
+     * Rôle prédéfini : son fragment JSON déjà écrit est copié dans les requêtes et il est envoyé
+     * par l'intermédiaire du cache de contexte de l'API quand c'est possible.
+     */
+    public void setRolePredefini(RolePredefini rolePredefini) {
+        this.systemRole = rolePredefini.texte();
+        this.rolePredefini = rolePredefini;
+        this.libelleRole = rolePredefini.libelle();
+        this.cacheActif = rolePredefini.cacheReponses();
+        this.contexteEnCache = true;
+    }
+
+    public void setIdSession(String idSession) {
+        this.idSession = idSession;
+    }
+
+    /**
+     * Joint un fichier déjà envoyé à l'API (ClientFichiersGemini) à la prochaine question. Le fichier reste
+     * dans la conversation : les requêtes suivantes le référencent aussi, sans le renvoyer.
+     *
+     * @param fichier le fichier ; null pour ne rien joindre.
+     */
+    public void joindre(FichierJoint fichier) {
+        this.fichiersAJoindre = fichier == null ? List.of() : List.of(fichier);
+    }
+
+    /**
+     * @param captureDebug où enregistrer les requêtes et les réponses ; null pour ne rien enregistrer.
+     */
+    public void setCaptureDebug(CaptureDebug captureDebug) {
+        this.captureDebug = captureDebug;
+    }
+
+    /**
+     * @return l'historique de la conversation, null tant que la première question n'a pas été posée.
+     */
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /**
+     * @return le dernier échange enregistré pour le mode debug, null s'il n'y en a pas.
+     */
+    public EchangeDebug getDernierEchange() {
+        return dernierEchange;
+    }
+
+    public void setCacheActif(boolean cacheActif) {
+        this.cacheActif = cacheActif;
+    }
+
+    /**
+     * Pour connaître le modèle utilisé.
      */
     @Inject
     private LlmClientPourGemini geminiClient;
 
+    /**
+     * Pour envoyer une requête à l'API de Gemini (modèle principal et requêtes doublées vers d'autres modèles),
+     * avec limitation du débit et nouvelles tentatives.
+     */
+    @Inject
+    private RouteurModeles routeur;
+
+    /**
+     * Réponses déjà reçues pour exactement la même requête.
+     */
+    @Inject
+    private CacheReponses cacheReponses;
+
+    /**
+     * Contenus en cache de l'API pour les rôles système prédéfinis.
+     */
+    @Inject
+    private CacheContexte cacheContexte;
+
+    /**
+     * Requêtes identiques en cours, envoyées une seule fois à l'API.
+     */
+    @Inject
+    private CoalescenceRequetes coalescence;
+
+    /**
+     * Réponses aux premières questions formulées autrement, pour les rôles prédéfinis.
+     */
+    @Inject
+    private CacheSemantique cacheSemantique;
+
+    /**
+     * Partage équitable des appels à l'API entre les sessions.
+     */
+    @Inject
+    private OrdonnanceurEquitable ordonnanceur;
+
+    @Inject
+    private MetriquesLlm metriques;
+
     /**
      * Envoi une requête à l'API de Gemini.
      * Format du document JSON envoyé dans la requête vers l'API :
@@ -74,32 +228,430 @@ public class JsonUtilPourGemini implements Serializable {
      * @throws RequeteException exception lancée dans le cas où la requête a été rejetée par l'API.
      */
     public LlmInteraction envoyerRequete(String question) throws RequeteException {
-        String requestBody;
-        if (this.requeteJson == null) {
-            // Si c'est la première question, crée la requête JSON avec le rôle système.
-            requestBody = creerRequeteJson(this.systemRole, question);
+        CorpsRequete requestBody = preparerRequete(question);
+
+        // Pour afficher la requête JSON dans la page JSF
+        EchangeDebug echange = capturerRequete();
+        String cle = cleCache();
+        LlmInteraction interactionEnCache = depuisCache(cle, question, echange);
+        if (interactionEnCache != null) {
+            return interactionEnCache;
+        }
+        // Si la même requête est déjà en cours, sa réponse est attendue au lieu d'envoyer la requête.
+        CompletableFuture<ReponseGemini> premiere = rejoindre(cle);
+        if (premiere != null) {
+            LlmInteraction interactionRegroupee = attendre(premiere, echange);
+            if (interactionRegroupee != null) {
+                return interactionRegroupee;
+            }
+        }
+        String clePremiere = premiere == null ? cleCoalescence(cle) : null;
+        ReponseGemini reponseObtenue = null;
+        OrdonnanceurEquitable.Place place = null;
+        try {
+            place = ordonnanceur.entrer(demandeur());
+            // Envoi la requête par l'intermédiaire du client de l'API de Gemini.
+            long debut = System.nanoTime();
+            RouteurModeles.ReponseRoutee reponseRoutee = envoyer(requestBody, routeur::envoyer);
+            try (Response response = reponseRoutee.response()) {
+                enregistrerReseau(debut, requestBody, response);
+                LlmInteraction interaction = mettreEnCache(cle, reponseRoutee.modele(),
+                        traiterReponse(response, echange));
+                reponseObtenue = interaction.reponse();
+                return interaction;
+            }
+        } catch (RequeteException | ProcessingException e) {
+            // ProcessingException : erreur du client REST (lecture de la réponse par exemple).
+            metriques.enregistrerErreur();
+            throw e;
+        } finally {
+            ordonnanceur.sortir(place, reponseObtenue);
+            terminer(clePremiere, reponseObtenue);
+        }
+    }
+
+    /**
+     * Comme envoyerRequete, mais sans bloquer le thread appelant.
+     * La réponse est ajoutée à la conversation quand elle arrive, dans un thread du client REST.
+     * Il ne faut pas envoyer une autre question de la même conversation avant que le résultat soit disponible.
+     *
+     * @param question question posée par l'utilisateur.
+     * @return l'interaction, disponible quand l'API a répondu. En cas d'erreur, le CompletionStage se termine
+     * avec une CompletionException dont la cause est une RequeteException.
+     */
+    public CompletionStage<LlmInteraction> envoyerRequeteAsync(String question) {
+        CorpsRequete requestBody = preparerRequete(question);
+        EchangeDebug echange = capturerRequete();
+        String cle = cleCache();
+        LlmInteraction interactionEnCache = depuisCache(cle, question, echange);
+        if (interactionEnCache != null) {
+            return CompletableFuture.completedFuture(interactionEnCache);
+        }
+        CompletableFuture<ReponseGemini> premiere = rejoindre(cle);
+        if (premiere == null) {
+            return appelerAsync(requestBody, echange, cle, cleCoalescence(cle));
+        }
+        // copy : le délai d'attente ne concerne que cette requête, pas les autres qui attendent la même réponse.
+        return premiere.copy().orTimeout(coalescence.getAttenteMaxMs(), TimeUnit.MILLISECONDS)
+                .handle((reponse, erreur) -> {
+                    if (erreur == null) {
+                        return CompletableFuture.completedFuture(depuisReponse(reponse, echange));
+                    }
+                    coalescence.enregistrerRepli();
+                    return appelerAsync(requestBody, echange, cle, null);
+                })
+                .thenCompose(interaction -> interaction);
+    }
+
+    /**
+     * Envoie la requête à l'API sans bloquer le thread appelant (suite de envoyerRequeteAsync).
+     *
+     * @param clePremiere clé de la requête si d'autres requêtes identiques peuvent attendre sa réponse
+     *                    (voir CoalescenceRequetes), null sinon.
+     */
+    private CompletableFuture<LlmInteraction> appelerAsync(CorpsRequete requestBody, EchangeDebug echange,
+                                                           String cle, String clePremiere) {
+        return ordonnanceur.entrerAsync(demandeur()).thenCompose(place -> {
+            long debut = System.nanoTime();
+            return envoyerAsync(requestBody).thenApply(reponseRoutee -> {
+                try (Response response = reponseRoutee.response()) {
+                    enregistrerReseau(debut, requestBody, response);
+                    return mettreEnCache(cle, reponseRoutee.modele(), traiterReponse(response, echange));
+                } catch (RequeteException e) {
+                    throw new CompletionException(e);
+                }
+            }).whenComplete((interaction, erreur) ->
+                    ordonnanceur.sortir(place, interaction == null ? null : interaction.reponse()));
+        }).whenComplete((interaction, erreur) -> {
+            if (erreur != null) {
+                metriques.enregistrerErreur();
+            }
+            terminer(clePremiere, interaction == null ? null : interaction.reponse());
+        }).toCompletableFuture();
+    }
+
+    /**
+     * Envoie le corps de la requête. Si l'API refuse le contenu en cache qui remplace le rôle système
+     * (il a expiré), le contenu est invalidé et la requête est renvoyée une fois avec le rôle système.
+     *
+     * @param envoi envoi d'une requête par le routeur (réponse complète ou en streaming).
+     * @return la réponse REST de l'API, celle du modèle qui a répondu le premier, avec le nom de ce modèle.
+     */
+    private RouteurModeles.ReponseRoutee envoyer(CorpsRequete requestBody, Envoi envoi) throws RequeteException {
+        RouteurModeles.ReponseRoutee reponse = envoi.envoyer(requestBody);
+        if (!contenuEnCacheRefuse(reponse)) {
+            return reponse;
+        }
+        reponse.response().close();
+        cacheContexte.invalider(conversation.getSystemInstruction(), requestBody.getContenuEnCache());
+        return envoi.envoyer(requestBody.sansContenuEnCache());
+    }
+
+    /**
+     * Comme envoyer, sans bloquer le thread appelant.
+     */
+    private CompletionStage<RouteurModeles.ReponseRoutee> envoyerAsync(CorpsRequete requestBody) {
+        return routeur.envoyerAsync(requestBody)
+                .thenCompose(reponse -> {
+                    if (!contenuEnCacheRefuse(reponse)) {
+                        return CompletableFuture.completedFuture(reponse);
+                    }
+                    reponse.response().close();
+                    cacheContexte.invalider(conversation.getSystemInstruction(), requestBody.getContenuEnCache());
+                    return routeur.envoyerAsync(requestBody.sansContenuEnCache());
+                });
+    }
+
+    /**
+     * @return true si la requête utilisait un contenu en cache et que l'API l'a refusée.
+     */
+    private static boolean contenuEnCacheRefuse(RouteurModeles.ReponseRoutee reponse) {
+        return reponse.corps().getContenuEnCache() != null
+                && CacheContexte.contenuRefuse(reponse.response().getStatus());
+    }
+
+    /**
+     * Envoi d'une requête par le routeur.
+     */
+    @FunctionalInterface
+    private interface Envoi {
+        RouteurModeles.ReponseRoutee envoyer(CorpsRequete requestBody) throws RequeteException;
+    }
+
+    /**
+     * Lit la réponse de l'API et, si elle est correcte, ajoute la réponse à la conversation.
+     *
+     * @param response la réponse REST de l'API.
+     * @param echange l'échange enregistré pour le mode debug, null si le mode debug n'est pas activé.
+     * @return l'interaction.
+     * @throws RequeteException si l'API a rejeté la requête.
+     */
+    private LlmInteraction traiterReponse(Response response, EchangeDebug echange) throws RequeteException {
+        if (response.getStatus() == 200) {
+            // La réponse est lue directement dans le flux de la réponse HTTP.
+            long debut = System.nanoTime();
+            try (CompteurOctets.Entree flux = new CompteurOctets.Entree(response.readEntity(InputStream.class))) {
+                ReponseGemini reponse = extractReponse(flux, echange != null);
+                metriques.enregistrerLecture(System.nanoTime() - debut, flux.getOctets());
+                metriques.enregistrerTokens(reponse.promptTokenCount(), reponse.candidatesTokenCount(),
+                        reponse.cachedContentTokenCount());
+                return interaction(echange, reponse.texteBrut(), reponse);
+            } catch (IOException | JsonException | IllegalStateException e) {
+                throw new RequeteException("Lecture de la réponse impossible : " + e.getMessage(), requeteBrute(echange));
+            }
         } else {
-            // Ajout de la question.
-            // Ce qui sera envoyé dans le corps de la requête POST.
-            // Un message associé à la question doit être ajouté aux messages associés au début de la conversation.
-            requestBody = ajouteQuestionDansJsonRequete(question);
+            // Pour voir la requête JSON s'il y a eu un problème.
+            if (echange != null) {
+                echange.setReponseBrute(response.readEntity(String.class));
+            }
+            throw new RequeteException(response.getStatus() + " : " + response.getStatusInfo(), requeteBrute(echange));
         }
+    }
 
-        Entity<String> entity = Entity.entity(requestBody, MediaType.APPLICATION_JSON_TYPE);
-        // Pour afficher la requête JSON dans la page JSF
-        this.texteRequeteJson = prettyPrinting(requeteJson);
-        // Envoi la requête par l'intermédiaire du client de l'API de Gemini.
-        try (Response response = geminiClient.envoyerRequete(entity)) {
-            // Entité incluse dans la réponse (texte au format JSON qui englobe la réponse à la question)
-            String texteReponseJson = response.readEntity(String.class);
-            if (response.getStatus() == 200) {
-                return new LlmInteraction(this.texteRequeteJson, texteReponseJson, extractReponse(texteReponseJson));
-            } else {
-                // Pour voir la requête JSON s'il y a eu un problème.
-                JsonObject objet = Json.createReader(new StringReader(requestBody)).readObject();
-                throw new RequeteException(response.getStatus() + " : " + response.getStatusInfo(), prettyPrinting(objet));
+    /**
+     * Enregistre la durée d'attente de la réponse (sans l'écriture du corps de la requête) et le statut HTTP.
+     */
+    private void enregistrerReseau(long debut, CorpsRequete requestBody, Response response) {
+        long nanos = System.nanoTime() - debut - requestBody.getNanosSerialisation();
+        metriques.enregistrerReseau(Math.max(0, nanos), response.getStatus());
+    }
+
+    /**
+     * Construit l'interaction retournée à l'appelant et complète l'échange enregistré pour le mode debug.
+     */
+    private static LlmInteraction interaction(EchangeDebug echange, String reponseBrute, ReponseGemini reponse) {
+        if (echange == null) {
+            return new LlmInteraction(null, null, reponse.tour().texte(), reponse);
+        }
+        echange.setReponseBrute(reponseBrute);
+        return new LlmInteraction(echange.getRequeteBrute(), reponseBrute, reponse.tour().texte(), reponse);
+    }
+
+    private static String requeteBrute(EchangeDebug echange) {
+        return echange == null ? null : echange.getRequeteBrute();
+    }
+
+    /**
+     * En mode debug, enregistre le document JSON de la requête, sans mise en forme.
+     * Sans mode debug, ne fait rien : le document n'est écrit que dans le flux de la requête HTTP.
+     *
+     * @return l'échange enregistré, null si le mode debug n'est pas activé.
+     */
+    private EchangeDebug capturerRequete() {
+        CaptureDebug capture = this.captureDebug;
+        EchangeDebug echange = capture == null ? null : capture.enregistrer(conversation.enTexte(false));
+        this.dernierEchange = echange;
+        return echange;
+    }
+
+    /**
+     * Envoie une requête à l'API de Gemini en mode streaming (endpoint streamGenerateContent).
+     * Le document JSON envoyé est le même que pour envoyerRequete.
+     * Chaque morceau de la réponse est passé à surFragment dès sa réception ; la réponse complète
+     * n'est ajoutée à l'historique de la conversation qu'une fois le flux terminé.
+     *
+     * @param question question posée par l'utilisateur.
+     * @param surFragment reçoit les morceaux de texte de la réponse, dans l'ordre.
+     * @return l'interaction complète, comme pour envoyerRequete.
+     * @throws RequeteException si la requête a été rejetée par l'API ou si le flux a été interrompu.
+     */
+    public LlmInteraction envoyerRequeteStream(String question, Consumer<String> surFragment) throws RequeteException {
+        CorpsRequete requestBody = preparerRequete(question);
+        EchangeDebug echange = capturerRequete();
+        String cle = cleCache();
+        LlmInteraction interactionEnCache = depuisCache(cle, question, echange);
+        if (interactionEnCache != null) {
+            // Toute la réponse est envoyée en un seul morceau.
+            surFragment.accept(interactionEnCache.reponseExtraite());
+            return interactionEnCache;
+        }
+        CompletableFuture<ReponseGemini> premiere = rejoindre(cle);
+        if (premiere != null) {
+            LlmInteraction interactionRegroupee = attendre(premiere, echange);
+            if (interactionRegroupee != null) {
+                surFragment.accept(interactionRegroupee.reponseExtraite());
+                return interactionRegroupee;
+            }
+        }
+        String clePremiere = premiere == null ? cleCoalescence(cle) : null;
+        ReponseGemini reponseObtenue = null;
+        OrdonnanceurEquitable.Place place = null;
+        try {
+            place = ordonnanceur.entrer(demandeur());
+            long debut = System.nanoTime();
+            RouteurModeles.ReponseRoutee reponseRoutee = envoyer(requestBody, routeur::envoyerStream);
+            try (Response response = reponseRoutee.response()) {
+                // Pour le streaming, la durée réseau est le temps jusqu'au premier octet de la réponse.
+                enregistrerReseau(debut, requestBody, response);
+                if (response.getStatus() != 200) {
+                    String texteErreur = response.readEntity(String.class);
+                    throw new RequeteException(response.getStatus() + " : " + response.getStatusInfo() + " "
+                            + texteErreur, requeteBrute(echange));
+                }
+                ReponseGemini reponse;
+                try (InputStream flux = response.readEntity(InputStream.class)) {
+                    reponse = LecteurSse.lire(flux, surFragment);
+                } catch (IOException e) {
+                    throw new RequeteException("Flux de la réponse interrompu : " + e.getMessage(),
+                            requeteBrute(echange));
+                } catch (JsonException | ClassCastException e) {
+                    throw new RequeteException("Lecture de la réponse impossible : " + e.getMessage(),
+                            requeteBrute(echange));
+                }
+                // Le flux est terminé : la réponse complète est ajoutée à la conversation.
+                this.conversation.ajouter(reponse.tour());
+                this.gestionnaireContexte.calibrer(reponse.promptTokenCount());
+                metriques.enregistrerTokens(reponse.promptTokenCount(), reponse.candidatesTokenCount(),
+                        reponse.cachedContentTokenCount());
+                reponseObtenue = reponse;
+                return mettreEnCache(cle, reponseRoutee.modele(),
+                        interaction(echange, echange == null ? null : enJson(reponse.tour()), reponse));
             }
+        } catch (RequeteException | ProcessingException e) {
+            metriques.enregistrerErreur();
+            throw e;
+        } finally {
+            ordonnanceur.sortir(place, reponseObtenue);
+            terminer(clePremiere, reponseObtenue);
+        }
+    }
+
+    /**
+     * @return qui envoie la requête, pour OrdonnanceurEquitable.
+     */
+    private OrdonnanceurEquitable.Demandeur demandeur() {
+        String session = idSession != null ? idSession : "conversation-" + System.identityHashCode(this);
+        return new OrdonnanceurEquitable.Demandeur(session, libelleRole);
+    }
+
+    /**
+     * @return la clé de la requête en cours dans le cache des réponses et pour le regroupement des requêtes
+     * identiques, ou null si ni l'un ni l'autre n'est utilisé.
+     */
+    private String cleCache() {
+        if (!cacheActif || !cacheReponses.isActif() && !coalescence.isActif()) {
+            return null;
+        }
+        return CacheReponses.cle(geminiClient.getModele(), conversation, conversation.taille());
+    }
+
+    /**
+     * @return la réponse à venir de la même requête déjà en cours, ou null si cette requête doit être envoyée.
+     */
+    private CompletableFuture<ReponseGemini> rejoindre(String cle) {
+        return cleCoalescence(cle) == null ? null : coalescence.rejoindre(cle);
+    }
+
+    private String cleCoalescence(String cle) {
+        return coalescence.isActif() ? cle : null;
+    }
+
+    /**
+     * Donne la réponse de la requête aux requêtes identiques qui l'attendent.
+     *
+     * @param clePremiere null si la requête ne peut pas être attendue par d'autres : rien à faire.
+     * @param reponse null si la requête a échoué.
+     */
+    private void terminer(String clePremiere, ReponseGemini reponse) {
+        if (clePremiere != null) {
+            coalescence.terminer(clePremiere, reponse);
+        }
+    }
+
+    /**
+     * Attend la réponse de la requête identique en cours.
+     *
+     * @return l'interaction, la réponse étant ajoutée à la conversation ; null si la requête identique a échoué
+     * ou a trop tardé : la requête doit alors être envoyée.
+     */
+    private LlmInteraction attendre(CompletableFuture<ReponseGemini> premiere, EchangeDebug echange) {
+        try {
+            return depuisReponse(premiere.get(coalescence.getAttenteMaxMs(), TimeUnit.MILLISECONDS), echange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // La requête est envoyée.
+        }
+        coalescence.enregistrerRepli();
+        return null;
+    }
+
+    /**
+     * Si la réponse est dans le cache des réponses, ou, pour la première question, dans le cache sémantique,
+     * elle est ajoutée à la conversation exactement comme une réponse de l'API.
+     *
+     * @return l'interaction construite à partir du cache, ou null si la réponse n'est pas dans le cache.
+     */
+    private LlmInteraction depuisCache(String cle, String question, EchangeDebug echange) {
+        ReponseGemini reponse = null;
+        if (cle != null && cacheReponses.isActif()) {
+            reponse = cacheReponses.trouver(cle);
+        }
+        if (reponse == null && cacheSemantiqueUtilisable(1)) {
+            reponse = cacheSemantique.trouver(rolePredefini, question);
+        }
+        return reponse == null ? null : depuisReponse(reponse, echange);
+    }
+
+    /**
+     * @param taille nombre de messages de la conversation pour lequel le cache sémantique est utilisé :
+     *               1 avant la réponse à la première question, 2 après. Pas pour une question avec un fichier :
+     *               la réponse dépend du fichier, pas seulement de la question.
+     */
+    private boolean cacheSemantiqueUtilisable(int taille) {
+        return cacheActif && rolePredefini != null && rolePredefini.cacheReponses() && cacheSemantique.isActif()
+                && conversation.taille() == taille && conversation.getDecalage() == 0
+                && conversation.getTour(0).fichiers().isEmpty();
+    }
+
+    /**
+     * Ajoute à la conversation une réponse qui n'a pas été lue dans la réponse de l'API de cette requête
+     * (cache des réponses ou requête identique en cours), exactement comme une réponse de l'API.
+     */
+    private LlmInteraction depuisReponse(ReponseGemini reponse, EchangeDebug echange) {
+        this.conversation.ajouter(reponse.tour());
+        return interaction(echange, echange == null ? null : enJson(reponse.tour()), reponse);
+    }
+
+    /**
+     * Met la réponse en cache si elle est complète (finishReason STOP : pas bloquée, pas coupée par la limite
+     * de tokens ni par la fin du flux) ; dans le cache sémantique aussi
+     * si c'est la réponse à la première question.
+     * La réponse d'un autre modèle que le modèle principal (requête doublée par RouteurModeles) n'est pas mise
+     * en cache : les clés du cache sont celles du modèle principal.
+     *
+     * @param modele le modèle qui a répondu.
+     * @return l'interaction, inchangée.
+     */
+    private LlmInteraction mettreEnCache(String cle, String modele, LlmInteraction interaction) {
+        ReponseGemini reponse = interaction.reponse();
+        if (reponse == null || !"STOP".equals(reponse.finishReason()) || !geminiClient.getModele().equals(modele)) {
+            return interaction;
+        }
+        if (cle != null && cacheReponses.isActif()) {
+            cacheReponses.ajouter(cle, reponse);
+        }
+        if (cacheSemantiqueUtilisable(2)) {
+            cacheSemantique.ajouter(rolePredefini, conversation.getTour(0).texte(), reponse);
+        }
+        return interaction;
+    }
+
+    /**
+     * Ajoute la question à la conversation (en la créant avec le rôle système si c'est la première question).
+     *
+     * @param question question posée par l'utilisateur.
+     * @return le corps de la requête POST.
+     */
+    private CorpsRequete preparerRequete(String question) {
+        if (this.conversation == null) {
+            // Si c'est la première question, crée la requête JSON avec le rôle système.
+            return creerRequeteJson(this.systemRole, question);
         }
+        // Ajout de la question.
+        // Ce qui sera envoyé dans le corps de la requête POST.
+        // Un message associé à la question doit être ajouté aux messages associés au début de la conversation.
+        return ajouteQuestionDansJsonRequete(question);
     }
 
     /**
@@ -119,99 +671,71 @@ public class JsonUtilPourGemini implements Serializable {
      *
      * @param systemRole le rôle du système. Par exemple, "helpful assistant".
      * @param question question posée par l'utilisateur.
-     * @return le texte du document JSON de la requête.
-     */
-    private String creerRequeteJson(String systemRole, String question) {
-        // Création de l'objet "system_instruction"
-        JsonArray systemInstructionParts = Json.createArrayBuilder()
-                .add(Json.createObjectBuilder()
-                        .add("text", systemRole))
-                .build();
-        JsonObject systemInstruction = Json.createObjectBuilder()
-                .add("parts", systemInstructionParts)
-                .build();
-        // Création de l'objet "contents"
-        JsonArray userContentParts = Json.createArrayBuilder()
-                .add(Json.createObjectBuilder()
-                        .add("text", question))
-                .build();
-        JsonObject userContent = Json.createObjectBuilder()
-                .add("role", "user")
-                .add("parts", userContentParts)
-                .build();
-        JsonArray contents = Json.createArrayBuilder()
-                .add(userContent)
-                .build();
-        // Création de l'objet racine
-        JsonObject rootJson = Json.createObjectBuilder()
-                .add("system_instruction", systemInstruction)
-                .add("contents", contents)
-                .build();
-        this.requeteJson = rootJson;
-
-        return rootJson.toString();
-    }
-
-    /**
-     * Modifie le JSON de la requete pour ajouter le JsonObject lié à la nouvelle question dans messagesJson.
-     * Il faut ajouter au tableau JSON.
+     * @return le corps de la requête.
+     */
+    CorpsRequete creerRequeteJson(String systemRole, String question) {
+        this.conversation = rolePredefini != null && rolePredefini.texte().equals(systemRole)
+                ? new Conversation(rolePredefini) : new Conversation(systemRole);
+        return ajouteQuestionDansJsonRequete(question);
+    }
+
+    /**
+     * Ajoute la nouvelle question à la fin de la conversation.
+     * Rien n'est copié : le message est ajouté à la liste et le document JSON ne sera écrit
+     * qu'au moment de l'envoi de la requête.
      *
      * @param nouvelleQuestion question posée par l'utilsateur.
-     * @return le texte du document JSON de la requête.
-     */
-    private String ajouteQuestionDansJsonRequete(String nouvelleQuestion) {
-        // Crée le nouveau JsonObject qui correspond à la nouvelle question
-        JsonObject nouveauMessageJson = Json.createObjectBuilder()
-                .add("text", nouvelleQuestion)
-                .build();
-        // Crée le JsonArray parts
-        JsonObjectBuilder newPartBuilder = Json.createObjectBuilder()
-                .add("role", "user")
-                .add("parts", Json.createArrayBuilder()
-                        .add(nouveauMessageJson)
-                        .build());
-        // Ajoute ce nouveau JsonObjet dans this.requeteJson
-        this.requeteJson = this.pointer.add(this.requeteJson, newPartBuilder.build());
-        // La requête sous la forme d'une String avec mise en forme (passage à la ligne et indentation).
-        this.texteRequeteJson = prettyPrinting(requeteJson);
-        return this.requeteJson.toString();
-    }
-
-    /**
-     * Retourne le texte formaté du document JSON pour un affichage plus agréable.
-     *
-     * @param jsonObject l'objet JSON dont on veut une forme formatée.
-     * @return la forme formatée
-     */
-    private String prettyPrinting(JsonObject jsonObject) {
-        Map<String, Boolean> config = new HashMap<>();
-        config.put(JsonGenerator.PRETTY_PRINTING, true);
-        JsonWriterFactory writerFactory = Json.createWriterFactory(config);
+     * @return le corps de la requête.
+     */
+    CorpsRequete ajouteQuestionDansJsonRequete(String nouvelleQuestion) {
+        this.conversation.ajouter(Tour.user(nouvelleQuestion, fichiersAJoindre));
+        this.fichiersAJoindre = List.of();
+        // Les messages les plus anciens ne sont plus envoyés si la requête dépasse le budget de tokens.
+        this.gestionnaireContexte.ajuster(this.conversation);
+        return corpsRequete();
+    }
+
+    /**
+     * @return le corps de la requête avec les messages présents au moment de l'appel de cette méthode.
+     */
+    private CorpsRequete corpsRequete() {
+        String contenuEnCache = contexteEnCache ? cacheContexte.trouver(conversation.getSystemInstruction()) : null;
+        return new CorpsRequete(this.conversation, this.conversation.taille(), this.metriques, contenuEnCache);
+    }
+
+    /**
+     * Retourne le document JSON d'un message, pour le mode debug.
+     *
+     * @param tour le message.
+     * @return le document JSON compact.
+     */
+    private static String enJson(Tour tour) {
         StringWriter stringWriter = new StringWriter();
-        try (JsonWriter jsonWriter = writerFactory.createWriter(stringWriter)) {
-            jsonWriter.write(jsonObject);
+        try (JsonGenerator generateur = GENERATEUR_COMPACT.createGenerator(stringWriter)) {
+            Conversation.ecrire(generateur, tour);
         }
         return stringWriter.toString();
     }
 
     /**
-     * Extrait la réponse de l'API et ajoute la réponse à this.jsonRequete pour garder la conversation dans
+     * Extrait la réponse de l'API et ajoute la réponse à la conversation pour la garder dans
      * la prochaine requête.
-     * @param json le document JSON de la réponse.
-     * @return juste la valeur de content qui contient la réponse à la question.
-     */
-    private String extractReponse(String json) {
-        try (JsonReader jsonReader = Json.createReader(new StringReader(json))) {
-            JsonObject jsonObject = jsonReader.readObject();
-            JsonObject messageReponse = jsonObject
-                    .getJsonArray("candidates")
-                    .getJsonObject(0)
-                    .getJsonObject("content");
-            // Ajoute l'objet JSON de la réponse de l'API au JSON de la prochaine requête
-            this.requeteJson = this.pointer.add(this.requeteJson, messageReponse);
-            // Extrait seulement le texte de la réponse
-            return messageReponse.getJsonArray("parts").getJsonObject(0).getString("text");
+     * Le document est lu en une seule passe dans le flux ; le texte complet n'est gardé que si la capture
+     * pour le debug est activée.
+     * @param json le flux du document JSON de la réponse.
+     * @param garderTexteBrut true pour garder aussi le texte complet du document (mode debug).
+     * @return le contenu de la réponse à la question, la raison de fin et les nombres de tokens.
+     * @throws RequeteException si la réponse ne contient pas de candidat (réponse bloquée par exemple).
+     */
+    ReponseGemini extractReponse(InputStream json, boolean garderTexteBrut) throws IOException, RequeteException {
+        ReponseGemini reponse = LecteurReponseGemini.lire(json, garderTexteBrut);
+        if (reponse.tour() == null) {
+            throw new RequeteException("Réponse de l'API sans contenu (finishReason : " + reponse.finishReason() + ")");
         }
+        // Ajoute la réponse de l'API à la conversation, pour la prochaine requête
+        this.conversation.ajouter(reponse.tour());
+        this.gestionnaireContexte.calibrer(reponse.promptTokenCount());
+        return reponse;
     }
 
 }
\ No newline at end of file
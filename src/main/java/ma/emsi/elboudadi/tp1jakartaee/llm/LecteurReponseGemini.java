@@ -0,0 +1,169 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.json.Json;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lit la réponse de generateContent directement dans le flux de la réponse HTTP avec un JsonParser,
+ * en une seule passe et sans construire l'arbre JSON ni la String du document complet.
+ * Seuls candidates[0].content, candidates[0].finishReason et usageMetadata sont lus ; le reste est sauté.
+ * Format de la réponse :
+ * {
+ *   "candidates": [
+ *     { "content": { "parts": [ { "text": "Paris..." } ], "role": "model" }, "finishReason": "STOP", ... }
+ *   ],
+ *   "usageMetadata": { "promptTokenCount": 8, "candidatesTokenCount": 12, "totalTokenCount": 20,
+ *                      "cachedContentTokenCount": 0, ... },
+ *   ...
+ * }
+ */
+public final class LecteurReponseGemini {
+
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(Map.of());
+
+    private LecteurReponseGemini() {
+    }
+
+    /**
+     * @param flux le corps de la réponse.
+     * @param garderTexteBrut true pour garder aussi le texte complet du document (pour le debug).
+     * @return les informations extraites de la réponse.
+     * @throws IOException si la lecture du flux échoue.
+     */
+    public static ReponseGemini lire(InputStream flux, boolean garderTexteBrut) throws IOException {
+        String texteBrut = null;
+        InputStream source = flux;
+        if (garderTexteBrut) {
+            byte[] octets = flux.readAllBytes();
+            texteBrut = new String(octets, StandardCharsets.UTF_8);
+            source = new ByteArrayInputStream(octets);
+        }
+        try (JsonParser parser = PARSER_FACTORY.createParser(source, StandardCharsets.UTF_8)) {
+            return lire(parser, texteBrut);
+        }
+    }
+
+    private static ReponseGemini lire(JsonParser parser, String texteBrut) {
+        Tour tour = null;
+        String finishReason = null;
+        int promptTokenCount = 0;
+        int candidatesTokenCount = 0;
+        int totalTokenCount = 0;
+        int cachedContentTokenCount = 0;
+        attendre(parser, JsonParser.Event.START_OBJECT);
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            switch (parser.getString()) {
+                case "candidates" -> {
+                    if (parser.next() != JsonParser.Event.START_ARRAY) {
+                        continue;
+                    }
+                    if (parser.next() == JsonParser.Event.START_OBJECT) {
+                        // Premier candidat
+                        while (parser.next() == JsonParser.Event.KEY_NAME) {
+                            switch (parser.getString()) {
+                                case "content" -> tour = lireContent(parser);
+                                case "finishReason" -> {
+                                    parser.next();
+                                    finishReason = parser.getString();
+                                }
+                                default -> sauter(parser);
+                            }
+                        }
+                        // Les autres candidats ne sont pas utilisés
+                        parser.skipArray();
+                    }
+                }
+                case "usageMetadata" -> {
+                    if (parser.next() != JsonParser.Event.START_OBJECT) {
+                        continue;
+                    }
+                    while (parser.next() == JsonParser.Event.KEY_NAME) {
+                        String cle = parser.getString();
+                        JsonParser.Event valeur = parser.next();
+                        if (valeur == JsonParser.Event.VALUE_NUMBER) {
+                            switch (cle) {
+                                case "promptTokenCount" -> promptTokenCount = parser.getInt();
+                                case "candidatesTokenCount" -> candidatesTokenCount = parser.getInt();
+                                case "totalTokenCount" -> totalTokenCount = parser.getInt();
+                                case "cachedContentTokenCount" -> cachedContentTokenCount = parser.getInt();
+                                default -> { }
+                            }
+                        } else {
+                            sauterValeur(parser, valeur);
+                        }
+                    }
+                }
+                default -> sauter(parser);
+            }
+        }
+        return new ReponseGemini(tour, finishReason, promptTokenCount, candidatesTokenCount, totalTokenCount,
+                cachedContentTokenCount, texteBrut);
+    }
+
+    /**
+     * Lit l'objet "content" : { "parts": [ { "text": "..." } ], "role": "model" }.
+     */
+    private static Tour lireContent(JsonParser parser) {
+        if (parser.next() != JsonParser.Event.START_OBJECT) {
+            return null;
+        }
+        String role = Tour.MODEL;
+        List<String> textes = new ArrayList<>();
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            switch (parser.getString()) {
+                case "role" -> {
+                    parser.next();
+                    role = parser.getString();
+                }
+                case "parts" -> {
+                    attendre(parser, JsonParser.Event.START_ARRAY);
+                    while (parser.next() == JsonParser.Event.START_OBJECT) {
+                        String texte = "";
+                        while (parser.next() == JsonParser.Event.KEY_NAME) {
+                            if ("text".equals(parser.getString())) {
+                                parser.next();
+                                texte = parser.getString();
+                            } else {
+                                sauter(parser);
+                            }
+                        }
+                        textes.add(texte);
+                    }
+                }
+                default -> sauter(parser);
+            }
+        }
+        return new Tour(role, textes);
+    }
+
+    private static void attendre(JsonParser parser, JsonParser.Event attendu) {
+        JsonParser.Event event = parser.next();
+        if (event != attendu) {
+            throw new IllegalStateException("Réponse JSON inattendue : " + event + " au lieu de " + attendu);
+        }
+    }
+
+    /**
+     * Saute la valeur associée à la clé qui vient d'être lue.
+     */
+    private static void sauter(JsonParser parser) {
+        sauterValeur(parser, parser.next());
+    }
+
+    private static void sauterValeur(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (event == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+}
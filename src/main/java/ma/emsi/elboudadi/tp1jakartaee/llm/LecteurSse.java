@@ -0,0 +1,135 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Lit le flux Server-Sent Events renvoyé par l'endpoint streamGenerateContent de Gemini.
+ * Chaque évènement est de la forme "data: {...}" suivi d'une ligne vide ; le document JSON a le même format
+ * que la réponse de generateContent mais ne contient qu'un morceau du texte de la réponse.
+ * Les évènements sont traités un par un, au fur et à mesure de leur arrivée.
+ */
+public final class LecteurSse {
+
+    private LecteurSse() {
+    }
+
+    /**
+     * Lit tout le flux et passe chaque morceau de texte au consumer dès qu'il est reçu.
+     *
+     * @param flux le corps de la réponse de l'API.
+     * @param surFragment appelé pour chaque morceau de texte de la réponse.
+     * @return la réponse complète : la concaténation de tous les morceaux de texte, avec finishReason
+     * et usageMetadata du dernier morceau qui les contient ; finishReason est null si le flux s'est terminé
+     * avant la fin de la génération.
+     * @throws IOException si la lecture du flux échoue.
+     * @throws jakarta.json.JsonException si un morceau n'est pas un document JSON valide.
+     */
+    public static ReponseGemini lire(InputStream flux, Consumer<String> surFragment) throws IOException {
+        Reponse reponse = new Reponse();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(flux, StandardCharsets.UTF_8));
+        StringBuilder data = new StringBuilder();
+        String ligne;
+        while ((ligne = reader.readLine()) != null) {
+            if (ligne.isEmpty()) {
+                // Fin d'un évènement
+                traiterEvenement(data, reponse, surFragment);
+                data.setLength(0);
+            } else if (ligne.startsWith("data:")) {
+                // Un évènement peut être réparti sur plusieurs lignes "data:"
+                if (!data.isEmpty()) {
+                    data.append('\n');
+                }
+                // Une ligne "data:" seule est valide : elle ajoute une ligne vide aux données.
+                data.append(ligne.substring(ligne.length() > 5 && ligne.charAt(5) == ' ' ? 6 : 5));
+            }
+            // Les autres champs (event:, id:, commentaires ":") ne sont pas utilisés par Gemini.
+        }
+        // Dernier évènement si le flux ne se termine pas par une ligne vide
+        traiterEvenement(data, reponse, surFragment);
+        return reponse.terminer();
+    }
+
+    private static void traiterEvenement(StringBuilder data, Reponse reponse, Consumer<String> surFragment) {
+        if (data.isEmpty()) {
+            return;
+        }
+        String texte = reponse.ajouter(data.toString());
+        if (!texte.isEmpty()) {
+            surFragment.accept(texte);
+        }
+    }
+
+    /**
+     * Extrait le texte d'un morceau de réponse : candidates[0].content.parts[*].text.
+     * Le dernier morceau peut ne contenir que usageMetadata et finishReason ; dans ce cas le texte est vide.
+     */
+    static String extraireTexte(JsonObject morceau) {
+        JsonArray candidates = morceau.getJsonArray("candidates");
+        if (candidates == null || candidates.isEmpty()) {
+            return "";
+        }
+        JsonObject content = candidates.getJsonObject(0).getJsonObject("content");
+        if (content == null || !content.containsKey("parts")) {
+            return "";
+        }
+        StringBuilder texte = new StringBuilder();
+        for (JsonValue part : content.getJsonArray("parts")) {
+            texte.append(part.asJsonObject().getString("text", ""));
+        }
+        return texte.toString();
+    }
+
+    /**
+     * La réponse en cours de lecture. Chaque morceau contient usageMetadata avec les nombres de tokens
+     * à ce moment de la génération ; seuls ceux du dernier morceau sont gardés.
+     */
+    private static final class Reponse {
+        private final StringBuilder texte = new StringBuilder();
+        private String finishReason;
+        private JsonObject usageMetadata;
+
+        /**
+         * @param json le document JSON d'un évènement.
+         * @return le texte de ce morceau de la réponse.
+         */
+        String ajouter(String json) {
+            JsonObject morceau;
+            try (JsonReader jsonReader = Json.createReader(new StringReader(json))) {
+                morceau = jsonReader.readObject();
+            }
+            JsonArray candidates = morceau.getJsonArray("candidates");
+            if (candidates != null && !candidates.isEmpty()) {
+                String raison = candidates.getJsonObject(0).getString("finishReason", null);
+                if (raison != null) {
+                    finishReason = raison;
+                }
+            }
+            JsonObject usage = morceau.getJsonObject("usageMetadata");
+            if (usage != null) {
+                usageMetadata = usage;
+            }
+            String texteMorceau = extraireTexte(morceau);
+            texte.append(texteMorceau);
+            return texteMorceau;
+        }
+
+        ReponseGemini terminer() {
+            JsonObject usage = usageMetadata == null ? JsonValue.EMPTY_JSON_OBJECT : usageMetadata;
+            return new ReponseGemini(Tour.model(texte.toString()), finishReason,
+                    usage.getInt("promptTokenCount", 0), usage.getInt("candidatesTokenCount", 0),
+                    usage.getInt("totalTokenCount", 0), usage.getInt("cachedContentTokenCount", 0), null);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limite adaptative du nombre d'appels simultanés à l'API (algorithme AIMD).
+ * Chaque appel réussi augmente la limite de 1/limite (donc d'environ 1 par "tour" d'appels) ;
+ * chaque surcharge signalée par l'API (429, 5xx, timeout) divise la limite par 2.
+ * La limite reste entre un minimum et un maximum configurés.
+ */
+public class LimiteConcurrence {
+
+    private final double minimum;
+    private final double maximum;
+    private double limite;
+    private int enCours;
+
+    private final ReentrantLock verrou = new ReentrantLock();
+    private final Condition placeLibre = verrou.newCondition();
+
+    public LimiteConcurrence(int initiale, int minimum, int maximum) {
+        this.minimum = Math.max(1, minimum);
+        this.maximum = Math.max(this.minimum, maximum);
+        this.limite = Math.min(this.maximum, Math.max(this.minimum, initiale));
+    }
+
+    /**
+     * Attend qu'une place soit libre.
+     *
+     * @param attenteMs durée maximale d'attente ; 0 pour ne pas attendre.
+     * @return true si la place a été obtenue (il faudra appeler liberer), false si le délai est dépassé.
+     */
+    public boolean acquerir(long attenteMs) throws InterruptedException {
+        long resteNanos = TimeUnit.MILLISECONDS.toNanos(attenteMs);
+        verrou.lock();
+        try {
+            while (enCours >= (int) limite) {
+                if (resteNanos <= 0) {
+                    return false;
+                }
+                resteNanos = placeLibre.awaitNanos(resteNanos);
+            }
+            enCours++;
+            return true;
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * Libère la place obtenue par acquerir et adapte la limite.
+     *
+     * @param surcharge true si l'API a signalé une surcharge (la limite est diminuée),
+     *                  false si l'appel a réussi (la limite est augmentée).
+     */
+    public void liberer(boolean surcharge) {
+        verrou.lock();
+        try {
+            enCours--;
+            if (surcharge) {
+                limite = Math.max(minimum, limite / 2);
+            } else {
+                limite = Math.min(maximum, limite + 1 / limite);
+            }
+            placeLibre.signalAll();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * Libère la place sans modifier la limite (appel qui n'a rien appris sur l'état de l'API).
+     */
+    public void liberer() {
+        verrou.lock();
+        try {
+            enCours--;
+            placeLibre.signalAll();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    public int getLimite() {
+        verrou.lock();
+        try {
+            return (int) limite;
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    public int getEnCours() {
+        verrou.lock();
+        try {
+            return enCours;
+        } finally {
+            verrou.unlock();
+        }
+    }
+}
@@ -1,42 +1,146 @@
 package ma.emsi.elboudadi.tp1jakartaee.llm;
 
-import jakarta.enterprise.context.Dependent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.ws.rs.client.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Gère l'interface avec l'API de Gemini.
  * Son rôle est essentiellement de lancer une requête à chaque nouvelle
  * question qu'on veut envoyer à l'API.
  *
- * De portée dependent pour réinitialiser la conversation à chaque fois que
- * l'instance qui l'utilise est renouvelée.
- * Par exemple, si l'instance qui l'utilise est de portée View, la conversation est
- * réunitialisée à chaque fois que l'utilisateur quitte la page en cours.
+ * De portée application : un seul client REST (et donc un seul pool de connexions keep-alive)
+ * est partagé par toutes les conversations. Un Client JAX-RS et ses WebTarget sont thread-safe.
+ * L'état de chaque conversation est conservé dans JsonUtilPourGemini, pas ici.
+ * Le client est fermé quand l'application est arrêtée (undeploy).
+ *
+ * Paramètres (propriétés système ou variables d'environnement, voir ConfigurationLlm) :
+ * gemini.connect.timeout et gemini.read.timeout en millisecondes,
+ * gemini.max.connections nombre maximum de connexions par hôte,
+ * gemini.async.threads nombre de threads pour les requêtes asynchrones,
+ * gemini.base.url URL de base de l'API (par exemple celle d'un serveur qui simule l'API pour les tests de charge),
+ * gemini.modele nom du modèle,
+ * gemini.modeles liste ordonnée de modèles séparés par des virgules (le premier est le modèle principal,
+ * les suivants sont utilisés par RouteurModeles) ; par défaut, seulement gemini.modele.
  */
-@Dependent
-public class LlmClientPourGemini implements Serializable {
+@ApplicationScoped
+public class LlmClientPourGemini {
+    // URL de base de l'API, sans le modèle
+    private String urlBase;
+    // Modèle principal
+    private String modele;
+    // Tous les modèles, le modèle principal en premier
+    private List<String> modeles;
+    // Endpoint generateContent de chaque modèle
+    private Map<String, WebTarget> targetsParModele;
     // Clé pour l'API du LLM
-    private final String key;
+    private String key;
     // Client REST. Facilite les échanges avec une API REST.
     private Client clientRest; // Pour pouvoir le fermer
     // Représente un endpoint de serveur REST
-    private final WebTarget target;
+    private WebTarget target;
+    // Endpoint pour recevoir la réponse par morceaux (Server-Sent Events)
+    private WebTarget targetStream;
+    // Endpoint des contenus en cache (cachedContents)
+    private WebTarget targetCache;
+    // Threads du client REST pour les requêtes asynchrones (pas les threads du conteneur de servlets)
+    private ExecutorService executorAsync;
 
+    /**
+     * Obligatoire pour un bean CDI.
+     * Le client n'est pas créé ici car le constructeur est aussi appelé pour le proxy CDI.
+     */
     public LlmClientPourGemini() {
+    }
+
+    @PostConstruct
+    void init() {
         // Récupère la clé secrète pour travailler avec l'API du LLM, mise dans une variable d'environnement
         this.key = System.getenv("GEMINI_API_KEY");
         // du système d'exploitation.
+        this.urlBase = ConfigurationLlm.lire("gemini.base.url", "https://generativelanguage.googleapis.com/v1beta");
+        this.modele = ConfigurationLlm.lire("gemini.modele", "gemini-2.0-flash");
+        this.modeles = new ArrayList<>();
+        for (String nom : ConfigurationLlm.lire("gemini.modeles", modele).split(",")) {
+            if (!nom.isBlank() && !modeles.contains(nom.trim())) {
+                modeles.add(nom.trim());
+            }
+        }
+        this.modele = modeles.get(0);
+
+        int connectTimeout = ConfigurationLlm.lireInt("gemini.connect.timeout", 5_000);
+        int readTimeout = ConfigurationLlm.lireInt("gemini.read.timeout", 120_000);
+        int maxConnexions = ConfigurationLlm.lireInt("gemini.max.connections", 50);
+        int threadsAsync = ConfigurationLlm.lireInt("gemini.async.threads", maxConnexions);
+        AtomicInteger numeroThread = new AtomicInteger();
+        this.executorAsync = Executors.newFixedThreadPool(threadsAsync, r -> {
+            Thread thread = new Thread(r, "gemini-async-" + numeroThread.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        // Client REST pour envoyer des requêtes vers les endpoints de l'API du LLM
-        this.clientRest = ClientBuilder.newClient();
+        // Client REST pour envoyer des requêtes vers les endpoints de l'API du LLM.
+        // La taille du pool n'est pas standardisée par JAX-RS : les propriétés des implémentations
+        // les plus courantes sont positionnées, celles qui ne sont pas reconnues sont ignorées.
+        this.clientRest = ClientBuilder.newBuilder()
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .executorService(executorAsync)
+                // RESTEasy (WildFly)
+                .property("resteasy.connectionPoolSize", maxConnexions)
+                .property("resteasy.maxPooledPerRoute", maxConnexions)
+                // Jersey (GlassFish, Payara) avec le connecteur Apache
+                .property("jersey.config.apache.client.connectionManagerShared", true)
+                .property("jersey.config.client.connectionPoolSize", maxConnexions)
+                // PATCH (prolongation des contenus en cache) avec le connecteur par défaut de Jersey
+                .property("jersey.config.client.httpUrlConnection.setMethodWorkaround", true)
+                .build();
         // Endpoint REST pour envoyer la question à l'API.
         // L'URL à trouver a été utilisé dans la commande curl pour tester la clé secrète.
         // Elle se trouve aussi dans le support de cours.
-        this.target = clientRest.target(("https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash:generateContent")).queryParam("key",this.key);
+        this.targetsParModele = new LinkedHashMap<>();
+        for (String nom : modeles) {
+            targetsParModele.put(nom, avecCle(clientRest.target(urlBase + "/models/" + nom + ":generateContent")));
+        }
+        this.target = targetsParModele.get(modele);
+        // Même modèle, mais la réponse est envoyée au fur et à mesure de sa génération.
+        this.targetStream = avecCle(clientRest.target(urlBase + "/models/" + modele + ":streamGenerateContent")
+                .queryParam("alt", "sse"));
+        this.targetCache = clientRest.target(urlBase + "/cachedContents");
+    }
+
+    /**
+     * Ajoute la clé secrète à l'URL, si elle est définie (un serveur de test n'en a pas besoin).
+     */
+    private WebTarget avecCle(WebTarget webTarget) {
+        return this.key == null ? webTarget : webTarget.queryParam("key", this.key);
+    }
+
+    /**
+     * @return le nom du modèle de l'API, par exemple "gemini-2.0-flash".
+     */
+    public String getModele() {
+        return modele;
+    }
+
+    /**
+     * @return tous les modèles configurés, dans l'ordre de préférence ; le premier est getModele().
+     */
+    public List<String> getModeles() {
+        return List.copyOf(modeles);
     }
 
     /**
@@ -51,7 +155,77 @@ public class LlmClientPourGemini implements Serializable {
         return request.post(requestEntity);
     }
 
+    /**
+     * Envoie une requête à l'API de Gemini sans bloquer le thread appelant.
+     * Le thread de la requête HTTP en cours (thread du conteneur) est libéré tout de suite ;
+     * l'attente de la réponse se fait dans les threads du client REST.
+     *
+     * @param requestEntity le corps de la requête (en JSON).
+     * @return la réponse REST de l'API, disponible quand l'API a répondu.
+     */
+    public CompletionStage<Response> envoyerRequeteAsync(Entity requestEntity) {
+        return target.request(MediaType.APPLICATION_JSON_TYPE).rx().post(requestEntity);
+    }
+
+    /**
+     * Comme envoyerRequeteAsync, à un autre modèle que le modèle principal.
+     *
+     * @param modele un des modèles de getModeles().
+     */
+    public CompletionStage<Response> envoyerRequeteAsync(String modele, Entity requestEntity) {
+        WebTarget targetModele = targetsParModele.get(modele);
+        if (targetModele == null) {
+            throw new IllegalArgumentException("Modèle non configuré : " + modele);
+        }
+        return targetModele.request(MediaType.APPLICATION_JSON_TYPE).rx().post(requestEntity);
+    }
+
+    /**
+     * Envoie une requête à l'API de Gemini en demandant une réponse en streaming.
+     * Le corps de la réponse est un flux Server-Sent Events : une ligne "data: {...}" par morceau de réponse.
+     * L'appelant doit lire le flux (readEntity(InputStream.class)) puis fermer la réponse.
+     *
+     * @param requestEntity le corps de la requête (en JSON), le même que pour envoyerRequete.
+     * @return réponse REST de l'API (corps au format text/event-stream).
+     */
+    public Response envoyerRequeteStream(Entity requestEntity) {
+        Invocation.Builder request = targetStream.request(MediaType.SERVER_SENT_EVENTS_TYPE);
+        return request.post(requestEntity);
+    }
+
+    /**
+     * Crée un contenu en cache (POST cachedContents), sans bloquer le thread appelant.
+     *
+     * @param requestEntity le corps de la requête (en JSON) : modèle, contenu et durée de vie.
+     * @return la réponse REST de l'API, qui contient le nom du contenu ; à fermer par l'appelant.
+     */
+    public CompletionStage<Response> creerContenuEnCache(Entity requestEntity) {
+        return avecCle(targetCache).request(MediaType.APPLICATION_JSON_TYPE).rx().post(requestEntity);
+    }
+
+    /**
+     * Prolonge la durée de vie d'un contenu en cache (PATCH cachedContents/...?updateMask=ttl),
+     * sans bloquer le thread appelant.
+     *
+     * @param nom nom du contenu, par exemple "cachedContents/abc123".
+     * @param requestEntity le corps de la requête (en JSON) avec la nouvelle durée de vie.
+     * @return la réponse REST de l'API ; à fermer par l'appelant.
+     */
+    public CompletionStage<Response> prolongerContenuEnCache(String nom, Entity requestEntity) {
+        WebTarget targetContenu = clientRest.target(urlBase).path(nom).queryParam("updateMask", "ttl");
+        return avecCle(targetContenu).request(MediaType.APPLICATION_JSON_TYPE).rx().method("PATCH", requestEntity);
+    }
+
+    /**
+     * Ferme le client REST et libère les connexions du pool quand l'application est arrêtée.
+     */
+    @PreDestroy
     public void closeClient() {
-        this.clientRest.close();
+        if (this.clientRest != null) {
+            this.clientRest.close();
+        }
+        if (this.executorAsync != null) {
+            this.executorAsync.shutdownNow();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,4 +1,16 @@
 package ma.emsi.elboudadi.tp1jakartaee.llm;
 
-public record LlmInteraction(String questionJson, String reponseJson, String reponseExtraite) {
+/**
+ * Une question et sa réponse.
+ *
+ * @param questionJson le document JSON de la requête, pour le debug.
+ * @param reponseJson le document JSON de la réponse, pour le debug ; null si la capture pour le debug n'est pas activée.
+ * @param reponseExtraite le texte de la réponse.
+ * @param reponse les informations lues dans la réponse (raison de fin, nombres de tokens) ; null si elles ne sont pas connues.
+ */
+public record LlmInteraction(String questionJson, String reponseJson, String reponseExtraite, ReponseGemini reponse) {
+
+    public LlmInteraction(String questionJson, String reponseJson, String reponseExtraite) {
+        this(questionJson, reponseJson, reponseExtraite, null);
+    }
 }
\ No newline at end of file
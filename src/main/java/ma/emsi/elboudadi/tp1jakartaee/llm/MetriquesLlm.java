@@ -0,0 +1,111 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métriques des appels à l'API du LLM : durées (écriture du corps de la requête, réseau, lecture de la réponse),
+ * statuts HTTP, erreurs, nombres de tokens (usageMetadata) et tailles des requêtes et des réponses.
+ * Les compteurs sont des LongAdder : l'enregistrement ne prend aucun verrou sur le chemin des requêtes.
+ */
+@ApplicationScoped
+public class MetriquesLlm implements SourceMetriques {
+
+    private static final double[] BORNES_SECONDES =
+            {0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final double[] BORNES_OCTETS =
+            {256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304};
+
+    private final Histogramme serialisation = new Histogramme(BORNES_SECONDES);
+    private final Histogramme reseau = new Histogramme(BORNES_SECONDES);
+    private final Histogramme lecture = new Histogramme(BORNES_SECONDES);
+    private final Histogramme octetsRequete = new Histogramme(BORNES_OCTETS);
+    private final Histogramme octetsReponse = new Histogramme(BORNES_OCTETS);
+
+    private final Map<Integer, LongAdder> statuts = new ConcurrentHashMap<>();
+    private final LongAdder erreurs = new LongAdder();
+    private final LongAdder tokensPrompt = new LongAdder();
+    private final LongAdder tokensReponse = new LongAdder();
+    private final LongAdder tokensEnCache = new LongAdder();
+
+    /**
+     * Écriture du corps de la requête (document JSON) dans le flux HTTP.
+     */
+    public void enregistrerSerialisation(long nanos, long octets) {
+        serialisation.enregistrerNanos(nanos);
+        octetsRequete.enregistrer(octets);
+    }
+
+    /**
+     * Attente de la réponse de l'API, sans l'écriture du corps de la requête.
+     */
+    public void enregistrerReseau(long nanos, int statut) {
+        reseau.enregistrerNanos(nanos);
+        statuts.computeIfAbsent(statut, s -> new LongAdder()).increment();
+    }
+
+    /**
+     * Lecture et analyse de la réponse.
+     */
+    public void enregistrerLecture(long nanos, long octets) {
+        lecture.enregistrerNanos(nanos);
+        octetsReponse.enregistrer(octets);
+    }
+
+    /**
+     * @param enCache tokens de la requête lus dans un contenu en cache (CacheContexte), compris dans prompt :
+     *                ce sont les tokens économisés par le cache de contexte.
+     */
+    public void enregistrerTokens(int prompt, int reponse, int enCache) {
+        tokensPrompt.add(prompt);
+        tokensReponse.add(reponse);
+        tokensEnCache.add(enCache);
+    }
+
+    /**
+     * Une RequeteException, ou une erreur du client REST (ProcessingException), a été envoyée à l'appelant.
+     */
+    public void enregistrerErreur() {
+        erreurs.increment();
+    }
+
+    /**
+     * @return la durée réseau (en secondes) sous laquelle se trouvent q % des appels, selon l'histogramme.
+     */
+    public double quantileReseau(double q) {
+        return reseau.quantile(q);
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_latence_secondes Durée des appels à l'API du LLM, par phase.");
+        out.println("# TYPE llm_latence_secondes histogram");
+        serialisation.ecrire(out, "llm_latence_secondes", "phase=\"serialisation\"");
+        reseau.ecrire(out, "llm_latence_secondes", "phase=\"reseau\"");
+        lecture.ecrire(out, "llm_latence_secondes", "phase=\"lecture\"");
+
+        out.println("# HELP llm_octets Taille des corps des requêtes et des réponses.");
+        out.println("# TYPE llm_octets histogram");
+        octetsRequete.ecrire(out, "llm_octets", "sens=\"requete\"");
+        octetsReponse.ecrire(out, "llm_octets", "sens=\"reponse\"");
+
+        out.println("# HELP llm_reponses_total Réponses de l'API du LLM par statut HTTP.");
+        out.println("# TYPE llm_reponses_total counter");
+        statuts.forEach((statut, compteur) ->
+                out.printf("llm_reponses_total{statut=\"%d\"} %d%n", statut, compteur.sum()));
+
+        out.println("# HELP llm_erreurs_total Erreurs (RequeteException, ProcessingException) envoyées à l'application.");
+        out.println("# TYPE llm_erreurs_total counter");
+        out.printf("llm_erreurs_total %d%n", erreurs.sum());
+
+        out.println("# HELP llm_tokens_total Tokens comptés par l'API (usageMetadata).");
+        out.println("# TYPE llm_tokens_total counter");
+        out.printf("llm_tokens_total{type=\"prompt\"} %d%n", tokensPrompt.sum());
+        out.printf("llm_tokens_total{type=\"reponse\"} %d%n", tokensReponse.sum());
+        out.printf("llm_tokens_total{type=\"cache\"} %d%n", tokensEnCache.sum());
+    }
+}
@@ -0,0 +1,498 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Partage équitable des appels à l'API entre les sessions, avant RouteurModeles et PasserelleGemini :
+ * un utilisateur qui envoie de longues questions en boucle ne doit pas prendre la place de tous les autres.
+ *
+ * Au plus gemini.ordonnanceur.places requêtes sont en cours vers l'API ; les suivantes attendent dans
+ * une file par session. Quand une place se libère, elle est donnée selon l'ordre d'une file équitable pondérée
+ * ("self-clocked fair queueing") : chaque requête reçoit une étiquette, fin virtuelle de la requête précédente
+ * de la session (ou temps virtuel actuel, s'il est plus grand) plus son coût divisé par le poids de son rôle.
+ * Le coût est le nombre de tokens (usageMetadata) de la dernière réponse de la session, et il est corrigé
+ * quand la réponse arrive avec le nombre réel. Une session qui pose beaucoup de longues questions voit donc
+ * ses requêtes passer après celles des autres sessions.
+ *
+ * Admission : une requête est refusée tout de suite (RequeteRefuseeException, affichée à l'utilisateur)
+ * si la file est pleine (gemini.ordonnanceur.file.max), si la session a déjà trop de requêtes en attente
+ * (gemini.ordonnanceur.file.session) ou si la session a atteint son quota de tokens ou de requêtes
+ * sur la fenêtre gemini.ordonnanceur.quota.fenetre (ms). Une requête qui attend plus de
+ * gemini.ordonnanceur.attente ms est aussi refusée.
+ *
+ * Les sessions sont réparties dans BANDES bandes, chacune avec son propre verrou : l'ajout d'une requête
+ * ne bloque que les sessions de la même bande. La première requête de chaque bande est aussi rangée dans
+ * un ensemble trié commun (tetes), mis à jour sous le verrou de la bande : le choix de la requête suivante
+ * lit le début de cet ensemble et ne prend que le verrou de la bande choisie.
+ *
+ * Paramètres (voir ConfigurationLlm), préfixe gemini.ordonnanceur. : actif (true par défaut), places
+ * (par défaut gemini.passerelle.limite.initiale), file.max, file.session, attente, quota.fenetre,
+ * quota.tokens et quota.requetes (0 : pas de quota), poids (par exemple "Assistant=2,Écrivain Créatif=0.5" ;
+ * poids 1 pour les autres rôles et les rôles écrits par l'utilisateur).
+ */
+@ApplicationScoped
+public class OrdonnanceurEquitable implements SourceMetriques {
+
+    private static final Logger LOGGER = Logger.getLogger(OrdonnanceurEquitable.class.getName());
+
+    private static final int BANDES = 16;
+
+    /**
+     * Coût d'une requête d'une session dont on ne connaît pas encore de réponse, en tokens.
+     */
+    private static final long COUT_INITIAL = 1_000;
+
+    private static final double[] BORNES_SECONDES = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * Place donnée quand l'ordonnanceur n'est pas actif.
+     */
+    private static final Place SANS_ORDONNANCEMENT = new Place(null, null, 0, 1);
+
+    /**
+     * Qui envoie la requête.
+     *
+     * @param session identifiant de la session (ou de la conversation).
+     * @param role libellé du rôle prédéfini, null pour un rôle écrit par l'utilisateur.
+     */
+    public record Demandeur(String session, String role) {
+    }
+
+    /**
+     * Place obtenue par entrer ou entrerAsync, à rendre par sortir quand la réponse a été lue.
+     */
+    public static final class Place {
+        private final EtatSession session;
+        private final Bande bande;
+        private final long coutEstime;
+        private final double poids;
+        private final AtomicBoolean rendue = new AtomicBoolean();
+
+        private Place(EtatSession session, Bande bande, long coutEstime, double poids) {
+            this.session = session;
+            this.bande = bande;
+            this.coutEstime = coutEstime;
+            this.poids = poids;
+        }
+    }
+
+    /**
+     * État d'une session ; modifié sous le verrou de sa bande.
+     */
+    private static final class EtatSession {
+        private long derniereEtiquette;
+        private long coutEstime = COUT_INITIAL;
+        private int enAttente;
+        private int enCours;
+        private long debutFenetre;
+        private long tokensFenetre;
+        private int requetesFenetre;
+    }
+
+    /**
+     * Requête en attente d'une place.
+     */
+    private static final class Demande implements Comparable<Demande> {
+        private final EtatSession session;
+        private final Bande bande;
+        private final long etiquette;
+        private final long numero;
+        private final long coutEstime;
+        private final double poids;
+        private final long creation = System.nanoTime();
+        private final CompletableFuture<Place> resultat = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> expiration;
+
+        private Demande(EtatSession session, Bande bande, long etiquette, long numero, long coutEstime,
+                        double poids) {
+            this.session = session;
+            this.bande = bande;
+            this.etiquette = etiquette;
+            this.numero = numero;
+            this.coutEstime = coutEstime;
+            this.poids = poids;
+        }
+
+        @Override
+        public int compareTo(Demande autre) {
+            int comparaison = Long.compare(etiquette, autre.etiquette);
+            return comparaison != 0 ? comparaison : Long.compare(numero, autre.numero);
+        }
+    }
+
+    /**
+     * Sessions d'une bande et leurs requêtes en attente, par étiquette.
+     */
+    private static final class Bande {
+        private final Map<String, EtatSession> sessions = new HashMap<>();
+        private final PriorityQueue<Demande> file = new PriorityQueue<>();
+        private long prochainNettoyage;
+    }
+
+    private boolean actif;
+    private int placesMax;
+    private int fileMax;
+    private int fileSessionMax;
+    private long attenteMaxMs;
+    private long fenetreQuotaMs;
+    private long quotaTokens;
+    private int quotaRequetes;
+    private Map<String, Double> poids;
+    private Semaphore places;
+    private ScheduledExecutorService ordonnanceur;
+
+    private final Bande[] bandes = new Bande[BANDES];
+    /**
+     * Première requête de chaque bande qui a des requêtes en attente.
+     */
+    private final ConcurrentSkipListSet<Demande> tetes = new ConcurrentSkipListSet<>();
+    private final AtomicInteger enAttente = new AtomicInteger();
+    private final AtomicLong tempsVirtuel = new AtomicLong();
+    private final AtomicLong numeros = new AtomicLong();
+
+    private final LongAdder admises = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final Map<String, LongAdder> rejets = new LinkedHashMap<>();
+    private final Histogramme attente = new Histogramme(BORNES_SECONDES);
+
+    @PostConstruct
+    void init() {
+        this.actif = ConfigurationLlm.lireBoolean("gemini.ordonnanceur.actif", true);
+        this.placesMax = Math.max(1, ConfigurationLlm.lireInt("gemini.ordonnanceur.places",
+                ConfigurationLlm.lireInt("gemini.passerelle.limite.initiale", 20)));
+        this.fileMax = ConfigurationLlm.lireInt("gemini.ordonnanceur.file.max", 200);
+        this.fileSessionMax = Math.max(1, ConfigurationLlm.lireInt("gemini.ordonnanceur.file.session", 8));
+        this.attenteMaxMs = ConfigurationLlm.lireLong("gemini.ordonnanceur.attente", 30_000);
+        this.fenetreQuotaMs = Math.max(1_000, ConfigurationLlm.lireLong("gemini.ordonnanceur.quota.fenetre", 3_600_000));
+        this.quotaTokens = ConfigurationLlm.lireLong("gemini.ordonnanceur.quota.tokens", 0);
+        this.quotaRequetes = ConfigurationLlm.lireInt("gemini.ordonnanceur.quota.requetes", 0);
+        this.poids = lirePoids(ConfigurationLlm.lire("gemini.ordonnanceur.poids", ""));
+        this.places = new Semaphore(placesMax);
+        for (int i = 0; i < BANDES; i++) {
+            bandes[i] = new Bande();
+        }
+        for (String cause : new String[]{"file", "file_session", "quota_tokens", "quota_requetes", "attente"}) {
+            rejets.put(cause, new LongAdder());
+        }
+        this.ordonnanceur = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gemini-ordonnanceur");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void arreter() {
+        ordonnanceur.shutdownNow();
+    }
+
+    /**
+     * @param texte "libellé=poids,libellé=poids".
+     */
+    private static Map<String, Double> lirePoids(String texte) {
+        Map<String, Double> poids = new HashMap<>();
+        for (String element : texte.split(",")) {
+            int egal = element.lastIndexOf('=');
+            if (egal <= 0) {
+                continue;
+            }
+            try {
+                double valeur = Double.parseDouble(element.substring(egal + 1).trim());
+                if (valeur > 0) {
+                    poids.put(element.substring(0, egal).trim(), valeur);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Signalé ci-dessous
+            }
+            LOGGER.warning(() -> "Poids invalide ignoré dans gemini.ordonnanceur.poids : " + element);
+        }
+        return Map.copyOf(poids);
+    }
+
+    /**
+     * @return le nombre maximum de requêtes d'une session en attente d'une place (gemini.ordonnanceur.file.session) ;
+     * Integer.MAX_VALUE si l'ordonnanceur n'est pas actif.
+     */
+    public int getFileSessionMax() {
+        return actif ? fileSessionMax : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Attend une place pour envoyer une requête à l'API.
+     *
+     * @return la place, à rendre par sortir quand la réponse a été lue, même en cas d'erreur.
+     * @throws RequeteRefuseeException si la requête n'est pas admise ou a attendu trop longtemps.
+     */
+    public Place entrer(Demandeur demandeur) throws RequeteException {
+        CompletableFuture<Place> resultat = entrerAsync(demandeur);
+        try {
+            return resultat.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!resultat.completeExceptionally(new RequeteException("Envoi de la requête interrompu"))) {
+                // La place a été donnée entre-temps.
+                sortir(resultat.join(), null);
+            }
+            throw new RequeteException("Envoi de la requête interrompu");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RequeteException requeteException) {
+                throw requeteException;
+            }
+            throw new RequeteException(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Comme entrer, sans bloquer le thread appelant.
+     *
+     * @return la place quand elle est donnée ; en cas de refus, le résultat se termine avec
+     * une RequeteRefuseeException.
+     */
+    public CompletableFuture<Place> entrerAsync(Demandeur demandeur) {
+        if (!actif) {
+            return CompletableFuture.completedFuture(SANS_ORDONNANCEMENT);
+        }
+        double poidsRole = demandeur.role() == null ? 1 : poids.getOrDefault(demandeur.role(), 1.0);
+        Bande bande = bandes[Math.floorMod(demandeur.session().hashCode(), BANDES)];
+        Demande demande;
+        synchronized (bande) {
+            long maintenant = System.currentTimeMillis();
+            nettoyer(bande, maintenant);
+            EtatSession session = bande.sessions.computeIfAbsent(demandeur.session(), id -> new EtatSession());
+            String refus = refus(session, maintenant);
+            if (refus != null) {
+                return CompletableFuture.failedFuture(new RequeteRefuseeException(refus));
+            }
+            session.requetesFenetre++;
+            session.enAttente++;
+            long etiquette = Math.max(tempsVirtuel.get(), session.derniereEtiquette)
+                    + Math.max(1, Math.round(session.coutEstime / poidsRole));
+            session.derniereEtiquette = etiquette;
+            demande = new Demande(session, bande, etiquette, numeros.incrementAndGet(), session.coutEstime,
+                    poidsRole);
+            Demande tete = bande.file.peek();
+            bande.file.add(demande);
+            changerTete(bande, tete);
+            enAttente.incrementAndGet();
+        }
+        admises.increment();
+        demande.resultat.whenComplete((place, erreur) -> {
+            if (erreur != null) {
+                retirer(demande);
+            }
+        });
+        demande.expiration = ordonnanceur.schedule(() -> {
+            if (demande.resultat.completeExceptionally(new RequeteRefuseeException(
+                    "Le LLM est très demandé en ce moment : votre question n'a pas pu être envoyée, réessayez"))) {
+                rejets.get("attente").increment();
+            }
+        }, attenteMaxMs, TimeUnit.MILLISECONDS);
+        distribuer();
+        return demande.resultat;
+    }
+
+    /**
+     * Rend la place et compte les tokens de la réponse dans le quota et le coût de la session.
+     *
+     * @param place null si aucune place n'a été obtenue : rien à faire.
+     * @param reponse la réponse de l'API, null en cas d'échec.
+     */
+    public void sortir(Place place, ReponseGemini reponse) {
+        if (place == null || place == SANS_ORDONNANCEMENT || !place.rendue.compareAndSet(false, true)) {
+            return;
+        }
+        long tokensReponse = reponse == null ? 0 : reponse.promptTokenCount() + reponse.candidatesTokenCount();
+        synchronized (place.bande) {
+            EtatSession session = place.session;
+            session.enCours--;
+            if (tokensReponse > 0) {
+                session.tokensFenetre += tokensReponse;
+                // Correction de l'étiquette avec le coût réel de la requête.
+                session.derniereEtiquette += Math.round((tokensReponse - place.coutEstime) / place.poids);
+                session.coutEstime = tokensReponse;
+            }
+        }
+        tokens.add(tokensReponse);
+        places.release();
+        distribuer();
+    }
+
+    /**
+     * @return la raison du refus de la requête, pour l'utilisateur ; null si elle est admise.
+     */
+    private String refus(EtatSession session, long maintenant) {
+        if (maintenant - session.debutFenetre >= fenetreQuotaMs) {
+            session.debutFenetre = maintenant;
+            session.tokensFenetre = 0;
+            session.requetesFenetre = 0;
+        }
+        long reprise = (session.debutFenetre + fenetreQuotaMs - maintenant) / 1000 + 1;
+        if (quotaTokens > 0 && session.tokensFenetre >= quotaTokens) {
+            rejets.get("quota_tokens").increment();
+            return "Quota de " + quotaTokens + " tokens atteint pour votre session, réessayez dans " + reprise + " s";
+        }
+        if (quotaRequetes > 0 && session.requetesFenetre >= quotaRequetes) {
+            rejets.get("quota_requetes").increment();
+            return "Quota de " + quotaRequetes + " questions atteint pour votre session, réessayez dans "
+                    + reprise + " s";
+        }
+        if (session.enAttente >= fileSessionMax) {
+            rejets.get("file_session").increment();
+            return "Vous avez déjà " + session.enAttente + " questions en attente, attendez leurs réponses";
+        }
+        if (enAttente.get() >= fileMax) {
+            rejets.get("file").increment();
+            return "Trop de questions en attente vers le LLM, réessayez dans un moment";
+        }
+        return null;
+    }
+
+    /**
+     * Donne les places libres aux requêtes qui ont les plus petites étiquettes.
+     */
+    private void distribuer() {
+        while (enAttente.get() > 0) {
+            if (!places.tryAcquire()) {
+                // La prochaine place rendue relancera la distribution.
+                return;
+            }
+            Demande demande = retirerPremiere();
+            if (demande == null || !donnerPlace(demande)) {
+                places.release();
+            }
+        }
+    }
+
+    /**
+     * @return true si la place a été donnée, false si la requête a été abandonnée entre-temps.
+     */
+    private boolean donnerPlace(Demande demande) {
+        tempsVirtuel.accumulateAndGet(demande.etiquette, Math::max);
+        Place place = new Place(demande.session, demande.bande, demande.coutEstime, demande.poids);
+        if (!demande.resultat.complete(place)) {
+            synchronized (demande.bande) {
+                demande.session.enCours--;
+            }
+            return false;
+        }
+        ScheduledFuture<?> expiration = demande.expiration;
+        if (expiration != null) {
+            expiration.cancel(false);
+        }
+        attente.enregistrerNanos(System.nanoTime() - demande.creation);
+        return true;
+    }
+
+    /**
+     * Retire de sa bande la requête qui a la plus petite étiquette de toutes les bandes : la première de tetes.
+     * Si elle n'est plus la première de sa bande (abandonnée, ou dépassée par une requête ajoutée entre-temps),
+     * null est retourné et la distribution recommence ; la nouvelle première a été mise dans tetes.
+     */
+    private Demande retirerPremiere() {
+        Demande premiere = tetes.pollFirst();
+        if (premiere == null) {
+            return null;
+        }
+        synchronized (premiere.bande) {
+            if (premiere.bande.file.peek() != premiere) {
+                return null;
+            }
+            premiere.bande.file.poll();
+            changerTete(premiere.bande, premiere);
+            premiere.session.enAttente--;
+            premiere.session.enCours++;
+            enAttente.decrementAndGet();
+        }
+        return premiere;
+    }
+
+    /**
+     * Retire une requête abandonnée (refusée après attente, ou appelant interrompu) de la file.
+     */
+    private void retirer(Demande demande) {
+        synchronized (demande.bande) {
+            Demande tete = demande.bande.file.peek();
+            if (demande.bande.file.remove(demande)) {
+                changerTete(demande.bande, tete);
+                demande.session.enAttente--;
+                enAttente.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Met la première requête de la bande dans tetes à la place de l'ancienne. Appelé sous le verrou de la bande.
+     *
+     * @param ancienne première requête de la bande avant la modification de sa file, null si elle était vide.
+     */
+    private void changerTete(Bande bande, Demande ancienne) {
+        Demande tete = bande.file.peek();
+        if (tete != ancienne) {
+            if (ancienne != null) {
+                tetes.remove(ancienne);
+            }
+            if (tete != null) {
+                tetes.add(tete);
+            }
+        }
+    }
+
+    /**
+     * Oublie les sessions sans requête dont la fenêtre de quota est terminée. Appelé sous le verrou de la bande.
+     */
+    private void nettoyer(Bande bande, long maintenant) {
+        if (maintenant < bande.prochainNettoyage) {
+            return;
+        }
+        bande.prochainNettoyage = maintenant + Math.min(fenetreQuotaMs, 60_000);
+        long temps = tempsVirtuel.get();
+        bande.sessions.values().removeIf(session -> session.enAttente == 0 && session.enCours == 0
+                && maintenant - session.debutFenetre >= fenetreQuotaMs && session.derniereEtiquette <= temps);
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_ordonnanceur_admises_total Requêtes admises dans la file de l'ordonnanceur.");
+        out.println("# TYPE llm_ordonnanceur_admises_total counter");
+        out.printf("llm_ordonnanceur_admises_total %d%n", admises.sum());
+        out.println("# HELP llm_ordonnanceur_rejets_total Requêtes refusées par l'ordonnanceur, par cause.");
+        out.println("# TYPE llm_ordonnanceur_rejets_total counter");
+        for (Map.Entry<String, LongAdder> rejet : rejets.entrySet()) {
+            out.printf("llm_ordonnanceur_rejets_total{cause=\"%s\"} %d%n", rejet.getKey(), rejet.getValue().sum());
+        }
+        out.println("# HELP llm_ordonnanceur_tokens_total Tokens (usageMetadata) comptés dans les quotas des sessions.");
+        out.println("# TYPE llm_ordonnanceur_tokens_total counter");
+        out.printf("llm_ordonnanceur_tokens_total %d%n", tokens.sum());
+        out.println("# HELP llm_ordonnanceur_en_attente Requêtes en attente d'une place.");
+        out.println("# TYPE llm_ordonnanceur_en_attente gauge");
+        out.printf("llm_ordonnanceur_en_attente %d%n", enAttente.get());
+        out.println("# HELP llm_ordonnanceur_places_libres Places libres pour des requêtes vers l'API.");
+        out.println("# TYPE llm_ordonnanceur_places_libres gauge");
+        out.printf("llm_ordonnanceur_places_libres %d%n", actif ? places.availablePermits() : placesMax);
+        out.println("# HELP llm_ordonnanceur_attente_secondes Durée d'attente d'une place.");
+        out.println("# TYPE llm_ordonnanceur_attente_secondes histogram");
+        attente.ecrire(out, "llm_ordonnanceur_attente_secondes", "");
+    }
+}
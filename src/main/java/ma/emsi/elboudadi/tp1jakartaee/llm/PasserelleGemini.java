@@ -0,0 +1,395 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.Response;
+
+import java.io.PrintWriter;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Passerelle entre l'application et LlmClientPourGemini, qui protège l'API (et l'application) des surcharges :
+ * - seau à jetons : limite le débit des appels ;
+ * - limite de concurrence adaptative (AIMD) : limite le nombre d'appels simultanés,
+ *   diminuée quand l'API répond 429 ou 5xx ;
+ * - nouvelles tentatives pour 429, 5xx et erreurs réseau, avec un délai exponentiel aléatoire (jitter)
+ *   qui respecte l'en-tête Retry-After (pas de nouvelle tentative s'il demande d'attendre plus que backoff.max) ;
+ *   un appel synchrone n'attend pas plus de attente ms au total entre ses tentatives, puisque c'est le thread
+ *   de la requête de l'utilisateur qui attend : si le délai suivant dépasse ce qui reste, la dernière réponse
+ *   (ou l'erreur) est rendue tout de suite ;
+ * - disjoncteur : quand l'API est en panne, les appels échouent tout de suite.
+ * Un appel refusé après avoir pris un jeton (pas de place, disjoncteur ouvert) rend son jeton au seau.
+ * Si un appel ne peut pas être admis à temps, une RequeteException est lancée.
+ *
+ * Paramètres (voir ConfigurationLlm), préfixe gemini.passerelle. :
+ * debit (appels par seconde), rafale (capacité du seau), limite.initiale, limite.min, limite.max,
+ * attente (durée maximale d'attente pour être admis, en ms), tentatives, backoff.base et backoff.max (ms),
+ * disjoncteur.seuil (échecs consécutifs) et disjoncteur.duree (ms).
+ */
+@ApplicationScoped
+public class PasserelleGemini implements SourceMetriques {
+
+    /**
+     * Intervalle entre deux essais d'admission d'un appel asynchrone.
+     */
+    private static final long INTERVALLE_ADMISSION_ASYNC_MS = 20;
+
+    @Inject
+    private LlmClientPourGemini geminiClient;
+
+    private SeauJetons seau;
+    private LimiteConcurrence limite;
+    private Disjoncteur disjoncteur;
+    private long attenteMaxMs;
+    private int tentativesMax;
+    private long backoffBaseMs;
+    private long backoffMaxMs;
+    private ScheduledExecutorService ordonnanceur;
+
+    private final LongAdder tentatives = new LongAdder();
+    private final LongAdder reessais = new LongAdder();
+    private final LongAdder rejetsDebit = new LongAdder();
+    private final LongAdder rejetsConcurrence = new LongAdder();
+    private final LongAdder rejetsDisjoncteur = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        double debit = ConfigurationLlm.lireDouble("gemini.passerelle.debit", 50);
+        this.seau = new SeauJetons(debit, ConfigurationLlm.lireDouble("gemini.passerelle.rafale", debit));
+        this.limite = new LimiteConcurrence(
+                ConfigurationLlm.lireInt("gemini.passerelle.limite.initiale", 20),
+                ConfigurationLlm.lireInt("gemini.passerelle.limite.min", 1),
+                ConfigurationLlm.lireInt("gemini.passerelle.limite.max", 200));
+        this.disjoncteur = new Disjoncteur(
+                ConfigurationLlm.lireInt("gemini.passerelle.disjoncteur.seuil", 5),
+                ConfigurationLlm.lireLong("gemini.passerelle.disjoncteur.duree", 30_000));
+        this.attenteMaxMs = ConfigurationLlm.lireLong("gemini.passerelle.attente", 5_000);
+        this.tentativesMax = Math.max(1, ConfigurationLlm.lireInt("gemini.passerelle.tentatives", 3));
+        this.backoffBaseMs = ConfigurationLlm.lireLong("gemini.passerelle.backoff.base", 500);
+        this.backoffMaxMs = ConfigurationLlm.lireLong("gemini.passerelle.backoff.max", 10_000);
+        this.ordonnanceur = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gemini-passerelle");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void arreter() {
+        ordonnanceur.shutdownNow();
+    }
+
+    /**
+     * Comme LlmClientPourGemini.envoyerRequete, avec admission et nouvelles tentatives.
+     *
+     * @return la réponse de l'API ; éventuellement une réponse d'erreur si toutes les tentatives ont échoué.
+     * @throws RequeteException si l'appel n'a pas pu être admis ou si l'API est injoignable.
+     */
+    public Response envoyerRequete(Entity<?> requestEntity) throws RequeteException {
+        return executer(() -> geminiClient.envoyerRequete(requestEntity));
+    }
+
+    /**
+     * Comme LlmClientPourGemini.envoyerRequeteStream. Les nouvelles tentatives ne sont faites
+     * que si l'API refuse la requête, avant le début du flux.
+     */
+    public Response envoyerRequeteStream(Entity<?> requestEntity) throws RequeteException {
+        return executer(() -> geminiClient.envoyerRequeteStream(requestEntity));
+    }
+
+    /**
+     * Comme LlmClientPourGemini.envoyerRequeteAsync : aucun thread n'attend pendant l'admission ni entre
+     * deux tentatives.
+     *
+     * @return la réponse ; en cas d'échec, une CompletionException dont la cause est une RequeteException.
+     */
+    public CompletionStage<Response> envoyerRequeteAsync(Entity<?> requestEntity) {
+        return envoyerRequeteAsync(() -> geminiClient.envoyerRequeteAsync(requestEntity));
+    }
+
+    /**
+     * Comme envoyerRequeteAsync, à un des modèles de LlmClientPourGemini.getModeles().
+     * Le résultat peut être annulé (cancel) : il n'y a plus de nouvelle tentative et la réponse,
+     * si elle arrive quand même, est fermée sans être lue.
+     */
+    public CompletableFuture<Response> envoyerRequeteAsync(String modele, Entity<?> requestEntity) {
+        return envoyerRequeteAsync(() -> geminiClient.envoyerRequeteAsync(modele, requestEntity));
+    }
+
+    private CompletableFuture<Response> envoyerRequeteAsync(Supplier<CompletionStage<Response>> appel) {
+        CompletableFuture<Response> resultat = new CompletableFuture<>();
+        long limiteAdmission = System.currentTimeMillis() + attenteMaxMs;
+        tenterAsync(appel, 1, limiteAdmission, resultat);
+        return resultat;
+    }
+
+    private Response executer(Supplier<Response> appel) throws RequeteException {
+        long limiteAttente = System.currentTimeMillis() + attenteMaxMs;
+        try {
+            for (int tentative = 1; ; tentative++) {
+                admettre();
+                Response response;
+                try {
+                    tentatives.increment();
+                    response = appel.get();
+                } catch (ProcessingException e) {
+                    // Erreur réseau ou timeout
+                    terminer(503);
+                    if (tentative >= tentativesMax || !attendre(delai(tentative, null), limiteAttente)) {
+                        throw new RequeteException("API du LLM injoignable : " + e.getMessage());
+                    }
+                    continue;
+                } catch (RuntimeException e) {
+                    // Appel qui échoue avant d'être envoyé : rien appris sur l'API.
+                    limite.liberer();
+                    seau.rendre();
+                    throw e;
+                }
+                int statut = response.getStatus();
+                terminer(statut);
+                String retryAfter = response.getHeaderString("Retry-After");
+                if (!reessayable(statut) || tentative >= tentativesMax || attenteTropLongue(retryAfter)) {
+                    return response;
+                }
+                long delai = delai(tentative, retryAfter);
+                if (System.currentTimeMillis() + delai > limiteAttente) {
+                    return response;
+                }
+                response.close();
+                attendre(delai, limiteAttente);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequeteException("Envoi de la requête interrompu");
+        }
+    }
+
+    /**
+     * Attend avant la nouvelle tentative d'un appel synchrone, si le délai tient avant limiteAttente.
+     *
+     * @return false si le délai dépasse limiteAttente : pas d'attente ni de nouvelle tentative.
+     */
+    private boolean attendre(long delai, long limiteAttente) throws InterruptedException {
+        if (System.currentTimeMillis() + delai > limiteAttente) {
+            return false;
+        }
+        reessais.increment();
+        Thread.sleep(delai);
+        return true;
+    }
+
+    /**
+     * Attend un jeton et une place dans la limite de concurrence, puis vérifie le disjoncteur.
+     */
+    private void admettre() throws RequeteException, InterruptedException {
+        long debut = System.currentTimeMillis();
+        if (!seau.prendre(attenteMaxMs)) {
+            rejetsDebit.increment();
+            throw new RequeteException("Trop de requêtes vers l'API du LLM, réessayez dans un moment");
+        }
+        long reste = attenteMaxMs - (System.currentTimeMillis() - debut);
+        if (!limite.acquerir(Math.max(0, reste))) {
+            seau.rendre();
+            rejetsConcurrence.increment();
+            throw new RequeteException("Trop de requêtes en cours vers l'API du LLM, réessayez dans un moment");
+        }
+        verifierDisjoncteur();
+    }
+
+    /**
+     * Appelé avec un jeton et une place : les rend si le disjoncteur refuse l'appel.
+     */
+    private void verifierDisjoncteur() throws RequeteException {
+        if (!disjoncteur.autoriser()) {
+            limite.liberer();
+            seau.rendre();
+            rejetsDisjoncteur.increment();
+            throw new RequeteException("API du LLM indisponible, réessayez dans "
+                    + (disjoncteur.getAttenteMs() / 1000 + 1) + " s");
+        }
+    }
+
+    /**
+     * Libère la place de l'appel et informe la limite de concurrence et le disjoncteur du résultat.
+     */
+    private void terminer(int statut) {
+        limite.liberer(statut == 429 || statut >= 500);
+        if (statut >= 500) {
+            disjoncteur.echec();
+        } else {
+            disjoncteur.succes();
+        }
+    }
+
+    private void tenterAsync(Supplier<CompletionStage<Response>> appel, int tentative, long limiteAdmission,
+                             CompletableFuture<Response> resultat) {
+        if (resultat.isDone()) {
+            // Annulé par l'appelant
+            return;
+        }
+        // La place est demandée avant le jeton : un appel qui attend une place ne consomme pas de jeton
+        // à chaque essai, ce qui viderait le seau au détriment des appels synchrones.
+        boolean place = false;
+        boolean jeton = false;
+        try {
+            place = limite.acquerir(0);
+            jeton = place && seau.prendre(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!jeton) {
+            if (place) {
+                limite.liberer();
+            }
+            if (System.currentTimeMillis() >= limiteAdmission) {
+                if (place) {
+                    rejetsDebit.increment();
+                    resultat.completeExceptionally(new CompletionException(new RequeteException(
+                            "Trop de requêtes vers l'API du LLM, réessayez dans un moment")));
+                } else {
+                    rejetsConcurrence.increment();
+                    resultat.completeExceptionally(new CompletionException(new RequeteException(
+                            "Trop de requêtes en cours vers l'API du LLM, réessayez dans un moment")));
+                }
+            } else {
+                ordonnanceur.schedule(() -> tenterAsync(appel, tentative, limiteAdmission, resultat),
+                        INTERVALLE_ADMISSION_ASYNC_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        try {
+            verifierDisjoncteur();
+        } catch (RequeteException e) {
+            resultat.completeExceptionally(new CompletionException(e));
+            return;
+        }
+        tentatives.increment();
+        CompletionStage<Response> envoi;
+        try {
+            envoi = appel.get();
+        } catch (RuntimeException e) {
+            // Appel qui échoue avant d'être envoyé (requête invalide par exemple) : rien appris sur l'API.
+            limite.liberer();
+            seau.rendre();
+            resultat.completeExceptionally(new CompletionException(
+                    new RequeteException("Envoi de la requête impossible : " + e.getMessage())));
+            return;
+        }
+        envoi.whenComplete((response, erreur) -> {
+            int statut = erreur != null ? 503 : response.getStatus();
+            terminer(statut);
+            String retryAfter = erreur != null ? null : response.getHeaderString("Retry-After");
+            if (!reessayable(statut) || tentative >= tentativesMax || resultat.isDone()
+                    || attenteTropLongue(retryAfter)) {
+                if (erreur != null) {
+                    resultat.completeExceptionally(new CompletionException(
+                            new RequeteException("API du LLM injoignable : " + erreur.getMessage())));
+                } else if (!resultat.complete(response)) {
+                    // Annulé pendant l'appel : personne ne lira la réponse.
+                    response.close();
+                }
+                return;
+            }
+            long delai = delai(tentative, retryAfter);
+            if (response != null) {
+                response.close();
+            }
+            reessais.increment();
+            long nouvelleLimite = System.currentTimeMillis() + delai + attenteMaxMs;
+            ordonnanceur.schedule(() -> tenterAsync(appel, tentative + 1, nouvelleLimite, resultat),
+                    delai, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private static boolean reessayable(int statut) {
+        return statut == 429 || statut == 500 || statut == 502 || statut == 503 || statut == 504;
+    }
+
+    /**
+     * Délai avant la tentative suivante : exponentiel avec "full jitter" (aléatoire entre 0 et base * 2^(n-1)),
+     * mais jamais moins que le Retry-After demandé par l'API.
+     */
+    long delai(int tentative, String retryAfter) {
+        long plafond = Math.min(backoffMaxMs, backoffBaseMs << Math.min(20, tentative - 1));
+        long delai = ThreadLocalRandom.current().nextLong(plafond + 1);
+        long demande = retryAfterMs(retryAfter);
+        return Math.max(delai, demande);
+    }
+
+    /**
+     * L'API ne doit pas être rappelée avant le délai demandé par Retry-After. S'il dépasse backoff.max,
+     * il n'y a pas de nouvelle tentative : la réponse 429 ou 503 est rendue à l'appelant au lieu de bloquer
+     * la requête de l'utilisateur aussi longtemps.
+     *
+     * @param retryAfter valeur de l'en-tête Retry-After, null si absent.
+     * @return true si le délai demandé dépasse backoff.max.
+     */
+    private boolean attenteTropLongue(String retryAfter) {
+        return retryAfterMs(retryAfter) > backoffMaxMs;
+    }
+
+    /**
+     * @param retryAfter valeur de l'en-tête : un nombre de secondes ou une date HTTP.
+     * @return le délai demandé, en millisecondes (0 si absent ou invalide).
+     */
+    private long retryAfterMs(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return 0;
+        }
+        long ms;
+        try {
+            ms = Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                ms = Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis();
+            } catch (DateTimeParseException e2) {
+                return 0;
+            }
+        }
+        return Math.max(0, ms);
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_passerelle_tentatives_total Appels envoyés à l'API (nouvelles tentatives comprises).");
+        out.println("# TYPE llm_passerelle_tentatives_total counter");
+        out.printf("llm_passerelle_tentatives_total %d%n", tentatives.sum());
+        out.println("# HELP llm_passerelle_reessais_total Nouvelles tentatives après 429, 5xx ou erreur réseau.");
+        out.println("# TYPE llm_passerelle_reessais_total counter");
+        out.printf("llm_passerelle_reessais_total %d%n", reessais.sum());
+        out.println("# HELP llm_passerelle_rejets_total Appels refusés par la passerelle, par cause.");
+        out.println("# TYPE llm_passerelle_rejets_total counter");
+        out.printf("llm_passerelle_rejets_total{cause=\"debit\"} %d%n", rejetsDebit.sum());
+        out.printf("llm_passerelle_rejets_total{cause=\"concurrence\"} %d%n", rejetsConcurrence.sum());
+        out.printf("llm_passerelle_rejets_total{cause=\"disjoncteur\"} %d%n", rejetsDisjoncteur.sum());
+        out.println("# HELP llm_passerelle_limite_concurrence Limite adaptative du nombre d'appels simultanés.");
+        out.println("# TYPE llm_passerelle_limite_concurrence gauge");
+        out.printf("llm_passerelle_limite_concurrence %d%n", limite.getLimite());
+        out.println("# HELP llm_passerelle_en_cours Appels en cours.");
+        out.println("# TYPE llm_passerelle_en_cours gauge");
+        out.printf("llm_passerelle_en_cours %d%n", limite.getEnCours());
+        out.println("# HELP llm_passerelle_jetons Jetons disponibles dans le seau (négatif : appels en attente).");
+        out.println("# TYPE llm_passerelle_jetons gauge");
+        out.printf("llm_passerelle_jetons %s%n", seau.getJetons());
+        out.println("# HELP llm_passerelle_disjoncteur État du disjoncteur (0 fermé, 1 ouvert, 2 demi-ouvert).");
+        out.println("# TYPE llm_passerelle_disjoncteur gauge");
+        out.printf("llm_passerelle_disjoncteur %d%n", disjoncteur.getEtat().ordinal());
+    }
+}
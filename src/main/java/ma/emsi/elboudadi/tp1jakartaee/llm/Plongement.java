@@ -0,0 +1,21 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Fonction de plongement ("embedding") utilisée par CacheSemantique : transforme un texte en vecteur,
+ * de façon que deux textes de même sens aient des vecteurs proches (cosinus proche de 1).
+ * L'implémentation est choisie par le paramètre gemini.semantique.plongement (nom de la classe,
+ * qui doit avoir un constructeur sans paramètre) ; par défaut PlongementNgrammes.
+ * Le calcul doit être local et rapide : il est fait avant chaque recherche dans le cache.
+ */
+public interface Plongement {
+
+    /**
+     * @return la taille des vecteurs.
+     */
+    int dimension();
+
+    /**
+     * @return le vecteur du texte, de norme 1 (ou nul si le texte est vide).
+     */
+    float[] plonger(String texte);
+}
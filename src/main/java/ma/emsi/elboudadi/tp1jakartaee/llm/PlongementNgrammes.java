@@ -0,0 +1,177 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.text.Normalizer;
+import java.util.Set;
+
+/**
+ * Plongement local, sans modèle : les mots et les trigrammes de caractères du texte normalisé
+ * (minuscules, sans accents ni ponctuation) sont répartis dans le vecteur par hachage ("feature hashing").
+ * Les mots outils (articles, mots interrogatifs...) ont un faible poids et pas de trigrammes : ce sont
+ * les mots qui portent le sens qui comptent. Deux formulations qui partagent ces mots, par exemple
+ * "capitale de la France ?" et "quelle est la capitale de la France", ont un cosinus élevé, mais pas
+ * "capitale de la France ?" et "capitale de l'Espagne ?" ; les trigrammes tolèrent les fautes de frappe
+ * et les pluriels. Les nombres et les mots courts qui ne sont pas des mots outils ("Java 8", "langage Go")
+ * ont un poids plus élevé que les autres mots : une seule différence sur l'un d'eux change la réponse
+ * ("7 est-il premier ?" et "9 est-il premier ?"), elle doit donc faire passer le cosinus sous le seuil.
+ * De même pour une négation ("Java est rapide" et "Java n'est pas rapide") : les mots de négation ajoutent tous
+ * une même caractéristique de poids élevé, et ne sont pas des mots outils. Les mots-clés des langages de
+ * programmation ("for", "do", "if"...) n'en sont pas non plus.
+ * Ne reconnaît pas les synonymes : pour cela, brancher un vrai modèle (voir Plongement).
+ *
+ * Paramètre (voir ConfigurationLlm) : gemini.semantique.dimension (256 par défaut).
+ */
+public class PlongementNgrammes implements Plongement {
+
+    /**
+     * Poids d'un mot entier par rapport à un trigramme.
+     */
+    private static final float POIDS_MOT = 2;
+
+    /**
+     * Poids d'un mot outil.
+     */
+    private static final float POIDS_MOT_OUTIL = 0.25f;
+
+    /**
+     * Poids d'un nombre ou d'un mot d'une ou deux lettres qui n'est pas un mot outil : ils ont peu de trigrammes,
+     * qui ne suffisent pas à distinguer "Java 8" de "Java 17".
+     */
+    private static final float POIDS_MOT_COURT = 4;
+
+    /**
+     * Poids de la caractéristique commune aux mots de négation, ajoutée pour chacun d'eux.
+     */
+    private static final float POIDS_NEGATION = 4;
+
+    private static final int HASH_NEGATION = "!negation".hashCode();
+
+    /**
+     * Mots de négation (sans accents ; "doesn't" est normalisé en "doesn t"). "plus" n'en fait pas partie :
+     * il est le plus souvent un comparatif.
+     */
+    private static final Set<String> MOTS_NEGATION = Set.of(
+            "ne", "n", "pas", "jamais", "rien", "aucun", "aucune", "ni", "sans", "non",
+            "not", "no", "never", "nothing", "without", "cannot", "don", "doesn", "isn", "aren");
+
+    /**
+     * Mots outils (sans accents). Les nombres, les mots de négation et les mots-clés des langages
+     * de programmation n'en sont jamais.
+     */
+    private static final Set<String> MOTS_OUTILS = Set.of(
+            "a", "y", "l", "d", "j", "c", "s", "m", "t", "qu",
+            "le", "la", "de", "du", "un", "au", "en", "et", "ou", "ce", "il", "je", "tu", "on", "se", "me",
+            "te", "sa", "ta", "ma", "si", "lui", "aux",
+            "an", "of", "to", "in", "is", "it", "at", "be", "or", "my", "i",
+            "les", "des", "une", "est", "sont", "que", "qui", "quoi", "quel", "quelle", "quels", "quelles",
+            "comment", "pourquoi", "combien", "dans", "sur", "pour", "par", "avec", "moi", "toi", "vous", "nous",
+            "mon", "ton", "son", "mes", "tes", "ses", "cette", "ces", "peux", "peut", "donne", "dis",
+            "the", "and", "what", "which", "who", "how", "why", "are", "was", "with", "you", "can",
+            "please", "tell");
+
+    private final int dimension;
+
+    public PlongementNgrammes() {
+        this(ConfigurationLlm.lireInt("gemini.semantique.dimension", 256));
+    }
+
+    public PlongementNgrammes(int dimension) {
+        this.dimension = Math.max(16, dimension);
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    @Override
+    public float[] plonger(String texte) {
+        float[] vecteur = new float[dimension];
+        String normalise = normaliser(texte);
+        int debutMot = -1;
+        for (int i = 0; i <= normalise.length(); i++) {
+            boolean finMot = i == normalise.length() || normalise.charAt(i) == ' ';
+            if (!finMot && debutMot < 0) {
+                debutMot = i;
+            } else if (finMot && debutMot >= 0) {
+                ajouterMot(vecteur, normalise, debutMot, i);
+                debutMot = -1;
+            }
+        }
+        double norme = 0;
+        for (float composante : vecteur) {
+            norme += composante * composante;
+        }
+        if (norme > 0) {
+            float inverse = (float) (1 / Math.sqrt(norme));
+            for (int i = 0; i < dimension; i++) {
+                vecteur[i] *= inverse;
+            }
+        }
+        return vecteur;
+    }
+
+    /**
+     * Ajoute le mot normalise[debut, fin[ et ses trigrammes, le mot étant entouré d'espaces
+     * (les trigrammes du début et de la fin du mot sont ainsi distingués).
+     */
+    private void ajouterMot(float[] vecteur, String normalise, int debut, int fin) {
+        int hashMot = 0;
+        for (int i = debut; i < fin; i++) {
+            hashMot = 31 * hashMot + normalise.charAt(i);
+        }
+        String mot = normalise.substring(debut, fin);
+        if (MOTS_NEGATION.contains(mot)) {
+            ajouter(vecteur, HASH_NEGATION, POIDS_NEGATION);
+            return;
+        }
+        if (MOTS_OUTILS.contains(mot)) {
+            ajouter(vecteur, hashMot, POIDS_MOT_OUTIL);
+            return;
+        }
+        ajouter(vecteur, hashMot, fin - debut <= 2 || contientChiffre(mot) ? POIDS_MOT_COURT : POIDS_MOT);
+        for (int i = debut - 1; i + 3 <= fin + 1; i++) {
+            int hash = 7;
+            for (int j = i; j < i + 3; j++) {
+                char c = j < debut || j >= fin ? ' ' : normalise.charAt(j);
+                hash = 31 * hash + c;
+            }
+            ajouter(vecteur, hash, 1);
+        }
+    }
+
+    private static boolean contientChiffre(String mot) {
+        for (int i = 0; i < mot.length(); i++) {
+            if (Character.isDigit(mot.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ajoute la caractéristique à une composante choisie par le hachage, avec un signe aussi choisi
+     * par le hachage : les collisions se compensent en moyenne au lieu de s'additionner.
+     */
+    private void ajouter(float[] vecteur, int hash, float poids) {
+        int melange = hash * 0x9E3779B9;
+        melange ^= melange >>> 16;
+        vecteur[Math.floorMod(melange, dimension)] += (melange & 0x8000_0000) == 0 ? poids : -poids;
+    }
+
+    /**
+     * @return le texte en minuscules, sans accents, les caractères autres que lettres et chiffres
+     * remplacés par un espace.
+     */
+    static String normaliser(String texte) {
+        String sansAccents = Normalizer.normalize(texte, Normalizer.Form.NFD);
+        StringBuilder normalise = new StringBuilder(sansAccents.length());
+        for (int i = 0; i < sansAccents.length(); i++) {
+            char c = sansAccents.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            normalise.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ');
+        }
+        return normalise.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.Serializable;
+
+/**
+ * Ce qui est utilisé dans la réponse de l'API de Gemini (generateContent).
+ *
+ * @param tour le contenu du premier candidat (candidates[0].content), à ajouter à la conversation.
+ * @param finishReason raison de la fin de la génération (candidates[0].finishReason), par exemple "STOP".
+ * @param promptTokenCount nombre de tokens de la requête (usageMetadata), 0 si inconnu.
+ * @param candidatesTokenCount nombre de tokens de la réponse (usageMetadata), 0 si inconnu.
+ * @param totalTokenCount nombre total de tokens (usageMetadata), 0 si inconnu.
+ * @param cachedContentTokenCount nombre de tokens de la requête lus dans un contenu en cache (usageMetadata),
+ *                                compris dans promptTokenCount ; 0 si aucun contenu en cache n'a été utilisé.
+ * @param texteBrut le document JSON complet de la réponse ; null si la capture pour le debug n'est pas activée.
+ */
+public record ReponseGemini(Tour tour, String finishReason,
+                            int promptTokenCount, int candidatesTokenCount, int totalTokenCount,
+                            int cachedContentTokenCount, String texteBrut) implements Serializable {
+}
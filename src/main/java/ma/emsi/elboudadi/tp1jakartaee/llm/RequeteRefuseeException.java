@@ -0,0 +1,13 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Exception levée quand une question n'est pas envoyée à l'API parce que l'ordonnanceur
+ * (OrdonnanceurEquitable) ne l'a pas admise : file d'attente pleine ou quota de la session atteint.
+ * Le message est destiné à l'utilisateur.
+ */
+public class RequeteRefuseeException extends RequeteException {
+
+    public RequeteRefuseeException(String message) {
+        super(message);
+    }
+}
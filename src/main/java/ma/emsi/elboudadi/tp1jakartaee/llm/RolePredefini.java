@@ -0,0 +1,34 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rôle système prédéfini, proposé dans la liste déroulante de la page et utilisable par le traitement par lot.
+ * Le fragment JSON du rôle est écrit une seule fois, à la création du rôle : les requêtes des conversations
+ * qui utilisent ce rôle le copient tel quel dans leur corps (voir Conversation.ecrire).
+ *
+ * @param libelle nom du rôle affiché, par exemple "Assistant".
+ * @param texte texte du rôle, envoyé à l'API comme instruction système.
+ * @param cacheReponses false si on veut une réponse différente à chaque fois (cache des réponses non utilisé).
+ * @param fragment "system_instruction":{"parts":[{"text":"..."}]}, en UTF-8, avec la virgule qui suit ;
+ *                 en lecture seule, partagé par toutes les conversations du rôle. equals et hashCode de
+ *                 ByteBuffer comparent le contenu : deux rôles identiques sont égaux.
+ */
+public record RolePredefini(String libelle, String texte, boolean cacheReponses, ByteBuffer fragment) {
+
+    /**
+     * Le fragment est copié : le tableau ou le tampon de l'appelant peut être modifié ensuite.
+     */
+    public RolePredefini {
+        ByteBuffer copie = ByteBuffer.allocate(fragment.remaining());
+        copie.put(fragment.duplicate()).flip();
+        fragment = copie.asReadOnlyBuffer();
+    }
+
+    /**
+     * Crée un rôle et écrit son fragment JSON.
+     */
+    public static RolePredefini creer(String libelle, String texte, boolean cacheReponses) {
+        return new RolePredefini(libelle, texte, cacheReponses, ByteBuffer.wrap(Conversation.fragmentSystemInstruction(texte)));
+    }
+}
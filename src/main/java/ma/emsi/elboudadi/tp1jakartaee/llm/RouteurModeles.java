@@ -0,0 +1,278 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Envoie les requêtes aux modèles de LlmClientPourGemini.getModeles(), dans l'ordre, avec des requêtes
+ * doublées ("hedged requests") pour limiter la latence des requêtes les plus lentes :
+ * si le modèle principal n'a pas répondu après un délai, la même requête est envoyée au modèle suivant,
+ * et ainsi de suite. La première réponse correcte (statut 200) est gardée ; les autres requêtes sont annulées
+ * (voir PasserelleGemini.envoyerRequeteAsync) et leurs réponses fermées sans être lues. Seule la réponse gardée
+ * est donc ajoutée à la conversation. Si un modèle répond par une erreur, le modèle suivant est essayé tout de suite.
+ *
+ * Le délai est un centile (gemini.routeur.centile) des dernières durées de réponse du modèle principal,
+ * borné par gemini.routeur.delai.min et gemini.routeur.delai.max (ms) ; tant qu'il y a trop peu de mesures,
+ * le délai est gemini.routeur.delai.max. Avec un centile de 0,95, environ 5 % des requêtes sont doublées.
+ *
+ * Les requêtes doublées n'utilisent pas le contenu en cache du rôle système (CacheContexte), qui est lié
+ * au modèle principal. Les requêtes en streaming ne sont envoyées qu'au modèle principal.
+ * Sans second modèle (gemini.modeles) ou avec gemini.routeur.actif=false, les requêtes vont au modèle principal
+ * comme avant.
+ */
+@ApplicationScoped
+public class RouteurModeles implements SourceMetriques {
+
+    /**
+     * Nombre de mesures à partir duquel le centile est utilisé.
+     */
+    private static final int MESURES_MIN = 20;
+
+    /**
+     * @param modele le modèle qui a répondu.
+     * @param corps le corps envoyé à ce modèle.
+     * @param response la réponse de l'API, à fermer par l'appelant.
+     */
+    public record ReponseRoutee(String modele, CorpsRequete corps, Response response) {
+    }
+
+    @Inject
+    private LlmClientPourGemini geminiClient;
+
+    @Inject
+    private PasserelleGemini passerelle;
+
+    private List<String> modeles;
+    private boolean actif;
+    private FenetreLatences latences;
+    private long delaiMinMs;
+    private long delaiMaxMs;
+    private ScheduledExecutorService ordonnanceur;
+
+    private final LongAdder requetes = new LongAdder();
+    private final LongAdder haies = new LongAdder();
+    private final LongAdder annulations = new LongAdder();
+    private final Map<String, LongAdder> victoires = new LinkedHashMap<>();
+
+    @PostConstruct
+    void init() {
+        this.modeles = geminiClient.getModeles();
+        this.actif = modeles.size() > 1 && ConfigurationLlm.lireBoolean("gemini.routeur.actif", true);
+        this.latences = new FenetreLatences(ConfigurationLlm.lireInt("gemini.routeur.fenetre", 200),
+                ConfigurationLlm.lireDouble("gemini.routeur.centile", 0.95));
+        this.delaiMinMs = ConfigurationLlm.lireLong("gemini.routeur.delai.min", 500);
+        this.delaiMaxMs = Math.max(delaiMinMs, ConfigurationLlm.lireLong("gemini.routeur.delai.max", 10_000));
+        for (String modele : modeles) {
+            victoires.put(modele, new LongAdder());
+        }
+        this.ordonnanceur = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gemini-routeur");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void arreter() {
+        ordonnanceur.shutdownNow();
+    }
+
+    /**
+     * Envoie la requête et attend la première réponse correcte.
+     *
+     * @return la réponse gardée ; éventuellement une réponse d'erreur si tous les modèles ont échoué.
+     * @throws RequeteException si la requête n'a pas pu être envoyée (voir PasserelleGemini).
+     */
+    public ReponseRoutee envoyer(CorpsRequete corps) throws RequeteException {
+        if (!actif) {
+            return new ReponseRoutee(modeles.get(0), corps, passerelle.envoyerRequete(entite(corps)));
+        }
+        try {
+            return envoyerAsync(corps).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequeteException("Envoi de la requête interrompu");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof RequeteException requeteException) {
+                throw requeteException;
+            }
+            throw new RequeteException("API du LLM injoignable : " + cause.getMessage());
+        }
+    }
+
+    /**
+     * Envoie la requête en streaming au modèle principal, sans requête doublée.
+     */
+    public ReponseRoutee envoyerStream(CorpsRequete corps) throws RequeteException {
+        return new ReponseRoutee(modeles.get(0), corps, passerelle.envoyerRequeteStream(entite(corps)));
+    }
+
+    /**
+     * Comme envoyer, sans bloquer le thread appelant.
+     *
+     * @return la réponse gardée ; en cas d'échec, une CompletionException dont la cause est une RequeteException.
+     */
+    public CompletionStage<ReponseRoutee> envoyerAsync(CorpsRequete corps) {
+        if (!actif) {
+            return passerelle.envoyerRequeteAsync(entite(corps))
+                    .thenApply(response -> new ReponseRoutee(modeles.get(0), corps, response));
+        }
+        requetes.increment();
+        Course course = new Course(corps);
+        course.lancerSuivant();
+        return course.resultat;
+    }
+
+    /**
+     * @return le délai avant d'envoyer la requête au modèle suivant, en millisecondes.
+     */
+    long delaiHaie() {
+        if (latences.getNombre() < MESURES_MIN) {
+            return delaiMaxMs;
+        }
+        return Math.max(delaiMinMs, Math.min(delaiMaxMs, latences.getCentile()));
+    }
+
+    private static Entity<CorpsRequete> entite(CorpsRequete corps) {
+        return Entity.entity(corps, MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    /**
+     * Les requêtes envoyées aux différents modèles pour une même question.
+     * Les décisions sont prises sous le verrou de la course ; le résultat est donné en dehors,
+     * car la suite (lecture de la réponse) peut être longue.
+     */
+    private final class Course {
+
+        private final CorpsRequete corps;
+        private final CompletableFuture<ReponseRoutee> resultat = new CompletableFuture<>();
+        private final List<CompletableFuture<Response>> appels = new ArrayList<>();
+        private final long debut = System.nanoTime();
+        private int termines;
+        private boolean fini;
+        private ScheduledFuture<?> prochaineHaie;
+
+        Course(CorpsRequete corps) {
+            this.corps = corps;
+        }
+
+        /**
+         * Envoie la requête au modèle suivant, et programme l'envoi au modèle d'après.
+         */
+        synchronized void lancerSuivant() {
+            if (fini || appels.size() >= modeles.size()) {
+                return;
+            }
+            if (prochaineHaie != null) {
+                prochaineHaie.cancel(false);
+            }
+            int indice = appels.size();
+            if (indice > 0) {
+                haies.increment();
+            }
+            String modele = modeles.get(indice);
+            CorpsRequete corpsModele = indice == 0 ? corps : corps.sansContenuEnCache();
+            CompletableFuture<Response> appel = passerelle.envoyerRequeteAsync(modele, entite(corpsModele));
+            appels.add(appel);
+            if (appels.size() < modeles.size()) {
+                prochaineHaie = ordonnanceur.schedule(this::lancerSuivant, delaiHaie(), TimeUnit.MILLISECONDS);
+            }
+            appel.whenComplete((response, erreur) -> terminer(indice, modele, corpsModele, response, erreur));
+        }
+
+        private void terminer(int indice, String modele, CorpsRequete corpsModele, Response response,
+                              Throwable erreur) {
+            boolean succes = erreur == null && response.getStatus() == 200;
+            if (indice == 0 && succes) {
+                // Seules les réponses correctes comptent : une erreur 429 ou 5xx arrive vite et une requête
+                // annulée n'a pas de durée de réponse, elles feraient baisser le centile.
+                latences.enregistrer((System.nanoTime() - debut) / 1_000_000);
+            }
+            List<CompletableFuture<Response>> perdants = List.of();
+            boolean donnerResultat = false;
+            synchronized (this) {
+                termines++;
+                if (!fini && succes) {
+                    fini = true;
+                    donnerResultat = true;
+                    perdants = new ArrayList<>(appels);
+                    perdants.remove(indice);
+                } else if (!fini && appels.size() < modeles.size()) {
+                    // Échec : le modèle suivant est essayé sans attendre le délai.
+                    lancerSuivant();
+                } else if (!fini && termines == appels.size()) {
+                    // Tous les modèles ont échoué : le dernier échec est donné à l'appelant.
+                    fini = true;
+                    donnerResultat = true;
+                }
+                if (fini && prochaineHaie != null) {
+                    prochaineHaie.cancel(false);
+                }
+            }
+            if (!donnerResultat) {
+                if (response != null) {
+                    response.close();
+                }
+                return;
+            }
+            if (succes && appels.size() > 1) {
+                victoires.get(modele).increment();
+            }
+            for (CompletableFuture<Response> perdant : perdants) {
+                if (perdant.cancel(false)) {
+                    annulations.increment();
+                }
+            }
+            if (erreur != null) {
+                resultat.completeExceptionally(erreur instanceof CompletionException
+                        ? erreur : new CompletionException(erreur));
+            } else {
+                resultat.complete(new ReponseRoutee(modele, corpsModele, response));
+            }
+        }
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_routeur_requetes_total Requêtes envoyées par le routeur (requêtes doublées possibles).");
+        out.println("# TYPE llm_routeur_requetes_total counter");
+        out.printf("llm_routeur_requetes_total %d%n", requetes.sum());
+        out.println("# HELP llm_routeur_haies_total Requêtes doublées vers un modèle suivant"
+                + " (taux : llm_routeur_haies_total / llm_routeur_requetes_total).");
+        out.println("# TYPE llm_routeur_haies_total counter");
+        out.printf("llm_routeur_haies_total %d%n", haies.sum());
+        out.println("# HELP llm_routeur_victoires_total Requêtes doublées, par modèle qui a répondu le premier.");
+        out.println("# TYPE llm_routeur_victoires_total counter");
+        for (Map.Entry<String, LongAdder> victoire : victoires.entrySet()) {
+            out.printf("llm_routeur_victoires_total{modele=\"%s\"} %d%n", victoire.getKey(), victoire.getValue().sum());
+        }
+        out.println("# HELP llm_routeur_annulations_total Requêtes perdantes annulées.");
+        out.println("# TYPE llm_routeur_annulations_total counter");
+        out.printf("llm_routeur_annulations_total %d%n", annulations.sum());
+        out.println("# HELP llm_routeur_delai_secondes Délai actuel avant de doubler une requête.");
+        out.println("# TYPE llm_routeur_delai_secondes gauge");
+        out.printf("llm_routeur_delai_secondes %s%n", actif ? delaiHaie() / 1000.0 : 0);
+    }
+}
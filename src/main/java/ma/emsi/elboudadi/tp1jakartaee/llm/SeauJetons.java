@@ -0,0 +1,71 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Limiteur de débit "seau à jetons" : le seau se remplit de debit jetons par seconde, jusqu'à sa capacité ;
+ * chaque appel à l'API prend un jeton. Les rafales sont autorisées jusqu'à la capacité du seau.
+ */
+public class SeauJetons {
+
+    private final double debitParNano;
+    private final double capacite;
+    private double jetons;
+    private long dernierRemplissage;
+
+    /**
+     * @param debitParSeconde nombre de jetons ajoutés par seconde.
+     * @param capacite nombre maximum de jetons (taille maximale d'une rafale).
+     */
+    public SeauJetons(double debitParSeconde, double capacite) {
+        this.debitParNano = debitParSeconde / 1e9;
+        this.capacite = Math.max(1, capacite);
+        this.jetons = this.capacite;
+        this.dernierRemplissage = System.nanoTime();
+    }
+
+    /**
+     * Prend un jeton, en attendant qu'il y en ait un si nécessaire.
+     *
+     * @param attenteMs durée maximale d'attente.
+     * @return true si un jeton a été pris, false si le délai serait dépassé (aucun jeton n'est pris).
+     */
+    public boolean prendre(long attenteMs) throws InterruptedException {
+        long attenteNanos;
+        synchronized (this) {
+            remplir();
+            if (jetons >= 1) {
+                jetons--;
+                return true;
+            }
+            attenteNanos = (long) Math.ceil((1 - jetons) / debitParNano);
+            if (attenteNanos > attenteMs * 1_000_000L) {
+                return false;
+            }
+            // Le jeton est réservé : le solde devient négatif, les appels suivants attendront plus longtemps.
+            jetons--;
+        }
+        Thread.sleep(attenteNanos / 1_000_000L, (int) (attenteNanos % 1_000_000L));
+        return true;
+    }
+
+    /**
+     * Rend un jeton pris par prendre pour un appel qui n'a finalement pas été envoyé.
+     */
+    public synchronized void rendre() {
+        remplir();
+        jetons = Math.min(capacite, jetons + 1);
+    }
+
+    /**
+     * @return le nombre de jetons disponibles (négatif si des appels attendent un jeton).
+     */
+    public synchronized double getJetons() {
+        remplir();
+        return jetons;
+    }
+
+    private void remplir() {
+        long maintenant = System.nanoTime();
+        jetons = Math.min(capacite, jetons + (maintenant - dernierRemplissage) * debitParNano);
+        dernierRemplissage = maintenant;
+    }
+}
@@ -0,0 +1,17 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.PrintWriter;
+
+/**
+ * Bean qui expose des métriques au format texte de Prometheus (voir MetriquesServlet).
+ * Tous les beans CDI qui implémentent cette interface sont interrogés à chaque lecture de /metrics.
+ */
+public interface SourceMetriques {
+
+    /**
+     * Écrit les métriques au format d'exposition texte de Prometheus (lignes # HELP, # TYPE et valeurs).
+     *
+     * @param out destination.
+     */
+    void ecrireMetriques(PrintWriter out);
+}
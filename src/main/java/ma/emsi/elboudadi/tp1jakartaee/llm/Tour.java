@@ -0,0 +1,49 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Un message de la conversation avec l'API de Gemini : un élément du tableau "contents" de la requête.
+ * Format JSON correspondant :
+ * { "role": "user", "parts": [ { "text": "Capitale de la France ?" } ] }
+ * Une question peut aussi avoir des fichiers joints, écrits avant le texte dans "parts" (voir FichierJoint).
+ *
+ * @param role "user" pour une question de l'utilisateur, "model" pour une réponse du LLM.
+ * @param textes le texte de chacun des éléments de "parts".
+ * @param fichiers les fichiers joints, par référence.
+ */
+public record Tour(String role, List<String> textes, List<FichierJoint> fichiers) implements Serializable {
+
+    public static final String USER = "user";
+    public static final String MODEL = "model";
+
+    public Tour {
+        textes = List.copyOf(textes);
+        // null pour un message sérialisé avant l'ajout des fichiers joints.
+        fichiers = fichiers == null ? List.of() : List.copyOf(fichiers);
+    }
+
+    public Tour(String role, List<String> textes) {
+        this(role, textes, List.of());
+    }
+
+    public static Tour user(String texte) {
+        return new Tour(USER, List.of(texte));
+    }
+
+    public static Tour user(String texte, List<FichierJoint> fichiers) {
+        return new Tour(USER, List.of(texte), fichiers);
+    }
+
+    public static Tour model(String texte) {
+        return new Tour(MODEL, List.of(texte));
+    }
+
+    /**
+     * @return le texte du premier élément de "parts", ou une chaîne vide s'il n'y en a pas.
+     */
+    public String texte() {
+        return textes.isEmpty() ? "" : textes.get(0);
+    }
+}
@@ -0,0 +1,51 @@
+package ma.emsi.elboudadi.tp1jakartaee.persistance;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Avancement de l'enregistrement d'une conversation par StockageConversations.
+ * Gardé par le backing bean avec la conversation ; mis à jour par le thread qui écrit les lots
+ * une fois la transaction validée.
+ * Après une désérialisation (passivation de la session), l'objet n'est plus celui que le thread d'écriture met à
+ * jour : le nombre de messages écrits n'augmente plus, ce qui garde simplement plus de messages en mémoire.
+ */
+public class AvancementEcriture implements Serializable {
+
+    /**
+     * Nombre de messages mis dans la file d'écriture. Lu et modifié seulement par le thread de la requête.
+     */
+    private int enFile;
+    /**
+     * Nombre de messages écrits dans la base de données (tous les messages d'indice inférieur le sont).
+     */
+    private final AtomicInteger ecrits = new AtomicInteger();
+    /**
+     * Indice du premier message abandonné après des échecs d'écriture : ce message et les suivants ne sont jamais
+     * retirés de la mémoire, puisqu'ils ne pourraient pas être relus.
+     */
+    private final AtomicInteger premierAbandonne = new AtomicInteger(Integer.MAX_VALUE);
+
+    int getEnFile() {
+        return enFile;
+    }
+
+    void setEnFile(int enFile) {
+        this.enFile = enFile;
+    }
+
+    /**
+     * @return le nombre de messages qui peuvent être retirés de la mémoire : ils sont relisibles dans la base.
+     */
+    int getRelisibles() {
+        return Math.min(ecrits.get(), premierAbandonne.get());
+    }
+
+    void ecrit(int indice) {
+        ecrits.accumulateAndGet(indice + 1, Math::max);
+    }
+
+    void abandonne(int indice) {
+        premierAbandonne.accumulateAndGet(indice, Math::min);
+    }
+}
@@ -0,0 +1,52 @@
+package ma.emsi.elboudadi.tp1jakartaee.persistance;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Lob;
+import jakarta.persistence.Table;
+
+import java.time.Instant;
+
+/**
+ * Une conversation enregistrée : son rôle système et sa date de création.
+ * L'identifiant est celui de Conversation.getId(), créé par l'application : il est connu avant l'écriture
+ * dans la base de données, qui peut donc être différée.
+ */
+@Entity
+@Table(name = "CONVERSATION")
+public class ConversationEntite {
+
+    @Id
+    @Column(length = 36)
+    private String id;
+
+    @Lob
+    private String roleSysteme;
+
+    private Instant creation;
+
+    /**
+     * Obligatoire pour une entité JPA.
+     */
+    protected ConversationEntite() {
+    }
+
+    public ConversationEntite(String id, String roleSysteme, Instant creation) {
+        this.id = id;
+        this.roleSysteme = roleSysteme;
+        this.creation = creation;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRoleSysteme() {
+        return roleSysteme;
+    }
+
+    public Instant getCreation() {
+        return creation;
+    }
+}
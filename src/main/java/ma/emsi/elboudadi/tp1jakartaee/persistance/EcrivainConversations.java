@@ -0,0 +1,53 @@
+package ma.emsi.elboudadi.tp1jakartaee.persistance;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.transaction.Transactional;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Tour;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accès à la base de données pour StockageConversations.
+ * Bean séparé pour que l'intercepteur @Transactional soit appliqué (il ne l'est pas aux appels internes d'un bean).
+ */
+@ApplicationScoped
+public class EcrivainConversations {
+
+    @PersistenceContext(unitName = "default")
+    private EntityManager em;
+
+    /**
+     * Insère un lot d'entités dans une seule transaction.
+     * Les INSERT sont regroupés en batch JDBC si le fournisseur JPA est configuré pour (voir persistence.xml).
+     *
+     * @param entites ConversationEntite et TourEntite, dans l'ordre de leur création.
+     */
+    @Transactional
+    public void ecrire(List<Object> entites) {
+        for (Object entite : entites) {
+            em.persist(entite);
+        }
+        em.flush();
+        // Le contexte de persistance n'a pas besoin de garder les entités écrites.
+        em.clear();
+    }
+
+    /**
+     * @return les messages d'indice debut (inclus) à fin (exclu) de la conversation, dans l'ordre.
+     */
+    public List<Tour> lire(String conversationId, int debut, int fin) {
+        List<TourEntite> entites = em.createNamedQuery("TourEntite.parConversation", TourEntite.class)
+                .setParameter("conversationId", conversationId)
+                .setParameter("debut", debut)
+                .setParameter("fin", fin)
+                .getResultList();
+        List<Tour> tours = new ArrayList<>(entites.size());
+        for (TourEntite entite : entites) {
+            tours.add(entite.getTour());
+        }
+        return tours;
+    }
+}
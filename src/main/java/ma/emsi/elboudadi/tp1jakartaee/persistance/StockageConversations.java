@@ -0,0 +1,240 @@
+package ma.emsi.elboudadi.tp1jakartaee.persistance;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.enterprise.concurrent.ManagedScheduledExecutorService;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConfigurationLlm;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Conversation;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Histogramme;
+import ma.emsi.elboudadi.tp1jakartaee.llm.SourceMetriques;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Tour;
+
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enregistre les conversations dans la base de données, en écriture différée (write-behind) :
+ * les nouveaux messages sont mis dans une file en mémoire et un thread du serveur les insère par lots,
+ * dans une transaction par lot. Le traitement d'une requête de la page n'attend jamais la base de données.
+ * Si la file est pleine (base de données trop lente ou indisponible), les messages restent dans la conversation
+ * et seront mis dans la file à l'échange suivant.
+ * Une fois écrits dans la base de données (transaction validée), les messages anciens qui ne sont plus envoyés
+ * à l'API sont retirés de la mémoire ; ils peuvent être relus avec charger.
+ * Un lot dont l'écriture échoue est réessayé à l'écriture régulière suivante, avant les entités arrivées depuis,
+ * au plus gemini.stockage.tentatives fois (5 par défaut) ; s'il est abandonné, les messages qu'il contenait
+ * et les suivants de la même conversation restent en mémoire.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.stockage.file (taille maximum de la file),
+ * gemini.stockage.lot (nombre maximum d'entités par transaction), gemini.stockage.intervalle (délai maximum
+ * en millisecondes avant l'écriture d'un lot incomplet) et gemini.stockage.fenetre (nombre de messages récents
+ * toujours gardés en mémoire).
+ */
+@ApplicationScoped
+public class StockageConversations implements SourceMetriques {
+
+    private static final Logger LOGGER = Logger.getLogger(StockageConversations.class.getName());
+
+    @Inject
+    private EcrivainConversations ecrivain;
+
+    /**
+     * Threads gérés par le serveur (contexte de l'application disponible pour les transactions).
+     */
+    @Resource
+    private ManagedScheduledExecutorService executor;
+
+    private BlockingQueue<EntiteEnAttente> file;
+    private int tailleLot;
+    private int fenetre;
+    private int tentatives;
+    private ScheduledFuture<?> ecritureReguliere;
+    /**
+     * Un seul lot est écrit à la fois : les messages d'une conversation sont insérés dans l'ordre.
+     */
+    private final AtomicBoolean ecritureEnCours = new AtomicBoolean();
+    /**
+     * Lot dont l'écriture a échoué et nombre d'échecs consécutifs ; modifiés seulement pendant une écriture.
+     */
+    private List<EntiteEnAttente> lotEnEchec;
+    private int echecs;
+
+    private final LongAdder ecrits = new LongAdder();
+    private final LongAdder perdus = new LongAdder();
+    private final LongAdder lotsEnEchec = new LongAdder();
+    private final LongAdder fileSaturee = new LongAdder();
+    private final Histogramme dureeLots = new Histogramme(0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5);
+
+    @PostConstruct
+    void init() {
+        this.file = new ArrayBlockingQueue<>(ConfigurationLlm.lireInt("gemini.stockage.file", 10_000));
+        this.tailleLot = ConfigurationLlm.lireInt("gemini.stockage.lot", 100);
+        this.fenetre = ConfigurationLlm.lireInt("gemini.stockage.fenetre", 20);
+        this.tentatives = ConfigurationLlm.lireInt("gemini.stockage.tentatives", 5);
+        long intervalle = ConfigurationLlm.lireLong("gemini.stockage.intervalle", 200);
+        this.ecritureReguliere = executor.scheduleWithFixedDelay(this::ecrireLots,
+                intervalle, intervalle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Écrit ce qui reste dans la file quand l'application est arrêtée.
+     */
+    @PreDestroy
+    void arreter() {
+        ecritureReguliere.cancel(false);
+        ecrireLots();
+    }
+
+    /**
+     * Met dans la file d'écriture les messages de la conversation qui n'y ont pas encore été mis,
+     * puis retire de la mémoire les messages anciens déjà écrits dans la base de données.
+     * Ne bloque jamais.
+     *
+     * @param conversation la conversation.
+     * @param avancement l'avancement de l'enregistrement de cette conversation (nouvel objet pour une nouvelle
+     * conversation), mis à jour.
+     */
+    public void enregistrer(Conversation conversation, AvancementEcriture avancement) {
+        int enregistres = avancement.getEnFile();
+        if (enregistres == 0 && !file.offer(new EntiteEnAttente(new ConversationEntite(conversation.getId(),
+                conversation.getSystemInstruction(), Instant.now()), avancement))) {
+            fileSaturee.increment();
+            return;
+        }
+        while (enregistres < conversation.taille()) {
+            TourEntite tour = new TourEntite(conversation.getId(), enregistres,
+                    conversation.getTour(enregistres));
+            if (!file.offer(new EntiteEnAttente(tour, avancement))) {
+                fileSaturee.increment();
+                break;
+            }
+            enregistres++;
+        }
+        avancement.setEnFile(enregistres);
+        if (file.size() >= tailleLot) {
+            // Pas besoin d'attendre la prochaine écriture régulière.
+            executor.execute(this::ecrireLots);
+        }
+        int oubliables = Math.min(Math.min(avancement.getRelisibles(), conversation.getDebut()),
+                conversation.taille() - fenetre);
+        if (oubliables > conversation.getDecalage()) {
+            conversation.oublier(oubliables);
+        }
+    }
+
+    /**
+     * Lit des messages enregistrés. Appel synchrone à la base de données : à n'utiliser que pour
+     * une action explicite de l'utilisateur.
+     * Seuls les messages écrits dans la base de données sont trouvés ; les autres n'ont pas été retirés de la
+     * mémoire.
+     *
+     * @return les messages d'indice debut (inclus) à fin (exclu).
+     */
+    public List<Tour> charger(String conversationId, int debut, int fin) {
+        return ecrivain.lire(conversationId, debut, fin);
+    }
+
+    /**
+     * Vide la file, par lots de tailleLot entités, en commençant par le lot dont l'écriture a échoué.
+     */
+    private void ecrireLots() {
+        if (!ecritureEnCours.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<EntiteEnAttente> lot = lotEnEchec != null ? lotEnEchec : new ArrayList<>(tailleLot);
+            lotEnEchec = null;
+            while (!lot.isEmpty() || file.drainTo(lot, tailleLot) > 0) {
+                if (!ecrire(lot)) {
+                    if (++echecs < tentatives) {
+                        // Les entités arrivées depuis attendent : les messages sont écrits dans l'ordre.
+                        lotEnEchec = lot;
+                        return;
+                    }
+                    abandonner(lot);
+                }
+                echecs = 0;
+                lot.clear();
+            }
+        } finally {
+            ecritureEnCours.set(false);
+        }
+    }
+
+    /**
+     * Écrit un lot dans une transaction, puis met à jour l'avancement des conversations.
+     *
+     * @return false si l'écriture a échoué.
+     */
+    private boolean ecrire(List<EntiteEnAttente> lot) {
+        List<Object> entites = new ArrayList<>(lot.size());
+        for (EntiteEnAttente enAttente : lot) {
+            entites.add(enAttente.entite());
+        }
+        long debut = System.nanoTime();
+        try {
+            ecrivain.ecrire(entites);
+        } catch (RuntimeException e) {
+            lotsEnEchec.increment();
+            LOGGER.log(Level.WARNING, "Écriture de " + lot.size() + " entités impossible", e);
+            return false;
+        } finally {
+            dureeLots.enregistrerNanos(System.nanoTime() - debut);
+        }
+        ecrits.add(lot.size());
+        for (EntiteEnAttente enAttente : lot) {
+            if (enAttente.entite() instanceof TourEntite tour) {
+                enAttente.avancement().ecrit(tour.getIndice());
+            }
+        }
+        return true;
+    }
+
+    private void abandonner(List<EntiteEnAttente> lot) {
+        LOGGER.log(Level.SEVERE, "Lot de {0} entités abandonné après {1} échecs", new Object[]{lot.size(), echecs});
+        perdus.add(lot.size());
+        for (EntiteEnAttente enAttente : lot) {
+            enAttente.avancement().abandonne(enAttente.entite() instanceof TourEntite tour ? tour.getIndice() : 0);
+        }
+    }
+
+    @Override
+    public void ecrireMetriques(PrintWriter out) {
+        out.println("# HELP llm_stockage_file Entités en attente d'écriture dans la base de données.");
+        out.println("# TYPE llm_stockage_file gauge");
+        out.printf("llm_stockage_file %d%n", file.size());
+        out.println("# HELP llm_stockage_ecrites_total Entités écrites dans la base de données.");
+        out.println("# TYPE llm_stockage_ecrites_total counter");
+        out.printf("llm_stockage_ecrites_total %d%n", ecrits.sum());
+        out.println("# HELP llm_stockage_perdues_total Entités abandonnées après gemini.stockage.tentatives échecs d'écriture.");
+        out.println("# TYPE llm_stockage_perdues_total counter");
+        out.printf("llm_stockage_perdues_total %d%n", perdus.sum());
+        out.println("# HELP llm_stockage_lots_echec_total Écritures de lots qui ont échoué (le lot est réessayé).");
+        out.println("# TYPE llm_stockage_lots_echec_total counter");
+        out.printf("llm_stockage_lots_echec_total %d%n", lotsEnEchec.sum());
+        out.println("# HELP llm_stockage_file_saturee_total Ajouts refusés parce que la file était pleine.");
+        out.println("# TYPE llm_stockage_file_saturee_total counter");
+        out.printf("llm_stockage_file_saturee_total %d%n", fileSaturee.sum());
+        out.println("# HELP llm_stockage_lot_secondes Durée de l'écriture d'un lot.");
+        out.println("# TYPE llm_stockage_lot_secondes histogram");
+        dureeLots.ecrire(out, "llm_stockage_lot_secondes", "");
+    }
+
+    /**
+     * Entité dans la file d'écriture, avec l'avancement de sa conversation à mettre à jour une fois écrite.
+     */
+    private record EntiteEnAttente(Object entite, AvancementEcriture avancement) {
+    }
+}
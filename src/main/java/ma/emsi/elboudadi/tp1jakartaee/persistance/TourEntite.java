@@ -0,0 +1,135 @@
+package ma.emsi.elboudadi.tp1jakartaee.persistance;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Lob;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import ma.emsi.elboudadi.tp1jakartaee.llm.FichierJoint;
+import ma.emsi.elboudadi.tp1jakartaee.llm.Tour;
+
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Un message enregistré d'une conversation.
+ * La clé (conversation, indice) est connue de l'application : pas de séquence ni de colonne auto-incrémentée,
+ * ce qui permet d'insérer les messages par lots (batch JDBC).
+ * La conversation est référencée par son identifiant seulement, pour ne jamais la charger avec ses messages.
+ */
+@Entity
+@Table(name = "TOUR")
+@IdClass(TourEntite.Cle.class)
+@NamedQuery(name = "TourEntite.parConversation",
+        query = "select t from TourEntite t where t.conversationId = :conversationId"
+                + " and t.indice >= :debut and t.indice < :fin order by t.indice")
+public class TourEntite {
+
+    /**
+     * Clé primaire composée.
+     */
+    public static class Cle implements Serializable {
+        private String conversationId;
+        private int indice;
+
+        public Cle() {
+        }
+
+        public Cle(String conversationId, int indice) {
+            this.conversationId = conversationId;
+            this.indice = indice;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Cle cle && indice == cle.indice && Objects.equals(conversationId, cle.conversationId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(conversationId, indice);
+        }
+    }
+
+    @Id
+    @Column(length = 36)
+    private String conversationId;
+
+    @Id
+    private int indice;
+
+    @Column(length = 10)
+    private String role;
+
+    @Lob
+    private String texte;
+
+    /**
+     * Références des fichiers joints, en JSON : [{"nom": "...", "mimeType": "...", "uri": "..."}] ;
+     * null s'il n'y en a pas (la plupart des messages).
+     */
+    @Lob
+    private String fichiers;
+
+    /**
+     * Obligatoire pour une entité JPA.
+     */
+    protected TourEntite() {
+    }
+
+    public TourEntite(String conversationId, int indice, Tour tour) {
+        this.conversationId = conversationId;
+        this.indice = indice;
+        this.role = tour.role();
+        this.texte = String.join("", tour.textes());
+        this.fichiers = tour.fichiers().isEmpty() ? null : enJson(tour.fichiers());
+    }
+
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    public int getIndice() {
+        return indice;
+    }
+
+    public Tour getTour() {
+        if (Tour.MODEL.equals(role)) {
+            return Tour.model(texte);
+        }
+        return fichiers == null ? Tour.user(texte) : Tour.user(texte, lireFichiers(fichiers));
+    }
+
+    private static String enJson(List<FichierJoint> fichiers) {
+        JsonArrayBuilder tableau = Json.createArrayBuilder();
+        for (FichierJoint fichier : fichiers) {
+            tableau.add(Json.createObjectBuilder()
+                    .add("nom", fichier.nom())
+                    .add("mimeType", fichier.mimeType())
+                    .add("uri", fichier.uri()));
+        }
+        return tableau.build().toString();
+    }
+
+    private static List<FichierJoint> lireFichiers(String json) {
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            JsonArray tableau = reader.readArray();
+            List<FichierJoint> resultat = new ArrayList<>(tableau.size());
+            for (JsonObject fichier : tableau.getValuesAs(JsonObject.class)) {
+                resultat.add(new FichierJoint(fichier.getString("nom"), fichier.getString("mimeType"),
+                        fichier.getString("uri")));
+            }
+            return resultat;
+        }
+    }
+}
@@ -16,4 +16,71 @@ async function copyToClipboard(idTextArea) {
 function toutEffacer() {
     document.getElementById("form:question").value = "";
     document.getElementById("form:reponse").value = "";
+}
+
+/* Affiche la réponse du LLM au fur et à mesure qu'elle est reçue (voir FluxReponseServlet). */
+function demarrerFlux(contextPath, idFlux) {
+    var reponse = document.getElementById("form:reponse");
+    reponse.value = "";
+    var source = new EventSource(contextPath + "/flux-reponse?id=" + encodeURIComponent(idFlux));
+    source.onmessage = function (event) {
+        reponse.value += JSON.parse(event.data).t;
+        reponse.scrollTop = reponse.scrollHeight;
+    };
+    source.addEventListener("fin", function () {
+        source.close();
+        terminerFlux();
+    });
+    source.addEventListener("erreur", function () {
+        source.close();
+        terminerFlux();
+    });
+    source.onerror = function () {
+        // Pas de reconnexion automatique : le flux ne peut être exécuté qu'une fois.
+        if (source.readyState !== EventSource.CLOSED) {
+            source.close();
+            terminerFlux();
+        }
+    };
+}
+
+/* Ajoute à la conversation affichée le nouvel échange renvoyé par le serveur (paramètre de callback "echange"),
+   sans renvoyer toute la conversation. */
+function ajouterEchange(args) {
+    if (!args || !args.echange) {
+        return;
+    }
+    var conversation = document.getElementById("form:conversation");
+    conversation.value += args.echange;
+    conversation.scrollTop = conversation.scrollHeight;
+}
+
+/* Envoie le fichier choisi à FichierServlet, qui le transmet au fur et à mesure à l'API ;
+   seul l'identifiant renvoyé est ensuite envoyé avec la question. */
+async function joindreFichier(contextPath, input) {
+    var fichier = input.files[0];
+    if (!fichier) {
+        return;
+    }
+    var nom = document.getElementById("form:nompiecejointe");
+    var pieceJointe = document.getElementById("form:piecejointe");
+    pieceJointe.value = "";
+    nom.textContent = "Envoi de " + fichier.name + "...";
+    try {
+        var reponse = await fetch(contextPath + "/fichier?nom=" + encodeURIComponent(fichier.name)
+            + "&type=" + encodeURIComponent(fichier.type), {
+            method: "POST",
+            headers: {"Content-Type": "application/octet-stream"},
+            body: fichier
+        });
+        if (!reponse.ok) {
+            throw new Error(reponse.status + " " + reponse.statusText);
+        }
+        var resultat = await reponse.json();
+        pieceJointe.value = resultat.id;
+        nom.textContent = resultat.nom;
+    } catch (err) {
+        nom.textContent = "Envoi de " + fichier.name + " impossible : " + err.message;
+    }
+    input.value = "";
 }
\ No newline at end of file
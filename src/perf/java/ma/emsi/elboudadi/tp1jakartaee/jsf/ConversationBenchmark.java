@@ -0,0 +1,54 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConversationsExemples;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coût de l'affichage de la conversation dans la page en fonction de sa longueur.
+ * Seuls les derniers messages sont affichés (gemini.stockage.fenetre) : le coût doit rester à peu près constant.
+ * Les compteurs auxiliaires donnent la taille du texte envoyé à la page : caracteres / operations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversationBenchmark {
+
+    /**
+     * Nombre de messages (questions et réponses) dans la conversation.
+     */
+    @Param({"1", "10", "100", "500"})
+    public int nbTours;
+
+    private Bb bb;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Caracteres {
+        public long caracteres;
+        public long operations;
+
+        @Setup(Level.Iteration)
+        public void reinitialiser() {
+            caracteres = 0;
+            operations = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void preparer() {
+        bb = new Bb(ConversationsExemples.conversation(nbTours));
+    }
+
+    @Benchmark
+    public String getConversation(Caracteres caracteres) {
+        String texte = bb.getConversation();
+        caracteres.caracteres += texte.length();
+        caracteres.operations++;
+        return texte;
+    }
+}
@@ -0,0 +1,126 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import ma.emsi.elboudadi.tp1jakartaee.llm.ConversationsExemples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mesure la taille de l'état d'une vue (Bb et sa conversation) sérialisé, comme pour la passivation
+ * ou la réplication de la session, et la mémoire occupée par une vue restaurée.
+ * Compare la sérialisation standard de Java (gemini.vue.compacte=false) à la forme compacte,
+ * avec et sans compression, pour des conversations de 10, 100 et 500 messages.
+ * Vérifie aussi que la conversation restaurée est identique à l'originale.
+ *
+ * Lancement :
+ * mvn -Pbenchmarks test-compile exec:exec -Dperf.main=ma.emsi.elboudadi.tp1jakartaee.jsf.TailleEtatVue -Dperf.args=""
+ * Arguments : -tours 10,100,500 (longueurs des conversations), -vues 1000 (vues restaurées pour mesurer la mémoire).
+ */
+public final class TailleEtatVue {
+
+    private record Forme(String nom, boolean compacte, int seuilCompression) {
+    }
+
+    private static final List<Forme> FORMES = List.of(
+            new Forme("standard", false, 0),
+            new Forme("compacte", true, 0),
+            new Forme("compacte+deflate", true, 1024));
+
+    private TailleEtatVue() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String tours = "10,100,500";
+        int nbVues = 1000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-tours" -> tours = args[i + 1];
+                case "-vues" -> nbVues = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Argument inconnu : " + args[i]);
+            }
+        }
+        System.out.printf("%-8s %-18s %14s %14s %18s%n",
+                "messages", "forme", "octets", "ecriture (us)", "memoire/vue (o)");
+        for (String valeur : tours.split(",")) {
+            int nbTours = Integer.parseInt(valeur.trim());
+            Bb bb = new Bb(ConversationsExemples.conversation(nbTours));
+            String attendu = bb.getConversation();
+            for (Forme forme : FORMES) {
+                System.setProperty("gemini.vue.compacte", String.valueOf(forme.compacte()));
+                System.setProperty("gemini.vue.compression", String.valueOf(forme.seuilCompression()));
+                byte[] octets = serialiser(bb);
+                long nanos = dureeSerialisation(bb);
+                Bb restaure = (Bb) deserialiser(octets);
+                if (!attendu.equals(restaure.getConversation())) {
+                    throw new IllegalStateException("Conversation restaurée différente (" + forme.nom() + ")");
+                }
+                System.out.printf("%-8d %-18s %14d %14.1f %18d%n",
+                        nbTours, forme.nom(), octets.length, nanos / 1000.0, memoireParVue(octets, nbVues));
+            }
+        }
+    }
+
+    private static byte[] serialiser(Object objet) throws IOException {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(octets)) {
+            out.writeObject(objet);
+        }
+        return octets.toByteArray();
+    }
+
+    private static Object deserialiser(byte[] octets) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(octets))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * @return la durée médiane d'une sérialisation, après un échauffement.
+     */
+    private static long dureeSerialisation(Object objet) throws IOException {
+        for (int i = 0; i < 200; i++) {
+            serialiser(objet);
+        }
+        long[] durees = new long[101];
+        for (int i = 0; i < durees.length; i++) {
+            long debut = System.nanoTime();
+            serialiser(objet);
+            durees[i] = System.nanoTime() - debut;
+        }
+        Arrays.sort(durees);
+        return durees[durees.length / 2];
+    }
+
+    /**
+     * Mémoire occupée par une vue restaurée : différence du tas utilisé avant et après la restauration
+     * de nbVues vues, divisée par nbVues. Approximatif (dépend du GC), mais suffisant pour comparer.
+     */
+    private static long memoireParVue(byte[] octets, int nbVues) throws IOException, ClassNotFoundException {
+        MemoryMXBean memoire = ManagementFactory.getMemoryMXBean();
+        List<Object> vues = new ArrayList<>(nbVues);
+        long avant = tasUtilise(memoire);
+        for (int i = 0; i < nbVues; i++) {
+            vues.add(deserialiser(octets));
+        }
+        long apres = tasUtilise(memoire);
+        if (vues.size() != nbVues) {
+            throw new IllegalStateException();
+        }
+        return (apres - avant) / nbVues;
+    }
+
+    private static long tasUtilise(MemoryMXBean memoire) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoire.getHeapMemoryUsage().getUsed();
+    }
+}
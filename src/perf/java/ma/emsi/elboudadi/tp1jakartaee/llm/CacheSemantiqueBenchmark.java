@@ -0,0 +1,47 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durée d'une recherche dans le cache sémantique (plongement de la question et parcours de l'index d'un rôle),
+ * en fonction du nombre d'entrées de l'index. Doit rester très inférieure à la durée d'un appel à l'API.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheSemantiqueBenchmark {
+
+    /**
+     * Nombre d'entrées dans l'index.
+     */
+    @Param({"100", "1000", "5000"})
+    public int entrees;
+
+    private final Plongement plongement = new PlongementNgrammes();
+    private IndexVecteurs index;
+
+    @Setup
+    public void preparer() {
+        index = new IndexVecteurs(plongement.dimension(), entrees);
+        ReponseGemini reponse = new ReponseGemini(Tour.model(ConversationsExemples.REPONSE), "STOP", 0, 0, 0, 0, null);
+        for (int i = 0; i < entrees; i++) {
+            index.ajouter(plongement.plonger("Question " + i + " : quelle est la capitale du pays " + i + " ?"),
+                    reponse, 3_600_000);
+        }
+    }
+
+    @Benchmark
+    public float[] plonger() {
+        return plongement.plonger("Quelle est la capitale de la France ?");
+    }
+
+    @Benchmark
+    public ReponseGemini chercher() {
+        return index.chercher(plongement.plonger("Quelle est la capitale de la France ?"), 0.9);
+    }
+}
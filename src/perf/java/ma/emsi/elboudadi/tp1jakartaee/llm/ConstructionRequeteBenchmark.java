@@ -0,0 +1,151 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coût de la construction des requêtes et de la lecture des réponses en fonction de la longueur de la conversation.
+ * La taille des documents écrits est donnée par les compteurs auxiliaires : octets / operations = octets par appel.
+ * Attention, au-delà du budget de tokens (gemini.contexte.budget) les messages les plus anciens ne sont plus
+ * envoyés ; pour mesurer la conversation complète : -Djmh.args="-jvmArgs -Dgemini.contexte.budget=100000000".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConstructionRequeteBenchmark {
+
+    static final String ROLE = ConversationsExemples.ROLE;
+    static final String QUESTION = ConversationsExemples.QUESTION;
+    static final String REPONSE = ConversationsExemples.REPONSE;
+    static final RolePredefini ROLE_PREDEFINI = RolePredefini.creer("Assistant", ROLE, true);
+
+    /**
+     * Nombre de messages (questions et réponses) déjà dans la conversation.
+     */
+    @Param({"1", "10", "100", "500"})
+    public int nbTours;
+
+    private byte[] reponseJson;
+    private String requeteJson;
+
+    /**
+     * Taille des documents écrits, rapportée par JMH avec les résultats.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Octets {
+        public long octets;
+        public long operations;
+
+        @Setup(Level.Iteration)
+        public void reinitialiser() {
+            octets = 0;
+            operations = 0;
+        }
+
+        void ajouter(long n) {
+            octets += n;
+            operations++;
+        }
+    }
+
+    /**
+     * Conversation de nbTours messages, recréée avant chaque appel car chaque appel la fait grandir.
+     */
+    @State(Scope.Thread)
+    public static class ConversationFraiche {
+        JsonUtilPourGemini jsonUtil;
+
+        @Setup(Level.Invocation)
+        public void preparer(ConstructionRequeteBenchmark benchmark) {
+            jsonUtil = conversation(benchmark.nbTours);
+        }
+    }
+
+    /**
+     * Flux qui compte les octets sans les garder.
+     */
+    private static final class CompteurNul extends OutputStream {
+        long n;
+
+        @Override
+        public void write(int b) {
+            n++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            n += len;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void preparerDocuments() {
+        reponseJson = ("{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"" + REPONSE + "\"}],\"role\":\"model\"},"
+                + "\"finishReason\":\"STOP\",\"avgLogprobs\":-0.12}],"
+                + "\"usageMetadata\":{\"promptTokenCount\":120,\"candidatesTokenCount\":80,\"totalTokenCount\":200,"
+                + "\"promptTokensDetails\":[{\"modality\":\"TEXT\",\"tokenCount\":120}]},"
+                + "\"modelVersion\":\"gemini-2.0-flash\"}").getBytes(StandardCharsets.UTF_8);
+        requeteJson = conversation(nbTours).getConversation().enTexte(false);
+    }
+
+    static JsonUtilPourGemini conversation(int nbTours) {
+        return ConversationsExemples.conversation(nbTours);
+    }
+
+    /**
+     * Ne dépend pas de nbTours : sert de référence.
+     */
+    @Benchmark
+    public long creerRequeteJson(Octets octets) throws IOException {
+        CorpsRequete corps = new JsonUtilPourGemini().creerRequeteJson(ROLE, QUESTION);
+        return ecrire(corps, octets);
+    }
+
+    /**
+     * Comme creerRequeteJson, avec un rôle prédéfini dont le fragment JSON est déjà écrit.
+     */
+    @Benchmark
+    public long creerRequeteJsonRolePredefini(Octets octets) throws IOException {
+        Conversation conversation = new Conversation(ROLE_PREDEFINI);
+        conversation.ajouter(Tour.user(QUESTION));
+        return ecrire(new CorpsRequete(conversation, conversation.taille(), null), octets);
+    }
+
+    @Benchmark
+    public long ajouteQuestionDansJsonRequete(ConversationFraiche etat, Octets octets) throws IOException {
+        CorpsRequete corps = etat.jsonUtil.ajouteQuestionDansJsonRequete(QUESTION);
+        return ecrire(corps, octets);
+    }
+
+    @Benchmark
+    public ReponseGemini extractReponse(ConversationFraiche etat, Octets octets) throws Exception {
+        octets.ajouter(reponseJson.length);
+        return etat.jsonUtil.extractReponse(new ByteArrayInputStream(reponseJson), false);
+    }
+
+    /**
+     * Mise en forme du document de la requête pour le panneau de debug.
+     */
+    @Benchmark
+    public String prettyPrinting(Octets octets) {
+        String texte = EchangeDebug.formater(requeteJson);
+        octets.ajouter(texte.length());
+        return texte;
+    }
+
+    private static long ecrire(CorpsRequete corps, Octets octets) throws IOException {
+        CompteurNul out = new CompteurNul();
+        corps.write(out);
+        octets.ajouter(out.n);
+        return out.n;
+    }
+}
@@ -0,0 +1,37 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+/**
+ * Conversations utilisées par les outils de mesure, quel que soit leur package.
+ */
+public final class ConversationsExemples {
+
+    public static final String ROLE = """
+            You are a helpful assistant. You help the user to find the information they need.
+            If the user type a question, you answer it.
+            """;
+    public static final String QUESTION = "Quelle est la capitale de la France et combien d'habitants y vivent ?";
+    public static final String REPONSE = "Paris est la capitale de la France. ".repeat(20);
+
+    private ConversationsExemples() {
+    }
+
+    /**
+     * Chaque message a un texte différent (numéroté), comme dans une vraie conversation : la sérialisation
+     * standard de Java n'écrit qu'une fois une même instance de String.
+     *
+     * @param nbTours nombre de messages : questions et réponses en alternance, la dernière est une question.
+     * @return un JsonUtilPourGemini (sans CDI) qui contient la conversation.
+     */
+    public static JsonUtilPourGemini conversation(int nbTours) {
+        JsonUtilPourGemini util = new JsonUtilPourGemini();
+        util.creerRequeteJson(ROLE, QUESTION);
+        for (int i = 1; i < nbTours; i++) {
+            if (i % 2 == 1) {
+                util.getConversation().ajouter(Tour.model(REPONSE + i));
+            } else {
+                util.ajouteQuestionDansJsonRequete(QUESTION + i);
+            }
+        }
+        return util;
+    }
+}
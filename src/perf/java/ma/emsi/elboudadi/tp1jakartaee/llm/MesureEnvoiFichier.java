@@ -0,0 +1,152 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import ma.emsi.elboudadi.tp1jakartaee.perf.ServeurGeminiSimule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Mesure l'envoi de fichiers par ClientFichiersGemini au serveur qui simule l'API (ServeurGeminiSimule),
+ * démarré dans le même programme : débit, nombre de morceaux et de reprises, et pic d'utilisation du tas,
+ * qui ne doit pas dépendre de la taille des fichiers (seul un morceau à la fois est en mémoire, hors du tas).
+ * Vérifie ensuite qu'une requête generateContent qui référence le fichier est acceptée par le serveur simulé.
+ *
+ * Options : -taille 256 (Mio par fichier) -envois 1 (envois en même temps) -coupures 0 (proportion des morceaux
+ * coupés par le serveur simulé, pour tester la reprise). Taille des morceaux : -Dgemini.fichiers.morceau.
+ * Par exemple :
+ * mvn -Pbenchmarks test-compile exec:exec -Dperf.main=ma.emsi.elboudadi.tp1jakartaee.llm.MesureEnvoiFichier
+ * -Dperf.args="-taille 512 -envois 2 -coupures 0.1"
+ */
+public class MesureEnvoiFichier {
+
+    public static void main(String[] args) throws Exception {
+        long tailleMio = 256;
+        int envois = 1;
+        double coupures = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-taille" -> tailleMio = Long.parseLong(args[i + 1]);
+                case "-envois" -> envois = Integer.parseInt(args[i + 1]);
+                case "-coupures" -> coupures = Double.parseDouble(args[i + 1]);
+                default -> throw new IllegalArgumentException("Option inconnue : " + args[i]);
+            }
+        }
+        ServeurGeminiSimule simule = new ServeurGeminiSimule().port(0).latence(0).gigue(0).coupuresEnvoi(coupures);
+        simule.start();
+        try {
+            System.setProperty("gemini.base.url", simule.getUrlBase());
+            ClientFichiersGemini client = new ClientFichiersGemini();
+            client.init();
+            long taille = tailleMio * 1024 * 1024;
+
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long debut = System.nanoTime();
+            ExecutorService executor = Executors.newFixedThreadPool(envois);
+            Future<?>[] resultats = new Future<?>[envois];
+            for (int i = 0; i < envois; i++) {
+                String nom = "fichier" + i + ".bin";
+                resultats[i] = executor.submit(() -> client.envoyer(new SourceGeneree(taille), nom,
+                        "application/octet-stream", taille));
+            }
+            FichierJoint fichier = null;
+            try {
+                for (Future<?> resultat : resultats) {
+                    fichier = (FichierJoint) resultat.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            long dureeMs = Math.max(1, (System.nanoTime() - debut) / 1_000_000);
+
+            System.out.printf("%d fichier(s) de %d Mio envoyés en %d ms : %.1f Mio/s%n",
+                    envois, tailleMio, dureeMs, envois * tailleMio * 1000.0 / dureeMs);
+            System.out.printf("Octets reçus par le serveur simulé : %d (morceaux coupés : %d)%n",
+                    simule.getOctetsFichiers(), simule.getCoupures());
+            System.out.printf("Pic du tas : %d Mio%n", picTas() / (1024 * 1024));
+            StringWriter metriques = new StringWriter();
+            client.ecrireMetriques(new PrintWriter(metriques));
+            metriques.toString().lines()
+                    .filter(ligne -> ligne.startsWith("llm_fichiers_") && !ligne.contains("_bucket"))
+                    .forEach(System.out::println);
+
+            System.out.println("Requête avec le fichier : statut " + generateContent(simule, fichier));
+            FichierJoint inconnu = new FichierJoint("inconnu", "application/pdf", simule.getUrlBase() + "/files/x");
+            System.out.println("Requête avec un fichier inconnu : statut " + generateContent(simule, inconnu));
+        } finally {
+            simule.stop();
+        }
+    }
+
+    private static int generateContent(ServeurGeminiSimule simule, FichierJoint fichier) throws Exception {
+        Conversation conversation = new Conversation("helpful assistant");
+        conversation.ajouter(Tour.user("Résume ce fichier", List.of(fichier)));
+        ByteArrayOutputStream corps = new ByteArrayOutputStream();
+        conversation.ecrire(corps, conversation.taille());
+        HttpRequest requete = HttpRequest.newBuilder(
+                        URI.create(simule.getUrlBase() + "/models/gemini-2.0-flash:generateContent"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(corps.toByteArray()))
+                .build();
+        return HttpClient.newHttpClient().send(requete, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static long picTas() {
+        long pic = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pic += pool.getPeakUsage().getUsed();
+            }
+        }
+        return pic;
+    }
+
+    /**
+     * Contenu de fichier généré au fur et à mesure de la lecture, sans tableau de la taille du fichier.
+     */
+    private static final class SourceGeneree implements ReadableByteChannel {
+        private long restant;
+        private byte valeur;
+
+        SourceGeneree(long taille) {
+            this.restant = taille;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) {
+            if (restant == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(restant, destination.remaining());
+            for (int i = 0; i < n; i++) {
+                destination.put(valeur++);
+            }
+            restant -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package ma.emsi.elboudadi.tp1jakartaee.perf;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Test de charge de la page index.xhtml : simule des utilisateurs qui ont chacun leur conversation
+ * (leur session et leur vue JSF) et envoient des questions en même temps.
+ * Affiche le débit et les percentiles 50 et 99 de la durée des requêtes.
+ *
+ * À lancer contre l'application configurée avec ServeurGeminiSimule pour ne pas appeler la vraie API.
+ * Options : -url http://localhost:8080/tp1jakartaee/index.xhtml -utilisateurs 50 -questions 10 -pause 0
+ * -questionsIdentiques false (true : tous les utilisateurs posent les mêmes questions)
+ * -metriques http://localhost:8080/tp1jakartaee/metrics (par défaut, à côté de la page).
+ * Affiche aussi l'augmentation pendant le test des compteurs de /metrics sur les appels à l'API
+ * (llm_passerelle_tentatives_total), le cache des réponses et le regroupement des requêtes identiques :
+ * comparer les appels à l'API avec -questionsIdentiques true et gemini.coalescence.actif true ou false.
+ */
+public class TestDeCharge {
+
+    private static final Pattern VIEW_STATE =
+            Pattern.compile("name=\"jakarta\\.faces\\.ViewState\"[^>]*?value=\"([^\"]+)\"");
+    private static final String ROLE = """
+            You are a helpful assistant. You help the user to find the information they need.
+            If the user type a question, you answer it.
+            """;
+    private static final List<String> COMPTEURS = List.of("llm_passerelle_tentatives_total",
+            "llm_coalescence_total", "llm_coalescence_replis_total", "llm_cache_total");
+
+    private String url = "http://localhost:8080/tp1jakartaee/index.xhtml";
+    private int utilisateurs = 50;
+    private int questions = 10;
+    private long pauseMs;
+    private boolean questionsIdentiques;
+    private String urlMetriques;
+
+    private final AtomicLong erreurs = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException {
+        TestDeCharge test = new TestDeCharge();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valeur = args[i + 1];
+            switch (args[i]) {
+                case "-url" -> test.url = valeur;
+                case "-utilisateurs" -> test.utilisateurs = Integer.parseInt(valeur);
+                case "-questions" -> test.questions = Integer.parseInt(valeur);
+                case "-pause" -> test.pauseMs = Long.parseLong(valeur);
+                case "-questionsIdentiques" -> test.questionsIdentiques = Boolean.parseBoolean(valeur);
+                case "-metriques" -> test.urlMetriques = valeur;
+                default -> throw new IllegalArgumentException("Option inconnue : " + args[i]);
+            }
+        }
+        test.lancer();
+    }
+
+    public void lancer() throws InterruptedException {
+        if (urlMetriques == null) {
+            urlMetriques = URI.create(url).resolve("metrics").toString();
+        }
+        Map<String, Double> compteursAvant = lireCompteurs();
+        List<long[]> durees = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(utilisateurs);
+        CountDownLatch fin = new CountDownLatch(utilisateurs);
+        long debut = System.nanoTime();
+        for (int u = 0; u < utilisateurs; u++) {
+            long[] dureesUtilisateur = new long[questions];
+            durees.add(dureesUtilisateur);
+            int numero = u;
+            executor.execute(() -> {
+                try {
+                    conversation(numero, dureesUtilisateur);
+                } catch (IOException | RuntimeException e) {
+                    erreurs.incrementAndGet();
+                    System.err.println("Utilisateur " + numero + " : " + e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    fin.countDown();
+                }
+            });
+        }
+        fin.await();
+        double secondes = (System.nanoTime() - debut) / 1e9;
+        executor.shutdown();
+
+        long[] toutes = durees.stream().flatMapToLong(Arrays::stream).filter(d -> d > 0).sorted().toArray();
+        System.out.printf("Utilisateurs : %d, questions par utilisateur : %d%n", utilisateurs, questions);
+        System.out.printf("Requêtes réussies : %d, erreurs : %d, durée totale : %.1f s%n",
+                toutes.length, erreurs.get(), secondes);
+        System.out.printf("Débit : %.1f requêtes/s%n", toutes.length / secondes);
+        if (toutes.length > 0) {
+            System.out.printf("p50 : %d ms, p99 : %d ms, max : %d ms%n",
+                    percentile(toutes, 0.50), percentile(toutes, 0.99), toutes[toutes.length - 1] / 1_000_000);
+        }
+        Map<String, Double> compteursApres = lireCompteurs();
+        for (Map.Entry<String, Double> compteur : compteursApres.entrySet()) {
+            double avant = compteursAvant.getOrDefault(compteur.getKey(), 0.0);
+            System.out.printf("%s : +%.0f%n", compteur.getKey(), compteur.getValue() - avant);
+        }
+    }
+
+    /**
+     * @return les valeurs des COMPTEURS dans /metrics, par ligne (nom et labels) ; vide si /metrics n'est pas
+     * accessible.
+     */
+    private Map<String, Double> lireCompteurs() throws InterruptedException {
+        Map<String, Double> compteurs = new LinkedHashMap<>();
+        try {
+            HttpResponse<String> reponse = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create(urlMetriques)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (reponse.statusCode() != 200) {
+                System.err.println(urlMetriques + " : statut " + reponse.statusCode());
+                return compteurs;
+            }
+            for (String ligne : reponse.body().split("\n")) {
+                int espace = ligne.lastIndexOf(' ');
+                if (espace > 0 && COMPTEURS.stream().anyMatch(nom -> ligne.startsWith(nom + "{")
+                        || ligne.startsWith(nom + " "))) {
+                    compteurs.put(ligne.substring(0, espace), Double.parseDouble(ligne.substring(espace + 1)));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println(urlMetriques + " : " + e);
+        }
+        return compteurs;
+    }
+
+    /**
+     * Une conversation : ouverture de la page puis envoi des questions, l'une après l'autre.
+     */
+    private void conversation(int numero, long[] durees) throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newBuilder()
+                .cookieHandler(new CookieManager())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        HttpResponse<String> page = client.send(HttpRequest.newBuilder(URI.create(url)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        String viewState = viewState(page.body());
+        for (int q = 0; q < questions; q++) {
+            Map<String, String> parametres = new LinkedHashMap<>();
+            parametres.put("form", "form");
+            if (q == 0) {
+                // Le rôle n'est envoyé qu'avec la première question (la liste est ensuite désactivée).
+                parametres.put("form:rolesysteme_input", ROLE);
+                parametres.put("form:rolesysteme_editableInput", ROLE);
+            }
+            String question = questionsIdentiques
+                    ? "Question " + q + " : quelle est la capitale de la France ?"
+                    : "Utilisateur " + numero + ", question " + q + " : quelle est la capitale de la France ?";
+            parametres.put("form:question", question);
+            parametres.put("form:envoyer", "Envoyer la question");
+            parametres.put("jakarta.faces.ViewState", viewState);
+            HttpRequest requete = HttpRequest.newBuilder(URI.create(url))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(encoder(parametres)))
+                    .build();
+            long debut = System.nanoTime();
+            HttpResponse<String> reponse = client.send(requete, HttpResponse.BodyHandlers.ofString());
+            long duree = System.nanoTime() - debut;
+            if (reponse.statusCode() != 200 || reponse.body().contains("Problème de connexion avec l'API du LLM")) {
+                erreurs.incrementAndGet();
+            } else {
+                durees[q] = duree;
+            }
+            viewState = viewState(reponse.body());
+            if (pauseMs > 0) {
+                Thread.sleep(pauseMs);
+            }
+        }
+    }
+
+    private static String viewState(String html) {
+        Matcher matcher = VIEW_STATE.matcher(html);
+        if (!matcher.find()) {
+            throw new IllegalStateException("ViewState introuvable dans la page");
+        }
+        return matcher.group(1);
+    }
+
+    private static String encoder(Map<String, String> parametres) {
+        return parametres.entrySet().stream()
+                .map(e -> URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + "="
+                        + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&"));
+    }
+
+    private static long percentile(long[] triees, double p) {
+        int indice = (int) Math.ceil(p * triees.length) - 1;
+        return triees[Math.max(0, indice)] / 1_000_000;
+    }
+}
@@ -0,0 +1,141 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * ETag gardé en mémoire par CacheRessourcesFilter : valable tant que le fichier de la ressource ne change pas.
+ * Comme dans FichierServletTest, la requête et la réponse sont des proxys.
+ */
+class CacheRessourcesFilterTest {
+
+    @TempDir
+    Path dossier;
+
+    private Path fichier;
+    private CacheRessourcesFilter filtre;
+    private final AtomicInteger lectures = new AtomicInteger();
+
+    private record Reponse(int statut, String etag, String corps) {
+    }
+
+    @BeforeEach
+    void creer() throws Exception {
+        fichier = Files.writeString(dossier.resolve("style.css"), "body { color: black; }");
+        URL url = fichier.toUri().toURL();
+        ServletContext contexte = proxy(ServletContext.class, Map.of("getResource",
+                args -> "/resources/css/style.css".equals(args[0]) ? url : null));
+        filtre = new CacheRessourcesFilter();
+        filtre.init(proxy(FilterConfig.class, Map.of("getServletContext", args -> contexte)));
+    }
+
+    @Test
+    void etagRecalculeQuandLeFichierChange() throws Exception {
+        Reponse premiere = envoyer(null);
+        assertEquals(200, premiere.statut());
+        assertNotNull(premiere.etag());
+
+        // Fichier inchangé : 304 sans relire la ressource.
+        assertEquals(304, envoyer(premiere.etag()).statut());
+        assertEquals(1, lectures.get());
+
+        Files.writeString(fichier, "body { color: red; }");
+        Files.setLastModifiedTime(fichier,
+                FileTime.fromMillis(Files.getLastModifiedTime(fichier).toMillis() + 10_000));
+        Reponse modifiee = envoyer(premiere.etag());
+        assertEquals(200, modifiee.statut());
+        assertEquals("body { color: red; }", modifiee.corps());
+        assertNotEquals(premiere.etag(), modifiee.etag());
+        assertEquals(2, lectures.get());
+
+        assertEquals(304, envoyer(modifiee.etag()).statut());
+        assertEquals(2, lectures.get());
+    }
+
+    /**
+     * GET /app/jakarta.faces.resource/css/style.css.xhtml, la ressource étant lue par le FilterChain.
+     */
+    private Reponse envoyer(String ifNoneMatch) throws Exception {
+        Map<String, Function<Object[], Object>> requete = new HashMap<>();
+        requete.put("getMethod", args -> "GET");
+        requete.put("getRequestURI", args -> "/app/jakarta.faces.resource/css/style.css.xhtml");
+        requete.put("getContextPath", args -> "/app");
+        requete.put("getQueryString", args -> null);
+        requete.put("getParameter", args -> null);
+        requete.put("getHeader", args -> "If-None-Match".equals(args[0]) ? ifNoneMatch : null);
+
+        int[] statut = {200};
+        Map<String, String> entetes = new HashMap<>();
+        ByteArrayOutputStream corps = new ByteArrayOutputStream();
+        Map<String, Function<Object[], Object>> reponse = new HashMap<>();
+        reponse.put("getStatus", args -> statut[0]);
+        reponse.put("setStatus", args -> {
+            statut[0] = (Integer) args[0];
+            return null;
+        });
+        reponse.put("setHeader", args -> entetes.put((String) args[0], (String) args[1]));
+        reponse.put("setContentLength", args -> null);
+        reponse.put("getOutputStream", args -> sortie(corps));
+
+        FilterChain chaine = (req, resp) -> {
+            lectures.incrementAndGet();
+            resp.getOutputStream().write(Files.readAllBytes(fichier));
+        };
+        filtre.doFilter(proxy(HttpServletRequest.class, requete), proxy(HttpServletResponse.class, reponse), chaine);
+        return new Reponse(statut[0], entetes.get("ETag"), corps.toString(StandardCharsets.UTF_8));
+    }
+
+    private static ServletOutputStream sortie(ByteArrayOutputStream corps) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                corps.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> methodes) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (objet, methode, args) -> {
+                    Function<Object[], Object> implementation = methodes.get(methode.getName());
+                    if (implementation == null) {
+                        throw new UnsupportedOperationException(methode.getName());
+                    }
+                    return implementation.apply(args);
+                }));
+    }
+}
@@ -0,0 +1,197 @@
+package ma.emsi.elboudadi.tp1jakartaee.jsf;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import ma.emsi.elboudadi.tp1jakartaee.llm.ClientFichiersGemini;
+import ma.emsi.elboudadi.tp1jakartaee.perf.ServeurGeminiSimule;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Statut HTTP renvoyé par FichierServlet quand l'envoi d'un fichier est refusé.
+ * La requête et la réponse sont des proxys qui n'implémentent que les méthodes utilisées par la servlet.
+ */
+class FichierServletTest {
+
+    private static final int MORCEAU = 256 * 1024;
+
+    private ServeurGeminiSimule simule;
+
+    @BeforeEach
+    void demarrer() throws Exception {
+        simule = new ServeurGeminiSimule().port(0).latence(0).gigue(0);
+        simule.start();
+        System.setProperty("gemini.base.url", simule.getUrlBase());
+        System.setProperty("gemini.fichiers.morceau", Integer.toString(MORCEAU));
+    }
+
+    @AfterEach
+    void arreter() {
+        simule.stop();
+        for (String nom : new String[]{"gemini.base.url", "gemini.fichiers.morceau", "gemini.fichiers.taille.max",
+                "gemini.fichiers.tampons", "gemini.fichiers.attente"}) {
+            System.clearProperty(nom);
+        }
+    }
+
+    @Test
+    void fichierTropGrosSansContentLength413() throws Exception {
+        System.setProperty("gemini.fichiers.taille.max", Integer.toString(MORCEAU + 1000));
+        FichierServlet servlet = servlet(client());
+
+        int statut = poster(servlet, new ByteArrayInputStream(new byte[3 * MORCEAU]));
+
+        assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, statut);
+    }
+
+    @Test
+    void plusDeTampon503() throws Exception {
+        System.setProperty("gemini.fichiers.tampons", "1");
+        System.setProperty("gemini.fichiers.attente", "50");
+        ClientFichiersGemini client = client();
+        FichierServlet servlet = servlet(client);
+        // Un envoi garde le seul tampon : sa source ne donne rien tant que le verrou n'est pas ouvert.
+        CountDownLatch debutLecture = new CountDownLatch(1);
+        CountDownLatch finLecture = new CountDownLatch(1);
+        ReadableByteChannel sourceBloquee = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                debutLecture.countDown();
+                try {
+                    finLecture.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        CompletableFuture<Void> premier = CompletableFuture.runAsync(() -> {
+            try {
+                client.envoyer(sourceBloquee, "lent.txt", "text/plain", -1);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            debutLecture.await(5, TimeUnit.SECONDS);
+
+            int statut = poster(servlet, new ByteArrayInputStream(new byte[1000]));
+
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, statut);
+        } finally {
+            finLecture.countDown();
+        }
+        premier.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Le client initialisé comme par CDI (@PostConstruct), avec les propriétés système du test.
+     */
+    private static ClientFichiersGemini client() throws ReflectiveOperationException {
+        ClientFichiersGemini client = new ClientFichiersGemini();
+        Method init = ClientFichiersGemini.class.getDeclaredMethod("init");
+        init.setAccessible(true);
+        init.invoke(client);
+        return client;
+    }
+
+    private static FichierServlet servlet(ClientFichiersGemini client) throws ReflectiveOperationException {
+        FichierServlet servlet = new FichierServlet();
+        Field champ = FichierServlet.class.getDeclaredField("clientFichiers");
+        champ.setAccessible(true);
+        champ.set(servlet, client);
+        return servlet;
+    }
+
+    /**
+     * POST /fichier?nom=donnees.bin&type=application/octet-stream sans Content-Length.
+     *
+     * @return le statut de l'erreur envoyée par la servlet, 200 si elle n'en a pas envoyé.
+     */
+    private static int poster(FichierServlet servlet, InputStream corps) throws Exception {
+        Map<String, Function<Object[], Object>> requete = new HashMap<>();
+        requete.put("getParameter", args -> Map.of("nom", "donnees.bin", "type", "application/octet-stream")
+                .get((String) args[0]));
+        requete.put("getContentLengthLong", args -> -1L);
+        requete.put("getSession", args -> proxy(HttpSession.class, Map.of()));
+        requete.put("getInputStream", args -> entree(corps));
+        int[] statut = {200};
+        Map<String, Function<Object[], Object>> reponse = new HashMap<>();
+        reponse.put("sendError", args -> {
+            statut[0] = (Integer) args[0];
+            return null;
+        });
+        servlet.doPost(proxy(HttpServletRequest.class, requete), proxy(HttpServletResponse.class, reponse));
+        return statut[0];
+    }
+
+    private static ServletInputStream entree(InputStream corps) {
+        return new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return corps.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return corps.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return false;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> methodes) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (objet, methode, args) -> {
+                    Function<Object[], Object> implementation = methodes.get(methode.getName());
+                    if (implementation == null) {
+                        throw new UnsupportedOperationException(methode.getName());
+                    }
+                    return implementation.apply(args);
+                }));
+    }
+}
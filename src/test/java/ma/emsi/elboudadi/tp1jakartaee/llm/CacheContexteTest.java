@@ -0,0 +1,80 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import ma.emsi.elboudadi.tp1jakartaee.perf.ServeurGeminiSimule;
+import org.jboss.weld.environment.se.Weld;
+import org.jboss.weld.environment.se.WeldContainer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Contenu en cache (cachedContents) d'un rôle prédéfini qui expire dans l'API avant la date connue
+ * de CacheContexte : la requête refusée est renvoyée une seule fois, avec le rôle système au lieu du contenu.
+ * Les beans de l'application sont créés par un conteneur CDI (Weld SE) et appellent ServeurGeminiSimule.
+ */
+class CacheContexteTest {
+
+    private static final RolePredefini ROLE = RolePredefini.creer("Assistant",
+            "You are a helpful assistant. You help the user to find the information they need.", true);
+
+    private static ServeurGeminiSimule simule;
+    private static WeldContainer conteneur;
+
+    @BeforeAll
+    static void demarrer() throws Exception {
+        simule = new ServeurGeminiSimule().port(0).latence(0).gigue(0).tailleReponse(100);
+        simule.start();
+        System.setProperty("gemini.base.url", simule.getUrlBase());
+        conteneur = new Weld().disableDiscovery()
+                .addBeanClasses(JsonUtilPourGemini.class, LlmClientPourGemini.class, RouteurModeles.class,
+                        PasserelleGemini.class, CacheReponses.class, CacheContexte.class, CoalescenceRequetes.class,
+                        CacheSemantique.class, OrdonnanceurEquitable.class, MetriquesLlm.class)
+                .initialize();
+    }
+
+    @AfterAll
+    static void arreter() {
+        conteneur.close();
+        simule.stop();
+        System.clearProperty("gemini.base.url");
+    }
+
+    @Test
+    void contenuExpireRenvoyeUneFoisSansCachedContent() throws Exception {
+        CacheContexte cacheContexte = conteneur.select(CacheContexte.class).get();
+        JsonUtilPourGemini jsonUtil = conteneur.select(JsonUtilPourGemini.class).get();
+        jsonUtil.setRolePredefini(ROLE);
+        // La première question lance la création du contenu en cache, en arrière-plan.
+        assertNotNull(jsonUtil.envoyerRequete("Capitale de la France ?").reponseExtraite());
+        long limite = System.currentTimeMillis() + 5_000;
+        while (!metriques(cacheContexte).contains("llm_contexte_cache_entrees 1")) {
+            assertTrue(System.currentTimeMillis() < limite, "Contenu en cache jamais créé");
+            Thread.sleep(20);
+        }
+
+        simule.expirerContenusEnCache();
+        long generations = simule.getGenerations();
+        LlmInteraction interaction = jsonUtil.envoyerRequete("Et celle de l'Italie ?");
+
+        assertNotNull(interaction.reponseExtraite());
+        // Une seule requête refusée : la requête renvoyée ne donnait plus le contenu expiré.
+        assertEquals(1, simule.getContenusRefuses(), "requêtes refusées pour le contenu expiré");
+        assertEquals(2, simule.getGenerations() - generations, "requête refusée puis renvoyée une fois");
+        String texte = metriques(cacheContexte);
+        assertTrue(texte.contains("llm_contexte_cache_replis_total 1"), texte);
+        assertTrue(texte.contains("llm_contexte_cache_entrees 0"), texte);
+    }
+
+    private static String metriques(SourceMetriques source) {
+        StringWriter texte = new StringWriter();
+        source.ecrireMetriques(new PrintWriter(texte));
+        return texte.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CacheSemantiqueTest {
+
+    private static final ReponseGemini PARIS = new ReponseGemini(Tour.model("Paris."), "STOP", 0, 0, 0, 0, null);
+
+    private final RolePredefini assistant = RolePredefini.creer("Assistant", "You are a helpful assistant.", true);
+    private final RolePredefini guide = RolePredefini.creer("Guide", "You are a travel guide.", true);
+    private CacheSemantique cache;
+
+    @BeforeEach
+    void creerCache() {
+        cache = new CacheSemantique();
+        cache.init();
+        cache.retenirRoles(List.of(assistant, guide));
+    }
+
+    @Test
+    void questionReformuleeTrouvee() {
+        cache.ajouter(assistant, "Capitale de la France ?", PARIS);
+        ReponseGemini reponse = cache.trouver(assistant, "Quelle est la capitale de la France ?");
+        assertNotNull(reponse);
+        assertEquals("Paris.", reponse.tour().texte());
+        assertNull(cache.trouver(guide, "Quelle est la capitale de la France ?"));
+    }
+
+    @Test
+    void indexDesRolesSupprimesOublies() {
+        cache.ajouter(assistant, "Capitale de la France ?", PARIS);
+        cache.ajouter(guide, "Capitale de la France ?", PARIS);
+        cache.retenirRoles(List.of(guide));
+        assertNull(cache.trouver(assistant, "Capitale de la France ?"));
+        assertNotNull(cache.trouver(guide, "Capitale de la France ?"));
+        // Conversation commencée avec l'ancien rôle : rien n'est ajouté.
+        cache.ajouter(assistant, "Capitale de l'Italie ?", PARIS);
+        assertNull(cache.trouver(assistant, "Capitale de l'Italie ?"));
+    }
+}
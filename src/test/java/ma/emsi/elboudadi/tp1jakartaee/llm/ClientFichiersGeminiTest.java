@@ -0,0 +1,97 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import ma.emsi.elboudadi.tp1jakartaee.perf.ServeurGeminiSimule;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Envoi de fichiers au serveur qui simule la File API (ServeurGeminiSimule), par morceaux de 256 Kio.
+ */
+class ClientFichiersGeminiTest {
+
+    private static final int MORCEAU = 256 * 1024;
+
+    private ServeurGeminiSimule simule;
+
+    @BeforeEach
+    void demarrer() throws Exception {
+        simule = new ServeurGeminiSimule().port(0).latence(0).gigue(0);
+        simule.start();
+        System.setProperty("gemini.base.url", simule.getUrlBase());
+        System.setProperty("gemini.fichiers.morceau", Integer.toString(MORCEAU));
+        System.setProperty("gemini.fichiers.backoff", "1");
+    }
+
+    @AfterEach
+    void arreter() {
+        simule.stop();
+        for (String nom : new String[]{"gemini.base.url", "gemini.fichiers.morceau", "gemini.fichiers.backoff",
+                "gemini.fichiers.taille.max"}) {
+            System.clearProperty(nom);
+        }
+    }
+
+    @Test
+    void repriseAuMilieuDuMorceauApresErreur5xx() throws Exception {
+        ClientFichiersGemini client = client();
+        int taille = 2 * MORCEAU + 1000;
+        simule.couperMorceaux(1);
+
+        FichierJoint fichier = client.envoyer(source(taille), "rapport.pdf", "application/pdf", taille);
+
+        assertEquals("application/pdf", fichier.mimeType());
+        assertEquals(1, simule.getCoupures());
+        // La moitié du premier morceau reçue avant la coupure n'est pas renvoyée : l'envoi reprend à l'octet
+        // indiqué par l'API (un décalage faux serait refusé par le serveur simulé).
+        assertEquals(taille, simule.getOctetsFichiers());
+        String metriques = metriques(client);
+        assertTrue(metriques.contains("llm_fichiers_reprises_total 1"), metriques);
+        assertTrue(metriques.contains("llm_fichiers_morceaux_total 3"), metriques);
+    }
+
+    @Test
+    void fichierTropGrosSansLongueurRefusePendantLEnvoi() throws Exception {
+        System.setProperty("gemini.fichiers.taille.max", Integer.toString(MORCEAU + 1000));
+        ClientFichiersGemini client = client();
+
+        assertThrows(FichierTropGrosException.class,
+                () -> client.envoyer(source(3 * MORCEAU), "video.mp4", "video/mp4", -1));
+
+        assertEquals(0, simule.getFichiers());
+        // Seul le premier morceau a été envoyé : le deuxième dépasse la taille maximum avant son envoi.
+        assertEquals(MORCEAU, simule.getOctetsFichiers());
+        String metriques = metriques(client);
+        assertTrue(metriques.contains("llm_fichiers_envois_total{resultat=\"refuse\"} 1"), metriques);
+    }
+
+    private static ClientFichiersGemini client() {
+        ClientFichiersGemini client = new ClientFichiersGemini();
+        client.init();
+        return client;
+    }
+
+    private static ReadableByteChannel source(int taille) {
+        byte[] contenu = new byte[taille];
+        for (int i = 0; i < taille; i++) {
+            contenu[i] = (byte) i;
+        }
+        return Channels.newChannel(new ByteArrayInputStream(contenu));
+    }
+
+    private static String metriques(SourceMetriques source) {
+        StringWriter texte = new StringWriter();
+        source.ecrireMetriques(new PrintWriter(texte));
+        return texte.toString();
+    }
+}
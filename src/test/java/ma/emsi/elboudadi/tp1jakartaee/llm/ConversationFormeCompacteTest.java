@@ -0,0 +1,148 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Forme sérialisée compacte de la conversation (état de la vue JSF) : aller-retour writeExternal/readExternal
+ * et taille, pour des conversations de 10, 100 et 500 messages (voir aussi TailleEtatVue dans src/perf).
+ */
+class ConversationFormeCompacteTest {
+
+    private static final String ROLE = "You are a helpful assistant. You help the user to find the information they need.";
+
+    @AfterEach
+    void retablirConfiguration() {
+        System.clearProperty("gemini.vue.compacte");
+        System.clearProperty("gemini.vue.compression");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100, 500})
+    void allerRetourSansCompression(int nbTours) throws Exception {
+        System.setProperty("gemini.vue.compression", "0");
+        Conversation conversation = conversation(nbTours);
+        byte[] octets = serialiser(new Conversation.FormeCompacte(conversation));
+        verifierIdentique(conversation, (Conversation) deserialiser(octets));
+        // Les textes en UTF-8, plus quelques octets par message (rôle, longueurs) et l'en-tête.
+        assertTrue(octets.length <= tailleTextes(conversation) + 16 * nbTours + 512,
+                () -> octets.length + " octets pour " + nbTours + " messages");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100, 500})
+    void allerRetourAvecCompression(int nbTours) throws Exception {
+        Conversation conversation = conversation(nbTours);
+        System.setProperty("gemini.vue.compression", "0");
+        int sansCompression = serialiser(new Conversation.FormeCompacte(conversation)).length;
+        System.setProperty("gemini.vue.compression", "1024");
+        byte[] octets = serialiser(new Conversation.FormeCompacte(conversation));
+        verifierIdentique(conversation, (Conversation) deserialiser(octets));
+        assertTrue(octets.length * 5 <= sansCompression,
+                () -> octets.length + " octets compressés, " + sansCompression + " sans compression");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100, 500})
+    void plusPetiteQueLaSerialisationStandard(int nbTours) throws Exception {
+        Conversation conversation = conversation(nbTours);
+        conversation.setDebut(nbTours / 2);
+        conversation.oublier(nbTours / 4);
+        System.setProperty("gemini.vue.compacte", "false");
+        int standard = serialiser(conversation).length;
+        System.setProperty("gemini.vue.compacte", "true");
+        System.setProperty("gemini.vue.compression", "0");
+        byte[] compacte = serialiser(conversation);
+        verifierIdentique(conversation, (Conversation) deserialiser(compacte));
+        assertTrue(compacte.length < standard, () -> compacte.length + " octets, standard : " + standard);
+    }
+
+    @Test
+    void fichiersJointsConserves() throws Exception {
+        Conversation conversation = new Conversation(ROLE);
+        FichierJoint fichier = new FichierJoint("plan.pdf", "application/pdf", "https://exemple/files/abc");
+        conversation.ajouter(Tour.user("Résume ce document", List.of(fichier)));
+        conversation.ajouter(Tour.model("Voici le résumé."));
+        conversation.ajouter(Tour.user("Et la conclusion ?"));
+        conversation.setDebut(2);
+        Conversation restauree = (Conversation) deserialiser(serialiser(new Conversation.FormeCompacte(conversation)));
+        verifierIdentique(conversation, restauree);
+        assertTrue(restauree.avecFichiers());
+    }
+
+    @Test
+    void tailleInvalideRefuseeAvantAllocation() throws Exception {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(octets)) {
+            out.writeUTF("id");
+            out.writeObject(ROLE);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeBoolean(false);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(octets.toByteArray()))) {
+            assertThrows(StreamCorruptedException.class, () -> new Conversation.FormeCompacte().readExternal(in));
+        }
+    }
+
+    /**
+     * Questions et réponses en alternance, chacune avec un texte différent.
+     */
+    private static Conversation conversation(int nbTours) {
+        Conversation conversation = new Conversation(ROLE);
+        for (int i = 0; i < nbTours; i++) {
+            conversation.ajouter(i % 2 == 0 ? Tour.user("Quelle est la capitale de la France ? " + i)
+                    : Tour.model("Paris est la capitale de la France. ".repeat(20) + i));
+        }
+        return conversation;
+    }
+
+    private static int tailleTextes(Conversation conversation) {
+        int taille = ROLE.length();
+        for (Tour tour : conversation.getTours()) {
+            taille += tour.texte().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return taille;
+    }
+
+    private static void verifierIdentique(Conversation attendue, Conversation restauree) {
+        assertEquals(attendue.getId(), restauree.getId());
+        assertEquals(attendue.getSystemInstruction(), restauree.getSystemInstruction());
+        assertEquals(attendue.getDecalage(), restauree.getDecalage());
+        assertEquals(attendue.getDebut(), restauree.getDebut());
+        assertEquals(attendue.taille(), restauree.taille());
+        assertEquals(attendue.getTours(), restauree.getTours());
+        assertEquals(attendue.enTexte(false), restauree.enTexte(false));
+    }
+
+    private static byte[] serialiser(Object objet) throws IOException {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(octets)) {
+            out.writeObject(objet);
+        }
+        return octets.toByteArray();
+    }
+
+    private static Object deserialiser(byte[] octets) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(octets))) {
+            return in.readObject();
+        }
+    }
+}
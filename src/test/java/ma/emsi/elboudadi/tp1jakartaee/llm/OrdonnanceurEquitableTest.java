@@ -0,0 +1,109 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrdonnanceurEquitableTest {
+
+    private static final OrdonnanceurEquitable.Demandeur A = new OrdonnanceurEquitable.Demandeur("A", null);
+    private static final OrdonnanceurEquitable.Demandeur B = new OrdonnanceurEquitable.Demandeur("B", null);
+    private static final OrdonnanceurEquitable.Demandeur C = new OrdonnanceurEquitable.Demandeur("C", null);
+
+    private OrdonnanceurEquitable ordonnanceur;
+
+    @BeforeEach
+    void configurer() {
+        System.setProperty("gemini.ordonnanceur.places", "1");
+    }
+
+    @AfterEach
+    void arreter() {
+        if (ordonnanceur != null) {
+            ordonnanceur.arreter();
+        }
+        System.clearProperty("gemini.ordonnanceur.places");
+        System.clearProperty("gemini.ordonnanceur.file.session");
+    }
+
+    private OrdonnanceurEquitable creer() {
+        ordonnanceur = new OrdonnanceurEquitable();
+        ordonnanceur.init();
+        return ordonnanceur;
+    }
+
+    @Test
+    void deuxSessionsServiesAChacunSonTour() throws Exception {
+        creer();
+        OrdonnanceurEquitable.Place place = ordonnanceur.entrer(A);
+        // A met 6 questions en file avant que B n'en mette 2 : B ne doit pas attendre toutes celles de A.
+        List<CompletableFuture<OrdonnanceurEquitable.Place>> enAttente = new ArrayList<>();
+        List<String> sessions = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            enAttente.add(ordonnanceur.entrerAsync(A));
+            sessions.add("A");
+        }
+        for (int i = 0; i < 2; i++) {
+            enAttente.add(ordonnanceur.entrerAsync(B));
+            sessions.add("B");
+        }
+        assertTrue(enAttente.stream().noneMatch(CompletableFuture::isDone));
+
+        List<String> ordre = new ArrayList<>();
+        while (!enAttente.isEmpty()) {
+            ordonnanceur.sortir(place, null);
+            int servie = -1;
+            for (int i = 0; i < enAttente.size(); i++) {
+                if (enAttente.get(i).isDone()) {
+                    assertEquals(-1, servie, "une seule place à donner");
+                    servie = i;
+                }
+            }
+            assertTrue(servie >= 0, "la place rendue doit être donnée");
+            place = enAttente.remove(servie).get();
+            ordre.add(sessions.remove(servie));
+        }
+        ordonnanceur.sortir(place, null);
+        assertEquals(List.of("A", "B", "A", "B", "A", "A", "A", "A"), ordre);
+    }
+
+    @Test
+    void refusAuDelaDeLaFileDeLaSession() throws Exception {
+        System.setProperty("gemini.ordonnanceur.file.session", "2");
+        creer();
+        OrdonnanceurEquitable.Place place = ordonnanceur.entrer(C);
+        CompletableFuture<OrdonnanceurEquitable.Place> premiere = ordonnanceur.entrerAsync(A);
+        CompletableFuture<OrdonnanceurEquitable.Place> deuxieme = ordonnanceur.entrerAsync(A);
+        CompletableFuture<OrdonnanceurEquitable.Place> troisieme = ordonnanceur.entrerAsync(A);
+        assertFalse(premiere.isDone());
+        assertFalse(deuxieme.isDone());
+        ExecutionException refus = assertThrows(ExecutionException.class, troisieme::get);
+        assertInstanceOf(RequeteRefuseeException.class, refus.getCause());
+        // Les autres sessions ne sont pas concernées.
+        CompletableFuture<OrdonnanceurEquitable.Place> autre = ordonnanceur.entrerAsync(B);
+        assertFalse(autre.isDone());
+
+        // Une question de A servie : A peut en remettre une en file.
+        ordonnanceur.sortir(place, null);
+        assertTrue(premiere.isDone());
+        assertFalse(ordonnanceur.entrerAsync(A).isCompletedExceptionally());
+
+        StringWriter metriques = new StringWriter();
+        ordonnanceur.ecrireMetriques(new PrintWriter(metriques));
+        assertTrue(metriques.toString().contains("llm_ordonnanceur_rejets_total{cause=\"file_session\"} 1"),
+                metriques.toString());
+    }
+}
@@ -0,0 +1,171 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PasserelleGeminiTest {
+
+    private static final Entity<String> REQUETE = Entity.json("{}");
+
+    /**
+     * Client qui rend les statuts prévus, dans l'ordre, sans appeler l'API.
+     */
+    private static final class ClientSimule extends LlmClientPourGemini {
+        private final Deque<Response> reponses = new ArrayDeque<>();
+        private final AtomicInteger appels = new AtomicInteger();
+        private Runnable pendantAppel = () -> { };
+
+        void prevoir(int statut, String retryAfter) {
+            reponses.add(Response.status(statut).header("Retry-After", retryAfter).build());
+        }
+
+        @Override
+        public Response envoyerRequete(Entity requestEntity) {
+            appels.incrementAndGet();
+            pendantAppel.run();
+            return reponses.remove();
+        }
+
+        @Override
+        public CompletionStage<Response> envoyerRequeteAsync(Entity requestEntity) {
+            return CompletableFuture.completedFuture(envoyerRequete(requestEntity));
+        }
+    }
+
+    private final ClientSimule client = new ClientSimule();
+    private PasserelleGemini passerelle;
+    private List<String> proprietes = List.of();
+
+    @AfterEach
+    void arreter() {
+        if (passerelle != null) {
+            passerelle.arreter();
+        }
+        proprietes.forEach(System::clearProperty);
+    }
+
+    private void creer(Map<String, String> configuration) throws ReflectiveOperationException {
+        proprietes = List.copyOf(configuration.keySet());
+        configuration.forEach(System::setProperty);
+        passerelle = new PasserelleGemini();
+        passerelle.init();
+        Field champ = PasserelleGemini.class.getDeclaredField("geminiClient");
+        champ.setAccessible(true);
+        champ.set(passerelle, client);
+    }
+
+    private double metrique(String nom) {
+        StringWriter texte = new StringWriter();
+        passerelle.ecrireMetriques(new PrintWriter(texte));
+        for (String ligne : texte.toString().split("\n")) {
+            if (ligne.startsWith(nom + " ")) {
+                return Double.parseDouble(ligne.substring(nom.length() + 1).trim());
+            }
+        }
+        throw new AssertionError("Métrique absente : " + nom);
+    }
+
+    @Test
+    void disjoncteurOuvertPuisDemiOuvertPuisFerme() throws Exception {
+        creer(Map.of("gemini.passerelle.tentatives", "1",
+                "gemini.passerelle.disjoncteur.seuil", "2",
+                "gemini.passerelle.disjoncteur.duree", "200"));
+        client.prevoir(500, null);
+        client.prevoir(500, null);
+        assertEquals(500, passerelle.envoyerRequete(REQUETE).getStatus());
+        assertEquals(0, metrique("llm_passerelle_disjoncteur"));
+        assertEquals(500, passerelle.envoyerRequete(REQUETE).getStatus());
+        assertEquals(Disjoncteur.Etat.OUVERT.ordinal(), metrique("llm_passerelle_disjoncteur"));
+
+        // Ouvert : l'API n'est pas appelée.
+        assertThrows(RequeteException.class, () -> passerelle.envoyerRequete(REQUETE));
+        assertEquals(2, client.appels.get());
+
+        // Après la durée d'ouverture, un appel d'essai : s'il échoue, le disjoncteur se rouvre.
+        Thread.sleep(250);
+        client.prevoir(503, null);
+        assertEquals(503, passerelle.envoyerRequete(REQUETE).getStatus());
+        assertEquals(Disjoncteur.Etat.OUVERT.ordinal(), metrique("llm_passerelle_disjoncteur"));
+        assertThrows(RequeteException.class, () -> passerelle.envoyerRequete(REQUETE));
+
+        // Nouvel essai réussi : le disjoncteur se referme.
+        Thread.sleep(250);
+        double[] etatPendantEssai = new double[1];
+        client.pendantAppel = () -> etatPendantEssai[0] = metrique("llm_passerelle_disjoncteur");
+        client.prevoir(200, null);
+        assertEquals(200, passerelle.envoyerRequete(REQUETE).getStatus());
+        assertEquals(Disjoncteur.Etat.DEMI_OUVERT.ordinal(), etatPendantEssai[0]);
+        assertEquals(Disjoncteur.Etat.FERME.ordinal(), metrique("llm_passerelle_disjoncteur"));
+        assertEquals(4, client.appels.get());
+    }
+
+    @Test
+    void retryAfterTropLongRenduSansNouvelleTentative() throws Exception {
+        creer(Map.of("gemini.passerelle.tentatives", "3",
+                "gemini.passerelle.backoff.base", "1",
+                "gemini.passerelle.backoff.max", "1000"));
+        client.prevoir(429, "0");
+        client.prevoir(429, "5");
+        long debut = System.currentTimeMillis();
+        assertEquals(429, passerelle.envoyerRequete(REQUETE).getStatus());
+        assertTrue(System.currentTimeMillis() - debut < 1000);
+        // Retry-After: 0 est réessayé ; Retry-After: 5 dépasse backoff.max : la réponse est rendue.
+        assertEquals(2, client.appels.get());
+        assertEquals(1, metrique("llm_passerelle_reessais_total"));
+    }
+
+    @Test
+    void attenteSynchroneLimiteeParLeBudget() throws Exception {
+        creer(Map.of("gemini.passerelle.tentatives", "3",
+                "gemini.passerelle.attente", "300",
+                "gemini.passerelle.backoff.max", "10000"));
+        client.prevoir(503, "2");
+        long debut = System.currentTimeMillis();
+        assertEquals(503, passerelle.envoyerRequete(REQUETE).getStatus());
+        // Retry-After: 2 tient dans backoff.max mais pas dans les 300 ms d'attente : pas de sommeil.
+        assertTrue(System.currentTimeMillis() - debut < 1000);
+        assertEquals(1, client.appels.get());
+        assertEquals(0, metrique("llm_passerelle_reessais_total"));
+    }
+
+    @Test
+    void jetonRenduQuandLeDisjoncteurRefuseUnAppelAsynchrone() throws Exception {
+        creer(Map.of("gemini.passerelle.tentatives", "1",
+                "gemini.passerelle.debit", "0.001",
+                "gemini.passerelle.rafale", "3",
+                "gemini.passerelle.disjoncteur.seuil", "1",
+                "gemini.passerelle.disjoncteur.duree", "60000"));
+        client.prevoir(500, null);
+        assertEquals(500, passerelle.envoyerRequete(REQUETE).getStatus());
+        assertEquals(2, Math.floor(metrique("llm_passerelle_jetons")));
+
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<Response> refus = passerelle.envoyerRequeteAsync(REQUETE).toCompletableFuture();
+            CompletionException erreur = assertThrows(CompletionException.class, refus::join);
+            assertInstanceOf(RequeteException.class, erreur.getCause());
+        }
+        // Sans remboursement, le seau serait vide et les appels suivants refusés pour le débit.
+        assertEquals(2, Math.floor(metrique("llm_passerelle_jetons")));
+        assertEquals(0, metrique("llm_passerelle_en_cours"));
+        assertEquals(1, client.appels.get());
+    }
+}
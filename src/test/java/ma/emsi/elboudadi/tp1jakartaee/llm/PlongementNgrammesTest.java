@@ -0,0 +1,70 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Similarités données par PlongementNgrammes par rapport au seuil par défaut du cache sémantique
+ * (gemini.semantique.seuil) :
+ * - les paires positives (la même question formulée autrement) doivent atteindre le seuil ;
+ * - les paires négatives (questions proches dont la réponse est différente : un nombre, un mot court, une négation
+ *   ou un mot-clé près) doivent rester sous le seuil, sinon le cache renverrait la réponse d'une autre question.
+ */
+class PlongementNgrammesTest {
+
+    private static final double SEUIL = 0.9;
+
+    private final Plongement plongement = new PlongementNgrammes(256);
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "Capitale de la France ?|Quelle est la capitale de la France ?",
+            "Quelle est la capitale de la France ?|quelle est la capitale de la france",
+            "Comment déclarer une liste en Java ?|comment declarer une liste en java",
+            "Nouveautés de Java 17 ?|Quelles sont les nouveautés de Java 17 ?",
+            "Est-ce que 7 est premier ?|7 est-il premier ?",
+            "Pourquoi Java n'est pas rapide ?|pourquoi java n est pas rapide",
+    })
+    void memeQuestionAtteintLeSeuil(String question1, String question2) {
+        double similarite = cosinus(question1, question2);
+        assertTrue(similarite >= SEUIL, () -> similarite + " : \"" + question1 + "\" / \"" + question2 + "\"");
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "Capitale de la France ?|Capitale de l'Espagne ?",
+            "Est-ce que 7 est premier ?|Est-ce que 9 est premier ?",
+            "Nouveautés de Java 8 ?|Nouveautés de Java 17 ?",
+            "Que vaut 12 * 34 ?|Que vaut 56 * 78 ?",
+            "Combien font 2+2 ?|Combien font 3+3 ?",
+            "Qu'est-ce que le langage Go ?|Qu'est-ce que le langage R ?",
+            "Différences entre HTTP/1.1 et HTTP/2 ?|Différences entre HTTP/2 et HTTP/3 ?",
+            "Que s'est-il passé en 1789 ?|Que s'est-il passé en 1798 ?",
+            "Pourquoi Java est rapide ?|Pourquoi Java n'est pas rapide ?",
+            "Le tri rapide est stable ?|Le tri rapide n'est pas stable ?",
+            "Pourquoi ce code compile ?|Pourquoi ce code ne compile plus ?",
+            "Why is Java fast?|Why is Java not fast?",
+            "Why does it compile?|Why doesn't it compile?",
+            "Exemple de boucle for en Java|Exemple de boucle while en Java",
+            "Exemple de boucle for en Java|Exemple de boucle do while en Java",
+    })
+    void questionsDifferentesRestentSousLeSeuil(String question1, String question2) {
+        double similarite = cosinus(question1, question2);
+        assertTrue(similarite < SEUIL, () -> similarite + " : \"" + question1 + "\" / \"" + question2 + "\"");
+    }
+
+    /**
+     * Les vecteurs de PlongementNgrammes sont normés : le cosinus est le produit scalaire.
+     */
+    private double cosinus(String texte1, String texte2) {
+        float[] a = plongement.plonger(texte1);
+        float[] b = plongement.plonger(texte2);
+        double produit = 0;
+        for (int i = 0; i < a.length; i++) {
+            produit += a[i] * b[i];
+        }
+        return produit;
+    }
+}
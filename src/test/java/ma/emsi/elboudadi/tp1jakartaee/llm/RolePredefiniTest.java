@@ -0,0 +1,52 @@
+package ma.emsi.elboudadi.tp1jakartaee.llm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RolePredefiniTest {
+
+    @Test
+    void egauxSelonLeContenu() {
+        RolePredefini role = RolePredefini.creer("Assistant", "You are a helpful assistant.", true);
+        RolePredefini meme = RolePredefini.creer("Assistant", "You are a helpful assistant.", true);
+        assertEquals(role, meme);
+        assertEquals(role.hashCode(), meme.hashCode());
+        assertNotEquals(role, RolePredefini.creer("Assistant", "You are a travel guide.", true));
+    }
+
+    @Test
+    void fragmentNonModifiable() {
+        byte[] octets = "\"system_instruction\":{},".getBytes();
+        RolePredefini role = new RolePredefini("Assistant", "...", true, ByteBuffer.wrap(octets));
+        octets[0] = 'X';
+        assertEquals('"', role.fragment().get(0));
+        assertThrows(ReadOnlyBufferException.class, () -> role.fragment().put(0, (byte) 'X'));
+    }
+
+    @Test
+    void requeteIdentiqueAvecOuSansFragment() {
+        String texte = "Tu es un guide \"touristique\".";
+        RolePredefini role = RolePredefini.creer("Guide", texte, true);
+        Conversation avecFragment = new Conversation(role);
+        Conversation sansFragment = new Conversation(texte);
+        for (Conversation conversation : new Conversation[]{avecFragment, sansFragment}) {
+            conversation.ajouter(Tour.user("Bonjour"));
+        }
+        // Deux fois : le fragment partagé est relu depuis le début à chaque requête.
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream attendu = new ByteArrayOutputStream();
+            sansFragment.ecrire(attendu, sansFragment.taille(), null);
+            ByteArrayOutputStream obtenu = new ByteArrayOutputStream();
+            avecFragment.ecrire(obtenu, avecFragment.taille(), null);
+            assertArrayEquals(attendu.toByteArray(), obtenu.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package ma.emsi.elboudadi.tp1jakartaee.perf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serveur HTTP qui simule l'API de Gemini, pour les tests de charge sans appeler la vraie API.
+ * Implémente POST /v1beta/models/{modele}:generateContent et :streamGenerateContent?alt=sse,
+ * avec une latence, une taille de réponse et un taux d'erreurs configurables.
+ * L'application l'utilise avec -Dgemini.base.url=http://localhost:{port}/v1beta.
+ *
+ * Implémente aussi les contenus en cache (POST /v1beta/cachedContents et PATCH /v1beta/cachedContents/{id}) :
+ * une requête qui donne "cachedContent" est refusée (403) si le contenu n'existe pas ou a expiré ; sinon
+ * usageMetadata.cachedContentTokenCount indique les tokens du contenu en cache (environ 4 octets par token).
+ * La durée de vie des contenus peut être réduite (-ttlCache, en secondes) pour tester leur expiration ;
+ * expirerContenusEnCache les fait expirer tout de suite, sans que le client le sache.
+ *
+ * Implémente aussi l'envoi de fichiers (File API) avec le protocole "resumable" : POST /upload/v1beta/files
+ * (commandes start, upload, finalize, query et cancel) et GET /v1beta/files/{id}. Le contenu des fichiers n'est
+ * pas gardé, seulement leur taille. Une requête qui référence un fichier inconnu ("file_data") est refusée (400).
+ * Une proportion des morceaux (-coupuresEnvoi) n'est lue qu'à moitié avant une erreur 503, pour tester la reprise
+ * de l'envoi.
+ *
+ * Peut être lancé seul (main) ou démarré dans un autre programme (start / stop), par exemple dans les tests.
+ * Options de main : -port 8089 -latence 500 -gigue 100 -taille 800 -erreurs 0.05 -statutErreur 503 -morceaux 10
+ * -ttlCache 0 -tokensMinCache 0 -coupuresEnvoi 0
+ */
+public class ServeurGeminiSimule {
+
+    private int port = 8089;
+    private long latenceMs = 500;
+    private long gigueMs = 100;
+    private int tailleReponse = 800;
+    private double tauxErreurs;
+    private int statutErreur = 503;
+    private int morceaux = 10;
+    private long ttlCacheMaxS;
+    private int tokensMinCache;
+    private double coupuresEnvoi;
+    private final AtomicInteger morceauxACouper = new AtomicInteger();
+
+    /**
+     * @param tokens nombre de tokens du contenu.
+     * @param expiration date d'expiration (ms).
+     */
+    private record ContenuEnCache(int tokens, long expiration) {
+    }
+
+    private final Map<String, ContenuEnCache> contenusEnCache = new ConcurrentHashMap<>();
+    private final AtomicLong numeroContenu = new AtomicLong();
+
+    /**
+     * Un envoi de fichier en cours.
+     */
+    private static final class EnvoiFichier {
+        private final String nomAffiche;
+        private final String mimeType;
+        private long recus;
+
+        private EnvoiFichier(String nomAffiche, String mimeType) {
+            this.nomAffiche = nomAffiche;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private final Map<String, EnvoiFichier> envois = new ConcurrentHashMap<>();
+    /**
+     * Fichiers envoyés, par URI.
+     */
+    private final Map<String, JsonObject> fichiers = new ConcurrentHashMap<>();
+    private final AtomicLong numeroFichier = new AtomicLong();
+    private final AtomicLong octetsFichiers = new AtomicLong();
+    private final AtomicLong coupures = new AtomicLong();
+
+    private HttpServer serveur;
+    private ExecutorService executor;
+    private final AtomicLong requetes = new AtomicLong();
+    private final AtomicLong erreursInjectees = new AtomicLong();
+    private final AtomicLong generations = new AtomicLong();
+    private final AtomicLong contenusRefuses = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        ServeurGeminiSimule simule = new ServeurGeminiSimule();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valeur = args[i + 1];
+            switch (args[i]) {
+                case "-port" -> simule.port(Integer.parseInt(valeur));
+                case "-latence" -> simule.latence(Long.parseLong(valeur));
+                case "-gigue" -> simule.gigue(Long.parseLong(valeur));
+                case "-taille" -> simule.tailleReponse(Integer.parseInt(valeur));
+                case "-erreurs" -> simule.tauxErreurs(Double.parseDouble(valeur));
+                case "-statutErreur" -> simule.statutErreur(Integer.parseInt(valeur));
+                case "-morceaux" -> simule.morceaux(Integer.parseInt(valeur));
+                case "-ttlCache" -> simule.ttlCache(Long.parseLong(valeur));
+                case "-tokensMinCache" -> simule.tokensMinCache(Integer.parseInt(valeur));
+                case "-coupuresEnvoi" -> simule.coupuresEnvoi(Double.parseDouble(valeur));
+                default -> throw new IllegalArgumentException("Option inconnue : " + args[i]);
+            }
+        }
+        simule.start();
+        System.out.println("API Gemini simulée sur " + simule.getUrlBase()
+                + " (lancer l'application avec -Dgemini.base.url=" + simule.getUrlBase() + ")");
+    }
+
+    /**
+     * @param port port d'écoute, 0 pour un port libre choisi par le système.
+     */
+    public ServeurGeminiSimule port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Durée moyenne avant la réponse (ou avant le premier morceau en streaming).
+     */
+    public ServeurGeminiSimule latence(long latenceMs) {
+        this.latenceMs = latenceMs;
+        return this;
+    }
+
+    /**
+     * Variation aléatoire maximale de la latence, dans un sens ou dans l'autre.
+     */
+    public ServeurGeminiSimule gigue(long gigueMs) {
+        this.gigueMs = gigueMs;
+        return this;
+    }
+
+    /**
+     * Nombre de caractères du texte de chaque réponse.
+     */
+    public ServeurGeminiSimule tailleReponse(int tailleReponse) {
+        this.tailleReponse = tailleReponse;
+        return this;
+    }
+
+    /**
+     * Proportion des requêtes (entre 0 et 1) qui reçoivent une réponse d'erreur.
+     */
+    public ServeurGeminiSimule tauxErreurs(double tauxErreurs) {
+        this.tauxErreurs = tauxErreurs;
+        return this;
+    }
+
+    /**
+     * Statut HTTP des erreurs injectées, par exemple 429 ou 503.
+     */
+    public ServeurGeminiSimule statutErreur(int statutErreur) {
+        this.statutErreur = statutErreur;
+        return this;
+    }
+
+    /**
+     * Nombre de morceaux de chaque réponse en streaming.
+     */
+    public ServeurGeminiSimule morceaux(int morceaux) {
+        this.morceaux = Math.max(1, morceaux);
+        return this;
+    }
+
+    /**
+     * Durée de vie maximale des contenus en cache, en secondes ; 0 pour la durée demandée par le client.
+     */
+    public ServeurGeminiSimule ttlCache(long ttlCacheMaxS) {
+        this.ttlCacheMaxS = ttlCacheMaxS;
+        return this;
+    }
+
+    /**
+     * Nombre minimum de tokens d'un contenu en cache (la vraie API refuse les contenus trop petits).
+     */
+    public ServeurGeminiSimule tokensMinCache(int tokensMinCache) {
+        this.tokensMinCache = tokensMinCache;
+        return this;
+    }
+
+    /**
+     * Proportion des morceaux de fichiers (entre 0 et 1) dont seule la moitié est lue avant une erreur 503.
+     */
+    public ServeurGeminiSimule coupuresEnvoi(double coupuresEnvoi) {
+        this.coupuresEnvoi = coupuresEnvoi;
+        return this;
+    }
+
+    /**
+     * Coupe à coup sûr les prochains morceaux de fichiers reçus (moitié lue, puis erreur 503), en plus de
+     * coupuresEnvoi : pour tester une reprise précise.
+     */
+    public ServeurGeminiSimule couperMorceaux(int nbMorceaux) {
+        this.morceauxACouper.set(nbMorceaux);
+        return this;
+    }
+
+    public void start() throws IOException {
+        serveur = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newCachedThreadPool();
+        serveur.setExecutor(executor);
+        serveur.createContext("/v1beta/models/", this::traiter);
+        serveur.createContext("/v1beta/cachedContents", this::traiterContenuEnCache);
+        serveur.createContext("/upload/v1beta/files", this::traiterEnvoiFichier);
+        serveur.createContext("/v1beta/files/", this::traiterFichier);
+        serveur.start();
+    }
+
+    public void stop() {
+        serveur.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return serveur.getAddress().getPort();
+    }
+
+    /**
+     * @return la valeur à donner à gemini.base.url.
+     */
+    public String getUrlBase() {
+        return "http://localhost:" + getPort() + "/v1beta";
+    }
+
+    /**
+     * @return le nombre de requêtes reçues depuis le démarrage.
+     */
+    public long getRequetes() {
+        return requetes.get();
+    }
+
+    public long getErreursInjectees() {
+        return erreursInjectees.get();
+    }
+
+    /**
+     * @return le nombre de requêtes generateContent et streamGenerateContent reçues.
+     */
+    public long getGenerations() {
+        return generations.get();
+    }
+
+    /**
+     * @return le nombre de requêtes refusées parce que leur "cachedContent" n'existe pas ou a expiré.
+     */
+    public long getContenusRefuses() {
+        return contenusRefuses.get();
+    }
+
+    /**
+     * Fait expirer tous les contenus en cache, comme si leur durée de vie était écoulée.
+     */
+    public void expirerContenusEnCache() {
+        contenusEnCache.replaceAll((nom, contenu) -> new ContenuEnCache(contenu.tokens(), System.currentTimeMillis()));
+    }
+
+    private void traiter(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requetes.incrementAndGet();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String chemin = exchange.getRequestURI().getPath();
+            String nom = chemin.substring(chemin.lastIndexOf('/') + 1);
+            int deuxPoints = nom.indexOf(':');
+            if (deuxPoints < 0) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String modele = nom.substring(0, deuxPoints);
+            String methode = nom.substring(deuxPoints + 1);
+            generations.incrementAndGet();
+            byte[] requete = exchange.getRequestBody().readAllBytes();
+            int tokensEnCache = 0;
+            if (!fichiers.isEmpty()) {
+                String inconnu = fichierInconnu(lireJson(requete));
+                if (inconnu != null) {
+                    envoyerErreur(exchange, 400, "INVALID_ARGUMENT", "File " + inconnu + " not found");
+                    return;
+                }
+            }
+            if (!contenusEnCache.isEmpty()) {
+                String nomContenu = lireJson(requete).getString("cachedContent", null);
+                if (nomContenu != null) {
+                    ContenuEnCache contenu = contenusEnCache.get(nomContenu);
+                    if (contenu == null || contenu.expiration() <= System.currentTimeMillis()) {
+                        contenusRefuses.incrementAndGet();
+                        envoyerErreur(exchange, 403, "PERMISSION_DENIED",
+                                "CachedContent not found (or permission denied)");
+                        return;
+                    }
+                    tokensEnCache = contenu.tokens();
+                }
+            }
+            attendre();
+            if (ThreadLocalRandom.current().nextDouble() < tauxErreurs) {
+                erreursInjectees.incrementAndGet();
+                envoyerErreur(exchange);
+                return;
+            }
+            // Environ 4 octets par token ; les tokens du contenu en cache sont comptés dans le prompt.
+            int tokensPrompt = Math.max(1, requete.length / 4) + tokensEnCache;
+            switch (methode) {
+                case "generateContent" -> envoyerReponse(exchange, modele, tokensPrompt, tokensEnCache);
+                case "streamGenerateContent" -> envoyerFlux(exchange, modele, tokensPrompt, tokensEnCache);
+                default -> exchange.sendResponseHeaders(404, -1);
+            }
+        }
+    }
+
+    /**
+     * POST /v1beta/cachedContents : {"model": "...", "systemInstruction": {...}, "ttl": "3600s"}
+     * PATCH /v1beta/cachedContents/{id}?updateMask=ttl : {"ttl": "3600s"}
+     * Réponse : {"name": "cachedContents/...", "expireTime": "...", "usageMetadata": {"totalTokenCount": n}}
+     */
+    private void traiterContenuEnCache(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requetes.incrementAndGet();
+            String chemin = exchange.getRequestURI().getPath();
+            JsonObject requete = lireJson(exchange.getRequestBody().readAllBytes());
+            String nom;
+            int tokens;
+            switch (exchange.getRequestMethod()) {
+                case "POST" -> {
+                    tokens = Math.max(1, requete.getOrDefault("systemInstruction", JsonObject.EMPTY_JSON_OBJECT)
+                            .toString().length() / 4);
+                    if (tokens < tokensMinCache) {
+                        envoyerErreur(exchange, 400, "INVALID_ARGUMENT", "Cached content is too small. total_token_count="
+                                + tokens + ", min_total_token_count=" + tokensMinCache);
+                        return;
+                    }
+                    nom = "cachedContents/simule" + numeroContenu.incrementAndGet();
+                }
+                case "PATCH" -> {
+                    nom = chemin.substring("/v1beta/".length());
+                    ContenuEnCache contenu = contenusEnCache.get(nom);
+                    if (contenu == null || contenu.expiration() <= System.currentTimeMillis()) {
+                        envoyerErreur(exchange, 404, "NOT_FOUND", "CachedContent not found");
+                        return;
+                    }
+                    tokens = contenu.tokens();
+                }
+                default -> {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+            }
+            String ttl = requete.getString("ttl", "3600s");
+            long ttlS = Long.parseLong(ttl.substring(0, ttl.length() - 1));
+            if (ttlCacheMaxS > 0) {
+                ttlS = Math.min(ttlS, ttlCacheMaxS);
+            }
+            long expiration = System.currentTimeMillis() + ttlS * 1000;
+            contenusEnCache.put(nom, new ContenuEnCache(tokens, expiration));
+            byte[] corps = Json.createObjectBuilder()
+                    .add("name", nom)
+                    .add("expireTime", Instant.ofEpochMilli(expiration).toString())
+                    .add("usageMetadata", Json.createObjectBuilder().add("totalTokenCount", tokens))
+                    .build().toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, corps.length);
+            exchange.getResponseBody().write(corps);
+        }
+    }
+
+    /**
+     * @return l'URI du premier fichier de la requête qui n'a pas été envoyé, ou null.
+     */
+    private String fichierInconnu(JsonObject requete) {
+        for (JsonValue contenu : requete.getOrDefault("contents", JsonValue.EMPTY_JSON_ARRAY).asJsonArray()) {
+            JsonArray parts = contenu.asJsonObject().getOrDefault("parts", JsonValue.EMPTY_JSON_ARRAY).asJsonArray();
+            for (JsonValue part : parts) {
+                JsonObject fichier = part.asJsonObject().getJsonObject("file_data");
+                if (fichier != null && !fichiers.containsKey(fichier.getString("file_uri", ""))) {
+                    return fichier.getString("file_uri", "");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * POST /upload/v1beta/files (X-Goog-Upload-Command: start) : {"file": {"display_name": "..."}} ;
+     * la réponse donne l'URL de la session dans l'en-tête X-Goog-Upload-URL.
+     * POST à l'URL de la session avec X-Goog-Upload-Command: upload, "upload, finalize", query ou cancel.
+     * Réponse à finalize : {"file": {"name": "files/...", "uri": "...", "state": "ACTIVE", ...}}.
+     */
+    private void traiterEnvoiFichier(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String commande = exchange.getRequestHeaders().getFirst("X-Goog-Upload-Command");
+            commande = commande == null ? "" : commande.replace(" ", "");
+            if ("start".equals(commande)) {
+                JsonObject fichier = lireJson(exchange.getRequestBody().readAllBytes())
+                        .getOrDefault("file", JsonValue.EMPTY_JSON_OBJECT).asJsonObject();
+                String mimeType = exchange.getRequestHeaders().getFirst("X-Goog-Upload-Header-Content-Type");
+                String id = "simule" + numeroFichier.incrementAndGet();
+                envois.put(id, new EnvoiFichier(fichier.getString("display_name", id),
+                        mimeType == null ? "application/octet-stream" : mimeType));
+                exchange.getResponseHeaders().set("X-Goog-Upload-Status", "active");
+                exchange.getResponseHeaders().set("X-Goog-Upload-URL",
+                        "http://localhost:" + getPort() + "/upload/v1beta/files?upload_id=" + id);
+                exchange.getResponseHeaders().set("X-Goog-Upload-Chunk-Granularity", "262144");
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            String requete = exchange.getRequestURI().getQuery();
+            String id = requete != null && requete.startsWith("upload_id=") ? requete.substring(10) : "";
+            EnvoiFichier envoi = envois.get(id);
+            if (envoi == null) {
+                envoyerErreur(exchange, 404, "NOT_FOUND", "Upload session not found");
+                return;
+            }
+            synchronized (envoi) {
+                switch (commande) {
+                    case "query" -> {
+                        exchange.getResponseHeaders().set("X-Goog-Upload-Status", "active");
+                        exchange.getResponseHeaders().set("X-Goog-Upload-Size-Received", Long.toString(envoi.recus));
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                    case "cancel" -> {
+                        envois.remove(id);
+                        exchange.getResponseHeaders().set("X-Goog-Upload-Status", "cancelled");
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                    case "upload", "upload,finalize", "finalize" -> recevoirMorceau(exchange, id, envoi, commande);
+                    default -> envoyerErreur(exchange, 400, "INVALID_ARGUMENT", "Unknown command " + commande);
+                }
+            }
+        }
+    }
+
+    private void recevoirMorceau(HttpExchange exchange, String id, EnvoiFichier envoi, String commande)
+            throws IOException {
+        String offset = exchange.getRequestHeaders().getFirst("X-Goog-Upload-Offset");
+        if (offset == null ? envoi.recus != 0 : Long.parseLong(offset) != envoi.recus) {
+            envoyerErreur(exchange, 400, "INVALID_ARGUMENT", "Invalid offset " + offset + ", expected " + envoi.recus);
+            return;
+        }
+        InputStream corps = exchange.getRequestBody();
+        String longueur = exchange.getRequestHeaders().getFirst("Content-Length");
+        long taille = longueur == null ? -1 : Long.parseLong(longueur);
+        if (taille > 1 && (morceauxACouper.getAndUpdate(n -> Math.max(0, n - 1)) > 0
+                || ThreadLocalRandom.current().nextDouble() < coupuresEnvoi)) {
+            // Coupure au milieu du morceau : seule la première moitié est gardée. La suite est lue mais ignorée,
+            // pour que la connexion reste utilisable (sinon la réponse elle-même peut être perdue).
+            long lus = corps.readNBytes((int) Math.min(Integer.MAX_VALUE, taille / 2)).length;
+            corps.transferTo(OutputStream.nullOutputStream());
+            envoi.recus += lus;
+            octetsFichiers.addAndGet(lus);
+            coupures.incrementAndGet();
+            envoyerErreur(exchange, 503, "UNAVAILABLE", "Upload interrupted");
+            return;
+        }
+        long lus = corps.transferTo(OutputStream.nullOutputStream());
+        envoi.recus += lus;
+        octetsFichiers.addAndGet(lus);
+        if (!commande.endsWith("finalize")) {
+            exchange.getResponseHeaders().set("X-Goog-Upload-Status", "active");
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        envois.remove(id);
+        String nom = "files/" + id;
+        JsonObject fichier = Json.createObjectBuilder()
+                .add("name", nom)
+                .add("displayName", envoi.nomAffiche)
+                .add("mimeType", envoi.mimeType)
+                .add("sizeBytes", Long.toString(envoi.recus))
+                .add("uri", getUrlBase() + "/" + nom)
+                .add("state", "ACTIVE")
+                .build();
+        fichiers.put(fichier.getString("uri"), fichier);
+        byte[] reponse = Json.createObjectBuilder().add("file", fichier).build().toString()
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("X-Goog-Upload-Status", "final");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, reponse.length);
+        exchange.getResponseBody().write(reponse);
+    }
+
+    /**
+     * GET /v1beta/files/{id} : la description du fichier.
+     */
+    private void traiterFichier(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            JsonObject fichier = fichiers.get(getUrlBase() + exchange.getRequestURI().getPath().substring(7));
+            if (fichier == null) {
+                envoyerErreur(exchange, 404, "NOT_FOUND", "File not found");
+                return;
+            }
+            byte[] corps = fichier.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, corps.length);
+            exchange.getResponseBody().write(corps);
+        }
+    }
+
+    /**
+     * @return le nombre de fichiers dont l'envoi est terminé.
+     */
+    public int getFichiers() {
+        return fichiers.size();
+    }
+
+    /**
+     * @return le nombre d'octets de fichiers reçus, morceaux coupés compris.
+     */
+    public long getOctetsFichiers() {
+        return octetsFichiers.get();
+    }
+
+    /**
+     * @return le nombre de morceaux coupés (voir coupuresEnvoi).
+     */
+    public long getCoupures() {
+        return coupures.get();
+    }
+
+    /**
+     * @return le nombre de contenus en cache créés depuis le démarrage.
+     */
+    public long getContenusEnCache() {
+        return numeroContenu.get();
+    }
+
+    private void envoyerReponse(HttpExchange exchange, String modele, int tokensPrompt, int tokensEnCache)
+            throws IOException {
+        String texte = texte(tailleReponse);
+        byte[] corps = morceau(texte, "STOP", modele, tokensPrompt, texte.length() / 4, tokensEnCache)
+                .toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, corps.length);
+        exchange.getResponseBody().write(corps);
+    }
+
+    private void envoyerFlux(HttpExchange exchange, String modele, int tokensPrompt, int tokensEnCache)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        String texte = texte(tailleReponse);
+        int tailleMorceau = Math.max(1, (texte.length() + morceaux - 1) / morceaux);
+        for (int debut = 0; debut < texte.length(); debut += tailleMorceau) {
+            String partie = texte.substring(debut, Math.min(texte.length(), debut + tailleMorceau));
+            boolean dernier = debut + tailleMorceau >= texte.length();
+            JsonObject json = morceau(partie, dernier ? "STOP" : null, modele, tokensPrompt, texte.length() / 4,
+                    tokensEnCache);
+            out.write(("data: " + json + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (!dernier) {
+                pause(Math.max(1, latenceMs / (2L * morceaux)));
+            }
+        }
+    }
+
+    private void envoyerErreur(HttpExchange exchange) throws IOException {
+        if (statutErreur == 429) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        envoyerErreur(exchange, statutErreur, statutErreur == 429 ? "RESOURCE_EXHAUSTED" : "UNAVAILABLE",
+                "Erreur injectée par le serveur simulé");
+    }
+
+    private static void envoyerErreur(HttpExchange exchange, int statut, String status, String message)
+            throws IOException {
+        byte[] corps = Json.createObjectBuilder()
+                .add("error", Json.createObjectBuilder()
+                        .add("code", statut)
+                        .add("message", message)
+                        .add("status", status))
+                .build().toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(statut, corps.length);
+        exchange.getResponseBody().write(corps);
+    }
+
+    private static JsonObject morceau(String texte, String finishReason, String modele,
+                                      int tokensPrompt, int tokensReponse, int tokensEnCache) {
+        var candidat = Json.createObjectBuilder()
+                .add("content", Json.createObjectBuilder()
+                        .add("parts", Json.createArrayBuilder().add(Json.createObjectBuilder().add("text", texte)))
+                        .add("role", "model"));
+        if (finishReason != null) {
+            candidat.add("finishReason", finishReason);
+        }
+        var usage = Json.createObjectBuilder()
+                .add("promptTokenCount", tokensPrompt)
+                .add("candidatesTokenCount", tokensReponse)
+                .add("totalTokenCount", tokensPrompt + tokensReponse);
+        if (tokensEnCache > 0) {
+            usage.add("cachedContentTokenCount", tokensEnCache);
+        }
+        return Json.createObjectBuilder()
+                .add("candidates", Json.createArrayBuilder().add(candidat))
+                .add("usageMetadata", usage)
+                .add("modelVersion", modele)
+                .build();
+    }
+
+    private static String texte(int taille) {
+        StringBuilder texte = new StringBuilder(taille + 40);
+        texte.append("Réponse simulée n°").append(ThreadLocalRandom.current().nextInt(1_000_000)).append(". ");
+        while (texte.length() < taille) {
+            texte.append("Lorem ipsum dolor sit amet. ");
+        }
+        texte.setLength(taille);
+        return texte.toString();
+    }
+
+    private void attendre() {
+        long gigue = gigueMs <= 0 ? 0 : ThreadLocalRandom.current().nextLong(-gigueMs, gigueMs + 1);
+        pause(Math.max(0, latenceMs + gigue));
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static JsonObject lireJson(byte[] octets) {
+        if (octets.length == 0) {
+            return JsonObject.EMPTY_JSON_OBJECT;
+        }
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(octets))) {
+            return reader.readObject();
+        }
+    }
+}